@@ -1,24 +1,38 @@
 package com.ecommerce.payment.service.impl;
 
+import com.ecommerce.payment.cache.PaymentCache;
 import com.ecommerce.payment.client.OrderServiceClient;
 import com.ecommerce.payment.dto.PaymentRequest;
 import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.GatewayUnavailableException;
+import com.ecommerce.payment.exception.PaymentDeclinedException;
 import com.ecommerce.payment.exception.PaymentNotFoundException;
 import com.ecommerce.payment.exception.PaymentProcessingException;
+import com.ecommerce.payment.gateway.GatewayResult;
 import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
 import com.ecommerce.payment.model.Payment;
 import com.ecommerce.payment.model.PaymentStatus;
 import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.retry.PaymentRetryHandler;
 import com.ecommerce.payment.service.PaymentNotificationService;
 import com.ecommerce.payment.service.PaymentService;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
 import com.ecommerce.payment.util.PaymentDataMasker;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import com.ecommerce.payment.velocity.VelocityVerdict;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
-import java.time.LocalDateTime;
+import java.time.Clock;
+import java.time.Instant;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -36,6 +50,14 @@ public class PaymentServiceImpl implements PaymentService {
     private final PaymentNotificationService notificationService;
     private final OrderServiceClient orderServiceClient;
     private final PaymentDataMasker dataMasker;
+    private final VelocityEngine velocityEngine;
+    private final ShardRouter shardRouter;
+    private final TransactionIdIndex transactionIdIndex;
+    private final PaymentRetryHandler paymentRetryHandler;
+    private final PaymentCache paymentCache;
+    private final ApplicationEventPublisher eventPublisher;
+    private final TransactionTemplate readTransaction;
+    private final Clock clock;
     
     @Autowired
     public PaymentServiceImpl(
@@ -43,16 +65,33 @@ public class PaymentServiceImpl implements PaymentService {
             PaymentGatewayService paymentGatewayService,
             PaymentNotificationService notificationService,
             OrderServiceClient orderServiceClient,
-            PaymentDataMasker dataMasker) {
+            PaymentDataMasker dataMasker,
+            VelocityEngine velocityEngine,
+            ShardRouter shardRouter,
+            TransactionIdIndex transactionIdIndex,
+            PaymentRetryHandler paymentRetryHandler,
+            PaymentCache paymentCache,
+            ApplicationEventPublisher eventPublisher,
+            PlatformTransactionManager transactionManager,
+            Clock clock) {
         this.paymentRepository = paymentRepository;
         this.paymentGatewayService = paymentGatewayService;
         this.notificationService = notificationService;
         this.orderServiceClient = orderServiceClient;
         this.dataMasker = dataMasker;
+        this.velocityEngine = velocityEngine;
+        this.shardRouter = shardRouter;
+        this.transactionIdIndex = transactionIdIndex;
+        this.paymentRetryHandler = paymentRetryHandler;
+        this.paymentCache = paymentCache;
+        this.eventPublisher = eventPublisher;
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.clock = clock;
     }
     
     @Override
-    @Transactional
+    @Transactional(noRollbackFor = PaymentProcessingException.class)
     public PaymentResponse processPayment(PaymentRequest paymentRequest) {
         logger.info("Processing payment for order: {}, amount: {}, method: {}", 
             paymentRequest.getOrderId(),
@@ -64,73 +103,106 @@ public class PaymentServiceImpl implements PaymentService {
             logger.debug("Processing with card: {}", dataMasker.maskCardNumber(paymentRequest.getCardNumber()));
         }
         
-        // Create a new payment record
+        // Velocity pre-check: rejected attempts never reach the database or the gateway
+        VelocityVerdict verdict = velocityEngine.evaluate(paymentRequest);
+        if (!verdict.isAllowed()) {
+            logger.warn("Payment rejected by velocity checks for order: {}, rule: {}",
+                paymentRequest.getOrderId(), verdict);
+            throw new PaymentDeclinedException(VelocityEngine.REJECTION_MESSAGE);
+        }
+        
+        // All payments of an order live on the order's shard
+        ShardContext.bindToTransaction(shardRouter.shardForOrder(paymentRequest.getOrderId()));
+        
+        // Create a new payment record, handed to the gateway at once
+        Instant receivedAt = clock.instant();
         Payment payment = new Payment(
             paymentRequest.getOrderId(),
             paymentRequest.getAmount(),
-            paymentRequest.getPaymentMethod()
+            paymentRequest.getPaymentMethod(),
+            receivedAt
         );
         
         // Set payment status to PROCESSING
-        payment.setStatus(PaymentStatus.PROCESSING);
+        payment.setStatus(PaymentStatus.PROCESSING, receivedAt);
         payment = paymentRepository.save(payment);
         
         // Process payment through gateway
+        GatewayResult result;
         try {
-            // Call payment gateway
-            String transactionId = paymentGatewayService.processPayment(paymentRequest);
-            payment.setTransactionId(transactionId);
-            payment.setStatus(PaymentStatus.COMPLETED);
-            payment.setUpdatedAt(LocalDateTime.now());
-            
-            // Save the updated payment
+            result = paymentGatewayService.processPayment(payment.getId(), paymentRequest);
+        } catch (GatewayUnavailableException e) {
+            // Transient: the charge is retried in the background while the payment stays PENDING
+            logger.warn("Payment gateway unavailable for order: {}, retry scheduled: {}",
+                paymentRequest.getOrderId(), e.getMessage());
+            payment.setStatus(PaymentStatus.PENDING, clock.instant());
             payment = paymentRepository.save(payment);
-            
-            // Send confirmation notification
-            PaymentResponse response = convertToPaymentResponse(payment);
-            notificationService.sendPaymentConfirmation(response);
-            
-            // Update order status
-            orderServiceClient.updateOrderAfterPayment(paymentRequest.getOrderId(), payment.getId());
-            
-            logger.info("Payment completed successfully for order: {}", paymentRequest.getOrderId());
-            return response;
-            
+            paymentRetryHandler.scheduleAfterCommit(payment, paymentRequest);
+            return convertToPaymentResponse(payment);
         } catch (PaymentProcessingException e) {
-            // Payment failed at gateway level
+            // Gateway call failed (not a decline)
             logger.error("Payment processing failed for order: {}", paymentRequest.getOrderId(), e);
-            
-            // Update payment status to FAILED
-            payment.setStatus(PaymentStatus.FAILED);
-            payment.setUpdatedAt(LocalDateTime.now());
-            paymentRepository.save(payment);
-            
-            // Send failure notification
-            notificationService.sendPaymentFailureNotification(
-                paymentRequest.getOrderId(), 
-                e.getMessage()
-            );
-            
+            markFailed(payment, paymentRequest.getOrderId(), e.getMessage());
             throw e;
         }
+        
+        if (!result.isApproved()) {
+            // Declines are an expected outcome: no stack trace, FAILED status is kept
+            logger.warn("Payment declined for order: {}, reason: {}",
+                paymentRequest.getOrderId(), result.getDeclineReason());
+            velocityEngine.recordDecline(paymentRequest);
+            markFailed(payment, paymentRequest.getOrderId(), result.getDeclineReason());
+            throw new PaymentDeclinedException(result.getDeclineReason());
+        }
+        
+        payment.setTransactionId(result.getTransactionId());
+        payment.setStatus(PaymentStatus.COMPLETED, clock.instant());
+        
+        // Save the updated payment
+        payment = paymentRepository.save(payment);
+        transactionIdIndex.indexAfterCommit(payment.getTransactionId(), payment.getId());
+        
+        // Send confirmation notification
+        PaymentResponse response = convertToPaymentResponse(payment);
+        notificationService.sendPaymentConfirmation(response);
+        
+        // Update order status
+        orderServiceClient.updateOrderAfterPayment(paymentRequest.getOrderId(), payment.getId());
+        
+        logger.info("Payment completed successfully for order: {}", paymentRequest.getOrderId());
+        return response;
     }
     
     @Override
     public PaymentResponse getPaymentById(Long paymentId) {
         logger.info("Retrieving payment with ID: {}", paymentId);
         
-        Payment payment = paymentRepository.findById(paymentId)
-            .orElseThrow(() -> {
-                logger.warn("Payment not found with ID: {}", paymentId);
-                return new PaymentNotFoundException("Payment not found with ID: " + paymentId);
-            });
+        // Cache hits need neither a transaction nor a connection
+        PaymentResponse cached = paymentCache.get(paymentId);
+        if (cached != null) {
+            return cached;
+        }
+        
+        long loadToken = paymentCache.startLoad();
+        Payment payment = readTransaction.execute(status -> {
+            bindPaymentShard(paymentId);
+            return paymentRepository.findById(paymentId)
+                .orElseThrow(() -> {
+                    logger.warn("Payment not found with ID: {}", paymentId);
+                    return new PaymentNotFoundException("Payment not found with ID: " + paymentId);
+                });
+        });
         
-        return convertToPaymentResponse(payment);
+        PaymentResponse response = convertToPaymentResponse(payment);
+        paymentCache.put(paymentId, payment.getVersion() != null ? payment.getVersion() : 0, response, loadToken);
+        return response;
     }
     
     @Override
+    @Transactional(readOnly = true)
     public List<PaymentResponse> getPaymentsByOrderId(Long orderId) {
         logger.info("Retrieving payments for order ID: {}", orderId);
+        ShardContext.bindToTransaction(shardRouter.shardForOrder(orderId));
         
         List<Payment> payments = paymentRepository.findByOrderId(orderId);
         logger.info("Found {} payments for order ID: {}", payments.size(), orderId);
@@ -144,6 +216,7 @@ public class PaymentServiceImpl implements PaymentService {
     @Transactional
     public PaymentResponse refundPayment(Long paymentId) {
         logger.info("Processing refund for payment ID: {}", paymentId);
+        bindPaymentShard(paymentId);
         
         Payment payment = paymentRepository.findById(paymentId)
             .orElseThrow(() -> {
@@ -160,11 +233,14 @@ public class PaymentServiceImpl implements PaymentService {
         
         try {
             // Process refund through payment gateway
-            paymentGatewayService.processRefund(payment.getTransactionId());
+            GatewayResult refundResult = paymentGatewayService.processRefund(payment.getTransactionId());
+            if (!refundResult.isApproved()) {
+                logger.warn("Refund declined for payment ID: {}, reason: {}", paymentId, refundResult.getDeclineReason());
+                throw new PaymentDeclinedException(refundResult.getDeclineReason());
+            }
             
             // Update payment status
-            payment.setStatus(PaymentStatus.REFUNDED);
-            payment.setUpdatedAt(LocalDateTime.now());
+            payment.setStatus(PaymentStatus.REFUNDED, clock.instant());
             payment = paymentRepository.save(payment);
             
             // Create response
@@ -179,6 +255,8 @@ public class PaymentServiceImpl implements PaymentService {
             logger.info("Refund processed successfully for payment ID: {}", paymentId);
             return response;
             
+        } catch (PaymentDeclinedException e) {
+            throw e;
         } catch (Exception e) {
             logger.error("Refund processing failed for payment ID: {}", paymentId, e);
             throw new PaymentProcessingException("Failed to process refund: " + e.getMessage());
@@ -189,14 +267,49 @@ public class PaymentServiceImpl implements PaymentService {
     @Transactional
     public void deletePayment(Long paymentId) {
         logger.info("Deleting payment with ID: {}", paymentId);
+        bindPaymentShard(paymentId);
         
-        if (!paymentRepository.existsById(paymentId)) {
-            logger.warn("Cannot delete - payment not found with ID: {}", paymentId);
+        Payment payment = paymentRepository.findById(paymentId)
+            .orElseThrow(() -> {
+                logger.warn("Cannot delete - payment not found with ID: {}", paymentId);
+                return new PaymentNotFoundException("Payment not found with ID: " + paymentId);
+            });
+        
+        paymentRepository.delete(payment);
+        // Read models subtract the payment from its order's totals
+        eventPublisher.publishEvent(payment.removedEvent(clock.instant()));
+        transactionIdIndex.removeAfterCommit(payment.getTransactionId());
+        paymentCache.evictAfterCommit(paymentId);
+        logger.info("Payment deleted successfully with ID: {}", paymentId);
+    }
+    
+    /**
+     * Bind the current transaction to the shard encoded in a payment ID
+     * 
+     * @param paymentId the payment ID
+     * @throws PaymentNotFoundException if the ID points at a shard that does not exist
+     */
+    private void bindPaymentShard(Long paymentId) {
+        int shard = shardRouter.shardForPayment(paymentId);
+        if (shard < 0) {
+            logger.warn("Payment ID {} does not belong to any shard", paymentId);
             throw new PaymentNotFoundException("Payment not found with ID: " + paymentId);
         }
+        ShardContext.bindToTransaction(shard);
+    }
+    
+    /**
+     * Mark a payment as FAILED and notify the customer
+     * 
+     * @param payment the payment entity
+     * @param orderId the order ID
+     * @param reason the failure reason
+     */
+    private void markFailed(Payment payment, Long orderId, String reason) {
+        payment.setStatus(PaymentStatus.FAILED, clock.instant());
+        paymentRepository.save(payment);
         
-        paymentRepository.deleteById(paymentId);
-        logger.info("Payment deleted successfully with ID: {}", paymentId);
+        notificationService.sendPaymentFailureNotification(orderId, reason);
     }
     
     /**
@@ -206,16 +319,6 @@ public class PaymentServiceImpl implements PaymentService {
      * @return the payment response DTO
      */
     private PaymentResponse convertToPaymentResponse(Payment payment) {
-        PaymentResponse response = new PaymentResponse();
-        response.setId(payment.getId());
-        response.setOrderId(payment.getOrderId());
-        response.setAmount(payment.getAmount());
-        response.setTransactionId(payment.getTransactionId());
-        response.setPaymentMethod(payment.getPaymentMethod());
-        response.setStatus(payment.getStatus());
-        response.setCreatedAt(payment.getCreatedAt());
-        response.setUpdatedAt(payment.getUpdatedAt());
-        
-        return response;
+        return PaymentResponse.from(payment);
     }
 }
@@ -0,0 +1,582 @@
+// Admission Control for Payment Service
+
+// 1. Token Buckets
+// TokenBuckets.java
+package com.ecommerce.payment.admission;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed array of token buckets sharing one rate and burst, refilled lock-free.
+ *
+ * Each bucket is a single long: the theoretical arrival time of the next request
+ * (GCRA). Refill is implicit in the passing of time, so acquiring a token is one
+ * compare-and-set and no thread ever refills or sweeps buckets.
+ */
+public class TokenBuckets {
+
+    private final AtomicLongArray theoreticalArrivals;
+    private final long emissionIntervalNanos;
+    private final long burstNanos;
+
+    /**
+     * @param buckets number of independent buckets
+     * @param ratePerSecond sustained tokens per second of each bucket
+     * @param burst tokens a full bucket holds
+     */
+    public TokenBuckets(int buckets, double ratePerSecond, int burst) {
+        if (buckets < 1 || ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Buckets, rate and burst must be positive");
+        }
+        this.theoreticalArrivals = new AtomicLongArray(buckets);
+        this.emissionIntervalNanos = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.burstNanos = emissionIntervalNanos * burst;
+        for (int i = 0; i < buckets; i++) {
+            theoreticalArrivals.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Take a token from a bucket
+     *
+     * @param bucket index of the bucket
+     * @param nowNanos current System.nanoTime()
+     * @return 0 if a token was taken, otherwise nanoseconds until one is available
+     */
+    public long tryAcquire(int bucket, long nowNanos) {
+        while (true) {
+            long arrival = theoreticalArrivals.get(bucket);
+            long next = Math.max(arrival, nowNanos) + emissionIntervalNanos;
+            long wait = next - nowNanos - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (theoreticalArrivals.compareAndSet(bucket, arrival, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Give back a token taken by tryAcquire, for a request rejected further on
+     *
+     * @param bucket index of the bucket
+     */
+    public void refund(int bucket) {
+        theoreticalArrivals.addAndGet(bucket, -emissionIntervalNanos);
+    }
+
+    public int size() {
+        return theoreticalArrivals.length();
+    }
+}
+
+// 2. Adaptive Concurrency Limit
+// AdaptiveConcurrencyLimit.java
+package com.ecommerce.payment.admission;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit that follows the service's capacity, TCP Vegas style.
+ *
+ * The lowest recent latency is taken as the no-load latency. The number of requests
+ * queued somewhere downstream (DB pool, gateway) is estimated as
+ * limit * (1 - noLoad / latency), and the limit grows while that queue is short and
+ * shrinks when it builds up. Server errors cut the limit multiplicatively. Requests
+ * beyond the limit are rejected up front instead of joining the queue, so latency of
+ * admitted requests, and with it goodput, stays stable under overload.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    // Lightly loaded samples between re-measurements of the no-load latency,
+    // so that it follows lasting shifts such as a slower gateway
+    private static final int PROBE_INTERVAL = 1000;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    // Guarded by this
+    private long noLoadLatencyNanos = Long.MAX_VALUE;
+    private int samplesSinceProbe;
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return true if the request may proceed; it must then call release exactly once
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latencyNanos time the admitted request took
+     * @param dropped whether the request failed because of overload (server error)
+     */
+    public void release(long latencyNanos, boolean dropped) {
+        int inFlightAtCompletion = inFlight.getAndDecrement();
+        onSample(latencyNanos, dropped, inFlightAtCompletion);
+    }
+
+    private synchronized void onSample(long latencyNanos, boolean dropped, int inFlightAtCompletion) {
+        int current = limit;
+        if (dropped) {
+            limit = Math.max(minLimit, (int) (current * BACKOFF_RATIO));
+            return;
+        }
+
+        // Latency says nothing about capacity while the limit is far from reached,
+        // but it is then close to the no-load latency and is used to re-probe it
+        boolean lightlyLoaded = inFlightAtCompletion * 2 < current;
+        if (latencyNanos < noLoadLatencyNanos) {
+            noLoadLatencyNanos = latencyNanos;
+        } else if (lightlyLoaded && ++samplesSinceProbe >= PROBE_INTERVAL) {
+            samplesSinceProbe = 0;
+            noLoadLatencyNanos = latencyNanos;
+        }
+        if (lightlyLoaded) {
+            return;
+        }
+
+        double log = Math.max(1, Math.log10(current));
+        double queued = current * (1 - (double) Math.max(1, noLoadLatencyNanos) / Math.max(1, latencyNanos));
+        if (queued <= 3 * log) {
+            limit = Math.min(maxLimit, current + (int) log);
+        } else if (queued >= 6 * log) {
+            limit = Math.max(minLimit, current - (int) log);
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
+
+// 3. Admission Filter
+// AdmissionControl.java
+package com.ecommerce.payment.admission;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Admission decisions for payment processing, shared by AdmissionFilter (REST) and
+ * GrpcAdmissionInterceptor (gRPC), so both endpoints draw on the same budgets.
+ *
+ * A request passes the caller's token bucket, then the global token bucket, then the
+ * adaptive concurrency limit; tokens taken before a later check rejects are given back.
+ * Callers hashing to the same bucket share it.
+ */
+public class AdmissionControl {
+
+    public static final String RATE_LIMITED = "Too many payment requests, retry later";
+    public static final String OVERLOADED = "Payment service is at capacity, retry later";
+
+    /**
+     * Why a request was not admitted
+     *
+     * @param message         RATE_LIMITED or OVERLOADED
+     * @param retryAfterNanos time until a token is available, 0 when overloaded
+     */
+    public record Rejection(String message, long retryAfterNanos) {
+    }
+
+    private final TokenBuckets globalBucket;
+    private final TokenBuckets clientBuckets;
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+
+    private final Counter globalRateRejections;
+    private final Counter clientRateRejections;
+    private final Counter concurrencyRejections;
+
+    public AdmissionControl(AdmissionProperties properties, MeterRegistry meterRegistry) {
+        this.globalBucket = new TokenBuckets(1, properties.getGlobalRate(), properties.getGlobalBurst());
+        this.clientBuckets = new TokenBuckets(Integer.highestOneBit(Math.max(1, properties.getClientBuckets())),
+            properties.getClientRate(), properties.getClientBurst());
+        this.concurrencyLimit = new AdaptiveConcurrencyLimit(properties.getInitialConcurrencyLimit(),
+            properties.getMinConcurrencyLimit(), properties.getMaxConcurrencyLimit());
+
+        this.globalRateRejections = rejectionCounter(meterRegistry, "global-rate");
+        this.clientRateRejections = rejectionCounter(meterRegistry, "client-rate");
+        this.concurrencyRejections = rejectionCounter(meterRegistry, "concurrency");
+        Gauge.builder("payment.admission.concurrency.limit", concurrencyLimit, AdaptiveConcurrencyLimit::getLimit)
+            .register(meterRegistry);
+        Gauge.builder("payment.admission.in.flight", concurrencyLimit, AdaptiveConcurrencyLimit::getInFlight)
+            .register(meterRegistry);
+    }
+
+    /**
+     * @param client   trusted identity of the caller, null for anonymous requests, which are
+     *                 held to the global rate and the concurrency limit only
+     * @param nowNanos current System.nanoTime()
+     * @return null if the request is admitted, and must then be released exactly once
+     */
+    public Rejection tryAcquire(String client, long nowNanos) {
+        // Per-client first, so a single noisy client does not drain the global bucket
+        int clientBucket = clientBucket(client);
+        if (clientBucket >= 0) {
+            long wait = clientBuckets.tryAcquire(clientBucket, nowNanos);
+            if (wait > 0) {
+                clientRateRejections.increment();
+                return new Rejection(RATE_LIMITED, wait);
+            }
+        }
+        long wait = globalBucket.tryAcquire(0, nowNanos);
+        if (wait > 0) {
+            refundClient(clientBucket);
+            globalRateRejections.increment();
+            return new Rejection(RATE_LIMITED, wait);
+        }
+        if (!concurrencyLimit.tryAcquire()) {
+            refundClient(clientBucket);
+            globalBucket.refund(0);
+            concurrencyRejections.increment();
+            return new Rejection(OVERLOADED, 0);
+        }
+        return null;
+    }
+
+    /**
+     * @param latencyNanos time the admitted request took
+     * @param dropped      whether it failed on the server's side
+     */
+    public void release(long latencyNanos, boolean dropped) {
+        concurrencyLimit.release(latencyNanos, dropped);
+    }
+
+    AdaptiveConcurrencyLimit getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    private int clientBucket(String client) {
+        if (client == null || client.isEmpty()) {
+            return -1;
+        }
+        int hash = client.hashCode();
+        return (hash ^ (hash >>> 16)) & (clientBuckets.size() - 1);
+    }
+
+    private void refundClient(int clientBucket) {
+        if (clientBucket >= 0) {
+            clientBuckets.refund(clientBucket);
+        }
+    }
+
+    private static Counter rejectionCounter(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("payment.admission.rejections")
+            .tag("reason", reason)
+            .register(meterRegistry);
+    }
+}
+
+// AdmissionFilter.java
+package com.ecommerce.payment.admission;
+
+import com.ecommerce.payment.exception.ErrorResponseCache;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.security.Principal;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control in front of PaymentController.processPayment, by AdmissionControl.
+ * Rejections cost no parsing, DB connection or gateway call and are answered with 429
+ * and Retry-After.
+ *
+ * Callers are told apart only by an identity the service can trust: the authenticated
+ * principal, or the client ID header when a gateway in front authenticates callers and
+ * sets it (trust-client-id-header). Neither a caller-chosen header nor the remote address,
+ * which behind forwarding headers is caller-chosen too, gets its own budget.
+ */
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private final AdmissionProperties properties;
+    private final AdmissionControl admission;
+    private final ErrorResponseCache rejections;
+
+    public AdmissionFilter(AdmissionProperties properties, AdmissionControl admission, ErrorResponseCache rejections) {
+        this.properties = properties;
+        this.admission = admission;
+        this.rejections = rejections;
+        rejections.register(AdmissionControl.RATE_LIMITED);
+        rejections.register(AdmissionControl.OVERLOADED);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !"POST".equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long now = System.nanoTime();
+
+        AdmissionControl.Rejection rejection = admission.tryAcquire(client(request), now);
+        if (rejection != null) {
+            reject(response, rejection);
+            return;
+        }
+
+        boolean dispatched = false;
+        try {
+            filterChain.doFilter(request, response);
+            dispatched = true;
+        } finally {
+            if (dispatched && request.isAsyncStarted()) {
+                // Processing continues on a lane executor; the request counts until the response is complete
+                request.getAsyncContext().addListener(new ReleaseOnComplete(now, response));
+            } else {
+                admission.release(System.nanoTime() - now, !dispatched || isServerError(response));
+            }
+        }
+    }
+
+    private static boolean isServerError(HttpServletResponse response) {
+        return response.getStatus() >= HttpStatus.INTERNAL_SERVER_ERROR.value();
+    }
+
+    /**
+     * @return the caller's trusted identity, or null for anonymous requests
+     */
+    private String client(HttpServletRequest request) {
+        Principal principal = request.getUserPrincipal();
+        if (principal != null) {
+            return principal.getName();
+        }
+        return properties.isTrustClientIdHeader() ? request.getHeader(properties.getClientIdHeader()) : null;
+    }
+
+    private void reject(HttpServletResponse response, AdmissionControl.Rejection rejection) throws IOException {
+        long retryAfterSeconds = Math.max(1,
+            TimeUnit.NANOSECONDS.toSeconds(rejection.retryAfterNanos() + 999_999_999L));
+        byte[] body = rejections.render(rejection.message(), LocalDateTime.now());
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private final class ReleaseOnComplete implements AsyncListener {
+
+        private final long startNanos;
+        private final HttpServletResponse response;
+        private volatile boolean failed;
+
+        ReleaseOnComplete(long startNanos, HttpServletResponse response) {
+            this.startNanos = startNanos;
+            this.response = response;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            admission.release(System.nanoTime() - startNanos, failed || isServerError(response));
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            failed = true;
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            failed = true;
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Stays registered for the rest of the request
+        }
+    }
+}
+
+// 4. Configuration Properties
+// AdmissionProperties.java
+package com.ecommerce.payment.admission;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Admission control of payment processing, bound from payment.admission.*
+ * Rates are requests per second.
+ */
+@ConfigurationProperties(prefix = "payment.admission")
+public class AdmissionProperties {
+
+    private boolean enabled = false;
+    private double globalRate = 500;
+    private int globalBurst = 1000;
+    private double clientRate = 20;
+    private int clientBurst = 40;
+    private int clientBuckets = 65536;
+    private String clientIdHeader = "X-Client-Id";
+    // Only set when every request passes a gateway that authenticates callers and overwrites the header
+    private boolean trustClientIdHeader = false;
+    private int initialConcurrencyLimit = 20;
+    private int minConcurrencyLimit = 4;
+    private int maxConcurrencyLimit = 200;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public double getGlobalRate() {
+        return globalRate;
+    }
+
+    public void setGlobalRate(double globalRate) {
+        this.globalRate = globalRate;
+    }
+
+    public int getGlobalBurst() {
+        return globalBurst;
+    }
+
+    public void setGlobalBurst(int globalBurst) {
+        this.globalBurst = globalBurst;
+    }
+
+    public double getClientRate() {
+        return clientRate;
+    }
+
+    public void setClientRate(double clientRate) {
+        this.clientRate = clientRate;
+    }
+
+    public int getClientBurst() {
+        return clientBurst;
+    }
+
+    public void setClientBurst(int clientBurst) {
+        this.clientBurst = clientBurst;
+    }
+
+    public int getClientBuckets() {
+        return clientBuckets;
+    }
+
+    public void setClientBuckets(int clientBuckets) {
+        this.clientBuckets = clientBuckets;
+    }
+
+    public String getClientIdHeader() {
+        return clientIdHeader;
+    }
+
+    public void setClientIdHeader(String clientIdHeader) {
+        this.clientIdHeader = clientIdHeader;
+    }
+
+    public boolean isTrustClientIdHeader() {
+        return trustClientIdHeader;
+    }
+
+    public void setTrustClientIdHeader(boolean trustClientIdHeader) {
+        this.trustClientIdHeader = trustClientIdHeader;
+    }
+
+    public int getInitialConcurrencyLimit() {
+        return initialConcurrencyLimit;
+    }
+
+    public void setInitialConcurrencyLimit(int initialConcurrencyLimit) {
+        this.initialConcurrencyLimit = initialConcurrencyLimit;
+    }
+
+    public int getMinConcurrencyLimit() {
+        return minConcurrencyLimit;
+    }
+
+    public void setMinConcurrencyLimit(int minConcurrencyLimit) {
+        this.minConcurrencyLimit = minConcurrencyLimit;
+    }
+
+    public int getMaxConcurrencyLimit() {
+        return maxConcurrencyLimit;
+    }
+
+    public void setMaxConcurrencyLimit(int maxConcurrencyLimit) {
+        this.maxConcurrencyLimit = maxConcurrencyLimit;
+    }
+}
+
+// 5. Admission Configuration
+// AdmissionConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.admission.AdmissionControl;
+import com.ecommerce.payment.admission.AdmissionFilter;
+import com.ecommerce.payment.admission.AdmissionProperties;
+import com.ecommerce.payment.exception.ErrorResponseCache;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpStatus;
+
+@Configuration
+@ConditionalOnProperty(prefix = "payment.admission", name = "enabled", havingValue = "true", matchIfMissing = false)
+@EnableConfigurationProperties(AdmissionProperties.class)
+public class AdmissionConfig {
+
+    // One instance for REST and gRPC (GrpcConfig), so both share the budgets
+    @Bean
+    public AdmissionControl admissionControl(AdmissionProperties properties, MeterRegistry meterRegistry) {
+        return new AdmissionControl(properties, meterRegistry);
+    }
+
+    @Bean
+    public FilterRegistrationBean<AdmissionFilter> admissionFilter(AdmissionProperties properties,
+                                                                   AdmissionControl admissionControl,
+                                                                   ObjectMapper objectMapper) {
+        AdmissionFilter filter = new AdmissionFilter(properties, admissionControl,
+            new ErrorResponseCache(objectMapper, HttpStatus.TOO_MANY_REQUESTS));
+        FilterRegistrationBean<AdmissionFilter> registration = new FilterRegistrationBean<>(filter);
+        // Exact match: only payment processing is admission controlled
+        registration.addUrlPatterns("/api/payments");
+        return registration;
+    }
+}
@@ -0,0 +1,1420 @@
+// Benchmarks for the Payment Service (JMH)
+// Run all:  mvn -Pbenchmark test-compile exec:java
+// Run one:  mvn -Pbenchmark test-compile exec:java -Dexec.args="PaymentSerializationBenchmark"
+
+// 1. Serialization Benchmarks
+// PaymentSerializationBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.ErrorResponse;
+import com.ecommerce.payment.json.ErrorResponseSerializer;
+import com.ecommerce.payment.json.MoneySerializer;
+import com.ecommerce.payment.json.PaymentRequestDeserializer;
+import com.ecommerce.payment.json.PaymentResponseSerializer;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reflective Jackson (the previous setup) vs hand-written serializers + Blackbird,
+ * for JSON and CBOR. HandWrittenSerializerCompatibilityTest checks both produce the same JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaymentSerializationBenchmark {
+
+    private ObjectMapper reflectiveJson;
+    private ObjectMapper optimizedJson;
+    private ObjectMapper optimizedCbor;
+
+    private PaymentResponse paymentResponse;
+    private ErrorResponse errorResponse;
+    private byte[] paymentRequestJson;
+
+    @Setup
+    public void setUp() throws Exception {
+        reflectiveJson = configure(new ObjectMapper());
+        optimizedJson = optimize(configure(new ObjectMapper()));
+        optimizedCbor = optimize(configure(new ObjectMapper(new CBORFactory())));
+
+        paymentResponse = new PaymentResponse();
+        paymentResponse.setId(123456L);
+        paymentResponse.setOrderId(987654L);
+        paymentResponse.setAmount(Money.of(14999, Money.DEFAULT_CURRENCY));
+        paymentResponse.setTransactionId("PG-3f2b8c1e-2d7a-4c5e-9b1f-0a6d4e8c7b21");
+        paymentResponse.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        paymentResponse.setStatus(PaymentStatus.COMPLETED);
+        paymentResponse.setCreatedAt(Instant.parse("2024-05-01T12:30:15.123Z"));
+        paymentResponse.setUpdatedAt(Instant.parse("2024-05-01T12:30:16.456Z"));
+
+        errorResponse = new ErrorResponse(400, "Payment declined by payment gateway", LocalDateTime.now());
+
+        PaymentRequest paymentRequest = new PaymentRequest();
+        paymentRequest.setOrderId(987654L);
+        paymentRequest.setAmount(Money.of(14999, Money.DEFAULT_CURRENCY));
+        paymentRequest.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        paymentRequest.setCardNumber("4111111111111111");
+        paymentRequest.setCardHolderName("John Doe");
+        paymentRequest.setExpiryDate("12/30");
+        paymentRequest.setCvv("123");
+        paymentRequestJson = reflectiveJson.writeValueAsBytes(paymentRequest);
+    }
+
+    @Benchmark
+    public byte[] paymentResponseReflectiveJson() throws Exception {
+        return reflectiveJson.writeValueAsBytes(paymentResponse);
+    }
+
+    @Benchmark
+    public byte[] paymentResponseOptimizedJson() throws Exception {
+        return optimizedJson.writeValueAsBytes(paymentResponse);
+    }
+
+    @Benchmark
+    public byte[] paymentResponseOptimizedCbor() throws Exception {
+        return optimizedCbor.writeValueAsBytes(paymentResponse);
+    }
+
+    @Benchmark
+    public byte[] errorResponseReflectiveJson() throws Exception {
+        return reflectiveJson.writeValueAsBytes(errorResponse);
+    }
+
+    @Benchmark
+    public byte[] errorResponseOptimizedJson() throws Exception {
+        return optimizedJson.writeValueAsBytes(errorResponse);
+    }
+
+    @Benchmark
+    public PaymentRequest paymentRequestOptimizedJson() throws Exception {
+        return optimizedJson.readValue(paymentRequestJson, PaymentRequest.class);
+    }
+
+    // Mirrors the spring.jackson settings in application.yml
+    private static ObjectMapper configure(ObjectMapper mapper) {
+        SimpleModule money = new SimpleModule();
+        money.addSerializer(Money.class, new MoneySerializer());
+        return mapper.registerModule(new JavaTimeModule())
+            .registerModule(money)
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    }
+
+    private static ObjectMapper optimize(ObjectMapper mapper) {
+        SimpleModule serializers = new SimpleModule();
+        serializers.addSerializer(PaymentResponse.class, new PaymentResponseSerializer());
+        serializers.addSerializer(ErrorResponse.class, new ErrorResponseSerializer());
+        serializers.addDeserializer(PaymentRequest.class, new PaymentRequestDeserializer());
+        return mapper.registerModule(serializers).registerModule(new BlackbirdModule());
+    }
+}
+
+// 2. Error Path Benchmarks
+// DeclineErrorPathBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.exception.ErrorResponse;
+import com.ecommerce.payment.exception.ErrorResponseCache;
+import com.ecommerce.payment.exception.PaymentDeclinedException;
+import com.ecommerce.payment.exception.PaymentProcessingException;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.json.ErrorResponseSerializer;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpStatus;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a gateway decline into a response body:
+ * exception with stack trace + reflective ErrorResponse (previous path)
+ * vs stackless exception + pre-serialized body (current path).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeclineErrorPathBenchmark {
+
+    private ObjectMapper reflectiveMapper;
+    private ErrorResponseCache cache;
+
+    @Setup
+    public void setUp() {
+        reflectiveMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        ObjectMapper applicationMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .registerModule(new SimpleModule().addSerializer(ErrorResponse.class, new ErrorResponseSerializer()))
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        cache = new ErrorResponseCache(applicationMapper, HttpStatus.BAD_REQUEST);
+        cache.register(GatewayResult.PAYMENT_DECLINED);
+    }
+
+    @Benchmark
+    public byte[] previousPath() throws Exception {
+        PaymentProcessingException ex = new PaymentProcessingException(GatewayResult.PAYMENT_DECLINED);
+        return reflectiveMapper.writeValueAsBytes(new ErrorResponse(400, ex.getMessage(), LocalDateTime.now()));
+    }
+
+    @Benchmark
+    public byte[] currentPath() {
+        PaymentDeclinedException ex = new PaymentDeclinedException(GatewayResult.PAYMENT_DECLINED);
+        return cache.render(ex.getMessage(), LocalDateTime.now());
+    }
+
+    @Benchmark
+    public Object exceptionWithStackTrace() {
+        return new PaymentProcessingException(GatewayResult.PAYMENT_DECLINED);
+    }
+
+    @Benchmark
+    public Object stacklessException() {
+        return new PaymentDeclinedException(GatewayResult.PAYMENT_DECLINED);
+    }
+}
+
+// 3. Velocity Check Benchmarks
+// VelocityEngineBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import com.ecommerce.payment.velocity.VelocityProperties;
+import com.ecommerce.payment.velocity.VelocityVerdict;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of one velocity pre-check (five sketch lookups and updates) with
+ * four threads hitting the same engine over a rotating set of cards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class VelocityEngineBenchmark {
+
+    private static final int REQUESTS = 4096;
+
+    private VelocityEngine engine;
+    private PaymentRequest[] requests;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+        VelocityProperties properties = new VelocityProperties();
+        // High limits so the benchmark measures the ALLOW path end to end
+        properties.setMaxAttemptsPerCard(Integer.MAX_VALUE);
+        properties.setMaxAttemptsPerEmail(Integer.MAX_VALUE);
+        properties.setMaxAttemptsPerOrder(Integer.MAX_VALUE);
+        properties.setMaxAmountPerCard(Money.parse("1000000000.00", Money.DEFAULT_CURRENCY));
+        engine = new VelocityEngine(properties, new SimpleMeterRegistry(), Clock.systemUTC());
+
+        requests = new PaymentRequest[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            PaymentRequest request = new PaymentRequest();
+            request.setOrderId((long) i);
+            request.setAmount(Money.of(4999, Money.DEFAULT_CURRENCY));
+            request.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+            request.setCardNumber(Long.toString(4_111_111_111_000_000L + i % 512));
+            requests[i] = request;
+        }
+    }
+
+    @Benchmark
+    public VelocityVerdict evaluate() {
+        return engine.evaluate(requests[next.getAndIncrement() & (REQUESTS - 1)]);
+    }
+}
+
+// 4. Transaction ID Lookup Benchmarks
+// TransactionIdLookupBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.index.OffHeapTransactionIndex;
+import com.ecommerce.payment.util.TransactionIds;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transaction ID to payment ID lookups: off-heap index (including parsing the ID)
+ * vs a heap HashMap keyed by the ID string. Run with -prof gc to compare heap use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g", "-XX:MaxDirectMemorySize=1g"})
+public class TransactionIdLookupBenchmark {
+
+    @Param({"1000000"})
+    private int entries;
+
+    private OffHeapTransactionIndex offHeapIndex;
+    private Map<String, Long> heapIndex;
+    private String[] transactionIds;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        offHeapIndex = new OffHeapTransactionIndex(entries * 2);
+        heapIndex = new HashMap<>(entries * 2);
+        transactionIds = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            String transactionId = "PG-" + UUID.randomUUID();
+            transactionIds[i] = transactionId;
+            offHeapIndex.put(TransactionIds.high(transactionId), TransactionIds.low(transactionId), i + 1);
+            heapIndex.put(transactionId, (long) (i + 1));
+        }
+    }
+
+    @Benchmark
+    public long offHeap() {
+        String transactionId = nextTransactionId();
+        return offHeapIndex.get(TransactionIds.high(transactionId), TransactionIds.low(transactionId));
+    }
+
+    @Benchmark
+    public Long heapMap() {
+        return heapIndex.get(nextTransactionId());
+    }
+
+    private String nextTransactionId() {
+        int index = next++;
+        if (next == entries) {
+            next = 0;
+        }
+        return transactionIds[index];
+    }
+}
+
+// 5. Payment Event Log Benchmarks
+// PaymentEventAppendBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.event.PaymentEventLog;
+import com.ecommerce.payment.event.PaymentEventLogProperties;
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable appends from concurrent committers: every operation waits for its fsync,
+ * so throughput shows how many appends each group fsync covers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(1)
+public class PaymentEventAppendBenchmark {
+
+    private final AtomicLong nextPaymentId = new AtomicLong();
+    private Path directory;
+    private PaymentEventLog eventLog;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("payment-events");
+        PaymentEventLogProperties properties = new PaymentEventLogProperties();
+        properties.setDirectory(directory);
+        eventLog = new PaymentEventLog(properties, new SimpleMeterRegistry());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        eventLog.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void appendDurable() {
+        long paymentId = nextPaymentId.incrementAndGet();
+        eventLog.append(List.of(new PaymentStatusChangedEvent(paymentId, paymentId, PaymentStatus.PROCESSING,
+            PaymentStatus.COMPLETED, 2550, Money.DEFAULT_CURRENCY, System.currentTimeMillis())));
+    }
+}
+
+// PaymentEventReplayBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.event.PaymentEventLog;
+import com.ecommerce.payment.event.PaymentEventLogProperties;
+import com.ecommerce.payment.event.PaymentStateTable;
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilding payment state from the full log, without a snapshot. The default of 100M
+ * events (PENDING, PROCESSING, COMPLETED for each of 33M payments) needs about 4.2 GB
+ * of disk; the log is written once per trial and its page cache state is left as is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx6g"})
+public class PaymentEventReplayBenchmark {
+
+    private static final PaymentStatus[] LIFECYCLE = {null, PaymentStatus.PENDING, PaymentStatus.PROCESSING,
+        PaymentStatus.COMPLETED};
+
+    @Param({"100000000"})
+    private long events;
+
+    @Param({"1", "8"})
+    private int parallelism;
+
+    private Path directory;
+    private PaymentEventLog eventLog;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("payment-events");
+        PaymentEventLogProperties properties = new PaymentEventLogProperties();
+        properties.setDirectory(directory);
+        properties.setReplayParallelism(parallelism);
+        properties.setExpectedPayments((int) (events / 3));
+        // No snapshot during the run: rebuild must read the whole log
+        properties.setSnapshotInterval(Duration.ofDays(1));
+        eventLog = new PaymentEventLog(properties, new SimpleMeterRegistry());
+
+        List<PaymentStatusChangedEvent> batch = new ArrayList<>(10_000);
+        for (long i = 0; i < events; i++) {
+            long paymentId = i / 3 + 1;
+            int step = (int) (i % 3) + 1;
+            batch.add(new PaymentStatusChangedEvent(paymentId, paymentId / 2, LIFECYCLE[step - 1], LIFECYCLE[step],
+                1000 + paymentId % 5000, Money.DEFAULT_CURRENCY, i));
+            if (batch.size() == 10_000) {
+                eventLog.append(batch);
+                batch.clear();
+            }
+        }
+        eventLog.append(batch);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        eventLog.close();
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public long rebuild() throws IOException {
+        PaymentStateTable table = eventLog.rebuild();
+        return table.size();
+    }
+}
+
+// 6. Priority Lane Load Test
+// LaneIsolationBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.exception.LaneSaturatedException;
+import com.ecommerce.payment.lane.Lane;
+import com.ecommerce.payment.lane.LaneExecutors;
+import com.ecommerce.payment.lane.LanePartitionedDataSource;
+import com.ecommerce.payment.lane.LaneProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Checkout latency while a refund storm runs, with one shared executor and pool
+ * ("shared", the previous setup) vs priority lanes ("lanes").
+ *
+ * A 20-connection pool is simulated; checkouts hold a connection for 2 ms and refunds
+ * for 20 ms. Thirty-two threads submit refunds back to back. Compare the checkout
+ * percentiles: with lanes they stay near 2 ms, shared they grow with the refund queue.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class LaneIsolationBenchmark {
+
+    private static final long CHECKOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long REFUND_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Param({"shared", "lanes"})
+    private String mode;
+
+    private DataSource dataSource;
+    private LaneExecutors lanes;
+    private ThreadPoolExecutor shared;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        LaneProperties properties = new LaneProperties();
+        DataSource pool = new SimulatedPool(20);
+        if ("lanes".equals(mode)) {
+            lanes = new LaneExecutors(properties, new SimpleMeterRegistry());
+            dataSource = new LanePartitionedDataSource(pool, properties);
+        } else {
+            shared = new ThreadPoolExecutor(properties.getThreads(), properties.getThreads(), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(properties.getQueueCapacity() * Lane.values().length));
+            dataSource = pool;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        if (lanes != null) {
+            lanes.close();
+        } else {
+            shared.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    @Group("refundStorm")
+    @GroupThreads(2)
+    public boolean checkout() {
+        return submit(Lane.CHECKOUT, CHECKOUT_NANOS).join();
+    }
+
+    @Benchmark
+    @Group("refundStorm")
+    @GroupThreads(32)
+    public boolean refund() {
+        try {
+            return submit(Lane.REFUND, REFUND_NANOS).join();
+        } catch (LaneSaturatedException | RejectedExecutionException e) {
+            // Rejected refunds are retried by the caller; back off like one would
+            LockSupport.parkNanos(REFUND_NANOS);
+            return false;
+        }
+    }
+
+    private CompletableFuture<Boolean> submit(Lane lane, long holdNanos) {
+        if (lanes != null) {
+            return lanes.submit(lane, () -> useConnection(holdNanos));
+        }
+        return CompletableFuture.supplyAsync(() -> useConnection(holdNanos), shared);
+    }
+
+    private boolean useConnection(long holdNanos) {
+        try (Connection connection = dataSource.getConnection()) {
+            LockSupport.parkNanos(holdNanos);
+            return connection != null;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Fixed-size pool handing out placeholder connections, blocking like Hikari when empty
+     */
+    private static final class SimulatedPool extends AbstractDataSource {
+
+        private final Semaphore connections;
+
+        SimulatedPool(int size) {
+            this.connections = new Semaphore(size, true);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            try {
+                connections.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                    if ("close".equals(method.getName())) {
+                        connections.release();
+                    }
+                    return null;
+                });
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection();
+        }
+    }
+}
+
+// 7. Money Benchmarks
+// MoneyBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.model.Money;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-request amount work (parse from the JSON buffer, positive check,
+ * compare against a limit, format for the response) with BigDecimal vs Money.
+ * Run with -prof gc to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MoneyBenchmark {
+
+    private char[] amountText;
+    private BigDecimal decimalLimit;
+    private Money moneyLimit;
+
+    @Setup
+    public void setUp() {
+        amountText = "149.99".toCharArray();
+        decimalLimit = new BigDecimal("10000.00");
+        moneyLimit = Money.of(1_000_000, Money.DEFAULT_CURRENCY);
+    }
+
+    @Benchmark
+    public String bigDecimal() {
+        BigDecimal amount = new BigDecimal(amountText, 0, amountText.length);
+        if (amount.signum() <= 0 || amount.compareTo(decimalLimit) > 0) {
+            return null;
+        }
+        return amount.toPlainString();
+    }
+
+    @Benchmark
+    public String money() {
+        Money amount = Money.ofUnscaled(Money.parseUnscaled(amountText, 0, amountText.length, Money.STORAGE_SCALE),
+            Money.STORAGE_SCALE, Money.DEFAULT_CURRENCY);
+        if (!amount.isPositive() || amount.compareTo(moneyLimit) > 0) {
+            return null;
+        }
+        return amount.toPlainString();
+    }
+}
+
+// 8. Clock Benchmarks
+// ClockBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.util.CachedClock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timestamp of a state transition: LocalDateTime.now() (time zone lookup and
+ * conversion), the system UTC clock, and the cached clock, from 8 threads.
+ * Run with -prof gc to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ClockBenchmark {
+
+    private Clock systemClock;
+    private CachedClock cachedClock;
+
+    @Setup
+    public void setUp() {
+        systemClock = Clock.systemUTC();
+        cachedClock = new CachedClock(systemClock, Duration.ofMillis(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        cachedClock.close();
+    }
+
+    @Benchmark
+    public LocalDateTime localDateTimeNow() {
+        return LocalDateTime.now();
+    }
+
+    @Benchmark
+    public Instant systemClock() {
+        return systemClock.instant();
+    }
+
+    @Benchmark
+    public Instant cachedClock() {
+        return cachedClock.instant();
+    }
+}
+
+// 9. Reactive vs Servlet Load Test
+// CheckoutEndpointBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.PaymentServiceApplication;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bursts of checkouts against the running application over HTTP: the default servlet stack
+ * ("servlet": Tomcat, the checkout lane, JPA) vs the reactive profile ("reactive": Netty,
+ * R2DBC). Both run on an in-memory H2 database with the simulated gateway and its 1 s
+ * latency; velocity checks are off and the order service is a local stub answering at once.
+ *
+ * Each operation posts `requests` checkouts at once, each for a new order, and waits for
+ * every response. The time per operation is the time to serve the burst. Counters:
+ * - served: checkouts answered by the endpoint, approved (201/202) or declined (400)
+ * - rejected: checkouts shed with 429 or 503, which the servlet checkout lane does once
+ *   its threads and queue are full
+ * - failed: any other status, or no response
+ * - peakThreads: live JVM threads at most during the last burst. The client runs in this
+ *   JVM too, on four threads, the same for both stacks.
+ * Heap is not reported, as the client's share of it cannot be told apart from the server's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 20)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CheckoutEndpointBenchmark {
+
+    private static final String CHECKOUT = "{\"orderId\":%d,\"amount\":99.99,\"currency\":\"USD\","
+        + "\"paymentMethod\":\"CREDIT_CARD\",\"cardNumber\":\"4111111111111111\","
+        + "\"cardHolderName\":\"Load Test\",\"expiryDate\":\"12/49\",\"cvv\":\"123\"}";
+
+    @Param({"servlet", "reactive"})
+    private String stack;
+
+    @Param({"200", "1000"})
+    private int requests;
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private Path workDirectory;
+    private HttpServer orderService;
+    private ConfigurableApplicationContext application;
+    private ExecutorService clientExecutor;
+    private HttpClient client;
+    private URI checkoutUri;
+    private long nextOrderId;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Outcome {
+        public long served;
+        public long rejected;
+        public long failed;
+        public long peakThreads;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDirectory = Files.createTempDirectory("checkout-benchmark");
+
+        orderService = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        orderService.createContext("/", exchange -> {
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        orderService.setExecutor(Executors.newFixedThreadPool(4));
+        orderService.start();
+
+        SpringApplicationBuilder builder = new SpringApplicationBuilder(PaymentServiceApplication.class)
+            .properties(
+                "server.port=0",
+                "spring.datasource.url=jdbc:h2:mem:checkout_benchmark;MODE=MySQL;DB_CLOSE_DELAY=-1",
+                "spring.datasource.username=sa",
+                "spring.datasource.password=",
+                "spring.datasource.driver-class-name=org.h2.Driver",
+                "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+                "spring.jpa.show-sql=false",
+                // The same in-memory database, shared within the JVM
+                "payment.r2dbc.url=r2dbc:pool:h2:mem:///checkout_benchmark?maxSize=20"
+                    + "&options=DB_CLOSE_DELAY=-1;MODE=MySQL",
+                "payment.r2dbc.username=sa",
+                "payment.velocity.enabled=false",
+                "payment.sweeper.enabled=false",
+                "payment.refund-job.resume-on-startup=false",
+                "payment.retry.journal-directory=" + workDirectory.resolve("retry-journal"),
+                "payment.webhook.journal-directory=" + workDirectory.resolve("webhook-journal"),
+                "service.order.url=http://127.0.0.1:" + orderService.getAddress().getPort() + "/api/orders",
+                // Request logging would dominate the profile
+                "logging.level.root=WARN",
+                "logging.level.com.ecommerce.payment=WARN");
+        if ("reactive".equals(stack)) {
+            builder.profiles("reactive");
+        }
+        application = builder.run();
+        int port = application.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+        checkoutUri = URI.create("http://127.0.0.1:" + port + "/api/payments");
+
+        clientExecutor = Executors.newFixedThreadPool(4);
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(clientExecutor)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (application != null) {
+            application.close();
+        }
+        if (clientExecutor != null) {
+            clientExecutor.shutdownNow();
+        }
+        if (orderService != null) {
+            orderService.stop(0);
+            ((ExecutorService) orderService.getExecutor()).shutdownNow();
+        }
+        if (workDirectory != null) {
+            try (var paths = Files.walk(workDirectory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    @Benchmark
+    public long burst(Outcome outcome) {
+        threads.resetPeakThreadCount();
+        List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            HttpRequest checkout = HttpRequest.newBuilder(checkoutUri)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(60))
+                .POST(HttpRequest.BodyPublishers.ofString(String.format(CHECKOUT, ++nextOrderId)))
+                .build();
+            responses.add(client.sendAsync(checkout, HttpResponse.BodyHandlers.discarding()));
+        }
+
+        long served = 0;
+        for (CompletableFuture<HttpResponse<Void>> response : responses) {
+            int status;
+            try {
+                status = response.join().statusCode();
+            } catch (CompletionException e) {
+                outcome.failed++;
+                continue;
+            }
+            if (status == 201 || status == 202 || status == 400) {
+                served++;
+            } else if (status == 429 || status == 503) {
+                outcome.rejected++;
+            } else {
+                outcome.failed++;
+            }
+        }
+        outcome.served += served;
+        outcome.peakThreads = threads.getPeakThreadCount();
+        return served;
+    }
+}
+
+// 10. gRPC vs REST Benchmarks
+// GrpcVsRestBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.grpc.GrpcProperties;
+import com.ecommerce.payment.grpc.GrpcServer;
+import com.ecommerce.payment.grpc.PaymentGrpcService;
+import com.ecommerce.payment.grpc.v1.PaymentProtos;
+import com.ecommerce.payment.grpc.v1.PaymentServiceGrpc;
+import com.ecommerce.payment.json.MoneySerializer;
+import com.ecommerce.payment.json.PaymentRequestDeserializer;
+import com.ecommerce.payment.json.PaymentResponseSerializer;
+import com.ecommerce.payment.lane.Lane;
+import com.ecommerce.payment.lane.LaneExecutors;
+import com.ecommerce.payment.lane.LaneProperties;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.service.PaymentLookupService;
+import com.ecommerce.payment.service.PaymentService;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.ManagedChannel;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A checkout call from another service over loopback: gRPC (one HTTP/2 channel,
+ * protobuf) vs REST (HTTP/1.1 connections, JSON with the application's serializers).
+ * Both sides decode, validate with PaymentRequestValidator and hop to the checkout lane like
+ * the real endpoints, and PaymentService answers from memory, so the difference is
+ * transport and encoding. The REST server is the JDK HttpServer on 200 threads rather
+ * than Spring MVC on Tomcat, so it leaves out the MVC dispatch cost; real REST calls
+ * are somewhat slower than measured here.
+ *
+ * Run with -prof gc for allocation per call; bytes per call are printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(1)
+public class GrpcVsRestBenchmark {
+
+    private LaneExecutors lanes;
+    private GrpcServer grpcServer;
+    private ManagedChannel channel;
+    private PaymentServiceGrpc.PaymentServiceBlockingStub grpcClient;
+    private PaymentProtos.PaymentRequest grpcRequest;
+
+    private HttpServer restServer;
+    private ExecutorService restWorkers;
+    private HttpClient restClient;
+    private HttpRequest restRequest;
+
+    @Setup
+    public void setUp() throws Exception {
+        PaymentService payments = new InMemoryPaymentService();
+        PaymentRequestValidator requestValidator = new PaymentRequestValidator(Clock.systemUTC());
+        Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+        lanes = new LaneExecutors(new LaneProperties(), new SimpleMeterRegistry());
+
+        GrpcProperties properties = new GrpcProperties();
+        properties.setPort(0);
+        // Measures the protocol, not the TLS handshake or record encryption
+        properties.setPlaintext(true);
+        // Lookups are not measured, so the lookup service has nothing to read from
+        grpcServer = new GrpcServer(properties, List.of(
+            new PaymentGrpcService(payments, new PaymentLookupService(null, null, null, null), lanes,
+                requestValidator, validator, properties.getStreamStallTimeout())));
+        grpcServer.start();
+        channel = Grpc.newChannelBuilderForAddress("localhost", grpcServer.getPort(),
+            InsecureChannelCredentials.create()).build();
+        grpcClient = PaymentServiceGrpc.newBlockingStub(channel);
+        grpcRequest = PaymentProtos.PaymentRequest.newBuilder()
+            .setOrderId(987654L)
+            .setAmount(PaymentProtos.Money.newBuilder().setMinorUnits(14999).setCurrency("USD"))
+            .setPaymentMethod(PaymentProtos.PaymentMethod.PAYMENT_METHOD_CREDIT_CARD)
+            .setCardNumber("4111111111111111")
+            .setCardHolderName("John Doe")
+            .setExpiryDate("12/30")
+            .setCvv("123")
+            .build();
+
+        ObjectMapper json = jsonMapper();
+        restWorkers = Executors.newFixedThreadPool(200);
+        restServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        restServer.setExecutor(restWorkers);
+        restServer.createContext("/api/payments", exchange -> handle(exchange, json, requestValidator, payments));
+        restServer.start();
+        restClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        byte[] body = json.writeValueAsBytes(InMemoryPaymentService.request());
+        restRequest = HttpRequest.newBuilder(
+                URI.create("http://localhost:" + restServer.getAddress().getPort() + "/api/payments"))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+            .build();
+
+        System.out.printf("%nRequest bytes: grpc=%d rest=%d%n", grpcRequest.getSerializedSize(), body.length);
+        System.out.printf("Response bytes: grpc=%d rest=%d%n", grpcClient.processPayment(grpcRequest).getSerializedSize(),
+            restClient.send(restRequest, HttpResponse.BodyHandlers.ofByteArray()).body().length);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        grpcServer.stop();
+        restServer.stop(0);
+        restWorkers.shutdownNow();
+        lanes.close();
+    }
+
+    @Benchmark
+    public PaymentProtos.PaymentResponse grpc() {
+        return grpcClient.processPayment(grpcRequest);
+    }
+
+    @Benchmark
+    public byte[] rest() throws Exception {
+        return restClient.send(restRequest, HttpResponse.BodyHandlers.ofByteArray()).body();
+    }
+
+    // What PaymentController.processPayment does, minus the MVC dispatch
+    private void handle(HttpExchange exchange, ObjectMapper json, PaymentRequestValidator validator,
+                        PaymentService payments) throws IOException {
+        try (exchange) {
+            PaymentRequest request = json.readValue(exchange.getRequestBody(), PaymentRequest.class);
+            if (!validator.validate(request).isEmpty()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            PaymentResponse response = lanes.submit(Lane.CHECKOUT, () -> payments.processPayment(request)).join();
+            byte[] body = json.writeValueAsBytes(response);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(201, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    // Mirrors the spring.jackson settings and the serializers of JacksonConfig
+    private static ObjectMapper jsonMapper() {
+        SimpleModule serializers = new SimpleModule();
+        serializers.addSerializer(Money.class, new MoneySerializer());
+        serializers.addSerializer(PaymentResponse.class, new PaymentResponseSerializer());
+        serializers.addDeserializer(PaymentRequest.class, new PaymentRequestDeserializer());
+        return new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .registerModule(serializers)
+            .registerModule(new BlackbirdModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    }
+
+    /**
+     * Answers every checkout with the same completed payment
+     */
+    private static final class InMemoryPaymentService implements PaymentService {
+
+        private final PaymentResponse completed = new PaymentResponse();
+
+        InMemoryPaymentService() {
+            completed.setId(123456L);
+            completed.setOrderId(987654L);
+            completed.setAmount(Money.of(14999, Money.DEFAULT_CURRENCY));
+            completed.setTransactionId("PG-3f2b8c1e-2d7a-4c5e-9b1f-0a6d4e8c7b21");
+            completed.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+            completed.setStatus(PaymentStatus.COMPLETED);
+            completed.setCreatedAt(Instant.parse("2024-05-01T12:30:15.123Z"));
+            completed.setUpdatedAt(Instant.parse("2024-05-01T12:30:16.456Z"));
+        }
+
+        static PaymentRequest request() {
+            PaymentRequest request = new PaymentRequest();
+            request.setOrderId(987654L);
+            request.setAmount(Money.of(14999, Money.DEFAULT_CURRENCY));
+            request.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+            request.setCardNumber("4111111111111111");
+            request.setCardHolderName("John Doe");
+            request.setExpiryDate("12/30");
+            request.setCvv("123");
+            return request;
+        }
+
+        @Override
+        public PaymentResponse processPayment(PaymentRequest paymentRequest) {
+            return completed;
+        }
+
+        @Override
+        public PaymentResponse getPaymentById(Long paymentId) {
+            return completed;
+        }
+
+        @Override
+        public List<PaymentResponse> getPaymentsByOrderId(Long orderId) {
+            return List.of(completed);
+        }
+
+        @Override
+        public PaymentResponse refundPayment(Long paymentId) {
+            return completed;
+        }
+
+        @Override
+        public void deletePayment(Long paymentId) {
+        }
+    }
+}
+
+// 11. Request Validation Benchmarks
+// PaymentRequestValidationBenchmark.java
+package com.ecommerce.payment.benchmark;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validation;
+import jakarta.validation.Validator;
+import jakarta.validation.constraints.AssertTrue;
+import jakarta.validation.constraints.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hibernate Validator on the annotations PaymentRequest used to carry (the previous @Valid
+ * path, reproduced by AnnotatedRequest) vs PaymentRequestValidator, for a valid card payment
+ * and one with a missing order ID.
+ * PaymentRequestValidator also runs the Luhn, expiry and CVV checks Hibernate Validator
+ * never did. Run with -prof gc: the valid case should show 0 B/op for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaymentRequestValidationBenchmark {
+
+    private Validator beanValidator;
+    private PaymentRequestValidator requestValidator;
+
+    private PaymentRequest validRequest;
+    private PaymentRequest invalidRequest;
+    private AnnotatedRequest validAnnotated;
+    private AnnotatedRequest invalidAnnotated;
+
+    @Setup
+    public void setUp() {
+        beanValidator = Validation.buildDefaultValidatorFactory().getValidator();
+        requestValidator = new PaymentRequestValidator(Clock.systemUTC());
+
+        validRequest = cardRequest();
+        invalidRequest = cardRequest();
+        invalidRequest.setOrderId(null);
+        validAnnotated = new AnnotatedRequest(validRequest);
+        invalidAnnotated = new AnnotatedRequest(invalidRequest);
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<AnnotatedRequest>> validReflective() {
+        return beanValidator.validate(validAnnotated);
+    }
+
+    @Benchmark
+    public Map<String, String> validHandWritten() {
+        return requestValidator.validate(validRequest);
+    }
+
+    @Benchmark
+    public Set<ConstraintViolation<AnnotatedRequest>> invalidReflective() {
+        return beanValidator.validate(invalidAnnotated);
+    }
+
+    @Benchmark
+    public Map<String, String> invalidHandWritten() {
+        return requestValidator.validate(invalidRequest);
+    }
+
+    private static PaymentRequest cardRequest() {
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(987654L);
+        request.setAmount(Money.of(14999, Money.DEFAULT_CURRENCY));
+        request.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        request.setCardNumber("4111111111111111");
+        request.setCardHolderName("John Doe");
+        request.setExpiryDate("12/30");
+        request.setCvv("123");
+        return request;
+    }
+
+    // The PaymentRequest fields and constraints before PaymentRequestValidator replaced them
+    public static class AnnotatedRequest {
+
+        @NotNull(message = "Order ID cannot be null")
+        private final Long orderId;
+
+        @NotNull(message = "Amount cannot be null")
+        private final Money amount;
+
+        @NotNull(message = "Payment method cannot be null")
+        private final PaymentMethod paymentMethod;
+
+        private final String cardNumber;
+        private final String cardHolderName;
+        private final String expiryDate;
+        private final String cvv;
+        private final String paypalEmail;
+
+        AnnotatedRequest(PaymentRequest request) {
+            this.orderId = request.getOrderId();
+            this.amount = request.getAmount();
+            this.paymentMethod = request.getPaymentMethod();
+            this.cardNumber = request.getCardNumber();
+            this.cardHolderName = request.getCardHolderName();
+            this.expiryDate = request.getExpiryDate();
+            this.cvv = request.getCvv();
+            this.paypalEmail = request.getPaypalEmail();
+        }
+
+        @AssertTrue(message = "Amount must be positive")
+        public boolean isAmountPositive() {
+            return amount == null || amount.isPositive();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+// Cached UTC Clock for Payment Service
+
+// 1. Cached Clock
+// CachedClock.java
+package com.ecommerce.payment.util;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * UTC clock that reads the system clock once per tick on a daemon thread and hands
+ * out the last reading, truncated to milliseconds. instant() and millis() are a
+ * volatile read and allocate nothing, so state transitions can stamp themselves on
+ * the request path. The time never goes backwards, even if the source clock does.
+ */
+public final class CachedClock extends Clock implements AutoCloseable {
+
+    private final Clock source;
+    private final long resolutionNanos;
+    private final Thread ticker;
+
+    private volatile Instant now;
+    private volatile boolean closed;
+
+    /**
+     * @param resolution time between readings of the source clock, at least 1 ms
+     */
+    public CachedClock(Clock source, Duration resolution) {
+        if (resolution.compareTo(Duration.ofMillis(1)) < 0) {
+            throw new IllegalArgumentException("Clock resolution must be at least 1 ms: " + resolution);
+        }
+        this.source = source;
+        this.resolutionNanos = resolution.toNanos();
+        this.now = Instant.ofEpochMilli(source.millis());
+        this.ticker = new Thread(this::tick, "payment-clock");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(ZoneOffset.UTC) ? this : source.withZone(zone);
+    }
+
+    @Override
+    public Instant instant() {
+        return now;
+    }
+
+    @Override
+    public long millis() {
+        return now.toEpochMilli();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(ticker);
+    }
+
+    /**
+     * Take a reading now instead of at the next tick
+     */
+    void refresh() {
+        long millis = source.millis();
+        // Only the ticker writes outside tests, so a plain compare is enough
+        if (millis > now.toEpochMilli()) {
+            now = Instant.ofEpochMilli(millis);
+        }
+    }
+
+    private void tick() {
+        while (!closed) {
+            LockSupport.parkNanos(this, resolutionNanos);
+            refresh();
+        }
+    }
+}
+
+// UtcDateTime.java
+package com.ecommerce.payment.util;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Payment timestamps are stored in DATETIME columns as UTC wall-clock time.
+ * SQL written outside Hibernate binds them through here instead of java.sql.Timestamp,
+ * which would convert to the JVM's time zone.
+ */
+public final class UtcDateTime {
+
+    private UtcDateTime() {
+    }
+
+    public static LocalDateTime of(Instant instant) {
+        return LocalDateTime.ofInstant(instant, ZoneOffset.UTC);
+    }
+
+    public static LocalDateTime ofEpochMilli(long epochMillis) {
+        return of(Instant.ofEpochMilli(epochMillis));
+    }
+
+    public static Instant toInstant(LocalDateTime utcDateTime) {
+        return utcDateTime.toInstant(ZoneOffset.UTC);
+    }
+}
+
+// UtcDateTimeConverter.java
+package com.ecommerce.payment.util;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+
+/**
+ * Maps an Instant entity attribute to a DATETIME column holding UTC wall-clock time,
+ * whatever the JVM's time zone. Applied per attribute rather than through
+ * hibernate.jdbc.time_zone, which would also shift the LocalDateTime attributes of
+ * other entities, such as refund jobs, that are still written in local time.
+ */
+@Converter
+public class UtcDateTimeConverter implements AttributeConverter<Instant, LocalDateTime> {
+
+    @Override
+    public LocalDateTime convertToDatabaseColumn(Instant instant) {
+        return instant == null ? null : UtcDateTime.of(instant);
+    }
+
+    @Override
+    public Instant convertToEntityAttribute(LocalDateTime utcDateTime) {
+        return utcDateTime == null ? null : UtcDateTime.toInstant(utcDateTime);
+    }
+}
+
+// 2. Clock Configuration
+// ClockConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.util.CachedClock;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Clock;
+import java.time.Duration;
+
+/**
+ * The Clock that stamps payment state transitions. Services take it as a constructor
+ * argument, so tests pass a fixed clock instead.
+ */
+@Configuration
+public class ClockConfig {
+
+    // Closed through the inferred destroy method
+    @Bean
+    public CachedClock paymentClock(@Value("${payment.clock.resolution:10ms}") Duration resolution) {
+        return new CachedClock(Clock.systemUTC(), resolution);
+    }
+}
+
+// 3. Timestamp Migration
+// src/main/java/db/migration/V9__payment_timestamps_utc.java
+package db.migration;
+
+import org.flywaydb.core.api.migration.BaseJavaMigration;
+import org.flywaydb.core.api.migration.Context;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Rewrites payment.created_at and updated_at, written as local time of the application
+ * server, as UTC. The server's zone comes from the legacy_time_zone placeholder, falling
+ * back to the zone of the JVM running the migration. Converted in Java rather than with
+ * CONVERT_TZ, which needs the MySQL time zone tables and does not exist on H2.
+ *
+ * Flyway runs the migration in one transaction: the primary key batches only bound the
+ * rows held in memory, and every payment row stays locked until the commit. Instances
+ * of the previous version write local time, so this is a stop-the-world upgrade: stop
+ * them all before the migration runs, or their writes leave local and UTC times mixed.
+ */
+public class V9__payment_timestamps_utc extends BaseJavaMigration {
+
+    static final String LEGACY_TIME_ZONE = "legacy_time_zone";
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Override
+    public void migrate(Context context) throws Exception {
+        ZoneId legacyZone = legacyZone(context.getConfiguration().getPlaceholders().get(LEGACY_TIME_ZONE));
+        if (legacyZone.normalized().equals(ZoneOffset.UTC)) {
+            return;
+        }
+        convert(context.getConnection(), legacyZone);
+    }
+
+    static ZoneId legacyZone(String placeholder) {
+        return placeholder == null || placeholder.isBlank() ? ZoneId.systemDefault() : ZoneId.of(placeholder);
+    }
+
+    static void convert(Connection connection, ZoneId legacyZone) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(
+                 "SELECT id, created_at, updated_at FROM payment WHERE id > ? ORDER BY id LIMIT " + BATCH_SIZE);
+             PreparedStatement update = connection.prepareStatement(
+                 "UPDATE payment SET created_at = ?, updated_at = ? WHERE id = ?")) {
+            long afterId = Long.MIN_VALUE;
+            int rows;
+            do {
+                rows = 0;
+                select.setLong(1, afterId);
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        afterId = resultSet.getLong(1);
+                        update.setObject(1, toUtc(resultSet.getObject(2, LocalDateTime.class), legacyZone));
+                        update.setObject(2, toUtc(resultSet.getObject(3, LocalDateTime.class), legacyZone));
+                        update.setLong(3, afterId);
+                        update.addBatch();
+                        rows++;
+                    }
+                }
+                if (rows > 0) {
+                    update.executeBatch();
+                }
+            } while (rows == BATCH_SIZE);
+        }
+    }
+
+    private static LocalDateTime toUtc(LocalDateTime local, ZoneId legacyZone) {
+        // Times in a DST gap or overlap resolve as ZonedDateTime.of does
+        return local == null ? null : local.atZone(legacyZone).withZoneSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    }
+}
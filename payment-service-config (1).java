@@ -12,12 +12,31 @@ spring:
   application:
     name: payment-service
   
+  # The reactive profile builds its own R2DBC client (ReactiveConfig). Boot's would
+  # replace the JDBC DataSource and transaction manager that JPA keeps using.
+  autoconfigure:
+    exclude:
+      - org.springframework.boot.autoconfigure.r2dbc.R2dbcAutoConfiguration
+      - org.springframework.boot.autoconfigure.r2dbc.R2dbcTransactionManagerAutoConfiguration
+  
   # Database Configuration
   datasource:
     url: jdbc:mysql://localhost:3306/ecommerce_payment
     username: root
     password: password
     driver-class-name: com.mysql.cj.jdbc.Driver
+    # payment.lanes.connections plus payment.lanes.background-connections
+    hikari:
+      maximum-pool-size: 24
+  
+  # Schema migrations (enabled in the prod profile; dev uses ddl-auto)
+  flyway:
+    enabled: false
+    placeholders:
+      # Time zone payment timestamps were written in before V9 moved them to UTC
+      # (default: the zone of the JVM running the migration). Stop every instance of
+      # the previous version before V9 runs: they keep writing local time.
+      legacy_time_zone: ${PAYMENT_LEGACY_TIME_ZONE:}
   
   # JPA/Hibernate Configuration
   jpa:
@@ -44,6 +63,496 @@ logging:
     com.ecommerce.payment: DEBUG
     org.springframework.web: INFO
     org.hibernate: INFO
+
+# Payment Service Configuration
+payment:
+  # Payment timestamps come from a clock read by a background thread at this interval
+  clock:
+    resolution: 10ms
+  datasource:
+    # Route read-only transactions to replicas (see application-replica-local.yml)
+    routing:
+      enabled: false
+    read-your-writes-window: 5s
+  # Payments partitioned by order ID (see application-shard-local.yml).
+  # Each running instance leases one of 32 node IDs for payment IDs; one that dies
+  # frees its node ID after the lease duration.
+  sharding:
+    enabled: false
+    node-lease-duration: 1m
+  # In-process velocity pre-checks, per key over the sliding window
+  velocity:
+    enabled: true
+    window: 10m
+    buckets: 10
+    max-attempts-per-card: 10
+    max-attempts-per-email: 20
+    max-attempts-per-order: 5
+    max-declines-per-card: 3
+    # Only payments in this currency count towards it
+    max-amount-per-card: 10000.00 USD
+  # Gateway settlement reconciliation (POST /api/admin/reconciliations?file=...).
+  # On MySQL add useCursorFetch=true to the JDBC URL so the fetch size streams rows.
+  reconciliation:
+    directory: settlements
+    chunk-size: 64MB
+    fetch-size: 10000
+    fix-batch-size: 500
+  # Off-heap transaction ID -> payment ID map, loaded at startup (24 bytes per slot)
+  transaction-index:
+    minimum-capacity: 1048576
+    fetch-size: 10000
+  # Gateway notifications: HMAC secrets per provider, journaled and applied per partition
+  webhook:
+    secrets:
+      gateway: ${PAYMENT_WEBHOOK_SECRET:}
+    journal-directory: webhook-journal
+    partitions: 4
+    queue-capacity: 65536
+    batch-size: 256
+    dedup-capacity: 100000
+    # Batches still failing after this many attempts are applied per event; failing events are dead-lettered
+    max-apply-attempts: 8
+    segment-size: 64MB
+  # Append-only history of payment status changes (deletes included) with periodic state
+  # snapshots. Node-local: with several instances each only logs its own changes.
+  event-log:
+    enabled: false
+    directory: payment-events
+    segment-size: 256MB
+    snapshot-interval: 15m
+    snapshot-minimum-lag: 64MB
+    stripes: 64
+    expected-payments: 1000000
+  # Per-order payment summaries (GET /api/payment-summaries/orders/{orderId})
+  read-model:
+    queue-capacity: 100000
+    batch-size: 500
+    # Offline repair only: exposes POST /api/admin/read-model/rebuild on this instance
+    rebuild-enabled: false
+  # Admission control of POST /api/payments: token buckets (requests/s) and an
+  # adaptive concurrency limit; rejected requests get 429 with Retry-After.
+  # Per-client budgets key on the authenticated principal; the client ID header only
+  # counts when a gateway that authenticates callers sets it (trust-client-id-header)
+  admission:
+    enabled: false
+    global-rate: 500
+    global-burst: 1000
+    client-rate: 20
+    client-burst: 40
+    client-id-header: X-Client-Id
+    trust-client-id-header: false
+    initial-concurrency-limit: 20
+    min-concurrency-limit: 4
+    max-concurrency-limit: 200
+  # Executor lanes of PaymentController; threads and connections are split by weight
+  # (defaults: checkout 24 threads/8 connections, query 14/4, refund 9/3)
+  lanes:
+    threads: 48
+    connections: 16
+    # Cap on connections of work outside the lanes (jobs, webhooks, bulk lookups, admin
+    # endpoints); with connections, the whole pool
+    background-connections: 8
+    queue-capacity: 500
+    connection-timeout: 5s
+    weights:
+      checkout: 5
+      query: 3
+      refund: 2
+  # Bulk refunds (POST /api/admin/refund-jobs). A job runs on the instance holding its
+  # lease; an idle instance resumes an interrupted job once its lease has expired.
+  refund-job:
+    batch-size: 200
+    gateway-concurrency: 16
+    max-payments: 100000
+    resume-on-startup: true
+    lease-duration: 5m
+  # Retries of gateway outages and failed order service callbacks, journaled so they
+  # survive restarts. Card data is not journaled: payments still waiting for a retry
+  # when the instance stops, or whose retries run out, are settled by a gateway lookup.
+  retry:
+    journal-directory: retry-journal
+    segment-size: 64MB
+    tick: 100ms
+    wheel-size: 4096
+    initial-backoff: 1s
+    max-backoff: 10m
+    max-attempts: 8
+    workers: 8
+  # Settles payments left in PROCESSING or PENDING by looking them up at the gateway.
+  # pending-timeout must exceed the longest retry schedule above (about 4 minutes).
+  sweeper:
+    enabled: true
+    interval: 1m
+    processing-timeout: 10m
+    pending-timeout: 30m
+    page-size: 200
+    gateway-concurrency: 8
+    lease-duration: 5m
+  # Near-cache of GET /api/payments/{id} and of bulk lookups, off by default. Loopback
+  # only suits a single instance; with more, use transport: udp with a shared secret and
+  # peers listed or resolved from peer-dns, or reads may be stale for up to the ttl.
+  cache:
+    enabled: ${PAYMENT_CACHE_ENABLED:false}
+    max-entries: 100000
+    ttl: 30s
+    transport: loopback
+    port: 7947
+    peers: []
+    peer-dns: ${PAYMENT_CACHE_PEER_DNS:}
+    peer-refresh: 10s
+    secret: ${PAYMENT_CACHE_SECRET:}
+  # gRPC endpoint for internal callers, on its own port; shares the lanes, admission
+  # control and read-your-writes window with REST. TLS unless plaintext is set; with
+  # client-certificates callers need a certificate, whose subject admission control uses.
+  grpc:
+    enabled: false
+    port: 9090
+    shutdown-timeout: 10s
+    stream-stall-timeout: 30s
+    plaintext: false
+    certificate-chain: ${PAYMENT_GRPC_CERTIFICATE_CHAIN:}
+    private-key: ${PAYMENT_GRPC_PRIVATE_KEY:}
+    client-certificates: ${PAYMENT_GRPC_CLIENT_CERTIFICATES:}
+```
+
+// 1a. Local primary/replica profile
+// src/main/resources/application-replica-local.yml
+```yaml
+# Two H2 pools standing in for a MySQL primary and its replica.
+# Both point at the same in-memory database, so replication lag is zero
+# and routing can be observed through the Hikari pool names.
+spring:
+  jpa:
+    properties:
+      hibernate:
+        dialect: org.hibernate.dialect.H2Dialect
+
+payment:
+  datasource:
+    routing:
+      enabled: true
+    primary:
+      url: jdbc:h2:mem:ecommerce_payment;DB_CLOSE_DELAY=-1
+      username: sa
+      password:
+      driver-class-name: org.h2.Driver
+    replicas:
+      - url: jdbc:h2:mem:ecommerce_payment;DB_CLOSE_DELAY=-1
+        username: sa
+        password:
+        driver-class-name: org.h2.Driver
+```
+
+// 1b. CDS training-run profile
+// src/main/resources/application-cds-training.yml
+```yaml
+# Used only while building Dockerfile.cds: boots against an in-memory database
+# so the class archive can be produced without MySQL, then exits.
+spring:
+  datasource:
+    url: jdbc:h2:mem:cds_training
+    username: sa
+    password:
+    driver-class-name: org.h2.Driver
+  jpa:
+    properties:
+      hibernate:
+        dialect: org.hibernate.dialect.H2Dialect
+
+payment:
+  startup:
+    exit-when-ready: true
+```
+
+// 1c. Production startup profile
+// src/main/resources/application-prod.yml
+```yaml
+# Trimmed startup for production pods: schema is owned by Flyway,
+# Hibernate bootstraps in the background and springdoc is switched off.
+spring:
+  jpa:
+    hibernate:
+      ddl-auto: none
+    show-sql: false
+    properties:
+      hibernate:
+        format_sql: false
+  data:
+    jpa:
+      repositories:
+        # Builds the EntityManagerFactory on the application task executor
+        bootstrap-mode: deferred
+  flyway:
+    enabled: true
+    baseline-on-migrate: true
+
+springdoc:
+  api-docs:
+    enabled: false
+  swagger-ui:
+    enabled: false
+
+management:
+  endpoints:
+    web:
+      exposure:
+        include: health,info,startup
+
+payment:
+  startup:
+    timeline-report: true
+
+logging:
+  level:
+    com.ecommerce.payment: INFO
+```
+
+// 1d. Database migrations
+// src/main/resources/db/migration/V1__create_payment_table.sql
+```sql
+CREATE TABLE IF NOT EXISTS payment (
+    id             BIGINT         NOT NULL AUTO_INCREMENT,
+    order_id       BIGINT,
+    amount         DECIMAL(38, 2),
+    transaction_id VARCHAR(255),
+    payment_method VARCHAR(32),
+    status         VARCHAR(32),
+    created_at     DATETIME(6),
+    updated_at     DATETIME(6),
+    PRIMARY KEY (id)
+);
+```
+
+// src/main/resources/db/migration/V2__unique_transaction_id.sql
+```sql
+-- Gateway callbacks and settlement files look payments up by transaction ID.
+-- NULLs (payments that never reached the gateway) do not conflict.
+CREATE UNIQUE INDEX ux_payment_transaction_id ON payment (transaction_id);
+```
+
+// src/main/resources/db/migration/V3__create_order_payment_summary.sql
+```sql
+-- Read model of per-order payment totals, maintained from payment status changes.
+-- Rebuild from the payment table with POST /api/admin/read-model/rebuild.
+CREATE TABLE IF NOT EXISTS order_payment_summary (
+    order_id          BIGINT         NOT NULL,
+    payment_count     BIGINT         NOT NULL,
+    paid_amount       DECIMAL(38, 2) NOT NULL,
+    refunded_amount   DECIMAL(38, 2) NOT NULL,
+    latest_payment_id BIGINT,
+    latest_status     VARCHAR(32),
+    updated_at        DATETIME(6),
+    PRIMARY KEY (order_id)
+);
+```
+
+// src/main/resources/db/migration/V4__order_payment_summary_totals.sql
+```sql
+-- Per-order totals by status for GET /api/payments/order/{orderId}/summary.
+-- The summary is derived data, so it is recreated and backfilled rather than altered.
+CREATE INDEX ix_payment_order_id ON payment (order_id);
+
+DROP TABLE order_payment_summary;
+
+CREATE TABLE order_payment_summary (
+    order_id           BIGINT         NOT NULL,
+    payment_count      BIGINT         NOT NULL,
+    captured_amount    DECIMAL(38, 2) NOT NULL,
+    refunded_amount    DECIMAL(38, 2) NOT NULL,
+    failed_amount      DECIMAL(38, 2) NOT NULL,
+    outstanding_amount DECIMAL(38, 2) NOT NULL,
+    latest_payment_id  BIGINT,
+    latest_status      VARCHAR(32),
+    updated_at         DATETIME(6),
+    PRIMARY KEY (order_id)
+);
+
+INSERT INTO order_payment_summary (order_id, payment_count, captured_amount, refunded_amount,
+                                   failed_amount, outstanding_amount, latest_payment_id, latest_status, updated_at)
+SELECT totals.order_id, totals.payment_count, totals.captured_amount, totals.refunded_amount,
+       totals.failed_amount, totals.outstanding_amount, latest.id, latest.status, CURRENT_TIMESTAMP
+FROM (
+    SELECT order_id, COUNT(*) AS payment_count,
+           SUM(CASE WHEN status IN ('COMPLETED', 'REFUNDED') THEN amount ELSE 0 END) AS captured_amount,
+           SUM(CASE WHEN status = 'REFUNDED' THEN amount ELSE 0 END) AS refunded_amount,
+           SUM(CASE WHEN status = 'FAILED' THEN amount ELSE 0 END) AS failed_amount,
+           SUM(CASE WHEN status IN ('PENDING', 'PROCESSING') THEN amount ELSE 0 END) AS outstanding_amount,
+           MAX(id) AS latest_id
+    FROM payment
+    WHERE order_id IS NOT NULL
+    GROUP BY order_id
+) totals
+JOIN payment latest ON latest.id = totals.latest_id;
+```
+
+// src/main/resources/db/migration/V5__create_refund_jobs.sql
+```sql
+-- Bulk refund jobs and their per-payment progress. Only the tables on the first shard are used.
+CREATE TABLE IF NOT EXISTS refund_job (
+    id          BIGINT       NOT NULL AUTO_INCREMENT,
+    state       VARCHAR(32)  NOT NULL,
+    reason      VARCHAR(255),
+    total_items BIGINT       NOT NULL,
+    error       VARCHAR(255),
+    created_at  DATETIME(6),
+    updated_at  DATETIME(6),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS refund_job_item (
+    job_id                BIGINT       NOT NULL,
+    payment_id            BIGINT       NOT NULL,
+    state                 VARCHAR(32)  NOT NULL,
+    refund_transaction_id VARCHAR(255),
+    error                 VARCHAR(255),
+    updated_at            DATETIME(6),
+    PRIMARY KEY (job_id, payment_id)
+);
+
+CREATE INDEX ix_refund_job_item_state ON refund_job_item (job_id, state);
+```
+
+// src/main/resources/db/migration/V6__stuck_payment_sweeper.sql
+```sql
+-- Lets the sweeper page through payments stuck in PROCESSING or PENDING oldest first.
+-- InnoDB appends the primary key, which the keyset cursor uses as tie-breaker.
+CREATE INDEX ix_payment_status_updated_at ON payment (status, updated_at);
+
+-- Which node sweeps which shard. Only the table on the first shard is used.
+CREATE TABLE IF NOT EXISTS payment_sweep_lease (
+    shard_id   INT         NOT NULL,
+    owner      VARCHAR(64) NOT NULL,
+    expires_at DATETIME(6) NOT NULL,
+    PRIMARY KEY (shard_id)
+);
+```
+
+// src/main/resources/db/migration/V7__payment_version.sql
+```sql
+-- Optimistic locking and cache version stamps. Batched SQL updates increment it as well.
+ALTER TABLE payment ADD COLUMN version BIGINT NOT NULL DEFAULT 0;
+```
+
+// src/main/resources/db/migration/V8__payment_currency.sql
+```sql
+-- ISO 4217 code of the amount. Amounts stay in major units with two decimals;
+-- existing payments were all taken in USD.
+ALTER TABLE payment ADD COLUMN currency CHAR(3) NOT NULL DEFAULT 'USD';
+```
+
+// src/main/java/db/migration/V9__payment_timestamps_utc.java
+// Java migration converting payment.created_at and updated_at to UTC, see payment-service-clock.java
+
+// src/main/resources/db/migration/V10__payment_node_lease.sql
+```sql
+-- Which instance allocates payment IDs with which node ID, and the highest second it
+-- allocated from. Only the table on the first shard is used.
+CREATE TABLE IF NOT EXISTS payment_node_lease (
+    node_id           INT         NOT NULL,
+    owner             VARCHAR(64) NOT NULL,
+    expires_at        DATETIME(6) NOT NULL,
+    high_water_second BIGINT      NOT NULL,
+    PRIMARY KEY (node_id)
+);
+```
+
+// src/main/resources/db/migration/V11__refund_job_lease.sql
+```sql
+-- The instance running a refund job, until lease_expires_at. Jobs created before have no
+-- owner and are resumed by the first instance to take their lease.
+ALTER TABLE refund_job ADD COLUMN owner VARCHAR(64);
+ALTER TABLE refund_job ADD COLUMN lease_expires_at DATETIME(6);
+```
+
+// src/main/resources/db/migration/V12__order_payment_summary_currency.sql
+```sql
+-- One summary row per order and currency: amounts of different currencies are not added up.
+-- Recreated and backfilled as in V4, now grouped by currency too.
+DROP TABLE order_payment_summary;
+
+CREATE TABLE order_payment_summary (
+    order_id           BIGINT         NOT NULL,
+    currency           CHAR(3)        NOT NULL,
+    payment_count      BIGINT         NOT NULL,
+    captured_amount    DECIMAL(38, 2) NOT NULL,
+    refunded_amount    DECIMAL(38, 2) NOT NULL,
+    failed_amount      DECIMAL(38, 2) NOT NULL,
+    outstanding_amount DECIMAL(38, 2) NOT NULL,
+    latest_payment_id  BIGINT,
+    latest_status      VARCHAR(32),
+    updated_at         DATETIME(6),
+    PRIMARY KEY (order_id, currency)
+);
+
+INSERT INTO order_payment_summary (order_id, currency, payment_count, captured_amount, refunded_amount,
+                                   failed_amount, outstanding_amount, latest_payment_id, latest_status, updated_at)
+SELECT totals.order_id, totals.currency, totals.payment_count, totals.captured_amount, totals.refunded_amount,
+       totals.failed_amount, totals.outstanding_amount, latest.id, latest.status, CURRENT_TIMESTAMP
+FROM (
+    SELECT order_id, currency, COUNT(*) AS payment_count,
+           SUM(CASE WHEN status IN ('COMPLETED', 'REFUNDED') THEN amount ELSE 0 END) AS captured_amount,
+           SUM(CASE WHEN status = 'REFUNDED' THEN amount ELSE 0 END) AS refunded_amount,
+           SUM(CASE WHEN status = 'FAILED' THEN amount ELSE 0 END) AS failed_amount,
+           SUM(CASE WHEN status IN ('PENDING', 'PROCESSING', 'UNKNOWN') THEN amount ELSE 0 END) AS outstanding_amount,
+           MAX(id) AS latest_id
+    FROM payment
+    WHERE order_id IS NOT NULL
+    GROUP BY order_id, currency
+) totals
+JOIN payment latest ON latest.id = totals.latest_id;
+```
+
+// 1e. Local sharding profile
+// src/main/resources/application-shard-local.yml
+```yaml
+# Two independent H2 databases standing in for two MySQL shards.
+# Flyway creates the schema on each shard; payments of an order land on
+# one shard and the shard is visible in the payment ID.
+spring:
+  flyway:
+    enabled: true
+  jpa:
+    hibernate:
+      ddl-auto: none
+    properties:
+      hibernate:
+        dialect: org.hibernate.dialect.H2Dialect
+
+payment:
+  sharding:
+    enabled: true
+    shards:
+      - primary:
+          url: jdbc:h2:mem:payment_shard_0;MODE=MySQL;DB_CLOSE_DELAY=-1
+          username: sa
+          password:
+          driver-class-name: org.h2.Driver
+      - primary:
+          url: jdbc:h2:mem:payment_shard_1;MODE=MySQL;DB_CLOSE_DELAY=-1
+          username: sa
+          password:
+          driver-class-name: org.h2.Driver
+```
+
+// 1f. Reactive profile
+// src/main/resources/application-reactive.yml
+```yaml
+# /api/payments on WebFlux and Netty, with payments read and written through R2DBC.
+# Retries, the sweeper, refund jobs, the read model and the admin endpoints stay on
+# JPA/JDBC against the same database. Admission control and priority lanes are servlet
+# filters and executors and do not apply; neither does POST /api/payments/lookup.
+# Unsharded only.
+spring:
+  main:
+    web-application-type: reactive
+
+payment:
+  r2dbc:
+    # Connections in addition to the Hikari pool
+    url: r2dbc:pool:mysql://localhost:3306/ecommerce_payment?maxSize=20
+    username: root
+    password: password
 ```
 
 // 2. Dockerfile
@@ -60,6 +569,91 @@ EXPOSE 8082
 ENTRYPOINT ["java", "-jar", "app.jar"]
 ```
 
+// 2a. Native image Dockerfile
+// Dockerfile.native
+```
+# Build the binary first (GraalVM 17 with native-image): mvn -Pnative native:compile
+# Build: docker build -f Dockerfile.native -t ecommerce/payment-service:native .
+FROM debian:bookworm-slim
+
+WORKDIR /app
+
+COPY target/payment-service app
+
+EXPOSE 8082
+
+ENTRYPOINT ["./app"]
+```
+
+// 2b. AppCDS Dockerfile
+// Dockerfile.cds
+```
+# Build the jar first: mvn -Pcds package
+# Build: docker build -f Dockerfile.cds -t ecommerce/payment-service:cds .
+FROM eclipse-temurin:17-jdk AS build
+
+WORKDIR /build
+
+COPY target/payment-service-0.0.1-SNAPSHOT.jar app.jar
+
+# CDS cannot archive classes loaded from nested jars, so run from an exploded layout
+RUN mkdir -p /app && cd /app && jar -xf /build/app.jar
+
+WORKDIR /app
+
+# Training run: start against an in-memory database, exit once ready, dump the archive
+RUN java -XX:ArchiveClassesAtExit=app.jsa \
+        -Dspring.aot.enabled=true \
+        -Dspring.profiles.active=cds-training \
+        -cp BOOT-INF/classes:BOOT-INF/lib/* \
+        com.ecommerce.payment.PaymentServiceApplication
+
+FROM eclipse-temurin:17-jre
+
+WORKDIR /app
+
+COPY --from=build /app /app
+
+EXPOSE 8082
+
+ENTRYPOINT ["java", "-XX:SharedArchiveFile=app.jsa", "-Dspring.aot.enabled=true", \
+            "-cp", "BOOT-INF/classes:BOOT-INF/lib/*", "com.ecommerce.payment.PaymentServiceApplication"]
+```
+
+// 2c. Startup benchmark
+// startup-benchmark.sh
+```bash
+#!/usr/bin/env bash
+# Measures time-to-ready and first-request latency of a payment-service image.
+# Runs against the in-memory H2 database of the cds-training profile, so no MySQL
+# is needed; exit-when-ready is switched off to keep the instance up.
+# Usage: ./startup-benchmark.sh ecommerce/payment-service:native [runs]
+set -euo pipefail
+
+IMAGE="$1"
+RUNS="${2:-5}"
+PORT=8082
+
+for run in $(seq 1 "$RUNS"); do
+    start=$(date +%s%N)
+    container=$(docker run -d -p "$PORT:$PORT" \
+        -e SPRING_PROFILES_ACTIVE=cds-training \
+        -e PAYMENT_STARTUP_EXIT_WHEN_READY=false \
+        "$IMAGE")
+
+    until curl -sf "http://localhost:$PORT/actuator/health" > /dev/null; do
+        sleep 0.01
+    done
+    ready=$(date +%s%N)
+
+    first_request=$(curl -s -o /dev/null -w '%{time_total}' "http://localhost:$PORT/api/payments/order/1")
+
+    docker rm -f "$container" > /dev/null
+
+    echo "run=$run image=$IMAGE ready_ms=$(( (ready - start) / 1000000 )) first_request_s=$first_request"
+done
+```
+
 // 3. pom.xml
 // pom.xml
 ```xml
@@ -86,6 +680,9 @@ ENTRYPOINT ["java", "-jar", "app.jar"]
     <properties>
         <java.version>17</java.version>
         <spring-cloud.version>2022.0.4</spring-cloud.version>
+        <jmh.version>1.37</jmh.version>
+        <grpc.version>1.58.0</grpc.version>
+        <protobuf.version>3.24.4</protobuf.version>
     </properties>
     
     <dependencies>
@@ -106,6 +703,15 @@ ENTRYPOINT ["java", "-jar", "app.jar"]
             <groupId>org.springframework.boot</groupId>
             <artifactId>spring-boot-starter-actuator</artifactId>
         </dependency>
+        <!-- Reactive profile: WebFlux, with payments through R2DBC -->
+        <dependency>
+            <groupId>org.springframework.boot</groupId>
+            <artifactId>spring-boot-starter-webflux</artifactId>
+        </dependency>
+        <dependency>
+            <groupId>org.springframework</groupId>
+            <artifactId>spring-r2dbc</artifactId>
+        </dependency>
         
         <!-- Database -->
         <dependency>
@@ -118,6 +724,71 @@ ENTRYPOINT ["java", "-jar", "app.jar"]
             <artifactId>h2</artifactId>
             <scope>runtime</scope>
         </dependency>
+        <dependency>
+            <groupId>io.asyncer</groupId>
+            <artifactId>r2dbc-mysql</artifactId>
+            <scope>runtime</scope>
+        </dependency>
+        <dependency>
+            <groupId>io.r2dbc</groupId>
+            <artifactId>r2dbc-pool</artifactId>
+            <scope>runtime</scope>
+        </dependency>
+        <dependency>
+            <groupId>io.r2dbc</groupId>
+            <artifactId>r2dbc-h2</artifactId>
+            <scope>test</scope>
+        </dependency>
+        
+        <!-- Schema migrations -->
+        <dependency>
+            <groupId>org.flywaydb</groupId>
+            <artifactId>flyway-core</artifactId>
+        </dependency>
+        <dependency>
+            <groupId>org.flywaydb</groupId>
+            <artifactId>flyway-mysql</artifactId>
+        </dependency>
+        
+        <!-- gRPC endpoint, stubs generated from src/main/proto -->
+        <dependency>
+            <groupId>io.grpc</groupId>
+            <artifactId>grpc-netty-shaded</artifactId>
+            <version>${grpc.version}</version>
+            <scope>runtime</scope>
+        </dependency>
+        <dependency>
+            <groupId>io.grpc</groupId>
+            <artifactId>grpc-protobuf</artifactId>
+            <version>${grpc.version}</version>
+        </dependency>
+        <dependency>
+            <groupId>io.grpc</groupId>
+            <artifactId>grpc-stub</artifactId>
+            <version>${grpc.version}</version>
+        </dependency>
+        <dependency>
+            <groupId>com.google.protobuf</groupId>
+            <artifactId>protobuf-java</artifactId>
+            <version>${protobuf.version}</version>
+        </dependency>
+        <dependency>
+            <!-- @javax.annotation.Generated on the generated stubs -->
+            <groupId>org.apache.tomcat</groupId>
+            <artifactId>annotations-api</artifactId>
+            <version>6.0.53</version>
+            <scope>provided</scope>
+        </dependency>
+        
+        <!-- Serialization -->
+        <dependency>
+            <groupId>com.fasterxml.jackson.module</groupId>
+            <artifactId>jackson-module-blackbird</artifactId>
+        </dependency>
+        <dependency>
+            <groupId>com.fasterxml.jackson.dataformat</groupId>
+            <artifactId>jackson-dataformat-cbor</artifactId>
+        </dependency>
         
         <!-- Testing -->
         <dependency>
@@ -125,6 +796,18 @@ ENTRYPOINT ["java", "-jar", "app.jar"]
             <artifactId>spring-boot-starter-test</artifactId>
             <scope>test</scope>
         </dependency>
+        <dependency>
+            <groupId>org.openjdk.jmh</groupId>
+            <artifactId>jmh-core</artifactId>
+            <version>${jmh.version}</version>
+            <scope>test</scope>
+        </dependency>
+        <dependency>
+            <groupId>org.openjdk.jmh</groupId>
+            <artifactId>jmh-generator-annprocess</artifactId>
+            <version>${jmh.version}</version>
+            <scope>test</scope>
+        </dependency>
         
         <!-- Documentation -->
         <dependency>
@@ -147,14 +830,84 @@ ENTRYPOINT ["java", "-jar", "app.jar"]
     </dependencyManagement>
     
     <build>
+        <extensions>
+            <!-- os.detected.classifier, to pick the protoc binaries -->
+            <extension>
+                <groupId>kr.motd.maven</groupId>
+                <artifactId>os-maven-plugin</artifactId>
+                <version>1.7.1</version>
+            </extension>
+        </extensions>
         <plugins>
             <plugin>
                 <groupId>org.springframework.boot</groupId>
                 <artifactId>spring-boot-maven-plugin</artifactId>
             </plugin>
+            <plugin>
+                <groupId>org.xolstice.maven.plugins</groupId>
+                <artifactId>protobuf-maven-plugin</artifactId>
+                <version>0.6.1</version>
+                <configuration>
+                    <protocArtifact>com.google.protobuf:protoc:${protobuf.version}:exe:${os.detected.classifier}</protocArtifact>
+                    <pluginId>grpc-java</pluginId>
+                    <pluginArtifact>io.grpc:protoc-gen-grpc-java:${grpc.version}:exe:${os.detected.classifier}</pluginArtifact>
+                </configuration>
+                <executions>
+                    <execution>
+                        <goals>
+                            <goal>compile</goal>
+                            <goal>compile-custom</goal>
+                        </goals>
+                    </execution>
+                </executions>
+            </plugin>
+            <!-- GraalVM native image: mvn -Pnative native:compile -->
+            <plugin>
+                <groupId>org.graalvm.buildtools</groupId>
+                <artifactId>native-maven-plugin</artifactId>
+            </plugin>
         </plugins>
     </build>
     
+    <profiles>
+        <!-- JMH benchmarks from src/test/java: mvn -Pbenchmark test-compile exec:java -->
+        <profile>
+            <id>benchmark</id>
+            <build>
+                <plugins>
+                    <plugin>
+                        <groupId>org.codehaus.mojo</groupId>
+                        <artifactId>exec-maven-plugin</artifactId>
+                        <configuration>
+                            <mainClass>org.openjdk.jmh.Main</mainClass>
+                            <classpathScope>test</classpathScope>
+                        </configuration>
+                    </plugin>
+                </plugins>
+            </build>
+        </profile>
+        <!-- AOT-processed JVM build for the AppCDS image: mvn -Pcds package -->
+        <profile>
+            <id>cds</id>
+            <build>
+                <plugins>
+                    <plugin>
+                        <groupId>org.springframework.boot</groupId>
+                        <artifactId>spring-boot-maven-plugin</artifactId>
+                        <executions>
+                            <execution>
+                                <id>process-aot</id>
+                                <goals>
+                                    <goal>process-aot</goal>
+                                </goals>
+                            </execution>
+                        </executions>
+                    </plugin>
+                </plugins>
+            </build>
+        </profile>
+    </profiles>
+    
 </project>
 ```
 
@@ -167,12 +920,20 @@ import io.swagger.v3.oas.models.info.Contact;
 import io.swagger.v3.oas.models.info.Info;
 import io.swagger.v3.oas.models.info.License;
 import io.swagger.v3.oas.models.servers.Server;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 
 import java.util.List;
 
+/**
+ * API documentation metadata. Only used by the springdoc endpoints, so it is
+ * built on first access and skipped entirely when springdoc is disabled.
+ */
 @Configuration
+@Lazy
+@ConditionalOnProperty(name = "springdoc.api-docs.enabled", matchIfMissing = true)
 public class OpenApiConfig {
 
     @Bean
@@ -201,21 +962,61 @@ public class OpenApiConfig {
 // WebConfig.java
 package com.ecommerce.payment.config;
 
+import com.ecommerce.payment.datasource.ReadYourWritesFilter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import java.util.List;
+
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
 
+    private final Jackson2ObjectMapperBuilder objectMapperBuilder;
+
+    public WebConfig(Jackson2ObjectMapperBuilder objectMapperBuilder) {
+        this.objectMapperBuilder = objectMapperBuilder;
+    }
+
     @Override
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/api/**")
                 .allowedOrigins("*")
                 .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS")
                 .allowedHeaders("*")
+                .exposedHeaders(ReadYourWritesFilter.CONSISTENCY_TOKEN_HEADER, HttpHeaders.RETRY_AFTER)
                 .maxAge(3600);
     }
+
+    /**
+     * Serve application/cbor to service-to-service callers that ask for it.
+     * The default CBOR converter uses a bare ObjectMapper, so it is replaced with one
+     * built from the application's Jackson settings, modules and serializers.
+     */
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        MappingJackson2CborHttpMessageConverter cborConverter = new MappingJackson2CborHttpMessageConverter(
+            objectMapperBuilder.factory(new CBORFactory()).build());
+
+        int index = -1;
+        for (int i = 0; i < converters.size(); i++) {
+            if (converters.get(i) instanceof MappingJackson2CborHttpMessageConverter) {
+                index = i;
+                break;
+            }
+        }
+
+        if (index >= 0) {
+            converters.set(index, cborConverter);
+        } else {
+            converters.add(cborConverter);
+        }
+    }
 }
 
 // 6. Payment Gateway Integration (simulated)
@@ -223,28 +1024,47 @@ public class WebConfig implements WebMvcConfigurer {
 package com.ecommerce.payment.gateway;
 
 import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.exception.GatewayUnavailableException;
 import com.ecommerce.payment.exception.PaymentProcessingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Charges carry the payment ID as idempotency key: the gateway answers a repeated key
+ * with the outcome of the first call instead of charging again, and findPayment looks
+ * charges up by it. Refunds are keyed by the charge's transaction ID the same way, so
+ * a charge refunded by two callers at once is refunded once.
+ */
 @Service
 public class PaymentGatewayService {
     
     private static final Logger logger = LoggerFactory.getLogger(PaymentGatewayService.class);
     
+    // The simulated gateway's record of charges, by idempotency key
+    private final ConcurrentMap<Long, GatewayResult> charges = new ConcurrentHashMap<>();
+    
+    // Approved refunds, by the transaction ID of the refunded charge
+    private final ConcurrentMap<String, GatewayResult> refunds = new ConcurrentHashMap<>();
+    
     /**
      * Process payment through external payment gateway
      * This is a simulated implementation
      *
+     * @param paymentId ID of the payment, sent as idempotency key
      * @param paymentRequest the payment request details
-     * @return transaction ID from payment gateway
-     * @throws PaymentProcessingException if payment processing fails
+     * @return approval with the gateway transaction ID, or a decline
+     * @throws GatewayUnavailableException if the gateway timed out or failed on its side
+     * @throws PaymentProcessingException if the gateway call itself fails
      */
-    public String processPayment(PaymentRequest paymentRequest) throws PaymentProcessingException {
-        logger.info("Processing payment through payment gateway for order: {}", paymentRequest.getOrderId());
+    public GatewayResult processPayment(Long paymentId, PaymentRequest paymentRequest)
+            throws PaymentProcessingException {
+        logger.info("Processing payment {} through payment gateway for order: {}",
+            paymentId, paymentRequest.getOrderId());
         
         try {
             // Simulate API call to payment gateway
@@ -253,23 +1073,16 @@ public class PaymentGatewayService {
             // Simulate processing time
             Thread.sleep(1000);
             
-            // Simulate random success/failure (90% success rate)
-            if (Math.random() < 0.9) {
-                String transactionId = "PG-" + UUID.randomUUID().toString();
-                logger.info("Payment processed successfully. Transaction ID: {}", transactionId);
-                return transactionId;
-            } else {
-                logger.error("Payment gateway declined the payment for order: {}", paymentRequest.getOrderId());
-                throw new PaymentProcessingException("Payment declined by payment gateway");
-            }
+            return charge(paymentId, paymentRequest);
             
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             logger.error("Payment processing interrupted", e);
             throw new PaymentProcessingException("Payment processing was interrupted");
         } catch (Exception e) {
+            // Timeouts and 5xx responses of a real gateway client end up here
             logger.error("Error occurred while processing payment", e);
-            throw new PaymentProcessingException("Payment gateway error: " + e.getMessage());
+            throw new GatewayUnavailableException("Payment gateway error: " + e.getMessage());
         }
     }
     
@@ -277,11 +1090,13 @@ public class PaymentGatewayService {
      * Process a refund through external payment gateway
      * This is a simulated implementation
      *
-     * @param transactionId original transaction ID to refund
-     * @return refund transaction ID from payment gateway
-     * @throws PaymentProcessingException if refund processing fails
+     * @param transactionId original transaction ID to refund, sent as idempotency key
+     * @return approval with the refund transaction ID, the first approval again if the charge
+     *         was already refunded, or a decline
+     * @throws GatewayUnavailableException if the gateway timed out or failed on its side
+     * @throws PaymentProcessingException if the gateway call itself fails
      */
-    public String processRefund(String transactionId) throws PaymentProcessingException {
+    public GatewayResult processRefund(String transactionId) throws PaymentProcessingException {
         logger.info("Processing refund through payment gateway for transaction: {}", transactionId);
         
         try {
@@ -290,15 +1105,7 @@ public class PaymentGatewayService {
             // Simulate processing time
             Thread.sleep(800);
             
-            // Simulate random success/failure (95% success rate for refunds)
-            if (Math.random() < 0.95) {
-                String refundTransactionId = "RF-" + UUID.randomUUID().toString();
-                logger.info("Refund processed successfully. Refund Transaction ID: {}", refundTransactionId);
-                return refundTransactionId;
-            } else {
-                logger.error("Payment gateway declined the refund for transaction: {}", transactionId);
-                throw new PaymentProcessingException("Refund declined by payment gateway");
-            }
+            return refund(transactionId);
             
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -306,8 +1113,122 @@ public class PaymentGatewayService {
             throw new PaymentProcessingException("Refund processing was interrupted");
         } catch (Exception e) {
             logger.error("Error occurred while processing refund", e);
-            throw new PaymentProcessingException("Payment gateway error during refund: " + e.getMessage());
+            throw new GatewayUnavailableException("Payment gateway error during refund: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Look up the charge the gateway holds for a payment, by the payment ID sent as
+     * idempotency key. Used to settle payments whose outcome was never recorded.
+     * This is a simulated implementation
+     *
+     * @param paymentId ID of the payment
+     * @return the outcome of the charge made with this key, either its approval with the gateway
+     *         transaction ID or its decline, or a PAYMENT_NOT_FOUND decline if no charge was made
+     * @throws GatewayUnavailableException if the gateway timed out or failed on its side
+     * @throws PaymentProcessingException if the gateway call itself fails
+     */
+    public GatewayResult findPayment(Long paymentId) throws PaymentProcessingException {
+        logger.info("Looking up payment {} at payment gateway", paymentId);
+        
+        try {
+            // Simulate API call to payment gateway for lookup
+            Thread.sleep(200);
+            
+            GatewayResult charge = charges.get(paymentId);
+            return charge != null ? charge : GatewayResult.declined(GatewayResult.PAYMENT_NOT_FOUND);
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Payment lookup interrupted", e);
+            throw new PaymentProcessingException("Payment lookup was interrupted");
+        } catch (Exception e) {
+            logger.error("Error occurred while looking up payment", e);
+            throw new GatewayUnavailableException("Payment gateway error during lookup: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * The gateway's side of a refund, shared with ReactivePaymentGatewayService.
+     * A declined refund may be tried again; an approved one is not repeated.
+     */
+    GatewayResult refund(String transactionId) {
+        GatewayResult outcome = refunds.compute(transactionId, (key, approved) -> {
+            if (approved != null) {
+                return approved;
+            }
+            // Simulate random success/failure (95% success rate for refunds)
+            return Math.random() < 0.95 ? GatewayResult.approved("RF-" + UUID.randomUUID().toString()) : null;
+        });
+        if (outcome == null) {
+            logger.info("Payment gateway declined the refund for transaction: {}", transactionId);
+            return GatewayResult.declined(GatewayResult.REFUND_DECLINED);
+        }
+        logger.info("Refund processed successfully. Refund Transaction ID: {}", outcome.getTransactionId());
+        return outcome;
+    }
+    
+    /**
+     * The gateway's side of a charge, shared with ReactivePaymentGatewayService
+     */
+    GatewayResult charge(Long paymentId, PaymentRequest paymentRequest) {
+        GatewayResult outcome = charges.computeIfAbsent(paymentId, key -> {
+            // Simulate random success/failure (90% success rate)
+            if (Math.random() < 0.9) {
+                return GatewayResult.approved("PG-" + UUID.randomUUID().toString());
+            }
+            return GatewayResult.declined(GatewayResult.PAYMENT_DECLINED);
+        });
+        if (outcome.isApproved()) {
+            logger.info("Payment processed successfully. Transaction ID: {}", outcome.getTransactionId());
+        } else {
+            logger.info("Payment gateway declined the payment for order: {}", paymentRequest.getOrderId());
         }
+        return outcome;
+    }
+}
+
+// GatewayResult.java
+package com.ecommerce.payment.gateway;
+
+/**
+ * Outcome of a payment gateway call.
+ * Declines are a normal business outcome and are returned, not thrown.
+ */
+public final class GatewayResult {
+    
+    public static final String PAYMENT_DECLINED = "Payment declined by payment gateway";
+    public static final String REFUND_DECLINED = "Refund declined by payment gateway";
+    public static final String PAYMENT_NOT_FOUND = "No charge found at payment gateway";
+    
+    private final boolean approved;
+    private final String transactionId;
+    private final String declineReason;
+    
+    private GatewayResult(boolean approved, String transactionId, String declineReason) {
+        this.approved = approved;
+        this.transactionId = transactionId;
+        this.declineReason = declineReason;
+    }
+    
+    public static GatewayResult approved(String transactionId) {
+        return new GatewayResult(true, transactionId, null);
+    }
+    
+    public static GatewayResult declined(String declineReason) {
+        return new GatewayResult(false, null, declineReason);
+    }
+    
+    public boolean isApproved() {
+        return approved;
+    }
+    
+    public String getTransactionId() {
+        return transactionId;
+    }
+    
+    public String getDeclineReason() {
+        return declineReason;
     }
 }
 
@@ -376,15 +1297,21 @@ public class PaymentNotificationService {
 // OrderServiceClient.java
 package com.ecommerce.payment.client;
 
+import com.ecommerce.payment.retry.RetryQueue;
+import com.ecommerce.payment.retry.RetryTask;
+import com.ecommerce.payment.retry.RetryableException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 /**
  * Client for communicating with the Order Service
- * Used to update order status after payment processing
+ * Used to update order status after payment processing.
+ * Updates failing with a 5xx or I/O error are retried through the RetryQueue.
  */
 @Component
 public class OrderServiceClient {
@@ -393,12 +1320,19 @@ public class OrderServiceClient {
     
     private final RestTemplate restTemplate;
     private final String orderServiceUrl;
+    private final RetryQueue retryQueue;
     
     public OrderServiceClient(
             RestTemplate restTemplate,
-            @Value("${service.order.url:http://localhost:8081/api/orders}") String orderServiceUrl) {
+            @Value("${service.order.url:http://localhost:8081/api/orders}") String orderServiceUrl,
+            RetryQueue retryQueue) {
         this.restTemplate = restTemplate;
         this.orderServiceUrl = orderServiceUrl;
+        this.retryQueue = retryQueue;
+        retryQueue.registerHandler(RetryTask.Kind.ORDER_PAID,
+            task -> sendStatusUpdate(task.orderId(), task.paymentId(), "PAID"));
+        retryQueue.registerHandler(RetryTask.Kind.ORDER_REFUNDED,
+            task -> sendStatusUpdate(task.orderId(), task.paymentId(), "REFUNDED"));
     }
     
     /**
@@ -411,18 +1345,13 @@ public class OrderServiceClient {
         logger.info("Updating order status for orderId: {} after payment: {}", orderId, paymentId);
         
         try {
-            // In a real implementation, this would make an API call to the Order Service
-            // For now, we'll just log the action
-            
-            // Example of what the real call might look like:
-            // OrderStatusUpdateRequest request = new OrderStatusUpdateRequest("PAID", paymentId);
-            // restTemplate.postForEntity(orderServiceUrl + "/" + orderId + "/status", request, Void.class);
-            
+            sendStatusUpdate(orderId, paymentId, "PAID");
             logger.info("Order status updated successfully");
+        } catch (RetryableException e) {
+            logger.warn("Failed to update order status, retrying later: {}", e.getMessage());
+            retryQueue.schedule(RetryTask.Kind.ORDER_PAID, paymentId, orderId);
         } catch (Exception e) {
             logger.error("Failed to update order status: {}", e.getMessage());
-            // In a production environment, consider implementing a retry mechanism or placing
-            // the update request in a queue for later processing
         }
     }
     
@@ -435,18 +1364,32 @@ public class OrderServiceClient {
     public void updateOrderAfterRefund(Long orderId, Long paymentId) {
         logger.info("Updating order status for orderId: {} after refund: {}", orderId, paymentId);
         
+        try {
+            sendStatusUpdate(orderId, paymentId, "REFUNDED");
+            logger.info("Order status updated successfully after refund");
+        } catch (RetryableException e) {
+            logger.warn("Failed to update order status after refund, retrying later: {}", e.getMessage());
+            retryQueue.schedule(RetryTask.Kind.ORDER_REFUNDED, paymentId, orderId);
+        } catch (Exception e) {
+            logger.error("Failed to update order status after refund: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * @throws RetryableException for failures that may pass (5xx, timeouts, refused connections)
+     */
+    private void sendStatusUpdate(Long orderId, Long paymentId, String status) {
         try {
             // In a real implementation, this would make an API call to the Order Service
             // For now, we'll just log the action
             
             // Example of what the real call might look like:
-            // OrderStatusUpdateRequest request = new OrderStatusUpdateRequest("REFUNDED", paymentId);
+            // OrderStatusUpdateRequest request = new OrderStatusUpdateRequest(status, paymentId);
             // restTemplate.postForEntity(orderServiceUrl + "/" + orderId + "/status", request, Void.class);
             
-            logger.info("Order status updated successfully after refund");
-        } catch (Exception e) {
-            logger.error("Failed to update order status after refund: {}", e.getMessage());
-            // In a production environment, consider implementing a retry mechanism
+            logger.debug("Order {} set to {} for payment {}", orderId, status, paymentId);
+        } catch (HttpServerErrorException | ResourceAccessException e) {
+            throw new RetryableException("Order service unavailable: " + e.getMessage(), e);
         }
     }
 }
@@ -541,4 +1484,153 @@ public class PaymentDataMasker {
         
         return name.charAt(0) + "***@" + domain;
     }
-}
\ No newline at end of file
+}
+
+// 11. Native Image Reflection Hints
+// PaymentRuntimeHints.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.ErrorResponse;
+import com.ecommerce.payment.exception.GlobalExceptionHandler;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.shard.ShardedPaymentIdGenerator;
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+
+/**
+ * Reflection and resource hints for the GraalVM native image.
+ * Registered on PaymentServiceApplication via @ImportRuntimeHints.
+ */
+public class PaymentRuntimeHints implements RuntimeHintsRegistrar {
+
+    private final BindingReflectionHintsRegistrar bindingRegistrar = new BindingReflectionHintsRegistrar();
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        // Jackson (de)serialization of request/response bodies
+        bindingRegistrar.registerReflectionHints(hints.reflection(),
+            PaymentRequest.class, PaymentResponse.class, ErrorResponse.class);
+
+        // Hibernate field access on the entity
+        hints.reflection().registerType(Payment.class,
+            MemberCategory.DECLARED_FIELDS,
+            MemberCategory.INVOKE_DECLARED_CONSTRUCTORS,
+            MemberCategory.INVOKE_DECLARED_METHODS);
+
+        // Hibernate instantiates the ID generator from @ShardedPaymentId
+        hints.reflection().registerType(ShardedPaymentIdGenerator.class,
+            MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+
+        // @ExceptionHandler methods are resolved reflectively
+        hints.reflection().registerType(GlobalExceptionHandler.class,
+            MemberCategory.INVOKE_DECLARED_METHODS);
+
+        // HTML test forms
+        hints.resources().registerPattern("static/*.html");
+    }
+}
+
+// 12. CDS Training Run Support
+// ExitWhenReadyListener.java
+package com.ecommerce.payment.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shuts the application down as soon as it is ready if payment.startup.exit-when-ready=true.
+ * Used by the AppCDS training run so the JVM can dump its class archive on exit.
+ *
+ * Always registered and the property read when the event arrives: with spring.aot.enabled
+ * (and in native images) bean conditions are evaluated at build time, so a
+ * @ConditionalOnProperty would ignore the profile the training run selects.
+ */
+@Component
+public class ExitWhenReadyListener implements ApplicationListener<ApplicationReadyEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExitWhenReadyListener.class);
+
+    static final String PROPERTY = "payment.startup.exit-when-ready";
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        if (!event.getApplicationContext().getEnvironment().getProperty(PROPERTY, Boolean.class, false)) {
+            return;
+        }
+        logger.info("Application ready, exiting ({}=true)", PROPERTY);
+        System.exit(SpringApplication.exit(event.getApplicationContext()));
+    }
+}
+
+// 13. Startup Timeline Report
+// StartupTimelineReporter.java
+package com.ecommerce.payment.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.boot.context.metrics.buffering.StartupTimeline;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.metrics.ApplicationStartup;
+import org.springframework.core.metrics.StartupStep;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Logs the slowest startup steps once the application is ready.
+ * The full timeline stays available at /actuator/startup.
+ */
+@Component
+@ConditionalOnProperty(prefix = "payment.startup", name = "timeline-report", havingValue = "true")
+public class StartupTimelineReporter implements ApplicationListener<ApplicationReadyEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupTimelineReporter.class);
+
+    private final int topSteps;
+
+    public StartupTimelineReporter(@Value("${payment.startup.timeline-top-steps:20}") int topSteps) {
+        this.topSteps = topSteps;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        ApplicationStartup applicationStartup = event.getApplicationContext().getApplicationStartup();
+        if (!(applicationStartup instanceof BufferingApplicationStartup bufferingStartup)) {
+            logger.warn("Startup timeline not recorded: application started without BufferingApplicationStartup");
+            return;
+        }
+
+        StartupTimeline timeline = bufferingStartup.getBufferedTimeline();
+        List<StartupTimeline.TimelineEvent> slowest = timeline.getEvents().stream()
+            .sorted(Comparator.comparing(StartupTimeline.TimelineEvent::getDuration).reversed())
+            .limit(topSteps)
+            .toList();
+
+        StringBuilder report = new StringBuilder("Startup timeline (ready in ")
+            .append(event.getTimeTaken().toMillis())
+            .append(" ms), slowest steps:");
+        for (StartupTimeline.TimelineEvent timelineEvent : slowest) {
+            report.append(System.lineSeparator())
+                .append(String.format("%8d ms  ", timelineEvent.getDuration().toMillis()))
+                .append(timelineEvent.getStartupStep().getName());
+            for (StartupStep.Tag tag : timelineEvent.getStartupStep().getTags()) {
+                report.append(' ').append(tag.getKey()).append('=').append(tag.getValue());
+            }
+        }
+
+        logger.info(report.toString());
+    }
+}
@@ -0,0 +1,849 @@
+// Payment Event Log for Payment Service
+
+// 1. Status Change Event
+// PaymentStatusChangedEvent.java
+package com.ecommerce.payment.event;
+
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentStatus;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+
+/**
+ * A payment moved from one status to another (previousStatus is null when the payment was created,
+ * status is null when it was deleted). Published when the payment is saved or deleted; listeners
+ * that need committed state should defer to commit.
+ */
+public class PaymentStatusChangedEvent {
+
+    /**
+     * Layout: [long paymentId][long orderId][byte previous][byte status][long amountMinor][long occurredAt]
+     * [3 bytes currency code], a missing status written as -1. Records written before the currency was
+     * end after occurredAt and are read as Money.DEFAULT_CURRENCY.
+     */
+    public static final int ENCODED_BYTES = 3 * Long.BYTES + 2 + Long.BYTES + 3;
+
+    private static final PaymentStatus[] STATUSES = PaymentStatus.values();
+
+    private final long paymentId;
+    private final long orderId;
+    private final PaymentStatus previousStatus;
+    private final PaymentStatus status;
+    private final long amountMinor;
+    private final Currency currency;
+    private final long occurredAt;
+
+    /**
+     * @param amountMinor hundredths of the major unit of the currency, see Money#unscaledValue
+     */
+    public PaymentStatusChangedEvent(long paymentId, long orderId, PaymentStatus previousStatus,
+                                     PaymentStatus status, long amountMinor, Currency currency, long occurredAt) {
+        this.paymentId = paymentId;
+        this.orderId = orderId;
+        this.previousStatus = previousStatus;
+        this.status = status;
+        this.amountMinor = amountMinor;
+        this.currency = currency;
+        this.occurredAt = occurredAt;
+    }
+
+    /**
+     * @return the event of a payment deleted while in a status
+     */
+    public static PaymentStatusChangedEvent removed(long paymentId, long orderId, PaymentStatus status,
+                                                    long amountMinor, Currency currency, long occurredAt) {
+        return new PaymentStatusChangedEvent(paymentId, orderId, status, null, amountMinor, currency, occurredAt);
+    }
+
+    public void encodeTo(ByteBuffer buffer) {
+        buffer.putLong(paymentId)
+            .putLong(orderId)
+            .put(previousStatus == null ? -1 : (byte) previousStatus.ordinal())
+            .put(status == null ? -1 : (byte) status.ordinal())
+            .putLong(amountMinor)
+            .putLong(occurredAt)
+            .put(currency.getCurrencyCode().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public static PaymentStatusChangedEvent decode(ByteBuffer buffer) {
+        long paymentId = buffer.getLong();
+        long orderId = buffer.getLong();
+        byte previous = buffer.get();
+        byte status = buffer.get();
+        long amountMinor = buffer.getLong();
+        long occurredAt = buffer.getLong();
+        Currency currency = Money.DEFAULT_CURRENCY;
+        if (buffer.remaining() >= 3) {
+            byte[] code = new byte[3];
+            buffer.get(code);
+            currency = Currency.getInstance(new String(code, StandardCharsets.US_ASCII));
+        }
+        return new PaymentStatusChangedEvent(paymentId, orderId, previous < 0 ? null : STATUSES[previous],
+            status < 0 ? null : STATUSES[status], amountMinor, currency, occurredAt);
+    }
+
+    public long getPaymentId() {
+        return paymentId;
+    }
+
+    public long getOrderId() {
+        return orderId;
+    }
+
+    public PaymentStatus getPreviousStatus() {
+        return previousStatus;
+    }
+
+    /**
+     * @return the new status, or null if the payment was deleted
+     */
+    public PaymentStatus getStatus() {
+        return status;
+    }
+
+    public boolean isRemoval() {
+        return status == null;
+    }
+
+    public long getAmountMinor() {
+        return amountMinor;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    /**
+     * @return epoch milliseconds
+     */
+    public long getOccurredAt() {
+        return occurredAt;
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentStatusChangedEvent{" +
+                "paymentId=" + paymentId +
+                ", orderId=" + orderId +
+                ", previousStatus=" + previousStatus +
+                ", status=" + status +
+                ", amountMinor=" + amountMinor +
+                ", currency=" + currency +
+                ", occurredAt=" + occurredAt +
+                '}';
+    }
+}
+
+// 2. Payment State
+// PaymentState.java
+package com.ecommerce.payment.event;
+
+import com.ecommerce.payment.model.PaymentStatus;
+
+/**
+ * State of one payment as rebuilt from the event log
+ *
+ * @param status the latest status, or null if the payment was deleted
+ * @param position log position just after the last event applied
+ */
+public record PaymentState(long paymentId, long orderId, PaymentStatus status, long amountMinor,
+                           long updatedAt, long position) {
+}
+
+// 3. Payment State Table
+// PaymentStateTable.java
+package com.ecommerce.payment.event;
+
+import com.ecommerce.payment.model.PaymentStatus;
+
+import java.util.function.Consumer;
+
+/**
+ * Latest state per payment, striped by payment ID so that replay threads
+ * rarely contend. Stored in primitive arrays: about 41 bytes per payment.
+ *
+ * An event only replaces the state of its payment if it comes later in the log.
+ * Applying events is therefore order-independent, which lets segments be replayed
+ * in parallel and lets a replay overlap a snapshot without double counting.
+ */
+public class PaymentStateTable {
+
+    private static final PaymentStatus[] STATUSES = PaymentStatus.values();
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    public PaymentStateTable(int stripeCount, int expectedPayments) {
+        if (Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("Stripe count must be a power of two: " + stripeCount);
+        }
+        this.stripes = new Stripe[stripeCount];
+        this.stripeShift = 64 - Integer.numberOfTrailingZeros(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(Math.max(16, expectedPayments / stripeCount));
+        }
+    }
+
+    /**
+     * Apply an event read at a log position; safe to call from several threads
+     */
+    public void apply(PaymentStatusChangedEvent event, long position) {
+        put(event.getPaymentId(), event.getOrderId(), event.getStatus(), event.getAmountMinor(),
+            event.getOccurredAt(), position);
+    }
+
+    /**
+     * Apply a state, e.g. read from a snapshot, unless the table already has a later one
+     */
+    public void apply(PaymentState state) {
+        put(state.paymentId(), state.orderId(), state.status(), state.amountMinor(), state.updatedAt(),
+            state.position());
+    }
+
+    /**
+     * @return the payment's state, or null if the log has no events for it
+     */
+    public PaymentState get(long paymentId) {
+        long hash = mix(paymentId);
+        Stripe stripe = stripes[stripeIndex(hash)];
+        synchronized (stripe) {
+            int slot = stripe.find(paymentId, hash);
+            return slot < 0 ? null : stripe.state(slot);
+        }
+    }
+
+    /**
+     * Visit all states; not to be called while events are being applied
+     */
+    public void forEach(Consumer<PaymentState> action) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int slot = 0; slot < stripe.paymentIds.length; slot++) {
+                    if (stripe.paymentIds[slot] != 0) {
+                        action.accept(stripe.state(slot));
+                    }
+                }
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    private void put(long paymentId, long orderId, PaymentStatus status, long amountMinor,
+                     long updatedAt, long position) {
+        long hash = mix(paymentId);
+        Stripe stripe = stripes[stripeIndex(hash)];
+        synchronized (stripe) {
+            stripe.put(paymentId, hash, orderId, status, amountMinor, updatedAt, position);
+        }
+    }
+
+    private int stripeIndex(long hash) {
+        return stripeShift == 64 ? 0 : (int) (hash >>> stripeShift);
+    }
+
+    private static long mix(long value) {
+        long hash = value * 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private static final class Stripe {
+
+        private static final double MAX_LOAD = 0.7;
+
+        private long[] paymentIds;
+        private long[] orderIds;
+        private long[] amounts;
+        private long[] updatedAts;
+        private long[] positions;
+        private byte[] statuses;
+        private int mask;
+        private int size;
+
+        Stripe(int expectedSize) {
+            allocate(Integer.highestOneBit((int) Math.min(1 << 29, (long) (expectedSize / MAX_LOAD) + 1)) << 1);
+        }
+
+        int find(long paymentId, long hash) {
+            int slot = (int) hash & mask;
+            while (paymentIds[slot] != 0) {
+                if (paymentIds[slot] == paymentId) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(long paymentId, long hash, long orderId, PaymentStatus status, long amountMinor,
+                 long updatedAt, long position) {
+            if (size + 1 > (mask + 1) * MAX_LOAD) {
+                resize();
+            }
+
+            int slot = (int) hash & mask;
+            while (paymentIds[slot] != 0 && paymentIds[slot] != paymentId) {
+                slot = (slot + 1) & mask;
+            }
+            if (paymentIds[slot] == 0) {
+                size++;
+            } else if (positions[slot] >= position) {
+                return;
+            }
+
+            paymentIds[slot] = paymentId;
+            orderIds[slot] = orderId;
+            amounts[slot] = amountMinor;
+            updatedAts[slot] = updatedAt;
+            positions[slot] = position;
+            // Deleted payments keep a tombstone, so older events replayed later cannot revive them
+            statuses[slot] = status == null ? -1 : (byte) status.ordinal();
+        }
+
+        PaymentState state(int slot) {
+            byte status = statuses[slot];
+            return new PaymentState(paymentIds[slot], orderIds[slot], status < 0 ? null : STATUSES[status],
+                amounts[slot], updatedAts[slot], positions[slot]);
+        }
+
+        private void resize() {
+            long[] oldPaymentIds = paymentIds;
+            long[] oldOrderIds = orderIds;
+            long[] oldAmounts = amounts;
+            long[] oldUpdatedAts = updatedAts;
+            long[] oldPositions = positions;
+            byte[] oldStatuses = statuses;
+
+            allocate(oldPaymentIds.length << 1);
+            for (int i = 0; i < oldPaymentIds.length; i++) {
+                if (oldPaymentIds[i] != 0) {
+                    int slot = (int) mix(oldPaymentIds[i]) & mask;
+                    while (paymentIds[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    paymentIds[slot] = oldPaymentIds[i];
+                    orderIds[slot] = oldOrderIds[i];
+                    amounts[slot] = oldAmounts[i];
+                    updatedAts[slot] = oldUpdatedAts[i];
+                    positions[slot] = oldPositions[i];
+                    statuses[slot] = oldStatuses[i];
+                    size++;
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            paymentIds = new long[capacity];
+            orderIds = new long[capacity];
+            amounts = new long[capacity];
+            updatedAts = new long[capacity];
+            positions = new long[capacity];
+            statuses = new byte[capacity];
+            mask = capacity - 1;
+            size = 0;
+        }
+    }
+}
+
+// 4. Payment Event Log
+// PaymentEventLog.java
+package com.ecommerce.payment.event;
+
+import com.ecommerce.payment.journal.SegmentedLog;
+import com.ecommerce.payment.model.PaymentStatus;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only history of payment status changes, kept next to the payment table.
+ * Deletes are logged too, as events with a null new status.
+ *
+ * The log lives on the local disk of the node and holds only the changes committed by
+ * that node. It is complete for a single instance; with several, each node has part of
+ * the history, and neither replay nor rebuild sees the changes made elsewhere.
+ *
+ * Events are collected while a transaction runs and appended once it commits, so rolled-back
+ * changes never reach the log. The committing thread then waits for the flusher's next fsync,
+ * which is shared by every transaction that committed meanwhile. A crash between the database
+ * commit and that fsync loses the transaction's events; the payment rows remain authoritative.
+ *
+ * A snapshot of the latest state per payment is written periodically, so that rebuilding state
+ * reads the newest snapshot plus the segments written after it. Older segments are kept as history.
+ */
+public class PaymentEventLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentEventLog.class);
+
+    private static final long SNAPSHOT_MAGIC = 0x5041594d534e4150L;
+    private static final int SNAPSHOT_HEADER_BYTES = 3 * Long.BYTES;
+    private static final int SNAPSHOT_ENTRY_BYTES = 5 * Long.BYTES + 1;
+    private static final int SNAPSHOTS_KEPT = 2;
+    private static final PaymentStatus[] STATUSES = PaymentStatus.values();
+
+    private final PaymentEventLogProperties properties;
+    private final SegmentedLog log;
+    private final Path snapshotDirectory;
+    private final Counter appended;
+    private final Counter appendFailures;
+    private final AtomicLong snapshotPosition = new AtomicLong();
+    private final ScheduledExecutorService snapshotScheduler;
+
+    public PaymentEventLog(PaymentEventLogProperties properties, MeterRegistry meterRegistry) throws IOException {
+        this.properties = properties;
+        this.log = new SegmentedLog(properties.getDirectory().resolve("segments"),
+            properties.getSegmentSize().toBytes(), "payment-event-log");
+        this.snapshotDirectory = Files.createDirectories(properties.getDirectory().resolve("snapshots"));
+        Path latest = latestSnapshot();
+        if (latest != null) {
+            snapshotPosition.set(snapshotPositionOf(latest));
+        }
+
+        this.appended = Counter.builder("payment.events.appended").register(meterRegistry);
+        this.appendFailures = Counter.builder("payment.events.append.failures").register(meterRegistry);
+        Gauge.builder("payment.events.log.bytes", log, SegmentedLog::endPosition)
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder("payment.events.snapshot.lag.bytes", this, PaymentEventLog::snapshotLag)
+            .baseUnit("bytes")
+            .register(meterRegistry);
+
+        long interval = properties.getSnapshotInterval().toMillis();
+        this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-event-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(this::snapshotIfBehind, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Collect a status change; it is appended when the surrounding transaction commits
+     */
+    @EventListener
+    public void onStatusChanged(PaymentStatusChangedEvent event) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            append(List.of(event));
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<PaymentStatusChangedEvent> pending =
+            (List<PaymentStatusChangedEvent>) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            List<PaymentStatusChangedEvent> events = new ArrayList<>();
+            TransactionSynchronizationManager.bindResource(this, events);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    append(events);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(PaymentEventLog.this);
+                }
+            });
+            pending = events;
+        }
+        pending.add(event);
+    }
+
+    /**
+     * Append events and wait until they are on disk. Failures are logged, not thrown:
+     * the changes they describe are already committed.
+     */
+    public void append(List<PaymentStatusChangedEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(PaymentStatusChangedEvent.ENCODED_BYTES);
+        try {
+            long position = 0;
+            for (PaymentStatusChangedEvent event : events) {
+                buffer.clear();
+                event.encodeTo(buffer);
+                position = log.append(buffer.flip());
+            }
+            log.awaitDurable(position);
+            appended.increment(events.size());
+        } catch (IOException e) {
+            appendFailures.increment(events.size());
+            logger.error("Could not append {} payment events, first: {}", events.size(), events.get(0), e);
+        } catch (InterruptedException e) {
+            // Appended but durability unknown
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read every event in log order
+     *
+     * @return the position after the last event
+     */
+    public long replay(EventConsumer consumer) throws IOException {
+        return log.replay(0, (payload, nextPosition) ->
+            consumer.accept(PaymentStatusChangedEvent.decode(payload), nextPosition));
+    }
+
+    /**
+     * Rebuild the latest state of every payment from the newest snapshot and the segments
+     * written after it, replaying segments in parallel. Only payments changed through this
+     * node are included, see the class comment.
+     */
+    public PaymentStateTable rebuild() throws IOException {
+        PaymentStateTable table = new PaymentStateTable(properties.getStripes(), properties.getExpectedPayments());
+        long from = loadSnapshot(table);
+
+        List<Long> bases = log.segmentBases();
+        List<Long> pending = new ArrayList<>();
+        for (int i = 0; i < bases.size(); i++) {
+            boolean endsBeforeSnapshot = i + 1 < bases.size() && bases.get(i + 1) <= from;
+            if (!endsBeforeSnapshot) {
+                pending.add(bases.get(i));
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(properties.getReplayParallelism(), pending.size())));
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (long base : pending) {
+                // The segment holding the snapshot position is read whole; its older events lose to the snapshot
+                futures.add(executor.submit(() -> log.replaySegment(base, (payload, nextPosition) ->
+                    table.apply(PaymentStatusChangedEvent.decode(payload), nextPosition))));
+            }
+            for (Future<Long> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Payment event replay interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Payment event replay failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return table;
+    }
+
+    /**
+     * Write a snapshot of the current state and remove older snapshots
+     *
+     * @return the log position the snapshot covers
+     */
+    public synchronized long snapshot() throws IOException {
+        long started = System.currentTimeMillis();
+        long position = log.endPosition();
+        PaymentStateTable table = rebuild();
+
+        Path target = snapshotDirectory.resolve(String.format("%020d.snapshot", position));
+        Path temporary = snapshotDirectory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.putLong(SNAPSHOT_MAGIC).putLong(position).putLong(table.size());
+            table.forEach(state -> {
+                if (buffer.remaining() < SNAPSHOT_ENTRY_BYTES) {
+                    writeFully(channel, buffer.flip());
+                    buffer.clear();
+                }
+                buffer.putLong(state.paymentId())
+                    .putLong(state.orderId())
+                    .putLong(state.amountMinor())
+                    .putLong(state.updatedAt())
+                    .putLong(state.position())
+                    .put(state.status() == null ? -1 : (byte) state.status().ordinal());
+            });
+            writeFully(channel, buffer.flip());
+            channel.force(true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotPosition.set(position);
+        deleteOldSnapshots();
+
+        logger.info("Wrote payment state snapshot at position {} with {} payments in {} ms",
+            position, table.size(), System.currentTimeMillis() - started);
+        return position;
+    }
+
+    public long endPosition() {
+        return log.endPosition();
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshotScheduler.shutdownNow();
+        log.close();
+    }
+
+    private void snapshotIfBehind() {
+        if (snapshotLag() < properties.getSnapshotMinimumLag().toBytes()) {
+            return;
+        }
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not write payment state snapshot", e);
+        }
+    }
+
+    private long snapshotLag() {
+        return log.endPosition() - snapshotPosition.get();
+    }
+
+    /**
+     * @return the log position the loaded snapshot covers, or 0 without a snapshot
+     */
+    private long loadSnapshot(PaymentStateTable table) throws IOException {
+        Path latest = latestSnapshot();
+        if (latest == null) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(latest, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).flip();
+            fill(channel, buffer, SNAPSHOT_HEADER_BYTES, latest);
+            if (buffer.getLong() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a payment state snapshot: " + latest);
+            }
+            long position = buffer.getLong();
+            long count = buffer.getLong();
+
+            for (long i = 0; i < count; i++) {
+                fill(channel, buffer, SNAPSHOT_ENTRY_BYTES, latest);
+                long paymentId = buffer.getLong();
+                long orderId = buffer.getLong();
+                long amountMinor = buffer.getLong();
+                long updatedAt = buffer.getLong();
+                long entryPosition = buffer.getLong();
+                byte status = buffer.get();
+                table.apply(new PaymentState(paymentId, orderId, status < 0 ? null : STATUSES[status], amountMinor,
+                    updatedAt, entryPosition));
+            }
+            return position;
+        }
+    }
+
+    private Path latestSnapshot() throws IOException {
+        List<Path> snapshots = listSnapshots();
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    private void deleteOldSnapshots() throws IOException {
+        List<Path> snapshots = listSnapshots();
+        for (int i = 0; i < snapshots.size() - SNAPSHOTS_KEPT; i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+    }
+
+    private List<Path> listSnapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshotDirectory, "*.snapshot")) {
+            files.forEach(snapshots::add);
+        }
+        // Zero-padded names sort by position
+        snapshots.sort(null);
+        return snapshots;
+    }
+
+    private static long snapshotPositionOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    /**
+     * Make at least the given number of bytes readable from the buffer, refilling it from the channel
+     */
+    private static void fill(FileChannel channel, ByteBuffer buffer, int bytes, Path file) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Truncated payment state snapshot: " + file);
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Receives replayed events with the log position just after each
+     */
+    public interface EventConsumer {
+        void accept(PaymentStatusChangedEvent event, long nextPosition) throws IOException;
+    }
+}
+
+// 5. Configuration Properties
+// PaymentEventLogProperties.java
+package com.ecommerce.payment.event;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * Payment event log settings, bound from payment.event-log.*
+ */
+@ConfigurationProperties(prefix = "payment.event-log")
+public class PaymentEventLogProperties {
+
+    private boolean enabled = false;
+    private Path directory = Paths.get("payment-events");
+    private DataSize segmentSize = DataSize.ofMegabytes(256);
+    private Duration snapshotInterval = Duration.ofMinutes(15);
+    private DataSize snapshotMinimumLag = DataSize.ofMegabytes(64);
+    private int replayParallelism = Runtime.getRuntime().availableProcessors();
+    private int stripes = 64;
+    private int expectedPayments = 1_000_000;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    public DataSize getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(DataSize segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public Duration getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public void setSnapshotInterval(Duration snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public DataSize getSnapshotMinimumLag() {
+        return snapshotMinimumLag;
+    }
+
+    public void setSnapshotMinimumLag(DataSize snapshotMinimumLag) {
+        this.snapshotMinimumLag = snapshotMinimumLag;
+    }
+
+    public int getReplayParallelism() {
+        return replayParallelism;
+    }
+
+    public void setReplayParallelism(int replayParallelism) {
+        this.replayParallelism = replayParallelism;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    public int getExpectedPayments() {
+        return expectedPayments;
+    }
+
+    public void setExpectedPayments(int expectedPayments) {
+        this.expectedPayments = expectedPayments;
+    }
+}
+
+// 6. Event Log Configuration
+// PaymentEventLogConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.event.PaymentEventLog;
+import com.ecommerce.payment.event.PaymentEventLogProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+
+/**
+ * Records payment status changes to a local event log when payment.event-log.enabled=true.
+ * Each node logs its own changes only, so this suits single-instance deployments.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "payment.event-log", name = "enabled", havingValue = "true")
+@EnableConfigurationProperties(PaymentEventLogProperties.class)
+public class PaymentEventLogConfig {
+
+    @Bean(destroyMethod = "close")
+    public PaymentEventLog paymentEventLog(PaymentEventLogProperties properties, MeterRegistry meterRegistry)
+            throws IOException {
+        return new PaymentEventLog(properties, meterRegistry);
+    }
+}
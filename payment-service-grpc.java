@@ -0,0 +1,986 @@
+// gRPC Endpoint for Payment Service (internal service-to-service calls)
+
+// 1. Protocol Definition
+// src/main/proto/payment/v1/payment_service.proto
+```protobuf
+syntax = "proto3";
+
+// Internal counterpart of /api/payments for other services.
+// Amounts are in minor units of their currency, as in Money.
+package ecommerce.payment.v1;
+
+import "google/protobuf/timestamp.proto";
+
+option java_package = "com.ecommerce.payment.grpc.v1";
+option java_outer_classname = "PaymentProtos";
+
+service PaymentService {
+  // POST /api/payments. PENDING means the gateway was unavailable and the charge is being retried.
+  rpc ProcessPayment(PaymentRequest) returns (PaymentResponse);
+
+  // GET /api/payments/{id}
+  rpc GetPayment(GetPaymentRequest) returns (PaymentResponse);
+
+  // GET /api/payments/order/{orderId}, one message per payment
+  rpc GetPaymentsByOrder(GetPaymentsByOrderRequest) returns (stream PaymentResponse);
+
+  // POST /api/payments/{id}/refund
+  rpc RefundPayment(RefundPaymentRequest) returns (PaymentResponse);
+
+  // POST /api/payments/lookup: payments are streamed as they are read, unknown IDs are skipped
+  rpc LookupPayments(LookupPaymentsRequest) returns (stream PaymentResponse);
+}
+
+// Numbered in the order of com.ecommerce.payment.model.PaymentMethod
+enum PaymentMethod {
+  PAYMENT_METHOD_UNSPECIFIED = 0;
+  PAYMENT_METHOD_CREDIT_CARD = 1;
+  PAYMENT_METHOD_DEBIT_CARD = 2;
+  PAYMENT_METHOD_PAYPAL = 3;
+  PAYMENT_METHOD_BANK_TRANSFER = 4;
+  PAYMENT_METHOD_CRYPTO = 5;
+}
+
+// Numbered in the order of com.ecommerce.payment.model.PaymentStatus
+enum PaymentStatus {
+  PAYMENT_STATUS_UNSPECIFIED = 0;
+  PAYMENT_STATUS_PENDING = 1;
+  PAYMENT_STATUS_PROCESSING = 2;
+  PAYMENT_STATUS_COMPLETED = 3;
+  PAYMENT_STATUS_FAILED = 4;
+  PAYMENT_STATUS_REFUNDED = 5;
+  PAYMENT_STATUS_CANCELLED = 6;
+  PAYMENT_STATUS_UNKNOWN = 7;
+}
+
+message Money {
+  int64 minor_units = 1;
+  // ISO 4217 code; USD when empty
+  string currency = 2;
+}
+
+message PaymentRequest {
+  optional int64 order_id = 1;
+  Money amount = 2;
+  PaymentMethod payment_method = 3;
+
+  // Credit card specific fields
+  string card_number = 4;
+  string card_holder_name = 5;
+  string expiry_date = 6;
+  string cvv = 7;
+
+  // PayPal specific fields
+  string paypal_email = 8;
+}
+
+message PaymentResponse {
+  int64 id = 1;
+  int64 order_id = 2;
+  Money amount = 3;
+  string transaction_id = 4;
+  PaymentMethod payment_method = 5;
+  PaymentStatus status = 6;
+  google.protobuf.Timestamp created_at = 7;
+  google.protobuf.Timestamp updated_at = 8;
+}
+
+message GetPaymentRequest {
+  int64 payment_id = 1;
+}
+
+message GetPaymentsByOrderRequest {
+  int64 order_id = 1;
+}
+
+message RefundPaymentRequest {
+  int64 payment_id = 1;
+}
+
+message LookupPaymentsRequest {
+  repeated int64 payment_ids = 1;
+  repeated int64 order_ids = 2;
+}
+```
+
+// 2. Message Mapping
+// PaymentMessages.java
+package com.ecommerce.payment.grpc;
+
+import com.ecommerce.payment.dto.PaymentLookupRequest;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.grpc.v1.PaymentProtos;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.google.protobuf.Timestamp;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Currency;
+
+/**
+ * Converts between the protobuf messages and the DTOs PaymentService works with.
+ * Empty strings and unspecified enums of a request become null, so the request is
+ * validated exactly like one read from JSON.
+ */
+public final class PaymentMessages {
+
+    private static final String METHOD_PREFIX = "PAYMENT_METHOD_";
+    private static final String STATUS_PREFIX = "PAYMENT_STATUS_";
+
+    // Enum conversions are array lookups; the names are matched once here
+    private static final PaymentMethod[] METHODS_BY_NUMBER = new PaymentMethod[PaymentMethod.values().length + 1];
+    private static final PaymentProtos.PaymentMethod[] METHOD_MESSAGES =
+        new PaymentProtos.PaymentMethod[PaymentMethod.values().length];
+    private static final PaymentProtos.PaymentStatus[] STATUS_MESSAGES =
+        new PaymentProtos.PaymentStatus[PaymentStatus.values().length];
+
+    static {
+        for (PaymentMethod method : PaymentMethod.values()) {
+            PaymentProtos.PaymentMethod message = PaymentProtos.PaymentMethod.valueOf(METHOD_PREFIX + method.name());
+            METHODS_BY_NUMBER[message.getNumber()] = method;
+            METHOD_MESSAGES[method.ordinal()] = message;
+        }
+        for (PaymentStatus status : PaymentStatus.values()) {
+            STATUS_MESSAGES[status.ordinal()] = PaymentProtos.PaymentStatus.valueOf(STATUS_PREFIX + status.name());
+        }
+    }
+
+    private PaymentMessages() {
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown or unsupported currency
+     */
+    public static PaymentRequest toRequest(PaymentProtos.PaymentRequest message) {
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(message.hasOrderId() ? message.getOrderId() : null);
+        request.setAmount(message.hasAmount() ? toMoney(message.getAmount()) : null);
+        int method = message.getPaymentMethodValue();
+        request.setPaymentMethod(method > 0 && method < METHODS_BY_NUMBER.length ? METHODS_BY_NUMBER[method] : null);
+        request.setCardNumber(emptyToNull(message.getCardNumber()));
+        request.setCardHolderName(emptyToNull(message.getCardHolderName()));
+        request.setExpiryDate(emptyToNull(message.getExpiryDate()));
+        request.setCvv(emptyToNull(message.getCvv()));
+        request.setPaypalEmail(emptyToNull(message.getPaypalEmail()));
+        return request;
+    }
+
+    public static PaymentLookupRequest toLookupRequest(PaymentProtos.LookupPaymentsRequest message) {
+        PaymentLookupRequest request = new PaymentLookupRequest();
+        request.setPaymentIds(new ArrayList<>(message.getPaymentIdsList()));
+        request.setOrderIds(new ArrayList<>(message.getOrderIdsList()));
+        return request;
+    }
+
+    public static PaymentProtos.PaymentResponse toMessage(PaymentResponse response) {
+        PaymentProtos.PaymentResponse.Builder message = PaymentProtos.PaymentResponse.newBuilder();
+        if (response.getId() != null) {
+            message.setId(response.getId());
+        }
+        if (response.getOrderId() != null) {
+            message.setOrderId(response.getOrderId());
+        }
+        if (response.getAmount() != null) {
+            message.setAmount(toMessage(response.getAmount()));
+        }
+        if (response.getTransactionId() != null) {
+            message.setTransactionId(response.getTransactionId());
+        }
+        if (response.getPaymentMethod() != null) {
+            message.setPaymentMethod(METHOD_MESSAGES[response.getPaymentMethod().ordinal()]);
+        }
+        if (response.getStatus() != null) {
+            message.setStatus(STATUS_MESSAGES[response.getStatus().ordinal()]);
+        }
+        if (response.getCreatedAt() != null) {
+            message.setCreatedAt(toTimestamp(response.getCreatedAt()));
+        }
+        if (response.getUpdatedAt() != null) {
+            message.setUpdatedAt(toTimestamp(response.getUpdatedAt()));
+        }
+        return message.build();
+    }
+
+    public static PaymentProtos.Money toMessage(Money money) {
+        return PaymentProtos.Money.newBuilder()
+            .setMinorUnits(money.getMinorUnits())
+            .setCurrency(money.getCurrency().getCurrencyCode())
+            .build();
+    }
+
+    private static Money toMoney(PaymentProtos.Money message) {
+        String currency = message.getCurrency();
+        return Money.of(message.getMinorUnits(),
+            currency.isEmpty() ? Money.DEFAULT_CURRENCY : Currency.getInstance(currency));
+    }
+
+    private static Timestamp toTimestamp(Instant instant) {
+        return Timestamp.newBuilder().setSeconds(instant.getEpochSecond()).setNanos(instant.getNano()).build();
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
+
+// 3. gRPC Payment Service
+// PaymentGrpcService.java
+package com.ecommerce.payment.grpc;
+
+import com.ecommerce.payment.dto.PaymentLookupRequest;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.LaneSaturatedException;
+import com.ecommerce.payment.exception.PaymentNotFoundException;
+import com.ecommerce.payment.exception.PaymentProcessingException;
+import com.ecommerce.payment.grpc.v1.PaymentProtos;
+import com.ecommerce.payment.grpc.v1.PaymentServiceGrpc;
+import com.ecommerce.payment.lane.Lane;
+import com.ecommerce.payment.lane.LaneExecutors;
+import com.ecommerce.payment.service.PaymentLookupService;
+import com.ecommerce.payment.service.PaymentService;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * PaymentService over gRPC for internal callers. Calls run on the same lanes as
+ * PaymentController, so gRPC and REST traffic share the checkout, query and refund limits.
+ *
+ * Errors map to status codes as GlobalExceptionHandler maps them to HTTP: not found is
+ * NOT_FOUND, declines and other processing failures FAILED_PRECONDITION, validation
+ * failures INVALID_ARGUMENT ("field: message" pairs), concurrent modification ABORTED
+ * and a saturated lane RESOURCE_EXHAUSTED. A stream the client stopped reading for the
+ * stall timeout ends with DEADLINE_EXCEEDED.
+ */
+public class PaymentGrpcService extends PaymentServiceGrpc.PaymentServiceImplBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentGrpcService.class);
+
+    private final PaymentService paymentService;
+    private final PaymentLookupService lookupService;
+    private final LaneExecutors lanes;
+    private final PaymentRequestValidator requestValidator;
+    private final Validator validator;
+    private final long streamStallNanos;
+
+    /**
+     * @param streamStallTimeout how long a stream waits for a client that stopped reading
+     */
+    public PaymentGrpcService(PaymentService paymentService, PaymentLookupService lookupService,
+                              LaneExecutors lanes, PaymentRequestValidator requestValidator, Validator validator,
+                              Duration streamStallTimeout) {
+        this.paymentService = paymentService;
+        this.lookupService = lookupService;
+        this.lanes = lanes;
+        this.requestValidator = requestValidator;
+        this.validator = validator;
+        this.streamStallNanos = streamStallTimeout.toNanos();
+    }
+
+    @Override
+    public void processPayment(PaymentProtos.PaymentRequest message,
+                               StreamObserver<PaymentProtos.PaymentResponse> responseObserver) {
+        PaymentRequest request;
+        try {
+            request = PaymentMessages.toRequest(message);
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+            return;
+        }
+        if (!isValid(requestValidator.validate(request), responseObserver)) {
+            return;
+        }
+        unary(Lane.CHECKOUT, () -> paymentService.processPayment(request), responseObserver);
+    }
+
+    @Override
+    public void getPayment(PaymentProtos.GetPaymentRequest message,
+                           StreamObserver<PaymentProtos.PaymentResponse> responseObserver) {
+        unary(Lane.QUERY, () -> paymentService.getPaymentById(message.getPaymentId()), responseObserver);
+    }
+
+    @Override
+    public void getPaymentsByOrder(PaymentProtos.GetPaymentsByOrderRequest message,
+                                   StreamObserver<PaymentProtos.PaymentResponse> responseObserver) {
+        stream(responseObserver, sink -> paymentService.getPaymentsByOrderId(message.getOrderId()).forEach(sink));
+    }
+
+    @Override
+    public void refundPayment(PaymentProtos.RefundPaymentRequest message,
+                              StreamObserver<PaymentProtos.PaymentResponse> responseObserver) {
+        unary(Lane.REFUND, () -> paymentService.refundPayment(message.getPaymentId()), responseObserver);
+    }
+
+    @Override
+    public void lookupPayments(PaymentProtos.LookupPaymentsRequest message,
+                               StreamObserver<PaymentProtos.PaymentResponse> responseObserver) {
+        PaymentLookupRequest request = PaymentMessages.toLookupRequest(message);
+        if (request.isEmpty()) {
+            responseObserver.onError(Status.INVALID_ARGUMENT
+                .withDescription("Payment IDs or order IDs are required").asRuntimeException());
+            return;
+        }
+        if (!isValid(validator.validate(request), responseObserver)) {
+            return;
+        }
+        stream(responseObserver, sink -> lookupService.lookup(request, sink));
+    }
+
+    private void unary(Lane lane, Supplier<PaymentResponse> call,
+                       StreamObserver<PaymentProtos.PaymentResponse> responseObserver) {
+        CompletableFuture<PaymentResponse> result;
+        try {
+            result = lanes.submit(lane, call);
+        } catch (LaneSaturatedException e) {
+            fail(responseObserver, e);
+            return;
+        }
+        result.whenComplete((response, failure) -> {
+            if (failure != null) {
+                fail(responseObserver, failure);
+                return;
+            }
+            responseObserver.onNext(PaymentMessages.toMessage(response));
+            responseObserver.onCompleted();
+        });
+    }
+
+    /**
+     * Stream payments on the query lane as they are produced. The producing thread waits
+     * while the client is not ready, so memory stays bounded like the REST lookup's, but
+     * no longer than the stall timeout: a client without a deadline that stops reading
+     * would otherwise hold a query lane thread forever. The call deadline, if any, cancels
+     * the call and ends the wait earlier.
+     */
+    private void stream(StreamObserver<PaymentProtos.PaymentResponse> responseObserver,
+                        Consumer<Consumer<PaymentResponse>> producer) {
+        ServerCallStreamObserver<PaymentProtos.PaymentResponse> observer =
+            (ServerCallStreamObserver<PaymentProtos.PaymentResponse>) responseObserver;
+        ReadyGate gate = new ReadyGate(observer);
+        // Registered before the call method returns, as gRPC requires
+        observer.setOnReadyHandler(gate);
+        observer.setOnCancelHandler(gate);
+
+        CompletableFuture<Void> result;
+        try {
+            result = lanes.submit(Lane.QUERY, () -> {
+                producer.accept(response -> {
+                    gate.await(streamStallNanos);
+                    observer.onNext(PaymentMessages.toMessage(response));
+                });
+                return null;
+            });
+        } catch (LaneSaturatedException e) {
+            fail(observer, e);
+            return;
+        }
+        result.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                fail(observer, failure);
+            } else {
+                observer.onCompleted();
+            }
+        });
+    }
+
+    private boolean isValid(Set<? extends ConstraintViolation<?>> violations, StreamObserver<?> responseObserver) {
+        Map<String, String> errors = new HashMap<>();
+        for (ConstraintViolation<?> violation : violations) {
+            errors.put(violation.getPropertyPath().toString(), violation.getMessage());
+        }
+        return isValid(errors, responseObserver);
+    }
+
+    private boolean isValid(Map<String, String> errors, StreamObserver<?> responseObserver) {
+        if (errors.isEmpty()) {
+            return true;
+        }
+        // The fields and messages of GlobalExceptionHandler.handleValidationExceptions, in a stable order
+        StringBuilder description = new StringBuilder();
+        new TreeMap<>(errors).forEach((field, message) -> {
+            if (description.length() > 0) {
+                description.append("; ");
+            }
+            description.append(field).append(": ").append(message);
+        });
+        responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(description.toString()).asRuntimeException());
+        return false;
+    }
+
+    private void fail(StreamObserver<?> responseObserver, Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+            ? failure.getCause() : failure;
+        if (((ServerCallStreamObserver<?>) responseObserver).isCancelled()) {
+            logger.debug("gRPC call cancelled: {}", cause.getMessage());
+            return;
+        }
+        responseObserver.onError(toStatus(cause).asRuntimeException());
+    }
+
+    static Status toStatus(Throwable cause) {
+        if (cause instanceof StatusRuntimeException statusException) {
+            return statusException.getStatus();
+        }
+        if (cause instanceof PaymentNotFoundException) {
+            return Status.NOT_FOUND.withDescription(cause.getMessage());
+        }
+        if (cause instanceof PaymentProcessingException) {
+            return Status.FAILED_PRECONDITION.withDescription(cause.getMessage());
+        }
+        if (cause instanceof OptimisticLockingFailureException) {
+            // Another request or node changed the payment first; a retry sees the new state
+            return Status.ABORTED.withDescription("Payment was modified concurrently, please retry");
+        }
+        if (cause instanceof LaneSaturatedException) {
+            return Status.RESOURCE_EXHAUSTED.withDescription(cause.getMessage());
+        }
+        logger.error("Unexpected error in gRPC call", cause);
+        return Status.INTERNAL.withDescription("An unexpected error occurred: " + cause.getMessage());
+    }
+
+    /**
+     * Blocks a producing thread until the stream can take another message, is cancelled
+     * or the client has not read for the stall timeout
+     */
+    private static final class ReadyGate implements Runnable {
+
+        private final ServerCallStreamObserver<?> observer;
+
+        ReadyGate(ServerCallStreamObserver<?> observer) {
+            this.observer = observer;
+        }
+
+        synchronized void await(long stallNanos) {
+            long deadline = System.nanoTime() + stallNanos;
+            while (!observer.isReady()) {
+                if (observer.isCancelled()) {
+                    throw Status.CANCELLED.withDescription("Client cancelled the call").asRuntimeException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw Status.DEADLINE_EXCEEDED
+                        .withDescription("Client did not read the stream for "
+                            + TimeUnit.NANOSECONDS.toMillis(stallNanos) + " ms")
+                        .asRuntimeException();
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw Status.CANCELLED.withDescription("Interrupted").asRuntimeException();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            notifyAll();
+        }
+    }
+}
+
+// 4. gRPC Server
+// GrpcProperties.java
+package com.ecommerce.payment.grpc;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * gRPC server settings, bound from payment.grpc.*
+ *
+ * The server speaks TLS with certificate-chain and private-key (PEM files). With
+ * client-certificates it also requires callers to present a certificate signed by one
+ * of those, and their subject identifies them to admission control. Plaintext must be
+ * asked for explicitly, for a mesh sidecar terminating TLS or for tests.
+ */
+@ConfigurationProperties(prefix = "payment.grpc")
+public class GrpcProperties {
+
+    private boolean enabled = false;
+    private int port = 9090;
+    private Duration shutdownTimeout = Duration.ofSeconds(10);
+    private Duration streamStallTimeout = Duration.ofSeconds(30);
+    private boolean plaintext = false;
+    private String certificateChain;
+    private String privateKey;
+    private String clientCertificates;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return how long calls in progress may take to finish on shutdown
+     */
+    public Duration getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(Duration shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * @return how long a streaming call waits for a client that stopped reading
+     */
+    public Duration getStreamStallTimeout() {
+        return streamStallTimeout;
+    }
+
+    public void setStreamStallTimeout(Duration streamStallTimeout) {
+        this.streamStallTimeout = streamStallTimeout;
+    }
+
+    public boolean isPlaintext() {
+        return plaintext;
+    }
+
+    public void setPlaintext(boolean plaintext) {
+        this.plaintext = plaintext;
+    }
+
+    public String getCertificateChain() {
+        return certificateChain;
+    }
+
+    public void setCertificateChain(String certificateChain) {
+        this.certificateChain = certificateChain;
+    }
+
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
+    public void setPrivateKey(String privateKey) {
+        this.privateKey = privateKey;
+    }
+
+    /**
+     * @return CA certificates client certificates must be signed by, unset to not ask for one
+     */
+    public String getClientCertificates() {
+        return clientCertificates;
+    }
+
+    public void setClientCertificates(String clientCertificates) {
+        this.clientCertificates = clientCertificates;
+    }
+}
+
+// GrpcServer.java
+package com.ecommerce.payment.grpc;
+
+import io.grpc.BindableService;
+import io.grpc.Grpc;
+import io.grpc.InsecureServerCredentials;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.ServerCredentials;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.TlsServerCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.util.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/2 server for the gRPC services, on its own port next to the servlet container.
+ * Calls are dispatched on the transport threads: the services only decode, validate
+ * and hand the work to a lane, so no further executor is needed.
+ */
+public class GrpcServer implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(GrpcServer.class);
+
+    private final GrpcProperties properties;
+    private final List<BindableService> services;
+    private final List<ServerInterceptor> interceptors;
+
+    private volatile Server server;
+
+    public GrpcServer(GrpcProperties properties, List<BindableService> services) {
+        this(properties, services, List.of());
+    }
+
+    /**
+     * @param interceptors applied to every call, the first one outermost
+     */
+    public GrpcServer(GrpcProperties properties, List<BindableService> services,
+                      List<ServerInterceptor> interceptors) {
+        this.properties = properties;
+        this.services = services;
+        this.interceptors = interceptors;
+    }
+
+    @Override
+    public void start() {
+        try {
+            ServerBuilder<?> builder = Grpc.newServerBuilderForPort(properties.getPort(), credentials())
+                .directExecutor();
+            services.forEach(service -> builder.addService(ServerInterceptors.interceptForward(service, interceptors)));
+            server = builder.build().start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start gRPC server on port " + properties.getPort(), e);
+        }
+        logger.info("gRPC server listening on port {}", server.getPort());
+    }
+
+    private ServerCredentials credentials() throws IOException {
+        if (properties.isPlaintext()) {
+            logger.warn("gRPC server on port {} accepts plaintext connections", properties.getPort());
+            return InsecureServerCredentials.create();
+        }
+        if (!StringUtils.hasText(properties.getCertificateChain()) || !StringUtils.hasText(properties.getPrivateKey())) {
+            throw new IllegalStateException("payment.grpc.certificate-chain and payment.grpc.private-key "
+                + "are required unless payment.grpc.plaintext=true");
+        }
+        TlsServerCredentials.Builder tls = TlsServerCredentials.newBuilder()
+            .keyManager(new File(properties.getCertificateChain()), new File(properties.getPrivateKey()));
+        if (StringUtils.hasText(properties.getClientCertificates())) {
+            tls.trustManager(new File(properties.getClientCertificates()))
+                .clientAuth(TlsServerCredentials.ClientAuth.REQUIRE);
+        }
+        return tls.build();
+    }
+
+    @Override
+    public void stop() {
+        Server current = server;
+        if (current == null) {
+            return;
+        }
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(properties.getShutdownTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        server = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return server != null;
+    }
+
+    /**
+     * @return the port listened on, useful when configured as 0
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+}
+
+// GrpcAdmissionInterceptor.java
+package com.ecommerce.payment.grpc;
+
+import com.ecommerce.payment.admission.AdmissionControl;
+import com.ecommerce.payment.admission.AdmissionProperties;
+import com.ecommerce.payment.grpc.v1.PaymentServiceGrpc;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * AdmissionFilter for gRPC: ProcessPayment calls pass the same AdmissionControl as
+ * POST /api/payments, before the request is read. Rejections are RESOURCE_EXHAUSTED with
+ * a retry-after trailer in seconds, the counterparts of 429 and Retry-After.
+ *
+ * Callers are told apart as by AdmissionFilter: by the subject of their verified client
+ * certificate, or by the client ID header in metadata when trust-client-id-header is set.
+ */
+public class GrpcAdmissionInterceptor implements ServerInterceptor {
+
+    public static final Metadata.Key<String> RETRY_AFTER =
+        Metadata.Key.of("retry-after", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final String PROCESS_PAYMENT = PaymentServiceGrpc.getProcessPaymentMethod().getFullMethodName();
+
+    private final AdmissionControl admission;
+    // Null unless the header is trusted
+    private final Metadata.Key<String> clientIdHeader;
+
+    public GrpcAdmissionInterceptor(AdmissionControl admission, AdmissionProperties properties) {
+        this.admission = admission;
+        this.clientIdHeader = properties.isTrustClientIdHeader()
+            ? Metadata.Key.of(properties.getClientIdHeader().toLowerCase(Locale.ROOT), Metadata.ASCII_STRING_MARSHALLER)
+            : null;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        if (!PROCESS_PAYMENT.equals(call.getMethodDescriptor().getFullMethodName())) {
+            return next.startCall(call, headers);
+        }
+
+        long now = System.nanoTime();
+        AdmissionControl.Rejection rejection = admission.tryAcquire(client(call, headers), now);
+        if (rejection != null) {
+            Metadata trailers = new Metadata();
+            trailers.put(RETRY_AFTER, Long.toString(Math.max(1,
+                TimeUnit.NANOSECONDS.toSeconds(rejection.retryAfterNanos() + 999_999_999L))));
+            call.close(Status.RESOURCE_EXHAUSTED.withDescription(rejection.message()), trailers);
+            return new ServerCall.Listener<>() {
+            };
+        }
+
+        ReleaseOnClose<ReqT, RespT> admitted = new ReleaseOnClose<>(call, now);
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(admitted, headers);
+        } catch (RuntimeException e) {
+            admitted.release(true);
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+            @Override
+            public void onCancel() {
+                // The client gave up, typically at its deadline
+                admitted.release(true);
+                super.onCancel();
+            }
+        };
+    }
+
+    private String client(ServerCall<?, ?> call, Metadata headers) {
+        SSLSession session = call.getAttributes().get(Grpc.TRANSPORT_ATTR_SSL_SESSION);
+        if (session != null) {
+            try {
+                return session.getPeerPrincipal().getName();
+            } catch (SSLPeerUnverifiedException e) {
+                // No client certificate
+            }
+        }
+        return clientIdHeader != null ? headers.get(clientIdHeader) : null;
+    }
+
+    // The gRPC counterparts of a 5xx response, which AdmissionFilter counts as dropped
+    private static boolean isServerError(Status status) {
+        return switch (status.getCode()) {
+            case INTERNAL, UNKNOWN, UNAVAILABLE, DATA_LOSS, DEADLINE_EXCEEDED, RESOURCE_EXHAUSTED -> true;
+            default -> false;
+        };
+    }
+
+    private final class ReleaseOnClose<ReqT, RespT> extends ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT> {
+
+        private final long startNanos;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ReleaseOnClose(ServerCall<ReqT, RespT> call, long startNanos) {
+            super(call);
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            try {
+                super.close(status, trailers);
+            } finally {
+                release(isServerError(status));
+            }
+        }
+
+        void release(boolean dropped) {
+            if (released.compareAndSet(false, true)) {
+                admission.release(System.nanoTime() - startNanos, dropped);
+            }
+        }
+    }
+}
+
+// GrpcReadYourWritesInterceptor.java
+package com.ecommerce.payment.grpc;
+
+import com.ecommerce.payment.datasource.ReadYourWritesContext;
+import com.ecommerce.payment.datasource.ReadYourWritesFilter;
+import com.ecommerce.payment.grpc.v1.PaymentServiceGrpc;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * ReadYourWritesFilter for gRPC. ProcessPayment and RefundPayment return a consistency
+ * token in their response headers and read from the primary; other calls presenting a
+ * token still within the window in their metadata read from the primary too.
+ *
+ * The service method runs when the request is half-closed, so the pin is set around that;
+ * LaneExecutors.submit carries it over to the lane.
+ */
+public class GrpcReadYourWritesInterceptor implements ServerInterceptor {
+
+    public static final Metadata.Key<String> CONSISTENCY_TOKEN = Metadata.Key.of(
+        ReadYourWritesFilter.CONSISTENCY_TOKEN_HEADER.toLowerCase(Locale.ROOT), Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final Set<String> WRITES = Set.of(
+        PaymentServiceGrpc.getProcessPaymentMethod().getFullMethodName(),
+        PaymentServiceGrpc.getRefundPaymentMethod().getFullMethodName());
+
+    private final long windowMillis;
+
+    public GrpcReadYourWritesInterceptor(Duration window) {
+        this.windowMillis = window.toMillis();
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        long now = System.currentTimeMillis();
+        ServerCall<ReqT, RespT> forwarded = call;
+        boolean pinned;
+        if (WRITES.contains(call.getMethodDescriptor().getFullMethodName())) {
+            String token = Long.toString(now + windowMillis);
+            forwarded = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+                @Override
+                public void sendHeaders(Metadata responseHeaders) {
+                    responseHeaders.put(CONSISTENCY_TOKEN, token);
+                    super.sendHeaders(responseHeaders);
+                }
+            };
+            pinned = true;
+        } else {
+            pinned = ReadYourWritesFilter.isWithinWindow(headers.get(CONSISTENCY_TOKEN), now, windowMillis);
+        }
+
+        ServerCall.Listener<ReqT> listener = next.startCall(forwarded, headers);
+        if (!pinned) {
+            return listener;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+            @Override
+            public void onHalfClose() {
+                ReadYourWritesContext.pinToPrimary();
+                try {
+                    super.onHalfClose();
+                } finally {
+                    ReadYourWritesContext.clear();
+                }
+            }
+        };
+    }
+}
+
+// 5. gRPC Configuration
+// GrpcConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.admission.AdmissionControl;
+import com.ecommerce.payment.admission.AdmissionProperties;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
+import com.ecommerce.payment.grpc.GrpcAdmissionInterceptor;
+import com.ecommerce.payment.grpc.GrpcProperties;
+import com.ecommerce.payment.grpc.GrpcReadYourWritesInterceptor;
+import com.ecommerce.payment.grpc.GrpcServer;
+import com.ecommerce.payment.grpc.PaymentGrpcService;
+import com.ecommerce.payment.lane.LaneExecutors;
+import com.ecommerce.payment.service.PaymentLookupService;
+import com.ecommerce.payment.service.PaymentService;
+import io.grpc.ServerInterceptor;
+import jakarta.validation.Validator;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serves PaymentService over gRPC when payment.grpc.enabled=true, behind the admission
+ * control (when enabled) and read-your-writes pinning of the REST endpoints
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "payment.grpc", name = "enabled", havingValue = "true")
+@EnableConfigurationProperties({GrpcProperties.class, ReadReplicaProperties.class})
+public class GrpcConfig {
+
+    @Bean
+    public PaymentGrpcService paymentGrpcService(PaymentService paymentService, PaymentLookupService lookupService,
+                                                 LaneExecutors lanes, PaymentRequestValidator requestValidator,
+                                                 Validator validator, GrpcProperties properties) {
+        return new PaymentGrpcService(paymentService, lookupService, lanes, requestValidator, validator,
+            properties.getStreamStallTimeout());
+    }
+
+    @Bean
+    public GrpcServer grpcServer(GrpcProperties properties, PaymentGrpcService paymentGrpcService,
+                                 ReadReplicaProperties readReplicaProperties,
+                                 ObjectProvider<AdmissionControl> admissionControl,
+                                 ObjectProvider<AdmissionProperties> admissionProperties) {
+        List<ServerInterceptor> interceptors = new ArrayList<>();
+        AdmissionControl admission = admissionControl.getIfAvailable();
+        if (admission != null) {
+            interceptors.add(new GrpcAdmissionInterceptor(admission, admissionProperties.getObject()));
+        }
+        // Harmless when reads are not routed: the pin is only consulted by the routing data sources
+        interceptors.add(new GrpcReadYourWritesInterceptor(readReplicaProperties.getReadYourWritesWindow()));
+        return new GrpcServer(properties, List.of(paymentGrpcService), interceptors);
+    }
+}
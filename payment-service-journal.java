@@ -0,0 +1,386 @@
+// Append-Only Segmented Log for Payment Service
+
+// 1. Segmented Log
+// SegmentedLog.java
+package com.ecommerce.payment.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only record log split into segment files, with group commit.
+ *
+ * Records are framed as [int length][int CRC32C][payload]. Positions are logical byte
+ * offsets across all segments; each segment file is named after the position of its
+ * first record. Appends only write to the page cache; a flusher thread fsyncs whatever
+ * has been appended since its last pass, so one fsync covers every record written
+ * meanwhile. Callers that need durability wait with awaitDurable.
+ *
+ * On open, the last segment is scanned and truncated at the first incomplete,
+ * corrupt or all-zero record (a torn write from a crash). Empty records are rejected.
+ */
+public class SegmentedLog implements Closeable {
+
+    public static final int RECORD_HEADER_BYTES = 8;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final NavigableMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+    private final CRC32C crc = new CRC32C();
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+
+    // Guarded by this
+    private FileChannel active;
+    private long activeBase;
+    private long writePosition;
+    private final List<FileChannel> rolled = new ArrayList<>();
+
+    // Guarded by durableLock
+    private final Object durableLock = new Object();
+    private long durablePosition;
+    private IOException flushFailure;
+
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    /**
+     * Open (or create) a log in a directory
+     *
+     * @param directory directory holding the segment files
+     * @param segmentBytes maximum size of a segment file
+     * @param name used to name the flusher thread
+     */
+    public SegmentedLog(Path directory, long segmentBytes, String name) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                .forEach(file -> segments.put(baseOf(file), file));
+        }
+
+        if (segments.isEmpty()) {
+            activeBase = 0;
+            segments.put(0L, segmentPath(0));
+        } else {
+            activeBase = segments.lastKey();
+        }
+        active = FileChannel.open(segments.get(activeBase),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = validLength(active);
+        active.truncate(validLength);
+        active.position(validLength);
+        writePosition = activeBase + validLength;
+        durablePosition = writePosition;
+
+        flusher = new Thread(this::flushLoop, name + "-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Append a record. The record is durable once awaitDurable returns for the returned position.
+     *
+     * @param payload record contents, consumed from position to limit
+     * @return the log position just after the record
+     */
+    public synchronized long append(ByteBuffer payload) throws IOException {
+        if (closed) {
+            throw new IOException("Log is closed: " + directory);
+        }
+
+        int length = payload.remaining();
+        if (length == 0) {
+            // A zero header is what a zero-filled tail looks like, so it must never be written
+            throw new IllegalArgumentException("Record must not be empty");
+        }
+        if (length + RECORD_HEADER_BYTES > segmentBytes) {
+            throw new IllegalArgumentException("Record of " + length + " bytes does not fit in a segment");
+        }
+        if (writePosition - activeBase + RECORD_HEADER_BYTES + length > segmentBytes) {
+            roll();
+        }
+
+        crc.reset();
+        crc.update(payload.duplicate());
+        header.clear();
+        header.putInt(length).putInt((int) crc.getValue()).flip();
+
+        ByteBuffer[] record = {header, payload};
+        long remaining = RECORD_HEADER_BYTES + length;
+        while (remaining > 0) {
+            remaining -= active.write(record);
+        }
+
+        writePosition += RECORD_HEADER_BYTES + length;
+        return writePosition;
+    }
+
+    /**
+     * Block until everything up to a position has been fsynced
+     *
+     * @param position a position returned by append
+     */
+    public void awaitDurable(long position) throws IOException, InterruptedException {
+        synchronized (durableLock) {
+            while (durablePosition < position) {
+                if (flushFailure != null) {
+                    throw flushFailure;
+                }
+                if (closed) {
+                    throw new IOException("Log closed before position " + position + " was durable");
+                }
+                LockSupport.unpark(flusher);
+                durableLock.wait(10);
+            }
+        }
+    }
+
+    /**
+     * Read records from a position up to the current end of the log
+     *
+     * @param fromPosition position of the first record to read (0 or a position returned by append)
+     * @param consumer receives each payload and the position just after it
+     * @return the position after the last record read
+     */
+    public long replay(long fromPosition, RecordConsumer consumer) throws IOException {
+        long end;
+        synchronized (this) {
+            end = writePosition;
+        }
+
+        long position = fromPosition;
+        for (Map.Entry<Long, Path> segment : segments.tailMap(segments.floorKey(Math.max(fromPosition, segments.firstKey())), true).entrySet()) {
+            long base = segment.getKey();
+            long limit = Math.min(end - base, segmentBytes);
+            if (limit <= 0) {
+                break;
+            }
+            position = replaySegment(segment.getValue(), base, Math.max(position, base), base + limit, consumer);
+        }
+        return position;
+    }
+
+    /**
+     * @return first positions of the segments, in order
+     */
+    public List<Long> segmentBases() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    /**
+     * Read the records of one segment, e.g. to replay segments in parallel
+     *
+     * @param base first position of the segment, as returned by segmentBases
+     */
+    public long replaySegment(long base, RecordConsumer consumer) throws IOException {
+        long end;
+        synchronized (this) {
+            end = writePosition;
+        }
+        Path file = segments.get(base);
+        if (file == null) {
+            throw new IllegalArgumentException("No segment at position " + base);
+        }
+        return replaySegment(file, base, base, Math.min(end, base + segmentBytes), consumer);
+    }
+
+    /**
+     * Delete segments that only hold records before a position
+     */
+    public void deleteSegmentsBefore(long position) throws IOException {
+        for (Map.Entry<Long, Path> segment : segments.headMap(activeBaseSnapshot(), false).entrySet()) {
+            Long next = segments.higherKey(segment.getKey());
+            if (next != null && next <= position) {
+                segments.remove(segment.getKey());
+                Files.deleteIfExists(segment.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the position just after the last appended record
+     */
+    public synchronized long endPosition() {
+        return writePosition;
+    }
+
+    /**
+     * @return the position up to which records are known to be on disk
+     */
+    public long durablePosition() {
+        synchronized (durableLock) {
+            return durablePosition;
+        }
+    }
+
+    /**
+     * Flush outstanding records and close all segment files
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            try {
+                // Segments rolled since the flusher's last pass hold records it has not fsynced
+                for (FileChannel channel : rolled) {
+                    channel.force(false);
+                }
+                active.force(false);
+                synchronized (durableLock) {
+                    // After a failed fsync, a later one does not bring back the pages it lost
+                    if (flushFailure == null) {
+                        durablePosition = writePosition;
+                    }
+                    durableLock.notifyAll();
+                }
+            } finally {
+                for (FileChannel channel : rolled) {
+                    channel.close();
+                }
+                rolled.clear();
+                active.close();
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        rolled.add(active);
+        activeBase = writePosition;
+        Path file = segmentPath(activeBase);
+        active = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(activeBase, file);
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            long target;
+            List<FileChannel> channels;
+            synchronized (this) {
+                target = writePosition;
+                channels = new ArrayList<>(rolled);
+                channels.add(active);
+                rolled.clear();
+            }
+
+            if (target > durablePosition()) {
+                try {
+                    for (FileChannel channel : channels) {
+                        channel.force(false);
+                    }
+                    for (int i = 0; i < channels.size() - 1; i++) {
+                        channels.get(i).close();
+                    }
+                    synchronized (durableLock) {
+                        durablePosition = target;
+                        durableLock.notifyAll();
+                    }
+                } catch (IOException e) {
+                    synchronized (durableLock) {
+                        flushFailure = e;
+                        durableLock.notifyAll();
+                    }
+                    return;
+                }
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private long replaySegment(Path file, long base, long from, long to, RecordConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = Math.min(channel.size(), to - base);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int offset = (int) (from - base);
+            while (true) {
+                int length = recordLength(buffer, offset);
+                if (length < 0) {
+                    return base + offset;
+                }
+                int next = offset + RECORD_HEADER_BYTES + length;
+                consumer.accept(buffer.slice(offset + RECORD_HEADER_BYTES, length), base + next);
+                offset = next;
+            }
+        }
+    }
+
+    private long validLength(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return 0;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int offset = 0;
+        int length;
+        while ((length = recordLength(buffer, offset)) >= 0) {
+            offset += RECORD_HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    /**
+     * A zero length ends the log: the CRC32C of an empty payload is 0, so a zero-filled
+     * tail (preallocated or left by a crash) would otherwise read as endless empty records.
+     *
+     * @return the payload length of a complete, intact record at offset, or -1
+     */
+    private static int recordLength(ByteBuffer buffer, int offset) {
+        if (offset + RECORD_HEADER_BYTES > buffer.limit()) {
+            return -1;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + RECORD_HEADER_BYTES + length > buffer.limit()) {
+            return -1;
+        }
+        CRC32C check = new CRC32C();
+        check.update(buffer.slice(offset + RECORD_HEADER_BYTES, length));
+        return (int) check.getValue() == buffer.getInt(offset + 4) ? length : -1;
+    }
+
+    private synchronized long activeBaseSnapshot() {
+        return activeBase;
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    private static long baseOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Receives replayed records. The payload buffer is only valid during the call.
+     */
+    @FunctionalInterface
+    public interface RecordConsumer {
+        void accept(ByteBuffer payload, long nextPosition) throws IOException;
+    }
+}
@@ -0,0 +1,449 @@
+// Priority Lanes for Payment Service
+
+// 1. Lanes
+// Lane.java
+package com.ecommerce.payment.lane;
+
+/**
+ * Classes of work that must not slow each other down. Each lane has its own
+ * executor threads and its own share of database connections.
+ */
+public enum Lane {
+    CHECKOUT,
+    REFUND,
+    QUERY;
+
+    /**
+     * @return the lane of the calling thread, or null outside lane executors
+     */
+    public static Lane current() {
+        return Thread.currentThread() instanceof LaneThread laneThread ? laneThread.getLane() : null;
+    }
+}
+
+// LaneThread.java
+package com.ecommerce.payment.lane;
+
+/**
+ * Executor thread of a lane; the lane is a property of the thread, so it needs no
+ * thread-local and cannot leak into unrelated work
+ */
+final class LaneThread extends Thread {
+
+    private final Lane lane;
+
+    LaneThread(Lane lane, Runnable task, String name) {
+        super(task, name);
+        this.lane = lane;
+        setDaemon(true);
+    }
+
+    Lane getLane() {
+        return lane;
+    }
+}
+
+// 2. Configuration Properties
+// LaneProperties.java
+package com.ecommerce.payment.lane;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Lane sizing, bound from payment.lanes.*
+ *
+ * Threads and connections are split between the lanes by weight. Connection shares
+ * are caps, not reservations, so work outside the lanes (webhooks, projections, jobs)
+ * can still take connections a lane needs unless it is capped too: set
+ * background-connections and keep the pool at least connections plus that.
+ */
+@ConfigurationProperties(prefix = "payment.lanes")
+public class LaneProperties {
+
+    private int threads = 48;
+    private int connections = 16;
+    private int backgroundConnections = 0;
+    private int queueCapacity = 500;
+    private Duration connectionTimeout = Duration.ofSeconds(5);
+    private Map<Lane, Integer> weights = new EnumMap<>(Map.of(Lane.CHECKOUT, 5, Lane.QUERY, 3, Lane.REFUND, 2));
+
+    /**
+     * @return executor threads of a lane
+     */
+    public int threadsOf(Lane lane) {
+        return share(threads, lane);
+    }
+
+    /**
+     * @return database connections a lane may hold at once
+     */
+    public int connectionsOf(Lane lane) {
+        return share(connections, lane);
+    }
+
+    private int share(int total, Lane lane) {
+        int sum = 0;
+        for (Lane each : Lane.values()) {
+            sum += weightOf(each);
+        }
+        return Math.max(1, total * weightOf(lane) / Math.max(1, sum));
+    }
+
+    private int weightOf(Lane lane) {
+        return Math.max(0, weights.getOrDefault(lane, 1));
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * @return database connections threads outside the lanes may hold at once, 0 for no cap
+     */
+    public int getBackgroundConnections() {
+        return backgroundConnections;
+    }
+
+    public void setBackgroundConnections(int backgroundConnections) {
+        this.backgroundConnections = backgroundConnections;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public Duration getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    public void setConnectionTimeout(Duration connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public Map<Lane, Integer> getWeights() {
+        return weights;
+    }
+
+    public void setWeights(Map<Lane, Integer> weights) {
+        this.weights = weights;
+    }
+}
+
+// 3. Lane Executors
+// LaneExecutors.java
+package com.ecommerce.payment.lane;
+
+import com.ecommerce.payment.datasource.ReadYourWritesContext;
+import com.ecommerce.payment.exception.LaneSaturatedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * One bounded thread pool per lane. Controllers hand their work to a lane and return
+ * the future, so servlet threads are released at once and a storm in one lane only
+ * fills that lane's queue. A full queue is rejected with LaneSaturatedException.
+ */
+public class LaneExecutors implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(LaneExecutors.class);
+
+    private final Map<Lane, ThreadPoolExecutor> executors = new EnumMap<>(Lane.class);
+    private final Map<Lane, Counter> rejections = new EnumMap<>(Lane.class);
+
+    public LaneExecutors(LaneProperties properties, MeterRegistry meterRegistry) {
+        for (Lane lane : Lane.values()) {
+            int threads = properties.threadsOf(lane);
+            String prefix = "lane-" + lane.name().toLowerCase() + "-";
+            AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(properties.getQueueCapacity()),
+                task -> new LaneThread(lane, task, prefix + counter.incrementAndGet()));
+            executor.allowCoreThreadTimeOut(true);
+            executors.put(lane, executor);
+
+            String tag = lane.name().toLowerCase();
+            rejections.put(lane, Counter.builder("payment.lane.rejections").tag("lane", tag).register(meterRegistry));
+            Gauge.builder("payment.lane.active", executor, ThreadPoolExecutor::getActiveCount)
+                .tag("lane", tag)
+                .register(meterRegistry);
+            Gauge.builder("payment.lane.queue.depth", executor, e -> e.getQueue().size())
+                .tag("lane", tag)
+                .register(meterRegistry);
+            logger.info("Lane {}: {} threads, {} connections", lane, threads, properties.connectionsOf(lane));
+        }
+    }
+
+    /**
+     * Run a task on a lane. The caller's read-your-writes pin is carried over.
+     *
+     * @throws LaneSaturatedException if the lane's queue is full
+     */
+    public <T> CompletableFuture<T> submit(Lane lane, Supplier<T> task) {
+        boolean pinnedToPrimary = ReadYourWritesContext.isPinnedToPrimary();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                if (pinnedToPrimary) {
+                    ReadYourWritesContext.pinToPrimary();
+                }
+                try {
+                    return task.get();
+                } finally {
+                    ReadYourWritesContext.clear();
+                }
+            }, executors.get(lane));
+        } catch (RejectedExecutionException e) {
+            rejections.get(lane).increment();
+            throw new LaneSaturatedException(lane);
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
+        for (ThreadPoolExecutor executor : executors.values()) {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+}
+
+// 4. Connection Pool Partitions
+// LanePartitionedDataSource.java
+package com.ecommerce.payment.lane;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Splits the connection pool between the lanes. A lane thread needs one of its lane's
+ * permits to get a connection and gives it back when the connection is closed, so a
+ * lane can never hold more than its share of the pool. Threads outside the lanes share
+ * a partition of their own when background-connections is set, and are passed straight
+ * through otherwise.
+ */
+public class LanePartitionedDataSource extends DelegatingDataSource implements AutoCloseable {
+
+    private final Map<Lane, Semaphore> partitions = new EnumMap<>(Lane.class);
+    private final Map<Lane, Integer> capacities = new EnumMap<>(Lane.class);
+    // Null when work outside the lanes is not capped
+    private final Semaphore background;
+    private final int backgroundCapacity;
+    private final long timeoutNanos;
+
+    public LanePartitionedDataSource(DataSource target, LaneProperties properties) {
+        super(target);
+        for (Lane lane : Lane.values()) {
+            capacities.put(lane, properties.connectionsOf(lane));
+            partitions.put(lane, new Semaphore(properties.connectionsOf(lane), true));
+        }
+        this.backgroundCapacity = properties.getBackgroundConnections();
+        this.background = backgroundCapacity > 0 ? new Semaphore(backgroundCapacity, true) : null;
+        this.timeoutNanos = properties.getConnectionTimeout().toNanos();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Semaphore partition = partitionOfCurrentThread();
+        return partition == null ? super.getConnection() : partitioned(partition, null, null);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        Semaphore partition = partitionOfCurrentThread();
+        return partition == null ? super.getConnection(username, password) : partitioned(partition, username, password);
+    }
+
+    /**
+     * @return connections of a lane currently handed out
+     */
+    public int inUse(Lane lane) {
+        return capacities.get(lane) - partitions.get(lane).availablePermits();
+    }
+
+    /**
+     * @return connections handed out to threads outside the lanes, if they are capped
+     */
+    public int inUseOutsideLanes() {
+        return background == null ? 0 : backgroundCapacity - background.availablePermits();
+    }
+
+    private Semaphore partitionOfCurrentThread() {
+        Lane lane = Lane.current();
+        return lane != null ? partitions.get(lane) : background;
+    }
+
+    private Connection partitioned(Semaphore partition, String username, String password) throws SQLException {
+        try {
+            if (!partition.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                Lane lane = Lane.current();
+                throw new SQLTransientConnectionException(lane != null
+                    ? "No connection available in lane " + lane : "No connection available outside the lanes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted waiting for a connection", e);
+        }
+
+        try {
+            Connection connection = username == null
+                ? super.getConnection() : super.getConnection(username, password);
+            return releasingOnClose(connection, partition);
+        } catch (SQLException | RuntimeException e) {
+            partition.release();
+            throw e;
+        }
+    }
+
+    private static Connection releasingOnClose(Connection connection, Semaphore partition) {
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+                try {
+                    return method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                } finally {
+                    if ("close".equals(method.getName()) && released.compareAndSet(false, true)) {
+                        partition.release();
+                    }
+                }
+            });
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (getTargetDataSource() instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+}
+
+// LanePartitioningPostProcessor.java
+package com.ecommerce.payment.lane;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps the application DataSource, whichever configuration created it (single pool,
+ * primary/replica routing or shards), in a LanePartitionedDataSource
+ */
+public class LanePartitioningPostProcessor implements BeanPostProcessor {
+
+    static final String DATA_SOURCE_BEAN = "dataSource";
+
+    private final Environment environment;
+
+    public LanePartitioningPostProcessor(Environment environment) {
+        this.environment = environment;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!DATA_SOURCE_BEAN.equals(beanName) || !(bean instanceof DataSource dataSource)
+                || bean instanceof LanePartitionedDataSource) {
+            return bean;
+        }
+        LaneProperties properties = Binder.get(environment)
+            .bind("payment.lanes", LaneProperties.class)
+            .orElseGet(LaneProperties::new);
+        return new LanePartitionedDataSource(dataSource, properties);
+    }
+}
+
+// 5. Lane Configuration
+// LaneConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.lane.LaneExecutors;
+import com.ecommerce.payment.lane.LanePartitioningPostProcessor;
+import com.ecommerce.payment.lane.LaneProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+@Configuration
+@EnableConfigurationProperties(LaneProperties.class)
+public class LaneConfig {
+
+    @Bean(destroyMethod = "close")
+    public LaneExecutors laneExecutors(LaneProperties properties, MeterRegistry meterRegistry) {
+        return new LaneExecutors(properties, meterRegistry);
+    }
+
+    // Static, so that the post-processor is registered before the DataSource is created
+    @Bean
+    public static LanePartitioningPostProcessor lanePartitioningPostProcessor(Environment environment) {
+        return new LanePartitioningPostProcessor(environment);
+    }
+}
+
+// 6. Lane Exceptions
+// LaneSaturatedException.java
+package com.ecommerce.payment.exception;
+
+import com.ecommerce.payment.lane.Lane;
+
+public class LaneSaturatedException extends RuntimeException {
+
+    private final Lane lane;
+
+    public LaneSaturatedException(Lane lane) {
+        super("Payment service is busy (" + lane.name().toLowerCase() + "), retry later", null, false, false);
+        this.lane = lane;
+    }
+
+    public Lane getLane() {
+        return lane;
+    }
+}
@@ -0,0 +1,244 @@
+// Bulk Payment Lookup for Payment Service
+
+// 1. Lookup Request
+// PaymentLookupRequest.java
+package com.ecommerce.payment.dto;
+
+import jakarta.validation.constraints.Size;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payments to look up in one call: by their own IDs, by the IDs of their orders, or both
+ */
+public class PaymentLookupRequest {
+
+    public static final int MAX_IDS = 5000;
+
+    @Size(max = MAX_IDS, message = "At most " + MAX_IDS + " payment IDs can be looked up at once")
+    private List<Long> paymentIds = new ArrayList<>();
+
+    @Size(max = MAX_IDS, message = "At most " + MAX_IDS + " order IDs can be looked up at once")
+    private List<Long> orderIds = new ArrayList<>();
+
+    public PaymentLookupRequest() {
+    }
+
+    public boolean isEmpty() {
+        return paymentIds.isEmpty() && orderIds.isEmpty();
+    }
+
+    public List<Long> getPaymentIds() {
+        return paymentIds;
+    }
+
+    public void setPaymentIds(List<Long> paymentIds) {
+        this.paymentIds = paymentIds != null ? paymentIds : new ArrayList<>();
+    }
+
+    public List<Long> getOrderIds() {
+        return orderIds;
+    }
+
+    public void setOrderIds(List<Long> orderIds) {
+        this.orderIds = orderIds != null ? orderIds : new ArrayList<>();
+    }
+}
+
+// 2. Lookup Service
+// PaymentLookupService.java
+package com.ecommerce.payment.service;
+
+import com.ecommerce.payment.cache.PaymentCache;
+import com.ecommerce.payment.dto.PaymentLookupRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Resolves many payments with a few IN-queries instead of one query per ID.
+ *
+ * IDs are grouped by shard and queried in chunks, each chunk in its own short read-only
+ * transaction, and the payments of a chunk are handed to the sink before the next chunk
+ * is read. Memory is therefore bounded by the payments of one chunk rather than of the
+ * whole request: CHUNK_SIZE payments for payment IDs, but every payment of CHUNK_SIZE
+ * orders for order IDs, however many one order has.
+ *
+ * Payment IDs are looked up in the near-cache first and only the misses are queried;
+ * every payment read, by either kind of ID, is cached for later lookups.
+ */
+@Service
+public class PaymentLookupService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentLookupService.class);
+
+    // Keeps IN lists well below database parameter limits and statement cache sizes
+    static final int CHUNK_SIZE = 500;
+
+    private final PaymentRepository paymentRepository;
+    private final ShardRouter shardRouter;
+    private final PaymentCache paymentCache;
+    private final TransactionTemplate readTransaction;
+
+    public PaymentLookupService(PaymentRepository paymentRepository, ShardRouter shardRouter,
+                                PaymentCache paymentCache, PlatformTransactionManager transactionManager) {
+        this.paymentRepository = paymentRepository;
+        this.shardRouter = shardRouter;
+        this.paymentCache = paymentCache;
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+    }
+
+    /**
+     * Hand every payment matching the request to the sink, each payment once. Unknown IDs
+     * are skipped. Payments arrive grouped by shard, not in request order.
+     *
+     * @return number of payments handed to the sink
+     */
+    public int lookup(PaymentLookupRequest request, Consumer<PaymentResponse> sink) {
+        Set<Long> emitted = new HashSet<>();
+
+        List<Long> uncachedIds = new ArrayList<>();
+        for (Long id : request.getPaymentIds()) {
+            PaymentResponse cached = id != null ? paymentCache.get(id) : null;
+            if (cached == null) {
+                uncachedIds.add(id);
+            } else if (emitted.add(id)) {
+                sink.accept(cached);
+            }
+        }
+
+        Map<Integer, List<Long>> paymentIdsByShard = byShard(uncachedIds, shardRouter::shardForPayment);
+        for (Map.Entry<Integer, List<Long>> shardIds : paymentIdsByShard.entrySet()) {
+            queryInChunks(shardIds.getKey(), shardIds.getValue(), paymentRepository::findAllById, emitted, sink);
+        }
+
+        Map<Integer, List<Long>> orderIdsByShard = byShard(request.getOrderIds(), shardRouter::shardForOrder);
+        for (Map.Entry<Integer, List<Long>> shardIds : orderIdsByShard.entrySet()) {
+            queryInChunks(shardIds.getKey(), shardIds.getValue(), paymentRepository::findByOrderIdIn, emitted, sink);
+        }
+
+        logger.debug("Looked up {} payment IDs and {} order IDs, found {} payments",
+            request.getPaymentIds().size(), request.getOrderIds().size(), emitted.size());
+        return emitted.size();
+    }
+
+    private Map<Integer, List<Long>> byShard(Collection<Long> ids, Function<Long, Integer> shardOf) {
+        Map<Integer, List<Long>> idsByShard = new TreeMap<>();
+        for (Long id : new LinkedHashSet<>(ids)) {
+            if (id != null) {
+                idsByShard.computeIfAbsent(shardOf.apply(id), shard -> new ArrayList<>()).add(id);
+            }
+        }
+        return idsByShard;
+    }
+
+    private void queryInChunks(int shard, List<Long> ids, Function<List<Long>, ? extends Iterable<Payment>> query,
+                               Set<Long> emitted, Consumer<PaymentResponse> sink) {
+        for (int from = 0; from < ids.size(); from += CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(from + CHUNK_SIZE, ids.size()));
+            long loadToken = paymentCache.startLoad();
+            List<Payment> payments = readTransaction.execute(status -> {
+                ShardContext.bindToTransaction(shard);
+                List<Payment> found = new ArrayList<>(chunk.size());
+                query.apply(chunk).forEach(found::add);
+                return found;
+            });
+            // Written outside the transaction, so a slow client never holds a connection
+            for (Payment payment : payments) {
+                if (emitted.add(payment.getId())) {
+                    PaymentResponse response = PaymentResponse.from(payment);
+                    paymentCache.put(payment.getId(), payment.getVersion() != null ? payment.getVersion() : 0,
+                        response, loadToken);
+                    sink.accept(response);
+                }
+            }
+        }
+    }
+}
+
+// 3. Lookup Controller
+// PaymentLookupController.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.dto.PaymentLookupRequest;
+import com.ecommerce.payment.service.PaymentLookupService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.validation.Valid;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Bulk lookup replacing client loops over GET /api/payments/{id}.
+ *
+ * The response is a JSON array of PaymentResponse written while the payments are read,
+ * so the status code is decided by request validation alone. If reading fails once the
+ * array has started, the array is left unclosed and the exception propagates, so the
+ * server aborts the response and the client sees a broken body rather than a short list.
+ * StreamingResponseBody needs the servlet stack, so the reactive profile does not serve it.
+ */
+@RestController
+@RequestMapping("/api/payments")
+@Profile("!reactive")
+public class PaymentLookupController {
+
+    private final PaymentLookupService lookupService;
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public PaymentLookupController(PaymentLookupService lookupService, ObjectMapper objectMapper) {
+        this.lookupService = lookupService;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostMapping("/lookup")
+    public ResponseEntity<StreamingResponseBody> lookup(@Valid @RequestBody PaymentLookupRequest request) {
+        if (request.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                // Closing after a failure must not complete the array
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                generator.writeStartArray();
+                lookupService.lookup(request, payment -> {
+                    try {
+                        generator.writeObject(payment);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+}
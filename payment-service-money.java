@@ -0,0 +1,357 @@
+// Money Value Type for Payment Service
+
+// 1. Money
+// Money.java
+package com.ecommerce.payment.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.Objects;
+
+/**
+ * Amount of money as long minor units of an ISO 4217 currency (cents for USD,
+ * yen for JPY). Parsing, comparison and formatting stay in long arithmetic;
+ * BigDecimal is only produced at the database boundary.
+ * <p>
+ * Amount columns are DECIMAL(38, 2), and the amountMinor of status events, the
+ * order summary, reconciliation and velocity checks is in hundredths of the major
+ * unit of the payment's currency (see unscaledValue), so such amounts only add up
+ * within one currency: status events carry it and the order summary keeps a row per
+ * order and currency. Currencies with more than two minor digits (BHD, KWD, ...) do
+ * not fit and are rejected.
+ */
+public final class Money implements Comparable<Money>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Currency of requests that do not name one, and of every payment stored before currencies
+     */
+    public static final Currency DEFAULT_CURRENCY = Currency.getInstance("USD");
+
+    /**
+     * Scale of amounts held outside Money
+     */
+    public static final int STORAGE_SCALE = 2;
+
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L,
+        10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L, 100_000_000_000_000L,
+        1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L, 1_000_000_000_000_000_000L
+    };
+
+    private final long minorUnits;
+    private final Currency currency;
+
+    private Money(long minorUnits, Currency currency) {
+        this.minorUnits = minorUnits;
+        this.currency = currency;
+    }
+
+    /**
+     * @param minorUnits amount in the currency's minor unit
+     */
+    public static Money of(long minorUnits, Currency currency) {
+        return new Money(minorUnits, requireSupported(currency));
+    }
+
+    /**
+     * @throws ArithmeticException if the amount has more decimals than the currency
+     */
+    public static Money of(BigDecimal amount, Currency currency) {
+        return new Money(amount.movePointRight(requireSupported(currency).getDefaultFractionDigits()).longValueExact(),
+            currency);
+    }
+
+    /**
+     * Amount given as unscaled / 10^scale
+     *
+     * @throws ArithmeticException if the amount has more decimals than the currency
+     */
+    public static Money ofUnscaled(long unscaled, int scale, Currency currency) {
+        return new Money(rescale(unscaled, scale, requireSupported(currency).getDefaultFractionDigits()), currency);
+    }
+
+    /**
+     * Parse a decimal such as "149.99", "-0.5" or "1.5E2"
+     *
+     * @throws NumberFormatException if the text is not a decimal
+     * @throws ArithmeticException   if the amount has more decimals than the currency or overflows
+     */
+    public static Money parse(CharSequence text, Currency currency) {
+        char[] chars = text.toString().toCharArray();
+        return new Money(parseUnscaled(chars, 0, chars.length, requireSupported(currency).getDefaultFractionDigits()),
+            currency);
+    }
+
+    /**
+     * Parse a decimal into an exact unscaled long at the given scale, without allocating
+     *
+     * @return the value times 10^scale
+     * @throws NumberFormatException if the text is not a decimal
+     * @throws ArithmeticException   if the value has more than scale decimals or overflows
+     */
+    public static long parseUnscaled(char[] chars, int offset, int length, int scale) {
+        int end = offset + length;
+        int i = offset;
+        boolean negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+            negative = chars[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int fractionDigits = 0;
+        // Trailing zeros of the fraction are counted rather than multiplied in, so "1.5000" cannot overflow
+        int pendingZeros = 0;
+        int digits = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            char c = chars[i];
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (!fraction) {
+                    mantissa = Math.addExact(Math.multiplyExact(mantissa, 10), c - '0');
+                } else if (c == '0') {
+                    pendingZeros++;
+                } else {
+                    mantissa = Math.addExact(Math.multiplyExact(mantissa, pow10(pendingZeros + 1)), c - '0');
+                    fractionDigits += pendingZeros + 1;
+                    pendingZeros = 0;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Not a decimal: " + new String(chars, offset, length));
+        }
+
+        int exponent = 0;
+        if (i < end && (chars[i] == 'e' || chars[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+                negativeExponent = chars[i] == '-';
+                i++;
+            }
+            int exponentStart = i;
+            for (; i < end && chars[i] >= '0' && chars[i] <= '9'; i++) {
+                exponent = Math.min(exponent * 10 + chars[i] - '0', 1000);
+            }
+            if (i == exponentStart) {
+                throw new NumberFormatException("Not a decimal: " + new String(chars, offset, length));
+            }
+            exponent = negativeExponent ? -exponent : exponent;
+        }
+        if (i != end) {
+            throw new NumberFormatException("Not a decimal: " + new String(chars, offset, length));
+        }
+
+        long unscaled = mantissa == 0 ? 0 : rescale(mantissa, fractionDigits - exponent, scale);
+        return negative ? -unscaled : unscaled;
+    }
+
+    /**
+     * @return the amount in the currency's minor unit
+     */
+    public long getMinorUnits() {
+        return minorUnits;
+    }
+
+    public Currency getCurrency() {
+        return currency;
+    }
+
+    /**
+     * @return the amount times 10^scale, e.g. hundredths for STORAGE_SCALE
+     * @throws ArithmeticException if the amount has more than scale decimals
+     */
+    public long unscaledValue(int scale) {
+        return rescale(minorUnits, currency.getDefaultFractionDigits(), scale);
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(minorUnits, currency.getDefaultFractionDigits());
+    }
+
+    public boolean isPositive() {
+        return minorUnits > 0;
+    }
+
+    public Money plus(Money other) {
+        requireSameCurrency(other);
+        return new Money(Math.addExact(minorUnits, other.minorUnits), currency);
+    }
+
+    public Money minus(Money other) {
+        requireSameCurrency(other);
+        return new Money(Math.subtractExact(minorUnits, other.minorUnits), currency);
+    }
+
+    /**
+     * @return the amount as a plain decimal with the currency's digits, e.g. "149.99" or "1500"
+     */
+    public String toPlainString() {
+        int fractionDigits = currency.getDefaultFractionDigits();
+        if (fractionDigits == 0) {
+            return Long.toString(minorUnits);
+        }
+        long factor = POWERS_OF_TEN[fractionDigits];
+        long units = minorUnits / factor;
+        long fraction = Math.abs(minorUnits % factor);
+        StringBuilder text = new StringBuilder(24);
+        if (minorUnits < 0 && units == 0) {
+            text.append('-');
+        }
+        text.append(units).append('.');
+        for (long pad = factor / 10; pad > 1 && fraction < pad; pad /= 10) {
+            text.append('0');
+        }
+        return text.append(fraction).toString();
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        requireSameCurrency(other);
+        return Long.compare(minorUnits, other.minorUnits);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Money)) return false;
+        Money money = (Money) o;
+        return minorUnits == money.minorUnits && currency.equals(money.currency);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minorUnits, currency);
+    }
+
+    @Override
+    public String toString() {
+        return toPlainString() + " " + currency.getCurrencyCode();
+    }
+
+    private void requireSameCurrency(Money other) {
+        if (!currency.equals(other.currency)) {
+            throw new IllegalArgumentException("Currency mismatch: " + currency + " and " + other.currency);
+        }
+    }
+
+    private static Currency requireSupported(Currency currency) {
+        int fractionDigits = currency.getDefaultFractionDigits();
+        if (fractionDigits < 0 || fractionDigits > STORAGE_SCALE) {
+            throw new IllegalArgumentException("Unsupported currency: " + currency.getCurrencyCode());
+        }
+        return currency;
+    }
+
+    private static long rescale(long unscaled, int fromScale, int toScale) {
+        if (toScale >= fromScale) {
+            return Math.multiplyExact(unscaled, pow10(toScale - fromScale));
+        }
+        long divisor = pow10(fromScale - toScale);
+        if (unscaled % divisor != 0) {
+            throw new ArithmeticException("Amount has more than " + toScale + " decimals");
+        }
+        return unscaled / divisor;
+    }
+
+    private static long pow10(int exponent) {
+        if (exponent >= POWERS_OF_TEN.length) {
+            throw new ArithmeticException("Amount out of range");
+        }
+        return POWERS_OF_TEN[exponent];
+    }
+}
+
+// 2. Money Mapping
+// MoneyType.java
+package com.ecommerce.payment.model;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.metamodel.spi.ValueAccess;
+import org.hibernate.usertype.CompositeUserType;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.Objects;
+
+/**
+ * Maps Money to an amount DECIMAL column, which existing SQL keeps summing,
+ * and a currency column. Rows stored before currencies read as DEFAULT_CURRENCY.
+ */
+public class MoneyType implements CompositeUserType<Money> {
+
+    /**
+     * Column layout; Hibernate orders the properties by name
+     */
+    public static class Columns {
+        BigDecimal amount;
+        Currency currency;
+    }
+
+    @Override
+    public Object getPropertyValue(Money component, int property) {
+        return property == 0 ? component.toBigDecimal() : component.getCurrency();
+    }
+
+    @Override
+    public Money instantiate(ValueAccess values, SessionFactoryImplementor sessionFactory) {
+        BigDecimal amount = values.getValue(0, BigDecimal.class);
+        Currency currency = values.getValue(1, Currency.class);
+        return amount == null ? null : Money.of(amount, currency != null ? currency : Money.DEFAULT_CURRENCY);
+    }
+
+    @Override
+    public Class<?> embeddable() {
+        return Columns.class;
+    }
+
+    @Override
+    public Class<Money> returnedClass() {
+        return Money.class;
+    }
+
+    @Override
+    public boolean equals(Money x, Money y) {
+        return Objects.equals(x, y);
+    }
+
+    @Override
+    public int hashCode(Money x) {
+        return Objects.hashCode(x);
+    }
+
+    @Override
+    public Money deepCopy(Money value) {
+        return value;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+
+    @Override
+    public Serializable disassemble(Money value) {
+        return value;
+    }
+
+    @Override
+    public Money assemble(Serializable cached, Object owner) {
+        return (Money) cached;
+    }
+
+    @Override
+    public Money replace(Money detached, Money managed, Object owner) {
+        return detached;
+    }
+}
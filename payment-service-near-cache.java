@@ -0,0 +1,789 @@
+// Payment Near-Cache for Payment Service
+
+// 1. Cache Invalidation Message
+// CacheInvalidation.java
+package com.ecommerce.payment.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tells other nodes that their cached copy of a payment is stale.
+ *
+ * @param paymentId    the payment
+ * @param staleUpTo    highest stale version, PaymentCache.UNKNOWN_VERSION if not known,
+ *                     or PaymentCache.DELETED for a deleted payment
+ * @param origin       node that sent the invalidation
+ * @param sentAtMillis epoch milliseconds when it was sent
+ */
+public record CacheInvalidation(long paymentId, long staleUpTo, long origin, long sentAtMillis) {
+
+    /**
+     * Layout: [long paymentId][long staleUpTo][long origin][long sentAtMillis]
+     */
+    public static final int ENCODED_BYTES = 4 * Long.BYTES;
+
+    public ByteBuffer encode() {
+        return ByteBuffer.allocate(ENCODED_BYTES)
+            .putLong(paymentId)
+            .putLong(staleUpTo)
+            .putLong(origin)
+            .putLong(sentAtMillis)
+            .flip();
+    }
+
+    public static CacheInvalidation decode(ByteBuffer buffer) {
+        return new CacheInvalidation(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+}
+
+// 2. Invalidation Transports
+// InvalidationTransport.java
+package com.ecommerce.payment.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries cache invalidations between the nodes of a deployment.
+ *
+ * Delivery may be best effort: a lost invalidation leaves an entry stale until the
+ * cache TTL expires it. Publishing runs after commit on request threads and must not block.
+ */
+public interface InvalidationTransport {
+
+    void publish(CacheInvalidation invalidation);
+
+    /**
+     * Receive invalidations of every node, possibly including those of this node
+     */
+    void subscribe(Consumer<CacheInvalidation> subscriber);
+}
+
+// LoopbackInvalidationTransport.java
+package com.ecommerce.payment.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Delivers invalidations to subscribers in this JVM only, synchronously.
+ * For single-instance deployments, and for tests running several caches as nodes.
+ */
+public class LoopbackInvalidationTransport implements InvalidationTransport {
+
+    private final List<Consumer<CacheInvalidation>> subscribers = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(CacheInvalidation invalidation) {
+        for (Consumer<CacheInvalidation> subscriber : subscribers) {
+            subscriber.accept(invalidation);
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<CacheInvalidation> subscriber) {
+        subscribers.add(subscriber);
+    }
+}
+
+// UdpInvalidationTransport.java
+package com.ecommerce.payment.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Sends every invalidation as one datagram to the current peers and receives those of
+ * the peers on a local port. Needs no broker; datagrams can be lost.
+ *
+ * Every datagram carries an HMAC-SHA256 of the invalidation under a secret shared by the
+ * nodes, and datagrams without a valid one are dropped, so nothing else that can reach the
+ * port can evict entries. A replayed datagram passes the check, but can only evict again.
+ */
+public class UdpInvalidationTransport implements InvalidationTransport, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(UdpInvalidationTransport.class);
+
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    static final int MAC_BYTES = 32;
+    static final int MIN_SECRET_BYTES = 16;
+
+    /**
+     * Layout: [invalidation][HMAC-SHA256 of the invalidation]
+     */
+    static final int DATAGRAM_BYTES = CacheInvalidation.ENCODED_BYTES + MAC_BYTES;
+
+    private final DatagramChannel channel;
+    private final Supplier<? extends Collection<InetSocketAddress>> peers;
+    private final SecretKeySpec key;
+    // Mac is not thread-safe; publish runs on request threads
+    private final ThreadLocal<Mac> macs;
+    private final List<Consumer<CacheInvalidation>> subscribers = new CopyOnWriteArrayList<>();
+    private final Thread receiver;
+
+    /**
+     * @param port   local port to receive on, 0 for any free port
+     * @param peers  addresses of the other nodes
+     * @param secret key shared by all nodes, at least MIN_SECRET_BYTES long
+     */
+    public UdpInvalidationTransport(int port, List<InetSocketAddress> peers, byte[] secret) throws IOException {
+        this(port, () -> peers, secret);
+    }
+
+    /**
+     * @param port   local port to receive on, 0 for any free port
+     * @param peers  addresses of the other nodes, asked again for every invalidation
+     * @param secret key shared by all nodes, at least MIN_SECRET_BYTES long
+     */
+    public UdpInvalidationTransport(int port, Supplier<? extends Collection<InetSocketAddress>> peers,
+                                    byte[] secret) throws IOException {
+        if (secret == null || secret.length < MIN_SECRET_BYTES) {
+            throw new IllegalArgumentException("Cache invalidation secret must be at least "
+                + MIN_SECRET_BYTES + " bytes");
+        }
+        this.peers = peers;
+        this.key = new SecretKeySpec(secret, MAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::newMac);
+        // Fails here, not on the first invalidation, if the JVM lacks the algorithm
+        newMac();
+        this.channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+        this.receiver = new Thread(this::receive, "payment-cache-invalidation");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void publish(CacheInvalidation invalidation) {
+        ByteBuffer payload = invalidation.encode();
+        Mac mac = macs.get();
+        mac.update(payload.duplicate());
+        ByteBuffer datagram = ByteBuffer.allocate(DATAGRAM_BYTES).put(payload).put(mac.doFinal()).flip();
+        for (InetSocketAddress peer : peers.get()) {
+            try {
+                channel.send(datagram.duplicate(), peer);
+            } catch (IOException e) {
+                logger.warn("Could not send cache invalidation of payment {} to {}: {}",
+                    invalidation.paymentId(), peer, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<CacheInvalidation> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Unblocks the receiver
+        channel.close();
+    }
+
+    private void receive() {
+        // One byte more than a datagram, so that a longer one is seen as such and not truncated
+        ByteBuffer buffer = ByteBuffer.allocate(DATAGRAM_BYTES + 1);
+        Mac mac = newMac();
+        byte[] expected = new byte[MAC_BYTES];
+        byte[] actual = new byte[MAC_BYTES];
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() != DATAGRAM_BYTES) {
+                    logger.debug("Ignored datagram of {} bytes from {}", buffer.remaining(), sender);
+                    continue;
+                }
+                ByteBuffer payload = buffer.duplicate().limit(CacheInvalidation.ENCODED_BYTES);
+                mac.update(payload.duplicate());
+                mac.doFinal(expected, 0);
+                buffer.position(CacheInvalidation.ENCODED_BYTES).get(actual);
+                if (!MessageDigest.isEqual(expected, actual)) {
+                    logger.warn("Ignored cache invalidation with an invalid signature from {}", sender);
+                    continue;
+                }
+                CacheInvalidation invalidation = CacheInvalidation.decode(payload);
+                for (Consumer<CacheInvalidation> subscriber : subscribers) {
+                    subscriber.accept(invalidation);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to receive cache invalidation", e);
+            }
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign cache invalidations with " + MAC_ALGORITHM, e);
+        }
+    }
+}
+
+// DnsPeerDiscovery.java
+package com.ecommerce.payment.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Finds the nodes of a deployment by resolving one DNS name to all of its addresses,
+ * a Kubernetes headless service say, again every refresh interval. Nodes that scale
+ * out are reached after the next refresh; this node itself may be among the peers,
+ * and drops its own invalidations on receipt.
+ *
+ * Resolution runs on its own thread, so publishing never waits for DNS. A failed
+ * resolution keeps the previous peers. The JVM caches lookups for networkaddress.cache.ttl,
+ * which should not exceed the refresh interval.
+ */
+public class DnsPeerDiscovery implements Supplier<List<InetSocketAddress>>, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DnsPeerDiscovery.class);
+
+    private final String host;
+    private final int port;
+    private final ScheduledExecutorService scheduler;
+    private volatile List<InetSocketAddress> peers = List.of();
+
+    /**
+     * @param host    name resolving to the address of every node
+     * @param port    port the nodes receive invalidations on
+     * @param refresh time between resolutions
+     */
+    public DnsPeerDiscovery(String host, int port, Duration refresh) {
+        this.host = host;
+        this.port = port;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "payment-cache-peer-discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresh();
+        scheduler.scheduleWithFixedDelay(this::refresh, refresh.toMillis(), refresh.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public List<InetSocketAddress> get() {
+        return peers;
+    }
+
+    void refresh() {
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            List<InetSocketAddress> resolved = new ArrayList<>(addresses.length);
+            for (InetAddress address : addresses) {
+                resolved.add(new InetSocketAddress(address, port));
+            }
+            if (!resolved.equals(peers)) {
+                logger.info("Cache invalidation peers of {}: {}", host, resolved);
+            }
+            peers = List.copyOf(resolved);
+        } catch (UnknownHostException e) {
+            logger.warn("Could not resolve cache invalidation peers of {}, keeping {}", host, peers);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
+
+// 3. Near-Cache Configuration Properties
+// NearCacheProperties.java
+package com.ecommerce.payment.cache;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payment near-cache settings, bound from payment.cache.*
+ *
+ * The cache is off unless enabled. The loopback transport invalidates this node only, so
+ * enable the cache with it on a single instance only; several instances need the UDP
+ * transport, its shared secret, and peers listed or discovered through peer-dns.
+ */
+@ConfigurationProperties(prefix = "payment.cache")
+public class NearCacheProperties {
+
+    public enum Transport {
+        LOOPBACK,
+        UDP
+    }
+
+    private boolean enabled = false;
+    private int maxEntries = 100_000;
+    private Duration ttl = Duration.ofSeconds(30);
+    private Transport transport = Transport.LOOPBACK;
+    private int port = 7947;
+    private List<String> peers = new ArrayList<>();
+    private String peerDns;
+    private Duration peerRefresh = Duration.ofSeconds(10);
+    private String secret;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(Duration ttl) {
+        this.ttl = ttl;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return host:port of the other nodes, for the UDP transport
+     */
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public void setPeers(List<String> peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * @return name resolving to every node, receiving on port, for the UDP transport
+     */
+    public String getPeerDns() {
+        return peerDns;
+    }
+
+    public void setPeerDns(String peerDns) {
+        this.peerDns = peerDns;
+    }
+
+    public Duration getPeerRefresh() {
+        return peerRefresh;
+    }
+
+    public void setPeerRefresh(Duration peerRefresh) {
+        this.peerRefresh = peerRefresh;
+    }
+
+    /**
+     * @return key signing the datagrams of the UDP transport, the same on every node
+     */
+    public String getSecret() {
+        return secret;
+    }
+
+    public void setSecret(String secret) {
+        this.secret = secret;
+    }
+}
+
+// 4. Payment Near-Cache
+// PaymentCache.java
+package com.ecommerce.payment.cache;
+
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Node-local cache of payment responses, kept coherent across nodes by invalidations.
+ *
+ * Every committed status change and every deletion drops the local entry and is
+ * published on the transport, so other nodes drop theirs too. An invalidation leaves
+ * a fence for one TTL. A load is then only cached if its version is above the
+ * invalidated one and it started reading after the invalidation arrived. That keeps
+ * a read from a lagging replica, or one racing the invalidation, from bringing the
+ * old state back. Invalidations can be lost, so entries also expire after the TTL.
+ *
+ * Cached responses are shared between requests and must not be modified.
+ */
+public class PaymentCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentCache.class);
+
+    /**
+     * Invalidation of whatever version is cached
+     */
+    public static final long UNKNOWN_VERSION = -1;
+
+    /**
+     * Invalidation of every version
+     */
+    public static final long DELETED = Long.MAX_VALUE;
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final InvalidationTransport transport;
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter rejected;
+    private final Counter localInvalidations;
+    private final Counter remoteInvalidations;
+    private final Timer invalidationLag;
+
+    public PaymentCache(NearCacheProperties properties, InvalidationTransport transport, MeterRegistry meterRegistry) {
+        this.transport = transport;
+        this.enabled = properties.isEnabled();
+        this.maxEntries = properties.getMaxEntries();
+        this.ttlNanos = properties.getTtl().toNanos();
+
+        this.hits = Counter.builder("payment.cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("payment.cache.requests").tag("result", "miss").register(meterRegistry);
+        this.rejected = Counter.builder("payment.cache.rejected")
+            .description("Loads not cached because an invalidation showed them stale")
+            .register(meterRegistry);
+        this.localInvalidations = Counter.builder("payment.cache.invalidations").tag("origin", "local")
+            .register(meterRegistry);
+        this.remoteInvalidations = Counter.builder("payment.cache.invalidations").tag("origin", "remote")
+            .register(meterRegistry);
+        this.invalidationLag = Timer.builder("payment.cache.invalidation.lag")
+            .description("Time from a change on another node to its invalidation here")
+            .publishPercentiles(0.5, 0.99)
+            .register(meterRegistry);
+        Gauge.builder("payment.cache.size", entries, Map::size).register(meterRegistry);
+        Gauge.builder("payment.cache.hit.ratio", this, PaymentCache::hitRatio).register(meterRegistry);
+
+        transport.subscribe(this::onInvalidation);
+    }
+
+    /**
+     * @return the cached response, or null on a miss
+     */
+    public PaymentResponse get(long paymentId) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = entries.get(paymentId);
+        if (entry != null && entry.response != null && !entry.isExpired(System.nanoTime())) {
+            hits.increment();
+            return entry.response;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Call before reading a payment to cache
+     *
+     * @return the token to pass to put
+     */
+    public long startLoad() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Cache a loaded payment unless an invalidation since the load started showed it stale
+     *
+     * @param version   version of the payment as read
+     * @param loadToken what startLoad returned before the payment was read
+     */
+    public void put(long paymentId, long version, PaymentResponse response, long loadToken) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        boolean[] stale = {false};
+        entries.compute(paymentId, (id, current) -> {
+            if (current == null || current.isExpired(now)) {
+                return new Entry(response, version, UNKNOWN_VERSION, false, 0, now + ttlNanos);
+            }
+            if (version <= current.staleUpTo || (current.fenced && loadToken - current.invalidatedAt < 0)) {
+                stale[0] = true;
+                return current;
+            }
+            if (current.response != null && current.version >= version) {
+                return current;
+            }
+            return new Entry(response, version, current.staleUpTo, current.fenced, current.invalidatedAt,
+                now + ttlNanos);
+        });
+        if (stale[0]) {
+            rejected.increment();
+        }
+        evictIfFull();
+    }
+
+    /**
+     * Drop a payment here and on every other node
+     *
+     * @param staleUpTo highest stale version, UNKNOWN_VERSION or DELETED
+     */
+    public void invalidate(long paymentId, long staleUpTo) {
+        fence(paymentId, staleUpTo);
+        localInvalidations.increment();
+        try {
+            transport.publish(new CacheInvalidation(paymentId, staleUpTo, nodeId, System.currentTimeMillis()));
+        } catch (RuntimeException e) {
+            // Other nodes serve the old state until their entries expire
+            logger.warn("Could not publish cache invalidation of payment {}", paymentId, e);
+        }
+    }
+
+    /**
+     * Invalidate a deleted payment everywhere once the current transaction commits
+     */
+    public void evictAfterCommit(long paymentId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            invalidate(paymentId, DELETED);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                invalidate(paymentId, DELETED);
+            }
+        });
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStatusChanged(PaymentStatusChangedEvent event) {
+        // A payment just created cannot be cached anywhere yet; deletions are evicted by evictAfterCommit
+        if (event.getPreviousStatus() != null && !event.isRemoval()) {
+            invalidate(event.getPaymentId(), UNKNOWN_VERSION);
+        }
+    }
+
+    double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total == 0 ? 0 : hits.count() / total;
+    }
+
+    private void onInvalidation(CacheInvalidation invalidation) {
+        if (invalidation.origin() == nodeId) {
+            return;
+        }
+        fence(invalidation.paymentId(), invalidation.staleUpTo());
+        remoteInvalidations.increment();
+        invalidationLag.record(Math.max(0, System.currentTimeMillis() - invalidation.sentAtMillis()),
+            TimeUnit.MILLISECONDS);
+    }
+
+    private void fence(long paymentId, long staleUpTo) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        entries.compute(paymentId, (id, current) -> {
+            long fence = staleUpTo;
+            if (current != null && !current.isExpired(now)) {
+                // An unknown version makes at least the cached one stale
+                fence = Math.max(fence, Math.max(current.staleUpTo, current.response != null ? current.version : -1));
+            }
+            return new Entry(null, UNKNOWN_VERSION, fence, true, now, now + ttlNanos);
+        });
+        evictIfFull();
+    }
+
+    private void evictIfFull() {
+        if (entries.size() <= maxEntries || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // Expired entries first, then arbitrary ones down to 15/16 of the limit
+            long now = System.nanoTime();
+            int target = maxEntries - maxEntries / 16;
+            entries.values().removeIf(entry -> entry.isExpired(now));
+            Iterator<Long> ids = entries.keySet().iterator();
+            while (entries.size() > target && ids.hasNext()) {
+                ids.next();
+                ids.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static final class Entry {
+        final PaymentResponse response;
+        final long version;
+        final long staleUpTo;
+        final boolean fenced;
+        final long invalidatedAt;
+        final long expiresAt;
+
+        Entry(PaymentResponse response, long version, long staleUpTo, boolean fenced, long invalidatedAt,
+              long expiresAt) {
+            this.response = response;
+            this.version = version;
+            this.staleUpTo = staleUpTo;
+            this.fenced = fenced;
+            this.invalidatedAt = invalidatedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
+
+// 5. Near-Cache Configuration
+// NearCacheConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.cache.DnsPeerDiscovery;
+import com.ecommerce.payment.cache.InvalidationTransport;
+import com.ecommerce.payment.cache.LoopbackInvalidationTransport;
+import com.ecommerce.payment.cache.NearCacheProperties;
+import com.ecommerce.payment.cache.PaymentCache;
+import com.ecommerce.payment.cache.UdpInvalidationTransport;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Wires the payment near-cache to the transport chosen by payment.cache.transport.
+ * Further transports (a message broker, say) implement InvalidationTransport.
+ */
+@Configuration
+@EnableConfigurationProperties(NearCacheProperties.class)
+public class NearCacheConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(NearCacheConfig.class);
+
+    @Bean
+    @ConditionalOnExpression("${payment.cache.enabled:false} and '${payment.cache.transport:loopback}'.equalsIgnoreCase('udp') and '${payment.cache.peer-dns:}' != ''")
+    public DnsPeerDiscovery dnsPeerDiscovery(NearCacheProperties properties) {
+        return new DnsPeerDiscovery(properties.getPeerDns(), properties.getPort(), properties.getPeerRefresh());
+    }
+
+    @Bean
+    public InvalidationTransport invalidationTransport(NearCacheProperties properties,
+                                                       ObjectProvider<DnsPeerDiscovery> discovery) throws IOException {
+        if (!properties.isEnabled()) {
+            return new LoopbackInvalidationTransport();
+        }
+        if (properties.getTransport() == NearCacheProperties.Transport.UDP) {
+            if (properties.getSecret() == null || properties.getSecret().isBlank()) {
+                throw new IllegalStateException("payment.cache.secret must be set for the UDP transport");
+            }
+            List<InetSocketAddress> fixed = new ArrayList<>();
+            for (String peer : properties.getPeers()) {
+                int colon = peer.lastIndexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("payment.cache.peers entries must be host:port, got " + peer);
+                }
+                fixed.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            }
+            DnsPeerDiscovery discovered = discovery.getIfAvailable();
+            Supplier<List<InetSocketAddress>> peers;
+            if (discovered == null) {
+                List<InetSocketAddress> fixedPeers = List.copyOf(fixed);
+                peers = () -> fixedPeers;
+            } else if (fixed.isEmpty()) {
+                peers = discovered;
+            } else {
+                peers = () -> {
+                    List<InetSocketAddress> all = new ArrayList<>(fixed);
+                    all.addAll(discovered.get());
+                    return all;
+                };
+            }
+            return new UdpInvalidationTransport(properties.getPort(), peers,
+                properties.getSecret().getBytes(StandardCharsets.UTF_8));
+        }
+        logger.warn("Payment near-cache uses the loopback transport, which is correct on a single instance only");
+        return new LoopbackInvalidationTransport();
+    }
+
+    @Bean
+    public PaymentCache paymentCache(NearCacheProperties properties, InvalidationTransport invalidationTransport,
+                                     MeterRegistry meterRegistry) {
+        return new PaymentCache(properties, invalidationTransport, meterRegistry);
+    }
+}
@@ -0,0 +1,839 @@
+// Reactive Payment API for Payment Service (spring profile "reactive")
+
+// 1. Reactive Payment Gateway
+// ReactivePaymentGatewayService.java
+package com.ecommerce.payment.gateway;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.exception.GatewayUnavailableException;
+import com.ecommerce.payment.exception.PaymentProcessingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Non-blocking counterpart of PaymentGatewayService. The simulated gateway latency is a
+ * timer rather than a sleeping thread, so a call in flight holds no thread.
+ * Charges and refunds go to the same simulated gateway as PaymentGatewayService, with
+ * the same idempotency keys, so a retry, a sweeper lookup or a refund job sees them.
+ */
+public class ReactivePaymentGatewayService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReactivePaymentGatewayService.class);
+
+    private static final Duration PAYMENT_LATENCY = Duration.ofMillis(1000);
+    private static final Duration REFUND_LATENCY = Duration.ofMillis(800);
+
+    private final PaymentGatewayService gateway;
+
+    public ReactivePaymentGatewayService(PaymentGatewayService gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * Process payment through external payment gateway
+     * This is a simulated implementation
+     *
+     * @param paymentId ID of the payment, sent as idempotency key
+     * @param paymentRequest the payment request details
+     * @return approval with the gateway transaction ID, or a decline; GatewayUnavailableException
+     *         if the gateway timed out or failed on its side
+     */
+    public Mono<GatewayResult> processPayment(Long paymentId, PaymentRequest paymentRequest) {
+        logger.info("Processing payment {} through payment gateway for order: {}",
+            paymentId, paymentRequest.getOrderId());
+
+        return Mono.delay(PAYMENT_LATENCY)
+            .map(tick -> gateway.charge(paymentId, paymentRequest))
+            .onErrorMap(e -> !(e instanceof PaymentProcessingException), e -> {
+                // Timeouts and 5xx responses of a real gateway client end up here
+                logger.error("Error occurred while processing payment", e);
+                return new GatewayUnavailableException("Payment gateway error: " + e.getMessage());
+            });
+    }
+
+    /**
+     * Process a refund through external payment gateway
+     * This is a simulated implementation
+     *
+     * @param transactionId original transaction ID to refund, sent as idempotency key
+     * @return approval with the refund transaction ID, the first approval again if the charge
+     *         was already refunded, or a decline; GatewayUnavailableException if the gateway
+     *         timed out or failed on its side
+     */
+    public Mono<GatewayResult> processRefund(String transactionId) {
+        logger.info("Processing refund through payment gateway for transaction: {}", transactionId);
+
+        return Mono.delay(REFUND_LATENCY)
+            .map(tick -> gateway.refund(transactionId))
+            .onErrorMap(e -> !(e instanceof PaymentProcessingException), e -> {
+                logger.error("Error occurred while processing refund", e);
+                return new GatewayUnavailableException("Payment gateway error during refund: " + e.getMessage());
+            });
+    }
+}
+
+// 2. R2DBC Payment Store
+// R2dbcPaymentStore.java
+package com.ecommerce.payment.repository;
+
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.shard.PaymentIdAllocator;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.UtcDateTime;
+import io.r2dbc.spi.Readable;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+
+/**
+ * Payment persistence of the reactive stack, on the table PaymentRepository maps.
+ *
+ * Every write is one statement. Status changes are guarded by the status and version
+ * the payment was read with, as Hibernate's optimistic lock would be, and increment the
+ * version so the JPA side (retries, sweeper, refund jobs) notices them. There is no entity
+ * save to publish status changes, so they are published here once the statement completes.
+ */
+public class R2dbcPaymentStore {
+
+    private static final String COLUMNS =
+        "id, order_id, amount, currency, transaction_id, payment_method, status, created_at, updated_at, version";
+
+    private final DatabaseClient databaseClient;
+    private final PaymentIdAllocator paymentIdAllocator;
+    private final ShardRouter shardRouter;
+    private final ApplicationEventPublisher eventPublisher;
+
+    public R2dbcPaymentStore(DatabaseClient databaseClient, PaymentIdAllocator paymentIdAllocator,
+                             ShardRouter shardRouter, ApplicationEventPublisher eventPublisher) {
+        this.databaseClient = databaseClient;
+        this.paymentIdAllocator = paymentIdAllocator;
+        this.shardRouter = shardRouter;
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * Store a new payment, already moved on from PENDING if status says so
+     *
+     * @param status    status to store; PENDING or a status PENDING can move to
+     * @param createdAt creation time, also the time of the move
+     */
+    public Mono<Payment> create(Long orderId, Money amount, PaymentMethod paymentMethod, PaymentStatus status,
+                                Instant createdAt) {
+        Payment payment = new Payment(orderId, amount, paymentMethod, createdAt);
+        payment.setId(paymentIdAllocator.next(shardRouter.shardForOrder(orderId)));
+        payment.setStatus(status, createdAt);
+        payment.setVersion(0L);
+
+        List<PaymentStatusChangedEvent> events = new ArrayList<>(2);
+        events.add(statusChanged(payment, null, PaymentStatus.PENDING, createdAt));
+        if (status != PaymentStatus.PENDING) {
+            events.add(statusChanged(payment, PaymentStatus.PENDING, status, createdAt));
+        }
+
+        return databaseClient.sql("INSERT INTO payment (" + COLUMNS + ") VALUES "
+                + "(:id, :orderId, :amount, :currency, NULL, :paymentMethod, :status, :createdAt, :updatedAt, 0)")
+            .bind("id", payment.getId())
+            .bind("orderId", orderId)
+            .bind("amount", amount.toBigDecimal())
+            .bind("currency", amount.getCurrency().getCurrencyCode())
+            .bind("paymentMethod", paymentMethod.name())
+            .bind("status", status.name())
+            .bind("createdAt", UtcDateTime.of(createdAt))
+            .bind("updatedAt", UtcDateTime.of(createdAt))
+            .fetch()
+            .rowsUpdated()
+            .then(publish(events))
+            .thenReturn(payment);
+    }
+
+    public Mono<Payment> findById(long paymentId) {
+        return databaseClient.sql("SELECT " + COLUMNS + " FROM payment WHERE id = :id")
+            .bind("id", paymentId)
+            .map(R2dbcPaymentStore::toPayment)
+            .one();
+    }
+
+    public Flux<Payment> findByOrderId(long orderId) {
+        return databaseClient.sql("SELECT " + COLUMNS + " FROM payment WHERE order_id = :orderId")
+            .bind("orderId", orderId)
+            .map(R2dbcPaymentStore::toPayment)
+            .all();
+    }
+
+    /**
+     * Move a payment to a status unless it changed since it was read.
+     * The payment is updated in place and returned.
+     *
+     * @param transactionId gateway transaction ID to record, or null to keep the current one
+     * @param at            time of the change
+     * @return the payment, or OptimisticLockingFailureException if the stored one changed
+     */
+    public Mono<Payment> transition(Payment payment, PaymentStatus status, String transactionId, Instant at) {
+        PaymentStatus previous = payment.getStatus();
+        long version = payment.getVersion();
+
+        DatabaseClient.GenericExecuteSpec update = databaseClient.sql("UPDATE payment SET status = :status, "
+                + "transaction_id = COALESCE(:transactionId, transaction_id), updated_at = :updatedAt, "
+                + "version = version + 1 WHERE id = :id AND status = :previous AND version = :version")
+            .bind("status", status.name())
+            .bind("updatedAt", UtcDateTime.of(at))
+            .bind("id", payment.getId())
+            .bind("previous", previous.name())
+            .bind("version", version);
+        update = transactionId != null
+            ? update.bind("transactionId", transactionId)
+            : update.bindNull("transactionId", String.class);
+
+        return update.fetch()
+            .rowsUpdated()
+            .flatMap(rows -> {
+                if (rows == 0) {
+                    return Mono.error(modifiedConcurrently(payment));
+                }
+                if (transactionId != null) {
+                    payment.setTransactionId(transactionId);
+                }
+                payment.setStatus(status, at);
+                payment.setVersion(version + 1);
+                // Bypasses the entity, so the change is published here instead of by Payment
+                return publish(List.of(statusChanged(payment, previous, status, at))).thenReturn(payment);
+            });
+    }
+
+    /**
+     * Delete a payment unless it changed since it was read, and publish its removal
+     *
+     * @return completion, or OptimisticLockingFailureException if the stored payment changed
+     */
+    public Mono<Void> delete(Payment payment, Instant at) {
+        return databaseClient.sql("DELETE FROM payment WHERE id = :id AND version = :version")
+            .bind("id", payment.getId())
+            .bind("version", payment.getVersion())
+            .fetch()
+            .rowsUpdated()
+            .flatMap(rows -> rows == 0
+                ? Mono.<Void>error(modifiedConcurrently(payment))
+                : publish(List.of(payment.removedEvent(at))));
+    }
+
+    private Mono<Void> publish(List<PaymentStatusChangedEvent> events) {
+        // Listeners such as the event log write to disk, which must not happen on an event loop
+        return Mono.<Void>fromRunnable(() -> events.forEach(eventPublisher::publishEvent))
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static PaymentStatusChangedEvent statusChanged(Payment payment, PaymentStatus previous,
+                                                           PaymentStatus status, Instant at) {
+        long amountMinor = payment.getAmount() != null ? payment.getAmount().unscaledValue(Money.STORAGE_SCALE) : 0;
+        return new PaymentStatusChangedEvent(payment.getId(), payment.getOrderId(), previous, status, amountMinor,
+            payment.getCurrency(), at.toEpochMilli());
+    }
+
+    private static OptimisticLockingFailureException modifiedConcurrently(Payment payment) {
+        return new OptimisticLockingFailureException("Payment " + payment.getId() + " was modified concurrently");
+    }
+
+    private static Payment toPayment(Readable row) {
+        Payment payment = new Payment();
+        payment.setId(row.get("id", Long.class));
+        payment.setOrderId(row.get("order_id", Long.class));
+
+        BigDecimal amount = row.get("amount", BigDecimal.class);
+        String currency = row.get("currency", String.class);
+        payment.setAmount(amount == null ? null
+            : Money.of(amount, currency != null ? Currency.getInstance(currency) : Money.DEFAULT_CURRENCY));
+
+        payment.setTransactionId(row.get("transaction_id", String.class));
+        String paymentMethod = row.get("payment_method", String.class);
+        payment.setPaymentMethod(paymentMethod != null ? PaymentMethod.valueOf(paymentMethod) : null);
+
+        Instant updatedAt = toInstant(row.get("updated_at", LocalDateTime.class));
+        // The transition setStatus records is never published; only the stored values are set
+        payment.setStatus(PaymentStatus.valueOf(row.get("status", String.class)),
+            updatedAt != null ? updatedAt : Instant.EPOCH);
+        payment.setUpdatedAt(updatedAt);
+        payment.setCreatedAt(toInstant(row.get("created_at", LocalDateTime.class)));
+        payment.setVersion(row.get("version", Long.class));
+        return payment;
+    }
+
+    private static Instant toInstant(LocalDateTime utcDateTime) {
+        return utcDateTime != null ? UtcDateTime.toInstant(utcDateTime) : null;
+    }
+}
+
+// 3. Reactive Payment Service
+// ReactivePaymentService.java
+package com.ecommerce.payment.service;
+
+import com.ecommerce.payment.cache.PaymentCache;
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.GatewayUnavailableException;
+import com.ecommerce.payment.exception.PaymentDeclinedException;
+import com.ecommerce.payment.exception.PaymentNotFoundException;
+import com.ecommerce.payment.exception.PaymentProcessingException;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.ReactivePaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.repository.R2dbcPaymentStore;
+import com.ecommerce.payment.retry.PaymentRetryHandler;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.PaymentDataMasker;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import com.ecommerce.payment.velocity.VelocityVerdict;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Clock;
+
+/**
+ * The payment flow of PaymentServiceImpl on the reactive stack, with the same statuses,
+ * checks, exceptions and responses. No transaction spans the gateway call: the payment is
+ * inserted as PROCESSING and each later change is a guarded update (see R2dbcPaymentStore).
+ *
+ * Collaborators that block (notifications, the order service, the retry journal) run on the
+ * bounded elastic scheduler; velocity checks, the near-cache and the transaction ID index
+ * are in memory and are called directly.
+ */
+public class ReactivePaymentService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReactivePaymentService.class);
+
+    private final R2dbcPaymentStore paymentStore;
+    private final ReactivePaymentGatewayService paymentGatewayService;
+    private final PaymentNotificationService notificationService;
+    private final OrderServiceClient orderServiceClient;
+    private final PaymentDataMasker dataMasker;
+    private final VelocityEngine velocityEngine;
+    private final ShardRouter shardRouter;
+    private final TransactionIdIndex transactionIdIndex;
+    private final PaymentRetryHandler paymentRetryHandler;
+    private final PaymentCache paymentCache;
+    private final Clock clock;
+
+    public ReactivePaymentService(R2dbcPaymentStore paymentStore,
+                                  ReactivePaymentGatewayService paymentGatewayService,
+                                  PaymentNotificationService notificationService,
+                                  OrderServiceClient orderServiceClient,
+                                  PaymentDataMasker dataMasker,
+                                  VelocityEngine velocityEngine,
+                                  ShardRouter shardRouter,
+                                  TransactionIdIndex transactionIdIndex,
+                                  PaymentRetryHandler paymentRetryHandler,
+                                  PaymentCache paymentCache,
+                                  Clock clock) {
+        this.paymentStore = paymentStore;
+        this.paymentGatewayService = paymentGatewayService;
+        this.notificationService = notificationService;
+        this.orderServiceClient = orderServiceClient;
+        this.dataMasker = dataMasker;
+        this.velocityEngine = velocityEngine;
+        this.shardRouter = shardRouter;
+        this.transactionIdIndex = transactionIdIndex;
+        this.paymentRetryHandler = paymentRetryHandler;
+        this.paymentCache = paymentCache;
+        this.clock = clock;
+    }
+
+    public Mono<PaymentResponse> processPayment(PaymentRequest paymentRequest) {
+        Long orderId = paymentRequest.getOrderId();
+        logger.info("Processing payment for order: {}, amount: {}, method: {}",
+            orderId, paymentRequest.getAmount(), paymentRequest.getPaymentMethod());
+
+        // Log masked sensitive data for debugging (PCI compliant)
+        if (paymentRequest.getCardNumber() != null) {
+            logger.debug("Processing with card: {}", dataMasker.maskCardNumber(paymentRequest.getCardNumber()));
+        }
+
+        // Velocity pre-check: rejected attempts never reach the database or the gateway
+        VelocityVerdict verdict = velocityEngine.evaluate(paymentRequest);
+        if (!verdict.isAllowed()) {
+            logger.warn("Payment rejected by velocity checks for order: {}, rule: {}", orderId, verdict);
+            return Mono.error(new PaymentDeclinedException(VelocityEngine.REJECTION_MESSAGE));
+        }
+
+        // Created as PROCESSING, handed to the gateway at once
+        return paymentStore.create(orderId, paymentRequest.getAmount(), paymentRequest.getPaymentMethod(),
+                PaymentStatus.PROCESSING, clock.instant())
+            .flatMap(payment -> paymentGatewayService.processPayment(payment.getId(), paymentRequest)
+                .onErrorResume(e -> e instanceof PaymentProcessingException && !(e instanceof GatewayUnavailableException),
+                    e -> {
+                        // Gateway call failed (not a decline)
+                        logger.error("Payment processing failed for order: {}", orderId, e);
+                        return markFailed(payment, orderId, e.getMessage()).then(Mono.<GatewayResult>error(e));
+                    })
+                .flatMap(result -> settle(payment, paymentRequest, result))
+                .onErrorResume(GatewayUnavailableException.class, e -> retryLater(payment, paymentRequest, e)));
+    }
+
+    public Mono<PaymentResponse> getPaymentById(Long paymentId) {
+        logger.info("Retrieving payment with ID: {}", paymentId);
+
+        PaymentResponse cached = paymentCache.get(paymentId);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+
+        long loadToken = paymentCache.startLoad();
+        return findPayment(paymentId)
+            .map(payment -> {
+                PaymentResponse response = PaymentResponse.from(payment);
+                paymentCache.put(paymentId, payment.getVersion() != null ? payment.getVersion() : 0, response, loadToken);
+                return response;
+            });
+    }
+
+    public Flux<PaymentResponse> getPaymentsByOrderId(Long orderId) {
+        logger.info("Retrieving payments for order ID: {}", orderId);
+        return paymentStore.findByOrderId(orderId).map(PaymentResponse::from);
+    }
+
+    public Mono<PaymentResponse> refundPayment(Long paymentId) {
+        logger.info("Processing refund for payment ID: {}", paymentId);
+
+        return findPayment(paymentId).flatMap(payment -> {
+            // Check if payment can be refunded
+            if (!payment.getStatus().canTransitionTo(PaymentStatus.REFUNDED)) {
+                logger.warn("Cannot refund payment with status: {}", payment.getStatus());
+                return Mono.error(new PaymentProcessingException(
+                    "Only completed payments can be refunded. Current status: " + payment.getStatus()));
+            }
+
+            return paymentGatewayService.processRefund(payment.getTransactionId())
+                .flatMap(refundResult -> {
+                    if (!refundResult.isApproved()) {
+                        logger.warn("Refund declined for payment ID: {}, reason: {}",
+                            paymentId, refundResult.getDeclineReason());
+                        return Mono.error(new PaymentDeclinedException(refundResult.getDeclineReason()));
+                    }
+                    return paymentStore.transition(payment, PaymentStatus.REFUNDED, null, clock.instant());
+                })
+                .flatMap(refunded -> {
+                    PaymentResponse response = PaymentResponse.from(refunded);
+                    return offloaded(() -> {
+                        notificationService.sendRefundConfirmation(response);
+                        orderServiceClient.updateOrderAfterRefund(refunded.getOrderId(), refunded.getId());
+                    }).thenReturn(response);
+                })
+                .doOnNext(response -> logger.info("Refund processed successfully for payment ID: {}", paymentId))
+                .onErrorMap(e -> !(e instanceof PaymentDeclinedException), e -> {
+                    logger.error("Refund processing failed for payment ID: {}", paymentId, e);
+                    return new PaymentProcessingException("Failed to process refund: " + e.getMessage());
+                });
+        });
+    }
+
+    public Mono<Void> deletePayment(Long paymentId) {
+        logger.info("Deleting payment with ID: {}", paymentId);
+
+        return findPayment(paymentId)
+            .flatMap(payment -> paymentStore.delete(payment, clock.instant()).then(Mono.<Void>fromRunnable(() -> {
+                transactionIdIndex.removeAfterCommit(payment.getTransactionId());
+                paymentCache.evictAfterCommit(paymentId);
+                logger.info("Payment deleted successfully with ID: {}", paymentId);
+            })));
+    }
+
+    private Mono<PaymentResponse> settle(Payment payment, PaymentRequest paymentRequest, GatewayResult result) {
+        Long orderId = paymentRequest.getOrderId();
+        if (!result.isApproved()) {
+            // Declines are an expected outcome: no stack trace, FAILED status is kept
+            logger.warn("Payment declined for order: {}, reason: {}", orderId, result.getDeclineReason());
+            velocityEngine.recordDecline(paymentRequest);
+            return markFailed(payment, orderId, result.getDeclineReason())
+                .then(Mono.error(new PaymentDeclinedException(result.getDeclineReason())));
+        }
+
+        return paymentStore.transition(payment, PaymentStatus.COMPLETED, result.getTransactionId(), clock.instant())
+            .flatMap(completed -> {
+                transactionIdIndex.indexAfterCommit(completed.getTransactionId(), completed.getId());
+                PaymentResponse response = PaymentResponse.from(completed);
+                return offloaded(() -> {
+                    notificationService.sendPaymentConfirmation(response);
+                    orderServiceClient.updateOrderAfterPayment(orderId, completed.getId());
+                }).thenReturn(response);
+            })
+            .doOnNext(response -> logger.info("Payment completed successfully for order: {}", orderId));
+    }
+
+    private Mono<PaymentResponse> retryLater(Payment payment, PaymentRequest paymentRequest,
+                                             GatewayUnavailableException e) {
+        // Transient: the charge is retried in the background while the payment stays PENDING
+        logger.warn("Payment gateway unavailable for order: {}, retry scheduled: {}",
+            paymentRequest.getOrderId(), e.getMessage());
+        return paymentStore.transition(payment, PaymentStatus.PENDING, null, clock.instant())
+            .flatMap(pending -> offloaded(() -> paymentRetryHandler.scheduleAfterCommit(pending, paymentRequest))
+                .thenReturn(PaymentResponse.from(pending)));
+    }
+
+    private Mono<Void> markFailed(Payment payment, Long orderId, String reason) {
+        return paymentStore.transition(payment, PaymentStatus.FAILED, null, clock.instant())
+            .then(offloaded(() -> notificationService.sendPaymentFailureNotification(orderId, reason)));
+    }
+
+    private Mono<Payment> findPayment(Long paymentId) {
+        // An ID pointing at a shard that does not exist cannot be stored anywhere
+        Mono<Payment> payment = shardRouter.shardForPayment(paymentId) < 0
+            ? Mono.empty()
+            : paymentStore.findById(paymentId);
+        return payment.switchIfEmpty(Mono.error(() -> {
+            logger.warn("Payment not found with ID: {}", paymentId);
+            return new PaymentNotFoundException("Payment not found with ID: " + paymentId);
+        }));
+    }
+
+    /**
+     * Run a blocking call off the event loop
+     */
+    private static Mono<Void> offloaded(Runnable call) {
+        return Mono.<Void>fromRunnable(call).subscribeOn(Schedulers.boundedElastic());
+    }
+}
+
+// 4. Reactive Controller Layer
+// ReactivePaymentController.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.dto.OrderPaymentSummaryResponse;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.readmodel.OrderPaymentSummaryService;
+import com.ecommerce.payment.service.ReactivePaymentService;
+import jakarta.validation.Valid;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.WebDataBinder;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+
+/**
+ * The endpoints of PaymentController on WebFlux, with the same paths, bodies and status codes.
+ * Requests wait for the gateway and the database without holding a thread, so there are no
+ * lanes; the order summary is read through JDBC and runs on the bounded elastic scheduler.
+ */
+@RestController
+@RequestMapping("/api/payments")
+@Profile("reactive")
+public class ReactivePaymentController {
+
+    private final ReactivePaymentService paymentService;
+    private final OrderPaymentSummaryService summaryService;
+    private final PaymentRequestValidator requestValidator;
+
+    public ReactivePaymentController(ReactivePaymentService paymentService,
+                                     OrderPaymentSummaryService summaryService,
+                                     PaymentRequestValidator requestValidator) {
+        this.paymentService = paymentService;
+        this.summaryService = summaryService;
+        this.requestValidator = requestValidator;
+    }
+
+    // As in PaymentController, @Valid on a PaymentRequest runs PaymentRequestValidator
+    @InitBinder("paymentRequest")
+    public void initPaymentRequestBinder(WebDataBinder binder) {
+        binder.setValidator(requestValidator);
+    }
+
+    @PostMapping
+    public Mono<ResponseEntity<PaymentResponse>> processPayment(@Valid @RequestBody PaymentRequest paymentRequest) {
+        return paymentService.processPayment(paymentRequest).map(response -> {
+            // PENDING: the gateway was unavailable and the charge is being retried
+            HttpStatus status = response.getStatus() == PaymentStatus.PENDING ? HttpStatus.ACCEPTED : HttpStatus.CREATED;
+            return new ResponseEntity<>(response, status);
+        });
+    }
+
+    @GetMapping("/{id}")
+    public Mono<ResponseEntity<PaymentResponse>> getPaymentById(@PathVariable("id") Long paymentId) {
+        return paymentService.getPaymentById(paymentId).map(ResponseEntity::ok);
+    }
+
+    @GetMapping("/order/{orderId}")
+    public Mono<ResponseEntity<List<PaymentResponse>>> getPaymentsByOrderId(@PathVariable("orderId") Long orderId) {
+        return paymentService.getPaymentsByOrderId(orderId).collectList().map(ResponseEntity::ok);
+    }
+
+    @GetMapping("/order/{orderId}/summary")
+    public Mono<ResponseEntity<List<OrderPaymentSummaryResponse>>> getOrderSummary(
+            @PathVariable("orderId") Long orderId) {
+        return Mono.fromCallable(() -> summaryService.getOrderSummary(orderId))
+            .subscribeOn(Schedulers.boundedElastic())
+            .map(ResponseEntity::ok);
+    }
+
+    @PostMapping("/{id}/refund")
+    public Mono<ResponseEntity<PaymentResponse>> refundPayment(@PathVariable("id") Long paymentId) {
+        return paymentService.refundPayment(paymentId).map(ResponseEntity::ok);
+    }
+
+    @DeleteMapping("/{id}")
+    public Mono<ResponseEntity<Void>> deletePayment(@PathVariable("id") Long paymentId) {
+        return paymentService.deletePayment(paymentId).thenReturn(ResponseEntity.noContent().build());
+    }
+}
+
+// ReactiveExceptionHandler.java
+package com.ecommerce.payment.exception;
+
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.validation.FieldError;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.support.WebExchangeBindException;
+import org.springframework.web.server.ServerWebInputException;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * GlobalExceptionHandler for WebFlux: the same status codes and bodies, including the
+ * field-to-message map of validation errors, from the exceptions WebFlux raises.
+ */
+@ControllerAdvice
+@Profile("reactive")
+public class ReactiveExceptionHandler {
+
+    private final ErrorResponseCache declineResponses;
+
+    public ReactiveExceptionHandler(ObjectMapper objectMapper) {
+        this.declineResponses = new ErrorResponseCache(objectMapper, HttpStatus.BAD_REQUEST);
+        this.declineResponses.register(GatewayResult.PAYMENT_DECLINED);
+        this.declineResponses.register(GatewayResult.REFUND_DECLINED);
+        this.declineResponses.register(VelocityEngine.REJECTION_MESSAGE);
+    }
+
+    @ExceptionHandler(PaymentNotFoundException.class)
+    public ResponseEntity<ErrorResponse> handlePaymentNotFoundException(PaymentNotFoundException ex) {
+        return error(HttpStatus.NOT_FOUND, ex.getMessage());
+    }
+
+    @ExceptionHandler(PaymentDeclinedException.class)
+    public ResponseEntity<?> handlePaymentDeclinedException(PaymentDeclinedException ex, ServerHttpRequest request) {
+        // Declines are frequent: serve the pre-serialized body to JSON clients
+        byte[] body = acceptsJson(request) ? declineResponses.render(ex.getMessage(), LocalDateTime.now()) : null;
+        if (body != null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+        }
+
+        return handlePaymentProcessingException(ex);
+    }
+
+    @ExceptionHandler(PaymentProcessingException.class)
+    public ResponseEntity<ErrorResponse> handlePaymentProcessingException(PaymentProcessingException ex) {
+        return error(HttpStatus.BAD_REQUEST, ex.getMessage());
+    }
+
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    public ResponseEntity<ErrorResponse> handleOptimisticLockingFailure(OptimisticLockingFailureException ex) {
+        // Another request or node changed the payment first; a retry sees the new state
+        return error(HttpStatus.CONFLICT, "Payment was modified concurrently, please retry");
+    }
+
+    @ExceptionHandler(WebExchangeBindException.class)
+    public ResponseEntity<Map<String, String>> handleValidationExceptions(WebExchangeBindException ex) {
+        Map<String, String> errors = new HashMap<>();
+
+        ex.getBindingResult().getAllErrors().forEach((error) -> {
+            String fieldName = ((FieldError) error).getField();
+            String errorMessage = error.getDefaultMessage();
+            errors.put(fieldName, errorMessage);
+        });
+
+        return new ResponseEntity<>(errors, HttpStatus.BAD_REQUEST);
+    }
+
+    @ExceptionHandler(ServerWebInputException.class)
+    public ResponseEntity<ErrorResponse> handleServerWebInput(ServerWebInputException ex) {
+        // e.g. an amount with more decimals than its currency, or an unknown currency
+        String message = ex.getMostSpecificCause() instanceof JsonProcessingException cause
+            ? cause.getOriginalMessage() : "Malformed request body";
+        return error(HttpStatus.BAD_REQUEST, message);
+    }
+
+    @ExceptionHandler(Exception.class)
+    public ResponseEntity<ErrorResponse> handleGenericException(Exception ex) {
+        return error(HttpStatus.INTERNAL_SERVER_ERROR, "An unexpected error occurred: " + ex.getMessage());
+    }
+
+    private ResponseEntity<ErrorResponse> error(HttpStatus status, String message) {
+        return new ResponseEntity<>(new ErrorResponse(status.value(), message, LocalDateTime.now()), status);
+    }
+
+    private boolean acceptsJson(ServerHttpRequest request) {
+        return ErrorResponseCache.acceptsJson(String.join(",", request.getHeaders().getOrEmpty(HttpHeaders.ACCEPT)));
+    }
+}
+
+// 5. Reactive Configuration
+// PaymentConnectionFactory.java
+package com.ecommerce.payment.config;
+
+import io.r2dbc.spi.Closeable;
+import io.r2dbc.spi.ConnectionFactory;
+import org.springframework.beans.factory.DisposableBean;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * The R2DBC connections of the reactive profile, closed with the application context so a
+ * pool releases its connections on shutdown.
+ *
+ * A bean of type ConnectionFactory would switch off the DataSource auto-configuration that
+ * JPA still needs, so the factory is a bean only through this holder.
+ */
+public class PaymentConnectionFactory implements DisposableBean {
+
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(10);
+
+    private final ConnectionFactory connectionFactory;
+
+    public PaymentConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    public ConnectionFactory get() {
+        return connectionFactory;
+    }
+
+    @Override
+    public void destroy() {
+        // r2dbc:pool: URLs give a ConnectionPool; plain driver factories hold no connections
+        if (connectionFactory instanceof Closeable closeable) {
+            Mono.from(closeable.close()).block(CLOSE_TIMEOUT);
+        }
+    }
+}
+
+// ReactiveConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.cache.PaymentCache;
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.gateway.ReactivePaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.repository.R2dbcPaymentStore;
+import com.ecommerce.payment.retry.PaymentRetryHandler;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.service.ReactivePaymentService;
+import com.ecommerce.payment.shard.PaymentIdAllocator;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.PaymentDataMasker;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import java.time.Clock;
+
+/**
+ * Reactive payment API (see application-reactive.yml). Only /api/payments moves to R2DBC;
+ * retries, the sweeper, refund jobs, the read model and the admin endpoints keep using JPA
+ * and JDBC against the same database.
+ */
+@Configuration
+@Profile("reactive")
+public class ReactiveConfig {
+
+    @Bean
+    public PaymentConnectionFactory paymentConnectionFactory(@Value("${payment.r2dbc.url}") String url,
+                                                             @Value("${payment.r2dbc.username:}") String username,
+                                                             @Value("${payment.r2dbc.password:}") String password) {
+        ConnectionFactoryOptions.Builder options = ConnectionFactoryOptions.parse(url).mutate();
+        if (!username.isEmpty()) {
+            options.option(ConnectionFactoryOptions.USER, username);
+        }
+        if (!password.isEmpty()) {
+            options.option(ConnectionFactoryOptions.PASSWORD, password);
+        }
+        return new PaymentConnectionFactory(ConnectionFactories.get(options.build()));
+    }
+
+    @Bean
+    public DatabaseClient paymentDatabaseClient(PaymentConnectionFactory paymentConnectionFactory) {
+        return DatabaseClient.create(paymentConnectionFactory.get());
+    }
+
+    @Bean
+    public ReactivePaymentGatewayService reactivePaymentGatewayService(PaymentGatewayService paymentGatewayService) {
+        return new ReactivePaymentGatewayService(paymentGatewayService);
+    }
+
+    @Bean
+    public R2dbcPaymentStore r2dbcPaymentStore(DatabaseClient paymentDatabaseClient,
+                                               PaymentIdAllocator paymentIdAllocator, ShardRouter shardRouter,
+                                               ShardingProperties shardingProperties,
+                                               ApplicationEventPublisher eventPublisher) {
+        if (shardingProperties.isEnabled()) {
+            throw new IllegalStateException(
+                "The reactive profile uses a single R2DBC database; disable payment.sharding.enabled");
+        }
+        return new R2dbcPaymentStore(paymentDatabaseClient, paymentIdAllocator, shardRouter, eventPublisher);
+    }
+
+    @Bean
+    public ReactivePaymentService reactivePaymentService(R2dbcPaymentStore paymentStore,
+                                                         ReactivePaymentGatewayService paymentGatewayService,
+                                                         PaymentNotificationService notificationService,
+                                                         OrderServiceClient orderServiceClient,
+                                                         PaymentDataMasker dataMasker,
+                                                         VelocityEngine velocityEngine,
+                                                         ShardRouter shardRouter,
+                                                         TransactionIdIndex transactionIdIndex,
+                                                         PaymentRetryHandler paymentRetryHandler,
+                                                         PaymentCache paymentCache,
+                                                         Clock clock) {
+        return new ReactivePaymentService(paymentStore, paymentGatewayService, notificationService,
+            orderServiceClient, dataMasker, velocityEngine, shardRouter, transactionIdIndex, paymentRetryHandler,
+            paymentCache, clock);
+    }
+}
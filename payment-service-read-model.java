@@ -0,0 +1,926 @@
+// Order Payment Summary Read Model for Payment Service
+
+// 1. Read Model Entity
+// OrderPaymentSummary.java
+package com.ecommerce.payment.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Table;
+import org.hibernate.annotations.Immutable;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Denormalized payment totals of one order in one currency, kept next to the order's
+ * payments. An order paid in several currencies has a row for each, as amounts of
+ * different currencies cannot be added up. Written only by OrderPaymentSummaryProjector;
+ * read-only for JPA.
+ */
+@Entity
+@Immutable
+@Table(name = "order_payment_summary")
+@IdClass(OrderPaymentSummary.Key.class)
+public class OrderPaymentSummary {
+
+    public static class Key implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Long orderId;
+        private String currency;
+
+        protected Key() {
+        }
+
+        public Key(Long orderId, String currency) {
+            this.orderId = orderId;
+            this.currency = currency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key key)) {
+                return false;
+            }
+            return Objects.equals(orderId, key.orderId) && Objects.equals(currency, key.currency);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(orderId, currency);
+        }
+    }
+
+    @Id
+    private Long orderId;
+
+    // ISO 4217 code of the payments counted in this row
+    @Id
+    @Column(length = 3)
+    private String currency;
+
+    private long paymentCount;
+
+    // Amounts by the current status of each payment; captured includes payments refunded since
+    private BigDecimal capturedAmount;
+    private BigDecimal refundedAmount;
+    private BigDecimal failedAmount;
+    private BigDecimal outstandingAmount;
+
+    private Long latestPaymentId;
+
+    @Enumerated(EnumType.STRING)
+    private PaymentStatus latestStatus;
+
+    private LocalDateTime updatedAt;
+
+    protected OrderPaymentSummary() {
+    }
+
+    public Long getOrderId() {
+        return orderId;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public long getPaymentCount() {
+        return paymentCount;
+    }
+
+    public BigDecimal getCapturedAmount() {
+        return capturedAmount;
+    }
+
+    public BigDecimal getRefundedAmount() {
+        return refundedAmount;
+    }
+
+    public BigDecimal getFailedAmount() {
+        return failedAmount;
+    }
+
+    public BigDecimal getOutstandingAmount() {
+        return outstandingAmount;
+    }
+
+    public Long getLatestPaymentId() {
+        return latestPaymentId;
+    }
+
+    public PaymentStatus getLatestStatus() {
+        return latestStatus;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+}
+
+// 2. Read Model Repository
+// OrderPaymentSummaryRepository.java
+package com.ecommerce.payment.repository;
+
+import com.ecommerce.payment.model.OrderPaymentSummary;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface OrderPaymentSummaryRepository extends JpaRepository<OrderPaymentSummary, OrderPaymentSummary.Key> {
+
+    /**
+     * @return the order's summary in each currency it was paid in, by currency
+     */
+    List<OrderPaymentSummary> findByOrderIdOrderByCurrency(Long orderId);
+
+    List<OrderPaymentSummary> findByOrderIdIn(Collection<Long> orderIds);
+}
+
+// 3. Summary Response
+// OrderPaymentSummaryResponse.java
+package com.ecommerce.payment.dto;
+
+import com.ecommerce.payment.model.OrderPaymentSummary;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.repository.OrderPaymentTotals;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Payment totals of an order in one currency. Captured includes amounts refunded since;
+ * outstanding is the amount of payments still pending or processing.
+ */
+public class OrderPaymentSummaryResponse {
+
+    private Long orderId;
+    private String currency;
+    private long paymentCount;
+    private BigDecimal totalCaptured;
+    private BigDecimal totalRefunded;
+    private BigDecimal totalFailed;
+    private BigDecimal totalOutstanding;
+    private Long latestPaymentId;
+    private PaymentStatus latestStatus;
+    private LocalDateTime updatedAt;
+
+    public OrderPaymentSummaryResponse() {
+    }
+
+    public static OrderPaymentSummaryResponse from(OrderPaymentSummary summary) {
+        OrderPaymentSummaryResponse response = new OrderPaymentSummaryResponse();
+        response.setOrderId(summary.getOrderId());
+        response.setCurrency(summary.getCurrency());
+        response.setPaymentCount(summary.getPaymentCount());
+        response.setTotalCaptured(summary.getCapturedAmount());
+        response.setTotalRefunded(summary.getRefundedAmount());
+        response.setTotalFailed(summary.getFailedAmount());
+        response.setTotalOutstanding(summary.getOutstandingAmount());
+        response.setLatestPaymentId(summary.getLatestPaymentId());
+        response.setLatestStatus(summary.getLatestStatus());
+        response.setUpdatedAt(summary.getUpdatedAt());
+        return response;
+    }
+
+    public static OrderPaymentSummaryResponse from(Long orderId, OrderPaymentTotals totals) {
+        OrderPaymentSummaryResponse response = new OrderPaymentSummaryResponse();
+        response.setOrderId(orderId);
+        response.setCurrency(totals.getCurrency());
+        response.setPaymentCount(totals.getPaymentCount());
+        response.setTotalCaptured(totals.getCapturedAmount());
+        response.setTotalRefunded(totals.getRefundedAmount());
+        response.setTotalFailed(totals.getFailedAmount());
+        response.setTotalOutstanding(totals.getOutstandingAmount());
+        response.setLatestPaymentId(totals.getLatestPaymentId());
+        response.setLatestStatus(totals.getLatestStatus() != null ? PaymentStatus.valueOf(totals.getLatestStatus()) : null);
+        response.setUpdatedAt(LocalDateTime.now());
+        return response;
+    }
+
+    public Long getOrderId() {
+        return orderId;
+    }
+
+    public void setOrderId(Long orderId) {
+        this.orderId = orderId;
+    }
+
+    /**
+     * @return the ISO 4217 code of the totals
+     */
+    public String getCurrency() {
+        return currency;
+    }
+
+    public void setCurrency(String currency) {
+        this.currency = currency;
+    }
+
+    public long getPaymentCount() {
+        return paymentCount;
+    }
+
+    public void setPaymentCount(long paymentCount) {
+        this.paymentCount = paymentCount;
+    }
+
+    public BigDecimal getTotalCaptured() {
+        return totalCaptured;
+    }
+
+    public void setTotalCaptured(BigDecimal totalCaptured) {
+        this.totalCaptured = totalCaptured;
+    }
+
+    public BigDecimal getTotalRefunded() {
+        return totalRefunded;
+    }
+
+    public void setTotalRefunded(BigDecimal totalRefunded) {
+        this.totalRefunded = totalRefunded;
+    }
+
+    public BigDecimal getTotalFailed() {
+        return totalFailed;
+    }
+
+    public void setTotalFailed(BigDecimal totalFailed) {
+        this.totalFailed = totalFailed;
+    }
+
+    public BigDecimal getTotalOutstanding() {
+        return totalOutstanding;
+    }
+
+    public void setTotalOutstanding(BigDecimal totalOutstanding) {
+        this.totalOutstanding = totalOutstanding;
+    }
+
+    public Long getLatestPaymentId() {
+        return latestPaymentId;
+    }
+
+    public void setLatestPaymentId(Long latestPaymentId) {
+        this.latestPaymentId = latestPaymentId;
+    }
+
+    public PaymentStatus getLatestStatus() {
+        return latestStatus;
+    }
+
+    public void setLatestStatus(PaymentStatus latestStatus) {
+        this.latestStatus = latestStatus;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
+
+// 4. Summary Delta
+// OrderSummaryDelta.java
+package com.ecommerce.payment.readmodel;
+
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.model.PaymentStatus;
+
+import java.util.Currency;
+
+/**
+ * Net effect of a batch of status changes on the summary of one order in one currency
+ */
+class OrderSummaryDelta {
+
+    /**
+     * The summary row an event changes
+     */
+    record Key(long orderId, Currency currency) {
+
+        static Key of(PaymentStatusChangedEvent event) {
+            return new Key(event.getOrderId(), event.getCurrency());
+        }
+    }
+
+    final long orderId;
+    final Currency currency;
+    long paymentCount;
+    long capturedMinor;
+    long refundedMinor;
+    long failedMinor;
+    long outstandingMinor;
+    long latestPaymentId;
+    PaymentStatus latestStatus;
+
+    OrderSummaryDelta(Key key) {
+        this.orderId = key.orderId();
+        this.currency = key.currency();
+    }
+
+    /**
+     * Move the payment's amount from the totals of its previous status to those of its new one,
+     * or out of the totals for a deleted payment
+     */
+    void add(PaymentStatusChangedEvent event) {
+        PaymentStatus previous = event.getPreviousStatus();
+        PaymentStatus status = event.getStatus();
+        long amount = event.getAmountMinor();
+        if (previous == null) {
+            paymentCount++;
+        }
+        if (event.isRemoval()) {
+            paymentCount--;
+        }
+        capturedMinor += change(isCaptured(previous), isCaptured(status), amount);
+        refundedMinor += change(previous == PaymentStatus.REFUNDED, status == PaymentStatus.REFUNDED, amount);
+        failedMinor += change(previous == PaymentStatus.FAILED, status == PaymentStatus.FAILED, amount);
+        outstandingMinor += change(isOutstanding(previous), isOutstanding(status), amount);
+
+        // Payment IDs grow over time, so the highest one is the latest attempt in the currency. A deleted
+        // payment leaves the latest attempt as it was; a rebuild points it at the remaining ones.
+        if (!event.isRemoval() && event.getPaymentId() >= latestPaymentId) {
+            latestPaymentId = event.getPaymentId();
+            latestStatus = status;
+        }
+    }
+
+    private static long change(boolean before, boolean after, long amount) {
+        return before == after ? 0 : after ? amount : -amount;
+    }
+
+    static boolean isCaptured(PaymentStatus status) {
+        return status == PaymentStatus.COMPLETED || status == PaymentStatus.REFUNDED;
+    }
+
+    static boolean isOutstanding(PaymentStatus status) {
+        return status == PaymentStatus.PENDING || status == PaymentStatus.PROCESSING
+            || status == PaymentStatus.UNKNOWN;
+    }
+}
+
+// 5. Summary Projector
+// OrderPaymentSummaryProjector.java
+package com.ecommerce.payment.readmodel;
+
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps order_payment_summary up to date from committed payment status changes.
+ *
+ * Events are queued after commit and applied by one background thread in batches:
+ * changes to the same order and currency are merged first, then each shard gets one transaction
+ * of relative updates, so concurrent instances never overwrite each other's totals.
+ * Deleted payments arrive as removal events and are subtracted from their order's totals.
+ * If the queue overflows, events are dropped and counted; a rebuild repairs the totals.
+ */
+@Component
+public class OrderPaymentSummaryProjector implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderPaymentSummaryProjector.class);
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    // Assignments run left to right on MySQL, so latest_status is set before latest_payment_id changes
+    private static final String UPDATE_SQL =
+        "UPDATE order_payment_summary SET payment_count = payment_count + ?, "
+            + "captured_amount = captured_amount + ?, refunded_amount = refunded_amount + ?, "
+            + "failed_amount = failed_amount + ?, outstanding_amount = outstanding_amount + ?, "
+            + "latest_status = CASE WHEN latest_payment_id <= ? THEN ? ELSE latest_status END, "
+            + "latest_payment_id = GREATEST(latest_payment_id, ?), updated_at = ? "
+            + "WHERE order_id = ? AND currency = ?";
+
+    private static final String INSERT_SQL =
+        "INSERT INTO order_payment_summary (order_id, currency, payment_count, captured_amount, refunded_amount, "
+            + "failed_amount, outstanding_amount, latest_payment_id, latest_status, updated_at) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String REBUILD_SQL =
+        "INSERT INTO order_payment_summary (order_id, currency, payment_count, captured_amount, refunded_amount, "
+            + "failed_amount, outstanding_amount, latest_payment_id, latest_status, updated_at) "
+            + "SELECT totals.order_id, totals.currency, totals.payment_count, totals.captured_amount, "
+            + "totals.refunded_amount, totals.failed_amount, totals.outstanding_amount, latest.id, latest.status, "
+            + "CURRENT_TIMESTAMP FROM ("
+            + "SELECT order_id, currency, COUNT(*) AS payment_count, "
+            + "SUM(CASE WHEN status IN ('COMPLETED', 'REFUNDED') THEN amount ELSE 0 END) AS captured_amount, "
+            + "SUM(CASE WHEN status = 'REFUNDED' THEN amount ELSE 0 END) AS refunded_amount, "
+            + "SUM(CASE WHEN status = 'FAILED' THEN amount ELSE 0 END) AS failed_amount, "
+            + "SUM(CASE WHEN status IN ('PENDING', 'PROCESSING', 'UNKNOWN') THEN amount ELSE 0 END) "
+            + "AS outstanding_amount, "
+            + "MAX(id) AS latest_id FROM payment WHERE order_id IS NOT NULL GROUP BY order_id, currency) totals "
+            + "JOIN payment latest ON latest.id = totals.latest_id";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate writeTransaction;
+    private final ShardRouter shardRouter;
+    private final int batchSize;
+    private final BlockingQueue<PaymentStatusChangedEvent> queue;
+    private final ReentrantLock applyLock = new ReentrantLock();
+    private final Timer lag;
+    private final Counter applied;
+    private final Counter dropped;
+    private volatile Thread worker;
+    private volatile boolean running;
+
+    public OrderPaymentSummaryProjector(DataSource dataSource, PlatformTransactionManager transactionManager,
+                                        ShardRouter shardRouter, ReadModelProperties properties,
+                                        MeterRegistry meterRegistry) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.shardRouter = shardRouter;
+        this.batchSize = properties.getBatchSize();
+        this.queue = new ArrayBlockingQueue<>(properties.getQueueCapacity());
+
+        this.lag = Timer.builder("payment.read-model.lag")
+            .description("Time from a payment status change to its appearance in the order summary")
+            .publishPercentiles(0.5, 0.99)
+            .register(meterRegistry);
+        this.applied = Counter.builder("payment.read-model.events").tag("result", "applied").register(meterRegistry);
+        this.dropped = Counter.builder("payment.read-model.events").tag("result", "dropped").register(meterRegistry);
+        Gauge.builder("payment.read-model.queue.depth", queue, BlockingQueue::size).register(meterRegistry);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onStatusChanged(PaymentStatusChangedEvent event) {
+        if (!queue.offer(event)) {
+            dropped.increment();
+            logger.warn("Order summary queue full, dropped change of payment {}; rebuild the read model",
+                event.getPaymentId());
+        }
+    }
+
+    /**
+     * Apply a batch of changes to the summaries, one transaction per shard
+     */
+    void apply(List<PaymentStatusChangedEvent> events) {
+        Map<OrderSummaryDelta.Key, OrderSummaryDelta> deltas = new LinkedHashMap<>();
+        for (PaymentStatusChangedEvent event : events) {
+            deltas.computeIfAbsent(OrderSummaryDelta.Key.of(event), OrderSummaryDelta::new).add(event);
+        }
+
+        Map<Integer, List<OrderSummaryDelta>> deltasByShard = new HashMap<>();
+        for (OrderSummaryDelta delta : deltas.values()) {
+            deltasByShard.computeIfAbsent(shardRouter.shardForOrder(delta.orderId), shard -> new ArrayList<>())
+                .add(delta);
+        }
+
+        for (Map.Entry<Integer, List<OrderSummaryDelta>> shardDeltas : deltasByShard.entrySet()) {
+            applyWithRetry(shardDeltas.getKey(), shardDeltas.getValue());
+        }
+
+        long now = System.currentTimeMillis();
+        for (PaymentStatusChangedEvent event : events) {
+            lag.record(Math.max(0, now - event.getOccurredAt()), TimeUnit.MILLISECONDS);
+        }
+        applied.increment(events.size());
+    }
+
+    /**
+     * Recompute every summary from the payment table. Incremental updates are paused meanwhile and
+     * changes queued before the rebuild are discarded, since the payment table already reflects them.
+     *
+     * Offline only: the pause covers this instance's projector alone. Payments that change while a
+     * shard is being rebuilt, here or on another instance, may be counted twice, so rebuild with
+     * payment traffic stopped on every instance (see ReadModelAdminController).
+     *
+     * @return number of summary rows rebuilt, one per order and currency
+     */
+    public long rebuild() {
+        applyLock.lock();
+        try {
+            int discarded = queue.size();
+            queue.clear();
+
+            long summaries = 0;
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                int current = shard;
+                Integer rows = writeTransaction.execute(status -> {
+                    ShardContext.bindToTransaction(current);
+                    jdbcTemplate.update("DELETE FROM order_payment_summary");
+                    return jdbcTemplate.update(REBUILD_SQL);
+                });
+                summaries += rows != null ? rows : 0;
+            }
+            logger.info("Rebuilt {} order payment summaries, discarded {} queued changes", summaries, discarded);
+            return summaries;
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        Thread thread = new Thread(this::run, "order-summary-projector");
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        Thread thread = worker;
+        if (thread == null) {
+            return;
+        }
+        try {
+            // The worker drains what is queued before exiting
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void run() {
+        List<PaymentStatusChangedEvent> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PaymentStatusChangedEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                applyLock.lock();
+                try {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    apply(batch);
+                } finally {
+                    applyLock.unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                dropped.increment(batch.size());
+                logger.error("Could not apply {} payment changes to order summaries; rebuild the read model",
+                    batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void applyWithRetry(int shard, List<OrderSummaryDelta> deltas) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                // All or nothing per shard, so a retry cannot apply a delta twice
+                writeTransaction.executeWithoutResult(status -> {
+                    ShardContext.bindToTransaction(shard);
+                    upsert(deltas);
+                });
+                return;
+            } catch (DataAccessException e) {
+                // e.g. another instance inserted the same order's row first
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                logger.debug("Retrying order summary update on shard {} after: {}", shard, e.getMessage());
+            }
+        }
+    }
+
+    private void upsert(List<OrderSummaryDelta> deltas) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<Object[]> updates = new ArrayList<>(deltas.size());
+        for (OrderSummaryDelta delta : deltas) {
+            // Deltas of deletions alone have no latest payment; ID 0 leaves the row's latest untouched
+            updates.add(new Object[] {delta.paymentCount, BigDecimal.valueOf(delta.capturedMinor, 2),
+                BigDecimal.valueOf(delta.refundedMinor, 2), BigDecimal.valueOf(delta.failedMinor, 2),
+                BigDecimal.valueOf(delta.outstandingMinor, 2), delta.latestPaymentId, statusName(delta),
+                delta.latestPaymentId, now, delta.orderId, delta.currency.getCurrencyCode()});
+        }
+        int[] counts = jdbcTemplate.batchUpdate(UPDATE_SQL, updates);
+
+        List<Object[]> inserts = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0 && deltas.get(i).latestStatus == null) {
+                // Only deletions of an order without a summary row, e.g. cleared by a rebuild: nothing to subtract from
+                continue;
+            }
+            if (counts[i] == 0) {
+                OrderSummaryDelta delta = deltas.get(i);
+                inserts.add(new Object[] {delta.orderId, delta.currency.getCurrencyCode(), delta.paymentCount,
+                    BigDecimal.valueOf(delta.capturedMinor, 2), BigDecimal.valueOf(delta.refundedMinor, 2),
+                    BigDecimal.valueOf(delta.failedMinor, 2), BigDecimal.valueOf(delta.outstandingMinor, 2),
+                    delta.latestPaymentId, delta.latestStatus.name(), now});
+            } else if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO) {
+                logger.warn("Unexpected update count {} for order summary {}", counts[i], deltas.get(i).orderId);
+            }
+        }
+        if (!inserts.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_SQL, inserts);
+        }
+    }
+
+    private static String statusName(OrderSummaryDelta delta) {
+        return delta.latestStatus != null ? delta.latestStatus.name() : null;
+    }
+}
+
+// 6. Summary Query Service
+// OrderPaymentSummaryService.java
+package com.ecommerce.payment.readmodel;
+
+import com.ecommerce.payment.dto.OrderPaymentSummaryResponse;
+import com.ecommerce.payment.exception.PaymentNotFoundException;
+import com.ecommerce.payment.model.OrderPaymentSummary;
+import com.ecommerce.payment.repository.OrderPaymentSummaryRepository;
+import com.ecommerce.payment.repository.OrderPaymentTotals;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves order payment summaries from the read model. Summaries trail the payments
+ * by the projector's lag; only getOrderSummary falls back to aggregating the payment
+ * table, for orders the projector has not written yet.
+ */
+@Service
+public class OrderPaymentSummaryService {
+
+    private final OrderPaymentSummaryRepository summaryRepository;
+    private final PaymentRepository paymentRepository;
+    private final OrderPaymentSummaryProjector projector;
+    private final ShardRouter shardRouter;
+    private final TransactionTemplate readTransaction;
+
+    public OrderPaymentSummaryService(OrderPaymentSummaryRepository summaryRepository,
+                                      PaymentRepository paymentRepository,
+                                      OrderPaymentSummaryProjector projector, ShardRouter shardRouter,
+                                      PlatformTransactionManager transactionManager) {
+        this.summaryRepository = summaryRepository;
+        this.paymentRepository = paymentRepository;
+        this.projector = projector;
+        this.shardRouter = shardRouter;
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+    }
+
+    /**
+     * @return the order's totals, one per currency it was paid in
+     */
+    @Transactional(readOnly = true)
+    public List<OrderPaymentSummaryResponse> getSummary(Long orderId) {
+        ShardContext.bindToTransaction(shardRouter.shardForOrder(orderId));
+        List<OrderPaymentSummary> summaries = summaryRepository.findByOrderIdOrderByCurrency(orderId);
+        if (summaries.isEmpty()) {
+            throw new PaymentNotFoundException("No payments found for order: " + orderId);
+        }
+        return summaries.stream().map(OrderPaymentSummaryResponse::from).toList();
+    }
+
+    /**
+     * Totals of an order, one per currency, by a primary-key range read of its summary rows,
+     * so the cost does not grow with the number of payment attempts. Orders without rows yet
+     * are aggregated in a single query over the order's payments instead.
+     */
+    @Transactional(readOnly = true)
+    public List<OrderPaymentSummaryResponse> getOrderSummary(Long orderId) {
+        ShardContext.bindToTransaction(shardRouter.shardForOrder(orderId));
+        List<OrderPaymentSummary> summaries = summaryRepository.findByOrderIdOrderByCurrency(orderId);
+        if (!summaries.isEmpty()) {
+            return summaries.stream().map(OrderPaymentSummaryResponse::from).toList();
+        }
+
+        List<OrderPaymentTotals> totals = paymentRepository.aggregateByOrderId(orderId);
+        if (totals.isEmpty()) {
+            throw new PaymentNotFoundException("No payments found for order: " + orderId);
+        }
+        return totals.stream().map(currencyTotals -> OrderPaymentSummaryResponse.from(orderId, currencyTotals))
+            .toList();
+    }
+
+    /**
+     * @return summaries of the orders that have payments, in request order and by currency within an order
+     */
+    public List<OrderPaymentSummaryResponse> getSummaries(Collection<Long> orderIds) {
+        Map<Integer, List<Long>> idsByShard = new HashMap<>();
+        for (Long orderId : new LinkedHashSet<>(orderIds)) {
+            idsByShard.computeIfAbsent(shardRouter.shardForOrder(orderId), shard -> new ArrayList<>()).add(orderId);
+        }
+
+        Map<Long, List<OrderPaymentSummary>> found = new HashMap<>();
+        for (Map.Entry<Integer, List<Long>> shardIds : idsByShard.entrySet()) {
+            readTransaction.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(shardIds.getKey());
+                for (OrderPaymentSummary summary : summaryRepository.findByOrderIdIn(shardIds.getValue())) {
+                    found.computeIfAbsent(summary.getOrderId(), orderId -> new ArrayList<>()).add(summary);
+                }
+            });
+        }
+
+        List<OrderPaymentSummaryResponse> responses = new ArrayList<>(found.size());
+        for (Long orderId : new LinkedHashSet<>(orderIds)) {
+            List<OrderPaymentSummary> summaries = found.getOrDefault(orderId, List.of());
+            summaries.stream()
+                .sorted(Comparator.comparing(OrderPaymentSummary::getCurrency))
+                .map(OrderPaymentSummaryResponse::from)
+                .forEach(responses::add);
+        }
+        return responses;
+    }
+
+    /**
+     * @return number of summary rows rebuilt, one per order and currency
+     */
+    public long rebuild() {
+        return projector.rebuild();
+    }
+}
+
+// 7. Configuration Properties
+// ReadModelProperties.java
+package com.ecommerce.payment.readmodel;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Order summary read model settings, bound from payment.read-model.*
+ */
+@ConfigurationProperties(prefix = "payment.read-model")
+public class ReadModelProperties {
+
+    private int queueCapacity = 100_000;
+    private int batchSize = 500;
+    // Exposes POST /api/admin/read-model/rebuild; only for an instance started for maintenance
+    private boolean rebuildEnabled = false;
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isRebuildEnabled() {
+        return rebuildEnabled;
+    }
+
+    public void setRebuildEnabled(boolean rebuildEnabled) {
+        this.rebuildEnabled = rebuildEnabled;
+    }
+}
+
+// 8. Read Model Configuration
+// ReadModelConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.readmodel.ReadModelProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(ReadModelProperties.class)
+public class ReadModelConfig {
+}
+
+// 9. Summary Controllers
+// OrderPaymentSummaryController.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.dto.OrderPaymentSummaryResponse;
+import com.ecommerce.payment.readmodel.OrderPaymentSummaryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Order-level payment queries, served from the order summary read model
+ */
+@RestController
+@RequestMapping("/api/payment-summaries")
+public class OrderPaymentSummaryController {
+
+    static final int MAX_ORDER_IDS = 1000;
+
+    private final OrderPaymentSummaryService summaryService;
+
+    @Autowired
+    public OrderPaymentSummaryController(OrderPaymentSummaryService summaryService) {
+        this.summaryService = summaryService;
+    }
+
+    @GetMapping("/orders/{orderId}")
+    public ResponseEntity<List<OrderPaymentSummaryResponse>> getOrderSummary(@PathVariable("orderId") Long orderId) {
+        return ResponseEntity.ok(summaryService.getSummary(orderId));
+    }
+
+    @GetMapping("/orders")
+    public ResponseEntity<List<OrderPaymentSummaryResponse>> getOrderSummaries(@RequestParam("ids") List<Long> orderIds) {
+        if (orderIds.isEmpty() || orderIds.size() > MAX_ORDER_IDS) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(summaryService.getSummaries(orderIds));
+    }
+}
+
+// ReadModelAdminController.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.readmodel.OrderPaymentSummaryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+/**
+ * Offline repair of the order summaries. A rebuild races with payment changes made meanwhile,
+ * on any instance, so the endpoint only exists with payment.read-model.rebuild-enabled=true:
+ * stop payment traffic, start one instance with it, rebuild, then restart without it.
+ */
+@RestController
+@RequestMapping("/api/admin/read-model")
+@ConditionalOnProperty(prefix = "payment.read-model", name = "rebuild-enabled", havingValue = "true")
+public class ReadModelAdminController {
+
+    private final OrderPaymentSummaryService summaryService;
+
+    @Autowired
+    public ReadModelAdminController(OrderPaymentSummaryService summaryService) {
+        this.summaryService = summaryService;
+    }
+
+    @PostMapping("/rebuild")
+    public ResponseEntity<Map<String, Long>> rebuild() {
+        long started = System.currentTimeMillis();
+        long orders = summaryService.rebuild();
+        return ResponseEntity.ok(Map.of("ordersRebuilt", orders, "durationMillis", System.currentTimeMillis() - started));
+    }
+}
@@ -0,0 +1,362 @@
+// Read-Replica Routing for Payment Service
+
+// 1. Data Source Endpoint
+// DataSourceEndpoint.java
+package com.ecommerce.payment.datasource;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Connection settings for a single physical database (primary or replica)
+ */
+public class DataSourceEndpoint {
+
+    private String url;
+    private String username;
+    private String password;
+    private String driverClassName;
+    private int maximumPoolSize = 10;
+
+    public DataSourceEndpoint() {
+    }
+
+    /**
+     * Create a pooled data source for this endpoint
+     *
+     * @param poolName name of the Hikari pool, shown in logs and metrics
+     * @return the pooled data source
+     */
+    public HikariDataSource createDataSource(String poolName) {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName(poolName);
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+        if (driverClassName != null) {
+            dataSource.setDriverClassName(driverClassName);
+        }
+        dataSource.setMaximumPoolSize(maximumPoolSize);
+        return dataSource;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public String getDriverClassName() {
+        return driverClassName;
+    }
+
+    public void setDriverClassName(String driverClassName) {
+        this.driverClassName = driverClassName;
+    }
+
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    public void setMaximumPoolSize(int maximumPoolSize) {
+        this.maximumPoolSize = maximumPoolSize;
+    }
+}
+
+// 2. Routing Data Source
+// ReadReplicaRoutingDataSource.java
+package com.ecommerce.payment.datasource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes read-only transactions to one of the replicas (round robin) and
+ * everything else to the primary.
+ *
+ * Must be wrapped in a LazyConnectionDataSourceProxy so that the physical
+ * connection is only fetched after the transaction's read-only flag is known.
+ */
+public class ReadReplicaRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+    static final String PRIMARY_KEY = "primary";
+
+    private final DataSource primary;
+    private final List<? extends DataSource> replicas;
+    private final String[] replicaKeys;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    public ReadReplicaRoutingDataSource(DataSource primary, List<? extends DataSource> replicas) {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.replicaKeys = new String[replicas.size()];
+
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY_KEY, primary);
+        for (int i = 0; i < replicas.size(); i++) {
+            replicaKeys[i] = "replica-" + i;
+            targets.put(replicaKeys[i], replicas.get(i));
+        }
+
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (replicaKeys.length == 0
+                || !TransactionSynchronizationManager.isCurrentTransactionReadOnly()
+                || ReadYourWritesContext.isPinnedToPrimary()) {
+            return PRIMARY_KEY;
+        }
+
+        int index = Math.floorMod(nextReplica.getAndIncrement(), replicaKeys.length);
+        return replicaKeys[index];
+    }
+
+    /**
+     * Close the underlying connection pools on shutdown
+     */
+    @Override
+    public void close() throws Exception {
+        for (DataSource replica : replicas) {
+            closeIfPossible(replica);
+        }
+        closeIfPossible(primary);
+    }
+
+    private void closeIfPossible(DataSource dataSource) throws Exception {
+        if (dataSource instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+}
+
+// 3. Read-Your-Writes Context
+// ReadYourWritesContext.java
+package com.ecommerce.payment.datasource;
+
+/**
+ * Thread-bound flag forcing reads of the current request to the primary,
+ * so that a client never reads a replica that has not caught up with its own write
+ */
+public final class ReadYourWritesContext {
+
+    private static final ThreadLocal<Boolean> PINNED = new ThreadLocal<>();
+
+    private ReadYourWritesContext() {
+    }
+
+    public static void pinToPrimary() {
+        PINNED.set(Boolean.TRUE);
+    }
+
+    public static boolean isPinnedToPrimary() {
+        return PINNED.get() != null;
+    }
+
+    public static void clear() {
+        PINNED.remove();
+    }
+}
+
+// 4. Read-Your-Writes Filter
+// ReadYourWritesFilter.java
+package com.ecommerce.payment.datasource;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Issues a consistency token after every write and honours it on subsequent reads.
+ *
+ * The token is the epoch millisecond until which the client's reads are served by
+ * the primary. Clients echo it back in the same header; tokens further in the future
+ * than the configured window are ignored.
+ */
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+
+    public static final String CONSISTENCY_TOKEN_HEADER = "X-Payment-Consistency-Token";
+
+    private final long windowMillis;
+
+    public ReadYourWritesFilter(Duration window) {
+        this.windowMillis = window.toMillis();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long now = System.currentTimeMillis();
+
+        if (isWrite(request)) {
+            response.setHeader(CONSISTENCY_TOKEN_HEADER, Long.toString(now + windowMillis));
+            ReadYourWritesContext.pinToPrimary();
+        } else if (isWithinWindow(request.getHeader(CONSISTENCY_TOKEN_HEADER), now, windowMillis)) {
+            ReadYourWritesContext.pinToPrimary();
+        }
+
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            ReadYourWritesContext.clear();
+        }
+    }
+
+    private boolean isWrite(HttpServletRequest request) {
+        String method = request.getMethod();
+        return !"GET".equals(method) && !"HEAD".equals(method) && !"OPTIONS".equals(method);
+    }
+
+    /**
+     * Also used by the gRPC endpoint (GrpcReadYourWritesInterceptor), which carries the token in metadata
+     *
+     * @return whether the token pins reads made at now to the primary
+     */
+    public static boolean isWithinWindow(String token, long now, long windowMillis) {
+        if (token == null) {
+            return false;
+        }
+
+        try {
+            long pinnedUntil = Long.parseLong(token);
+            return pinnedUntil > now && pinnedUntil - now <= windowMillis;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
+
+// 5. Configuration Properties
+// ReadReplicaProperties.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.datasource.DataSourceEndpoint;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Primary/replica topology, bound from payment.datasource.*
+ */
+@ConfigurationProperties(prefix = "payment.datasource")
+public class ReadReplicaProperties {
+
+    private DataSourceEndpoint primary = new DataSourceEndpoint();
+    private List<DataSourceEndpoint> replicas = new ArrayList<>();
+    private Duration readYourWritesWindow = Duration.ofSeconds(5);
+
+    public DataSourceEndpoint getPrimary() {
+        return primary;
+    }
+
+    public void setPrimary(DataSourceEndpoint primary) {
+        this.primary = primary;
+    }
+
+    public List<DataSourceEndpoint> getReplicas() {
+        return replicas;
+    }
+
+    public void setReplicas(List<DataSourceEndpoint> replicas) {
+        this.replicas = replicas;
+    }
+
+    public Duration getReadYourWritesWindow() {
+        return readYourWritesWindow;
+    }
+
+    public void setReadYourWritesWindow(Duration readYourWritesWindow) {
+        this.readYourWritesWindow = readYourWritesWindow;
+    }
+}
+
+// 6. Routing Configuration
+// ReadReplicaDataSourceConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.datasource.DataSourceEndpoint;
+import com.ecommerce.payment.datasource.ReadReplicaRoutingDataSource;
+import com.ecommerce.payment.datasource.ReadYourWritesFilter;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the single auto-configured DataSource with a primary/replica pair
+ * when payment.datasource.routing.enabled=true. With sharding enabled, replicas
+ * are configured per shard instead (see ShardedDataSourceConfig).
+ */
+@Configuration
+@ConditionalOnExpression("${payment.datasource.routing.enabled:false} and !${payment.sharding.enabled:false}")
+@EnableConfigurationProperties(ReadReplicaProperties.class)
+public class ReadReplicaDataSourceConfig {
+
+    @Bean(destroyMethod = "close")
+    public ReadReplicaRoutingDataSource readReplicaRoutingDataSource(ReadReplicaProperties properties) {
+        HikariDataSource primary = properties.getPrimary().createDataSource("payment-primary");
+
+        List<HikariDataSource> replicas = new ArrayList<>();
+        List<DataSourceEndpoint> endpoints = properties.getReplicas();
+        for (int i = 0; i < endpoints.size(); i++) {
+            replicas.add(endpoints.get(i).createDataSource("payment-replica-" + i));
+        }
+
+        return new ReadReplicaRoutingDataSource(primary, replicas);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ReadReplicaRoutingDataSource readReplicaRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(readReplicaRoutingDataSource);
+    }
+
+    @Bean
+    public FilterRegistrationBean<ReadYourWritesFilter> readYourWritesFilter(ReadReplicaProperties properties) {
+        FilterRegistrationBean<ReadYourWritesFilter> registration =
+            new FilterRegistrationBean<>(new ReadYourWritesFilter(properties.getReadYourWritesWindow()));
+        registration.addUrlPatterns("/api/*");
+        return registration;
+    }
+}
@@ -0,0 +1,1161 @@
+// Gateway Reconciliation for Payment Service
+
+// 1. Transaction ID Parsing
+// TransactionIds.java
+package com.ecommerce.payment.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation-free parsing of gateway transaction IDs ("PG-" followed by a UUID)
+ * into the UUID's two 64-bit halves, from strings or directly from file buffers.
+ */
+public final class TransactionIds {
+
+    public static final String PAYMENT_PREFIX = "PG-";
+    public static final int PAYMENT_ID_LENGTH = 39;
+
+    private static final int UUID_OFFSET = 3;
+    // Offsets of the hex digits within the UUID, skipping the dashes
+    private static final int[] HIGH_DIGITS = {0, 1, 2, 3, 4, 5, 6, 7, 9, 10, 11, 12, 14, 15, 16, 17};
+    private static final int[] LOW_DIGITS = {19, 20, 21, 22, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35};
+    private static final int[] DASHES = {8, 13, 18, 23};
+
+    private TransactionIds() {
+    }
+
+    /**
+     * @param id a transaction ID
+     * @return true if the ID is a well-formed payment transaction ID
+     */
+    public static boolean isPaymentId(CharSequence id) {
+        if (id == null || id.length() != PAYMENT_ID_LENGTH
+                || id.charAt(0) != 'P' || id.charAt(1) != 'G' || id.charAt(2) != '-') {
+            return false;
+        }
+        for (int dash : DASHES) {
+            if (id.charAt(UUID_OFFSET + dash) != '-') {
+                return false;
+            }
+        }
+        for (int i = 0; i < 16; i++) {
+            if (hex(id.charAt(UUID_OFFSET + HIGH_DIGITS[i])) < 0 || hex(id.charAt(UUID_OFFSET + LOW_DIGITS[i])) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param id a well-formed payment transaction ID
+     * @return the most significant 64 bits of its UUID
+     */
+    public static long high(CharSequence id) {
+        long value = 0;
+        for (int digit : HIGH_DIGITS) {
+            value = (value << 4) | hex(id.charAt(UUID_OFFSET + digit));
+        }
+        return value;
+    }
+
+    /**
+     * @param id a well-formed payment transaction ID
+     * @return the least significant 64 bits of its UUID
+     */
+    public static long low(CharSequence id) {
+        long value = 0;
+        for (int digit : LOW_DIGITS) {
+            value = (value << 4) | hex(id.charAt(UUID_OFFSET + digit));
+        }
+        return value;
+    }
+
+    /**
+     * @param buffer ASCII bytes
+     * @param offset start of the candidate ID
+     * @param length length of the candidate ID
+     * @return true if the bytes hold a well-formed payment transaction ID
+     */
+    public static boolean isPaymentId(ByteBuffer buffer, int offset, int length) {
+        if (length != PAYMENT_ID_LENGTH
+                || buffer.get(offset) != 'P' || buffer.get(offset + 1) != 'G' || buffer.get(offset + 2) != '-') {
+            return false;
+        }
+        for (int dash : DASHES) {
+            if (buffer.get(offset + UUID_OFFSET + dash) != '-') {
+                return false;
+            }
+        }
+        for (int i = 0; i < 16; i++) {
+            if (hex(buffer.get(offset + UUID_OFFSET + HIGH_DIGITS[i])) < 0
+                    || hex(buffer.get(offset + UUID_OFFSET + LOW_DIGITS[i])) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static long high(ByteBuffer buffer, int offset) {
+        long value = 0;
+        for (int digit : HIGH_DIGITS) {
+            value = (value << 4) | hex(buffer.get(offset + UUID_OFFSET + digit));
+        }
+        return value;
+    }
+
+    public static long low(ByteBuffer buffer, int offset) {
+        long value = 0;
+        for (int digit : LOW_DIGITS) {
+            value = (value << 4) | hex(buffer.get(offset + UUID_OFFSET + digit));
+        }
+        return value;
+    }
+
+    private static int hex(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
+
+// 2. Primitive Transaction Index
+// TransactionIndex.java
+package com.ecommerce.payment.reconciliation;
+
+import com.ecommerce.payment.model.PaymentStatus;
+
+/**
+ * Open-addressing hash index from a transaction ID's 128 UUID bits to the payment's
+ * ID, status and amount, held in parallel primitive arrays (33 bytes per slot,
+ * no per-entry objects). Built by one thread, then read concurrently.
+ */
+class TransactionIndex {
+
+    private static final PaymentStatus[] STATUSES = PaymentStatus.values();
+    private static final double MAX_LOAD = 0.7;
+
+    private long[] highs;
+    private long[] lows;
+    private long[] paymentIds;
+    private long[] orderIds;
+    private long[] amounts;
+    private byte[] statuses;
+    private int mask;
+    private int size;
+
+    TransactionIndex(int expectedSize) {
+        allocate(capacityFor(Math.max(expectedSize, 16)));
+    }
+
+    void put(long high, long low, long paymentId, long orderId, PaymentStatus status, long amountMinor) {
+        if (size + 1 > (mask + 1) * MAX_LOAD) {
+            resize();
+        }
+
+        int slot = slotFor(high, low);
+        while (paymentIds[slot] != 0) {
+            if (highs[slot] == high && lows[slot] == low) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (paymentIds[slot] == 0) {
+            size++;
+        }
+
+        highs[slot] = high;
+        lows[slot] = low;
+        paymentIds[slot] = paymentId;
+        orderIds[slot] = orderId;
+        amounts[slot] = amountMinor;
+        statuses[slot] = (byte) status.ordinal();
+    }
+
+    /**
+     * @return the slot holding the key, or -1 if absent
+     */
+    int find(long high, long low) {
+        int slot = slotFor(high, low);
+        while (paymentIds[slot] != 0) {
+            if (highs[slot] == high && lows[slot] == low) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    long paymentId(int slot) {
+        return paymentIds[slot];
+    }
+
+    long orderId(int slot) {
+        return orderIds[slot];
+    }
+
+    long amount(int slot) {
+        return amounts[slot];
+    }
+
+    PaymentStatus status(int slot) {
+        return STATUSES[statuses[slot]];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long sizeInBytes() {
+        return (long) (mask + 1) * (5 * Long.BYTES + 1);
+    }
+
+    private int slotFor(long high, long low) {
+        long hash = (high ^ (low * 0x9e3779b97f4a7c15L)) * 0xbf58476d1ce4e5b9L;
+        return (int) (hash ^ (hash >>> 31)) & mask;
+    }
+
+    private void resize() {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        long[] oldIds = paymentIds;
+        long[] oldOrderIds = orderIds;
+        long[] oldAmounts = amounts;
+        byte[] oldStatuses = statuses;
+
+        allocate((mask + 1) * 2);
+        size = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != 0) {
+                put(oldHighs[i], oldLows[i], oldIds[i], oldOrderIds[i], STATUSES[oldStatuses[i]], oldAmounts[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        highs = new long[capacity];
+        lows = new long[capacity];
+        paymentIds = new long[capacity];
+        orderIds = new long[capacity];
+        amounts = new long[capacity];
+        statuses = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        return Integer.highestOneBit((int) Math.ceil(expectedSize / MAX_LOAD) - 1) << 1;
+    }
+}
+
+// 3. Reconciliation Report
+// ReconciliationReport.java
+package com.ecommerce.payment.reconciliation;
+
+/**
+ * Totals of one reconciliation run. Individual mismatches are written to the report file.
+ * A line whose amount and status both differ counts as an amount and a status mismatch.
+ */
+public class ReconciliationReport {
+
+    private String settlementFile;
+    private String reportFile;
+    private boolean dryRun;
+    private long paymentsIndexed;
+    private long linesRead;
+    private long matched;
+    private long unknownTransactions;
+    private long statusMismatches;
+    private long amountMismatches;
+    private long malformedLines;
+    private long autoFixable;
+    private long autoFixed;
+    private long durationMillis;
+
+    void add(ChunkResult chunk) {
+        linesRead += chunk.linesRead;
+        matched += chunk.matched;
+        unknownTransactions += chunk.unknownTransactions;
+        statusMismatches += chunk.statusMismatches;
+        amountMismatches += chunk.amountMismatches;
+        malformedLines += chunk.malformedLines;
+        autoFixable += chunk.fixes.size();
+    }
+
+    public String getSettlementFile() {
+        return settlementFile;
+    }
+
+    public void setSettlementFile(String settlementFile) {
+        this.settlementFile = settlementFile;
+    }
+
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    public void setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public long getPaymentsIndexed() {
+        return paymentsIndexed;
+    }
+
+    public void setPaymentsIndexed(long paymentsIndexed) {
+        this.paymentsIndexed = paymentsIndexed;
+    }
+
+    public long getLinesRead() {
+        return linesRead;
+    }
+
+    public long getMatched() {
+        return matched;
+    }
+
+    public long getUnknownTransactions() {
+        return unknownTransactions;
+    }
+
+    public long getStatusMismatches() {
+        return statusMismatches;
+    }
+
+    public long getAmountMismatches() {
+        return amountMismatches;
+    }
+
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    public long getAutoFixable() {
+        return autoFixable;
+    }
+
+    public long getAutoFixed() {
+        return autoFixed;
+    }
+
+    public void setAutoFixed(long autoFixed) {
+        this.autoFixed = autoFixed;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+}
+
+// ChunkResult.java
+package com.ecommerce.payment.reconciliation;
+
+import com.ecommerce.payment.model.PaymentStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of one file chunk, merged into the report once all chunks are done
+ */
+class ChunkResult {
+
+    long linesRead;
+    long matched;
+    long unknownTransactions;
+    long statusMismatches;
+    long amountMismatches;
+    long malformedLines;
+    final List<StatusFix> fixes = new ArrayList<>();
+    final StringBuilder mismatches = new StringBuilder();
+
+    record StatusFix(long paymentId, long orderId, long amountMinor, PaymentStatus expected, PaymentStatus target) {
+    }
+}
+
+// 4. Reconciliation Configuration Properties
+// ReconciliationProperties.java
+package com.ecommerce.payment.reconciliation;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Settlement reconciliation settings, bound from payment.reconciliation.*
+ */
+@ConfigurationProperties(prefix = "payment.reconciliation")
+public class ReconciliationProperties {
+
+    private Path directory = Paths.get("settlements");
+    private DataSize chunkSize = DataSize.ofMegabytes(64);
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int fetchSize = 10_000;
+    private int fixBatchSize = 500;
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    public DataSize getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(DataSize chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFixBatchSize() {
+        return fixBatchSize;
+    }
+
+    public void setFixBatchSize(int fixBatchSize) {
+        this.fixBatchSize = fixBatchSize;
+    }
+}
+
+// 5. Reconciliation Engine
+// ReconciliationEngine.java
+package com.ecommerce.payment.reconciliation;
+
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.TransactionIds;
+import com.ecommerce.payment.util.UtcDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Statement;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reconciles a gateway settlement file against the payment table.
+ *
+ * Expected file format (UTF-8 CSV, optional header):
+ * transaction_id,status,amount[,...] with status SETTLED, REFUNDED or DECLINED.
+ *
+ * All payments with a transaction ID are first streamed into a primitive
+ * TransactionIndex, shard by shard. The file is then memory-mapped in fixed-size
+ * chunks that are parsed in parallel straight from the mapped bytes; a line belongs
+ * to the chunk it starts in. Mismatches go to a CSV report, and status mismatches
+ * where the gateway is authoritative are fixed with batched conditional updates.
+ */
+public class ReconciliationEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconciliationEngine.class);
+
+    static final String REPORT_HEADER =
+        "type,transaction_id,payment_id,payment_status,gateway_status,payment_amount,gateway_amount,action\n";
+
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final int MAX_INDEX_PRESIZE = 1 << 28;
+    private static final byte[] SETTLED = "SETTLED".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REFUNDED = "REFUNDED".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DECLINED = "DECLINED".getBytes(StandardCharsets.US_ASCII);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readTransaction;
+    private final TransactionTemplate writeTransaction;
+    private final ShardRouter shardRouter;
+    private final ReconciliationProperties properties;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Clock clock;
+
+    public ReconciliationEngine(DataSource dataSource, PlatformTransactionManager transactionManager,
+                                ShardRouter shardRouter, ReconciliationProperties properties,
+                                ApplicationEventPublisher eventPublisher, Clock clock) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        // Positive fetch sizes only stream on MySQL with useCursorFetch=true in the JDBC URL
+        this.jdbcTemplate.setFetchSize(properties.getFetchSize());
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.shardRouter = shardRouter;
+        this.properties = properties;
+        this.eventPublisher = eventPublisher;
+        this.clock = clock;
+    }
+
+    /**
+     * Reconcile a settlement file
+     *
+     * @param settlementFile the gateway settlement file
+     * @param reportFile where mismatches are written
+     * @param dryRun if true, report fixes without applying them
+     * @return the totals of the run
+     */
+    public ReconciliationReport reconcile(Path settlementFile, Path reportFile, boolean dryRun) throws IOException {
+        long started = System.currentTimeMillis();
+        ReconciliationReport report = new ReconciliationReport();
+        report.setSettlementFile(settlementFile.toString());
+        report.setReportFile(reportFile.toString());
+        report.setDryRun(dryRun);
+
+        TransactionIndex index = loadIndex();
+        report.setPaymentsIndexed(index.size());
+        logger.info("Indexed {} payments ({} MB) for reconciliation of {}",
+            index.size(), index.sizeInBytes() >> 20, settlementFile);
+
+        List<ChunkResult> chunks = processFile(settlementFile, index);
+
+        List<ChunkResult.StatusFix> fixes = new ArrayList<>();
+        try (Writer writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer.write(REPORT_HEADER);
+            for (ChunkResult chunk : chunks) {
+                writer.append(chunk.mismatches);
+                report.add(chunk);
+                fixes.addAll(chunk.fixes);
+            }
+        }
+
+        if (!dryRun) {
+            report.setAutoFixed(applyFixes(fixes));
+        }
+
+        report.setDurationMillis(System.currentTimeMillis() - started);
+        logger.info("Reconciled {} lines: {} matched, {} unknown, {} status and {} amount mismatches, {} fixed, {} malformed in {} ms",
+            report.getLinesRead(), report.getMatched(), report.getUnknownTransactions(), report.getStatusMismatches(),
+            report.getAmountMismatches(), report.getAutoFixed(), report.getMalformedLines(), report.getDurationMillis());
+        return report;
+    }
+
+    private TransactionIndex loadIndex() {
+        TransactionIndex index = new TransactionIndex(countPaymentsWithTransactionId());
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            int current = shard;
+            readTransaction.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(current);
+                jdbcTemplate.query(
+                    "SELECT id, transaction_id, status, amount, order_id FROM payment WHERE transaction_id LIKE 'PG-%'",
+                    rs -> {
+                        String transactionId = rs.getString(2);
+                        if (TransactionIds.isPaymentId(transactionId)) {
+                            index.put(TransactionIds.high(transactionId), TransactionIds.low(transactionId),
+                                rs.getLong(1), rs.getLong(5), PaymentStatus.valueOf(rs.getString(3)),
+                                toMinorUnits(rs.getBigDecimal(4)));
+                        }
+                    });
+            });
+        }
+        return index;
+    }
+
+    private int countPaymentsWithTransactionId() {
+        long total = 0;
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            int current = shard;
+            Long count = readTransaction.execute(status -> {
+                ShardContext.bindToTransaction(current);
+                return jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM payment WHERE transaction_id LIKE 'PG-%'", Long.class);
+            });
+            total += count != null ? count : 0;
+        }
+        return (int) Math.min(total, MAX_INDEX_PRESIZE);
+    }
+
+    private List<ChunkResult> processFile(Path settlementFile, TransactionIndex index) throws IOException {
+        try (FileChannel channel = FileChannel.open(settlementFile, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long chunkSize = Math.max(MAX_LINE_LENGTH, properties.getChunkSize().toBytes());
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, properties.getParallelism()));
+            try {
+                List<Future<ChunkResult>> futures = new ArrayList<>();
+                for (long start = 0; start < fileSize; start += chunkSize) {
+                    long chunkStart = start;
+                    long chunkEnd = Math.min(fileSize, start + chunkSize);
+                    futures.add(executor.submit(() -> processChunk(channel, chunkStart, chunkEnd, fileSize, index)));
+                }
+
+                List<ChunkResult> results = new ArrayList<>(futures.size());
+                for (Future<ChunkResult> future : futures) {
+                    results.add(future.get());
+                }
+                return results;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Reconciliation interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException io) {
+                    throw io.getCause();
+                }
+                throw new IOException("Reconciliation chunk failed", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Parse the lines starting in [start, end). The mapping starts one byte early to tell
+     * whether start is a line boundary, and runs past end to finish the last line.
+     */
+    private ChunkResult processChunk(FileChannel channel, long start, long end, long fileSize, TransactionIndex index) {
+        ChunkResult result = new ChunkResult();
+        long mapStart = start == 0 ? 0 : start - 1;
+        long mapEnd = Math.min(fileSize, end + MAX_LINE_LENGTH);
+
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        int limit = buffer.limit();
+        int ownedEnd = (int) (end - mapStart);
+        int position = 0;
+        if (start > 0) {
+            // The line crossing into this chunk belongs to the previous one
+            while (position < limit && buffer.get(position) != '\n') {
+                position++;
+            }
+            position++;
+        }
+
+        while (position < ownedEnd) {
+            int lineEnd = position;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && mapEnd < fileSize) {
+                // No newline within MAX_LINE_LENGTH past the chunk
+                result.malformedLines++;
+                appendMismatch(result, "MALFORMED", "offset " + (mapStart + position), 0, null, null, 0, 0, "REVIEW");
+                break;
+            }
+
+            int contentEnd = lineEnd > position && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd > position && buffer.get(position) != 't') {
+                // Lines starting with 't' are the header
+                result.linesRead++;
+                reconcileLine(buffer, position, contentEnd, mapStart, index, result);
+            }
+            position = lineEnd + 1;
+        }
+        return result;
+    }
+
+    private void reconcileLine(MappedByteBuffer buffer, int from, int to, long mapStart,
+                               TransactionIndex index, ChunkResult result) {
+        int idEnd = indexOf(buffer, ',', from, to);
+        int statusEnd = idEnd < 0 ? -1 : indexOf(buffer, ',', idEnd + 1, to);
+        int amountEnd = statusEnd < 0 ? -1 : indexOf(buffer, ',', statusEnd + 1, to);
+        if (amountEnd < 0) {
+            amountEnd = to;
+        }
+
+        PaymentStatus gatewayStatus = statusEnd < 0 ? null : parseStatus(buffer, idEnd + 1, statusEnd);
+        long gatewayAmount = statusEnd < 0 ? -1 : parseMinorUnits(buffer, statusEnd + 1, amountEnd);
+        if (idEnd < 0 || !TransactionIds.isPaymentId(buffer, from, idEnd - from)
+                || gatewayStatus == null || gatewayAmount < 0) {
+            result.malformedLines++;
+            appendMismatch(result, "MALFORMED", "offset " + (mapStart + from), 0, null, null, 0, 0, "REVIEW");
+            return;
+        }
+
+        int slot = index.find(TransactionIds.high(buffer, from), TransactionIds.low(buffer, from));
+        if (slot < 0) {
+            result.unknownTransactions++;
+            appendMismatch(result, "UNKNOWN_TRANSACTION", ascii(buffer, from, idEnd), 0, null,
+                gatewayStatus, 0, gatewayAmount, "REVIEW");
+            return;
+        }
+
+        long paymentId = index.paymentId(slot);
+        PaymentStatus paymentStatus = index.status(slot);
+        long paymentAmount = index.amount(slot);
+
+        // A line can break both rules and is then reported once for each
+        boolean amountMatches = paymentAmount == gatewayAmount;
+        if (!amountMatches) {
+            result.amountMismatches++;
+            appendMismatch(result, "AMOUNT_MISMATCH", ascii(buffer, from, idEnd), paymentId, paymentStatus,
+                gatewayStatus, paymentAmount, gatewayAmount, "REVIEW");
+        }
+        if (paymentStatus != gatewayStatus) {
+            result.statusMismatches++;
+            // The gateway's status is not taken over for a charge whose amount it disputes
+            boolean fixable = amountMatches && isAutoFixable(paymentStatus, gatewayStatus);
+            if (fixable) {
+                result.fixes.add(new ChunkResult.StatusFix(paymentId, index.orderId(slot), paymentAmount,
+                    paymentStatus, gatewayStatus));
+            }
+            appendMismatch(result, "STATUS_MISMATCH", ascii(buffer, from, idEnd), paymentId, paymentStatus,
+                gatewayStatus, paymentAmount, gatewayAmount, fixable ? "AUTO_FIX" : "REVIEW");
+        } else if (amountMatches) {
+            result.matched++;
+        }
+    }
+
+    /**
+     * The gateway is authoritative for payments we never saw finish, for failures it
+     * actually settled, and for refunds we did not record. Anything else (for example a
+     * refund we recorded that the gateway settled) needs a person to look at it.
+     */
+    static boolean isAutoFixable(PaymentStatus paymentStatus, PaymentStatus gatewayStatus) {
+        return switch (paymentStatus) {
+            case PENDING, PROCESSING, UNKNOWN -> true;
+            case FAILED -> gatewayStatus == PaymentStatus.COMPLETED;
+            case COMPLETED -> gatewayStatus == PaymentStatus.REFUNDED;
+            default -> false;
+        };
+    }
+
+    private long applyFixes(List<ChunkResult.StatusFix> fixes) {
+        long fixed = 0;
+        int batchSize = Math.max(1, properties.getFixBatchSize());
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            List<ChunkResult.StatusFix> batch = new ArrayList<>(batchSize);
+            for (ChunkResult.StatusFix fix : fixes) {
+                if (shardRouter.shardForPayment(fix.paymentId()) != shard) {
+                    continue;
+                }
+                batch.add(fix);
+                if (batch.size() == batchSize) {
+                    fixed += updateBatch(shard, batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                fixed += updateBatch(shard, batch);
+            }
+        }
+        return fixed;
+    }
+
+    private long updateBatch(int shard, List<ChunkResult.StatusFix> batch) {
+        Long updated = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(shard);
+            long now = clock.millis();
+            Map<Long, Currency> currencies = currenciesOf(batch);
+            List<Object[]> arguments = new ArrayList<>(batch.size());
+            for (ChunkResult.StatusFix fix : batch) {
+                // The expected status guards against payments that moved on since the index was built
+                arguments.add(new Object[] {fix.target().name(), UtcDateTime.ofEpochMilli(now), fix.paymentId(),
+                    fix.expected().name()});
+            }
+            int[] counts = jdbcTemplate.batchUpdate(
+                "UPDATE payment SET status = ?, updated_at = ?, version = version + 1 WHERE id = ? AND status = ?", arguments);
+
+            long applied = 0;
+            for (int i = 0; i < counts.length; i++) {
+                // Drivers may report SUCCESS_NO_INFO (-2) for batched statements
+                if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+                    ChunkResult.StatusFix fix = batch.get(i);
+                    // Bypasses the entity, so the change is published here instead of by Payment
+                    eventPublisher.publishEvent(new PaymentStatusChangedEvent(fix.paymentId(), fix.orderId(),
+                        fix.expected(), fix.target(), fix.amountMinor(), currencies.get(fix.paymentId()), now));
+                    applied++;
+                }
+            }
+            return applied;
+        });
+        return updated != null ? updated : 0;
+    }
+
+    /**
+     * Currencies of the batch's payments, which the index leaves out; only fixed payments need them
+     */
+    private Map<Long, Currency> currenciesOf(List<ChunkResult.StatusFix> batch) {
+        Map<Long, Currency> currencies = new HashMap<>();
+        Object[] paymentIds = batch.stream().map(ChunkResult.StatusFix::paymentId).toArray();
+        jdbcTemplate.query("SELECT id, currency FROM payment WHERE id IN ("
+                + String.join(", ", Collections.nCopies(paymentIds.length, "?")) + ")",
+            rs -> {
+                currencies.put(rs.getLong(1), Currency.getInstance(rs.getString(2)));
+            }, paymentIds);
+        return currencies;
+    }
+
+    private static PaymentStatus parseStatus(MappedByteBuffer buffer, int from, int to) {
+        if (matches(buffer, from, to, SETTLED)) {
+            return PaymentStatus.COMPLETED;
+        }
+        if (matches(buffer, from, to, REFUNDED)) {
+            return PaymentStatus.REFUNDED;
+        }
+        if (matches(buffer, from, to, DECLINED)) {
+            return PaymentStatus.FAILED;
+        }
+        return null;
+    }
+
+    /**
+     * Parse a plain decimal amount ("12", "12.3", "12.34") into minor units
+     *
+     * @return the amount in minor units, or -1 if malformed
+     */
+    static long parseMinorUnits(ByteBuffer buffer, int from, int to) {
+        long units = 0;
+        int fractionDigits = -1;
+        if (from >= to) {
+            return -1;
+        }
+        for (int i = from; i < to; i++) {
+            byte c = buffer.get(i);
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9' && fractionDigits < 2 && units < Long.MAX_VALUE / 100) {
+                units = units * 10 + (c - '0');
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else {
+                return -1;
+            }
+        }
+        for (int i = Math.max(fractionDigits, 0); i < 2; i++) {
+            units *= 10;
+        }
+        return units;
+    }
+
+    private static boolean matches(MappedByteBuffer buffer, int from, int to, byte[] expected) {
+        if (to - from != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(from + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(MappedByteBuffer buffer, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String ascii(MappedByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static void appendMismatch(ChunkResult result, String type, String transactionId, long paymentId,
+                                       PaymentStatus paymentStatus, PaymentStatus gatewayStatus,
+                                       long paymentAmount, long gatewayAmount, String action) {
+        result.mismatches.append(type).append(',')
+            .append(transactionId).append(',')
+            .append(paymentId == 0 ? "" : Long.toString(paymentId)).append(',')
+            .append(paymentStatus == null ? "" : paymentStatus.name()).append(',')
+            .append(gatewayStatus == null ? "" : gatewayStatus.name()).append(',')
+            .append(paymentStatus == null ? "" : BigDecimal.valueOf(paymentAmount, 2).toPlainString()).append(',')
+            .append(gatewayStatus == null ? "" : BigDecimal.valueOf(gatewayAmount, 2).toPlainString()).append(',')
+            .append(action).append('\n');
+    }
+
+    private static long toMinorUnits(BigDecimal amount) {
+        return amount == null ? 0 : amount.movePointRight(2).longValue();
+    }
+}
+
+// 6. Reconciliation Service
+// ReconciliationService.java
+package com.ecommerce.payment.reconciliation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs one reconciliation at a time in the background and keeps the latest run.
+ * Settlement files are only read from the configured directory. Only the admin endpoint
+ * uses it, so it and its executor are created on the first reconciliation request.
+ */
+@Service
+@Lazy
+public class ReconciliationService implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconciliationService.class);
+
+    private final ReconciliationEngine engine;
+    private final Path directory;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "payment-reconciliation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<ReconciliationRun> latestRun = new AtomicReference<>();
+
+    public ReconciliationService(ReconciliationEngine engine, ReconciliationProperties properties) {
+        this.engine = engine;
+        this.directory = properties.getDirectory().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Start reconciling a settlement file
+     *
+     * @param fileName name of a file in the settlement directory
+     * @param dryRun if true, report fixes without applying them
+     * @return the started run, or empty if another run is in progress
+     * @throws IllegalArgumentException if the file is outside the settlement directory or missing
+     */
+    public Optional<ReconciliationRun> start(String fileName, boolean dryRun) {
+        Path settlementFile = directory.resolve(fileName).normalize();
+        if (!settlementFile.startsWith(directory) || !Files.isRegularFile(settlementFile)) {
+            throw new IllegalArgumentException("Settlement file not found: " + fileName);
+        }
+
+        ReconciliationRun previous = latestRun.get();
+        if (previous != null && previous.isRunning()) {
+            return Optional.empty();
+        }
+
+        ReconciliationRun run = new ReconciliationRun(fileName, dryRun);
+        if (!latestRun.compareAndSet(previous, run)) {
+            return Optional.empty();
+        }
+
+        Path reportFile = directory.resolve(settlementFile.getFileName() + ".mismatches.csv");
+        executor.submit(() -> {
+            try {
+                run.complete(engine.reconcile(settlementFile, reportFile, dryRun));
+            } catch (Exception e) {
+                logger.error("Reconciliation of {} failed", fileName, e);
+                run.fail(e.getMessage());
+            }
+        });
+        return Optional.of(run);
+    }
+
+    /**
+     * @return the most recent run, if any
+     */
+    public Optional<ReconciliationRun> getLatestRun() {
+        return Optional.ofNullable(latestRun.get());
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
+
+// ReconciliationRun.java
+package com.ecommerce.payment.reconciliation;
+
+import java.time.LocalDateTime;
+
+/**
+ * State of a background reconciliation, as returned by the admin endpoint
+ */
+public class ReconciliationRun {
+
+    public enum State {
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    private final String settlementFile;
+    private final boolean dryRun;
+    private final LocalDateTime startedAt = LocalDateTime.now();
+    private volatile State state = State.RUNNING;
+    private volatile ReconciliationReport report;
+    private volatile String error;
+
+    ReconciliationRun(String settlementFile, boolean dryRun) {
+        this.settlementFile = settlementFile;
+        this.dryRun = dryRun;
+    }
+
+    void complete(ReconciliationReport report) {
+        this.report = report;
+        this.state = State.COMPLETED;
+    }
+
+    void fail(String error) {
+        this.error = error;
+        this.state = State.FAILED;
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    public String getSettlementFile() {
+        return settlementFile;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public LocalDateTime getStartedAt() {
+        return startedAt;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public ReconciliationReport getReport() {
+        return report;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
+
+// 7. Reconciliation Configuration
+// ReconciliationConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.reconciliation.ReconciliationEngine;
+import com.ecommerce.payment.reconciliation.ReconciliationProperties;
+import com.ecommerce.payment.shard.ShardRouter;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+import java.time.Clock;
+
+@Configuration
+@EnableConfigurationProperties(ReconciliationProperties.class)
+public class ReconciliationConfig {
+
+    @Bean
+    @Lazy
+    public ReconciliationEngine reconciliationEngine(DataSource dataSource, PlatformTransactionManager transactionManager,
+                                                     ShardRouter shardRouter, ReconciliationProperties properties,
+                                                     ApplicationEventPublisher eventPublisher, Clock clock) {
+        return new ReconciliationEngine(dataSource, transactionManager, shardRouter, properties, eventPublisher,
+            clock);
+    }
+}
+
+// 8. Admin Controller
+// ReconciliationController.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.reconciliation.ReconciliationRun;
+import com.ecommerce.payment.reconciliation.ReconciliationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+// Created on the first request; the handler mapping only needs the bean type
+@RestController
+@Lazy
+@RequestMapping("/api/admin/reconciliations")
+public class ReconciliationController {
+
+    private final ReconciliationService reconciliationService;
+
+    @Autowired
+    public ReconciliationController(ReconciliationService reconciliationService) {
+        this.reconciliationService = reconciliationService;
+    }
+
+    @PostMapping
+    public ResponseEntity<ReconciliationRun> startReconciliation(
+            @RequestParam("file") String fileName,
+            @RequestParam(value = "dryRun", defaultValue = "true") boolean dryRun) {
+        try {
+            return reconciliationService.start(fileName, dryRun)
+                .map(run -> new ResponseEntity<>(run, HttpStatus.ACCEPTED))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.CONFLICT));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    @GetMapping("/latest")
+    public ResponseEntity<ReconciliationRun> getLatestReconciliation() {
+        return reconciliationService.getLatestRun()
+            .map(ResponseEntity::ok)
+            .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+}
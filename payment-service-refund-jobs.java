@@ -0,0 +1,1457 @@
+// Bulk Refund Jobs for Payment Service
+
+// 1. Refund Job Entities
+// RefundJob.java
+package com.ecommerce.payment.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import org.hibernate.annotations.Immutable;
+
+import java.time.LocalDateTime;
+
+/**
+ * A bulk refund of many payments, stored on shard 0 with one RefundJobItem per payment.
+ * Written only by RefundJobExecutor; read-only for JPA. Every column is mapped, the lease
+ * included, so ddl-auto creates the table RefundJobExecutor expects where Flyway does not run.
+ */
+@Entity
+@Immutable
+@Table(name = "refund_job")
+public class RefundJob {
+
+    public enum State {
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    private State state;
+
+    private String reason;
+
+    private long totalItems;
+
+    private String error;
+
+    private LocalDateTime createdAt;
+
+    private LocalDateTime updatedAt;
+
+    // The instance running the job, until leaseExpiresAt
+    @Column(length = 64)
+    private String owner;
+
+    private LocalDateTime leaseExpiresAt;
+
+    protected RefundJob() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public long getTotalItems() {
+        return totalItems;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public LocalDateTime getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+}
+
+// RefundJobItem.java
+package com.ecommerce.payment.model;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.EnumType;
+import jakarta.persistence.Enumerated;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import org.hibernate.annotations.Immutable;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.util.Objects;
+
+/**
+ * Progress of one payment within a refund job.
+ *
+ * Items move from PENDING to IN_FLIGHT before the gateway is called, and from IN_FLIGHT
+ * to a final state once the outcome is recorded. An item found IN_FLIGHT after a crash
+ * may or may not have been refunded by the gateway, so it is never sent again.
+ */
+@Entity
+@Immutable
+@IdClass(RefundJobItem.Key.class)
+@Table(name = "refund_job_item", indexes = @Index(name = "ix_refund_job_item_state", columnList = "job_id, state"))
+public class RefundJobItem {
+
+    public enum State {
+        PENDING,
+        IN_FLIGHT,
+        REFUNDED,
+        DECLINED,
+        // Not refundable when its batch was processed (missing, not completed, never reached the gateway)
+        SKIPPED,
+        // Gateway outcome lost to an error or a crash; check the settlement file before refunding again
+        UNKNOWN
+    }
+
+    @Id
+    private Long jobId;
+
+    @Id
+    private Long paymentId;
+
+    @Enumerated(EnumType.STRING)
+    private State state;
+
+    private String refundTransactionId;
+
+    private String error;
+
+    private LocalDateTime updatedAt;
+
+    protected RefundJobItem() {
+    }
+
+    public Long getJobId() {
+        return jobId;
+    }
+
+    public Long getPaymentId() {
+        return paymentId;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getRefundTransactionId() {
+        return refundTransactionId;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public static class Key implements Serializable {
+
+        private Long jobId;
+        private Long paymentId;
+
+        public Key() {
+        }
+
+        public Key(Long jobId, Long paymentId) {
+            this.jobId = jobId;
+            this.paymentId = paymentId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key key)) {
+                return false;
+            }
+            return Objects.equals(jobId, key.jobId) && Objects.equals(paymentId, key.paymentId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(jobId, paymentId);
+        }
+    }
+}
+
+// 2. Refund Job Repositories
+// RefundJobRepository.java
+package com.ecommerce.payment.repository;
+
+import com.ecommerce.payment.model.RefundJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface RefundJobRepository extends JpaRepository<RefundJob, Long> {
+}
+
+// RefundJobItemRepository.java
+package com.ecommerce.payment.repository;
+
+import com.ecommerce.payment.model.RefundJobItem;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface RefundJobItemRepository extends JpaRepository<RefundJobItem, RefundJobItem.Key> {
+
+    /**
+     * Items of a job after a payment ID, for keyset paging through the results
+     *
+     * @param state only items in this state, or null for all
+     */
+    @Query("SELECT i FROM RefundJobItem i WHERE i.jobId = :jobId AND (:state IS NULL OR i.state = :state) "
+        + "AND i.paymentId > :afterPaymentId ORDER BY i.paymentId")
+    List<RefundJobItem> findPage(@Param("jobId") Long jobId, @Param("state") RefundJobItem.State state,
+                                 @Param("afterPaymentId") Long afterPaymentId, Pageable pageable);
+
+    /**
+     * @return pairs of item state and number of items in that state
+     */
+    @Query("SELECT i.state, COUNT(i) FROM RefundJobItem i WHERE i.jobId = :jobId GROUP BY i.state")
+    List<Object[]> countByState(@Param("jobId") Long jobId);
+}
+
+// 3. Refund Job Request and Response
+// RefundJobRequest.java
+package com.ecommerce.payment.dto;
+
+import jakarta.validation.constraints.Size;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Payments to refund: by ID, by order, or every completed payment created in a time range.
+ * Criteria are combined; each payment is refunded at most once per job.
+ */
+public class RefundJobRequest {
+
+    public static final int MAX_IDS = 100_000;
+
+    @Size(max = MAX_IDS, message = "At most " + MAX_IDS + " payment IDs can be refunded at once")
+    private List<Long> paymentIds = new ArrayList<>();
+
+    @Size(max = MAX_IDS, message = "At most " + MAX_IDS + " order IDs can be refunded at once")
+    private List<Long> orderIds = new ArrayList<>();
+
+    // Inclusive start and exclusive end of the creation time of payments to refund
+    private Instant createdFrom;
+    private Instant createdTo;
+
+    @Size(max = 255, message = "Reason must be at most 255 characters")
+    private String reason;
+
+    public RefundJobRequest() {
+    }
+
+    public boolean hasTimeRange() {
+        return createdFrom != null || createdTo != null;
+    }
+
+    public boolean isEmpty() {
+        return paymentIds.isEmpty() && orderIds.isEmpty() && !hasTimeRange();
+    }
+
+    public List<Long> getPaymentIds() {
+        return paymentIds;
+    }
+
+    public void setPaymentIds(List<Long> paymentIds) {
+        this.paymentIds = paymentIds != null ? paymentIds : new ArrayList<>();
+    }
+
+    public List<Long> getOrderIds() {
+        return orderIds;
+    }
+
+    public void setOrderIds(List<Long> orderIds) {
+        this.orderIds = orderIds != null ? orderIds : new ArrayList<>();
+    }
+
+    public Instant getCreatedFrom() {
+        return createdFrom;
+    }
+
+    public void setCreatedFrom(Instant createdFrom) {
+        this.createdFrom = createdFrom;
+    }
+
+    public Instant getCreatedTo() {
+        return createdTo;
+    }
+
+    public void setCreatedTo(Instant createdTo) {
+        this.createdTo = createdTo;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+}
+
+// RefundJobResponse.java
+package com.ecommerce.payment.dto;
+
+import com.ecommerce.payment.model.RefundJob;
+import com.ecommerce.payment.model.RefundJobItem;
+
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A refund job with the number of its items in each state
+ */
+public class RefundJobResponse {
+
+    private Long id;
+    private RefundJob.State state;
+    private String reason;
+    private long totalItems;
+    private long processedItems;
+    private Map<RefundJobItem.State, Long> items;
+    private String error;
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+
+    public RefundJobResponse() {
+    }
+
+    public static RefundJobResponse from(RefundJob job, Map<RefundJobItem.State, Long> itemCounts) {
+        RefundJobResponse response = new RefundJobResponse();
+        response.setId(job.getId());
+        response.setState(job.getState());
+        response.setReason(job.getReason());
+        response.setTotalItems(job.getTotalItems());
+        response.setItems(new EnumMap<>(itemCounts));
+        response.setProcessedItems(job.getTotalItems()
+            - itemCounts.getOrDefault(RefundJobItem.State.PENDING, 0L)
+            - itemCounts.getOrDefault(RefundJobItem.State.IN_FLIGHT, 0L));
+        response.setError(job.getError());
+        response.setCreatedAt(job.getCreatedAt());
+        response.setUpdatedAt(job.getUpdatedAt());
+        return response;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public RefundJob.State getState() {
+        return state;
+    }
+
+    public void setState(RefundJob.State state) {
+        this.state = state;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+
+    public long getTotalItems() {
+        return totalItems;
+    }
+
+    public void setTotalItems(long totalItems) {
+        this.totalItems = totalItems;
+    }
+
+    public long getProcessedItems() {
+        return processedItems;
+    }
+
+    public void setProcessedItems(long processedItems) {
+        this.processedItems = processedItems;
+    }
+
+    public Map<RefundJobItem.State, Long> getItems() {
+        return items;
+    }
+
+    public void setItems(Map<RefundJobItem.State, Long> items) {
+        this.items = items;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
+
+// 4. Refund Job Configuration Properties
+// RefundJobProperties.java
+package com.ecommerce.payment.refund;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Bulk refund settings, bound from payment.refund-job.*
+ */
+@ConfigurationProperties(prefix = "payment.refund-job")
+public class RefundJobProperties {
+
+    private int batchSize = 200;
+    private int gatewayConcurrency = 16;
+    private int maxPayments = 100_000;
+    private boolean resumeOnStartup = true;
+    private Duration leaseDuration = Duration.ofMinutes(5);
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getGatewayConcurrency() {
+        return gatewayConcurrency;
+    }
+
+    public void setGatewayConcurrency(int gatewayConcurrency) {
+        this.gatewayConcurrency = gatewayConcurrency;
+    }
+
+    public int getMaxPayments() {
+        return maxPayments;
+    }
+
+    public void setMaxPayments(int maxPayments) {
+        this.maxPayments = maxPayments;
+    }
+
+    public boolean isResumeOnStartup() {
+        return resumeOnStartup;
+    }
+
+    public void setResumeOnStartup(boolean resumeOnStartup) {
+        this.resumeOnStartup = resumeOnStartup;
+    }
+
+    public Duration getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public void setLeaseDuration(Duration leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+}
+
+// 5. Refund Job Executor
+// RefundJobExecutor.java
+package com.ecommerce.payment.refund;
+
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.dto.RefundJobRequest;
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.model.RefundJob;
+import com.ecommerce.payment.model.RefundJobItem;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.UtcDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refunds the payments of a job in batches.
+ *
+ * Each batch is checkpointed before the gateway is called: its items are claimed
+ * (PENDING to IN_FLIGHT) in a committed transaction. The gateway is then called in
+ * parallel on a fixed pool, without holding a connection, and the outcomes are written
+ * with one batched update per shard for the payments and one for the items.
+ *
+ * After a crash, items still IN_FLIGHT are resolved by recover: those whose payment is
+ * REFUNDED are marked refunded, the rest UNKNOWN. Neither is sent to the gateway again,
+ * so a restart can lose the outcome of at most one batch but never refund twice.
+ *
+ * A job is run by one instance at a time, the holder of its lease (owner and
+ * lease_expires_at on refund_job). The lease is renewed with every batch; an instance
+ * that finds it taken over stops without touching the job. Another instance may take
+ * the job once the lease has expired, so the lease duration must be well above the
+ * time a batch takes, and the instances' clocks must not drift by anything close to it.
+ */
+public class RefundJobExecutor implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RefundJobExecutor.class);
+
+    // Job and item tables live on the first shard, like the payments from before sharding
+    static final int CONTROL_SHARD = 0;
+
+    // Keeps IN lists well below database parameter limits
+    private static final int QUERY_CHUNK_SIZE = 500;
+    private static final int MAX_ERROR_LENGTH = 255;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readTransaction;
+    private final TransactionTemplate writeTransaction;
+    private final PaymentRepository paymentRepository;
+    private final ShardRouter shardRouter;
+    private final PaymentGatewayService paymentGatewayService;
+    private final PaymentNotificationService notificationService;
+    private final OrderServiceClient orderServiceClient;
+    private final ApplicationEventPublisher eventPublisher;
+    private final RefundJobProperties properties;
+    private final Clock clock;
+    private final ExecutorService gatewayWorkers;
+    private final String owner = UUID.randomUUID().toString();
+
+    private volatile boolean stopping;
+
+    public RefundJobExecutor(DataSource dataSource, PlatformTransactionManager transactionManager,
+                             PaymentRepository paymentRepository, ShardRouter shardRouter,
+                             PaymentGatewayService paymentGatewayService,
+                             PaymentNotificationService notificationService,
+                             OrderServiceClient orderServiceClient, ApplicationEventPublisher eventPublisher,
+                             RefundJobProperties properties, Clock clock) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.paymentRepository = paymentRepository;
+        this.shardRouter = shardRouter;
+        this.paymentGatewayService = paymentGatewayService;
+        this.notificationService = notificationService;
+        this.orderServiceClient = orderServiceClient;
+        this.eventPublisher = eventPublisher;
+        this.properties = properties;
+        this.clock = clock;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.gatewayWorkers = Executors.newFixedThreadPool(properties.getGatewayConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "payment-refund-gateway-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create a job with one PENDING item per matching payment
+     *
+     * @return the ID of the new job, which is RUNNING but not started
+     * @throws IllegalArgumentException if nothing or too much matches the request
+     */
+    public long create(RefundJobRequest request) {
+        if (request.hasTimeRange() && (request.getCreatedFrom() == null || request.getCreatedTo() == null)) {
+            throw new IllegalArgumentException("Both createdFrom and createdTo are required for a time range");
+        }
+
+        SortedSet<Long> paymentIds = resolve(request);
+        if (paymentIds.isEmpty()) {
+            throw new IllegalArgumentException("No payments match the request");
+        }
+
+        Long jobId = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            Timestamp now = now();
+            KeyHolder keyHolder = new GeneratedKeyHolder();
+            jdbcTemplate.update(connection -> {
+                PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO refund_job (state, reason, total_items, created_at, updated_at, owner, "
+                        + "lease_expires_at) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                    new String[] {"id"});
+                statement.setString(1, RefundJob.State.RUNNING.name());
+                statement.setString(2, request.getReason());
+                statement.setLong(3, paymentIds.size());
+                statement.setTimestamp(4, now);
+                statement.setTimestamp(5, now);
+                statement.setString(6, owner);
+                statement.setTimestamp(7, leaseExpiry(now));
+                return statement;
+            }, keyHolder);
+
+            long id = keyHolder.getKey().longValue();
+            jdbcTemplate.batchUpdate(
+                "INSERT INTO refund_job_item (job_id, payment_id, state, updated_at) VALUES (?, ?, ?, ?)",
+                paymentIds, properties.getBatchSize(), (statement, paymentId) -> {
+                    statement.setLong(1, id);
+                    statement.setLong(2, paymentId);
+                    statement.setString(3, RefundJobItem.State.PENDING.name());
+                    statement.setTimestamp(4, now);
+                });
+            return id;
+        });
+
+        logger.info("Created refund job {} for {} payments", jobId, paymentIds.size());
+        return jobId;
+    }
+
+    /**
+     * Take the lease of a RUNNING job nobody holds, e.g. one left by a crashed or stopped instance
+     *
+     * @return true if this instance now holds the job's lease
+     */
+    public boolean acquire(long jobId) {
+        Integer taken = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            Timestamp now = now();
+            return jdbcTemplate.update("UPDATE refund_job SET owner = ?, lease_expires_at = ? "
+                + "WHERE id = ? AND state = ? AND (owner IS NULL OR owner = ? OR lease_expires_at < ?)",
+                owner, leaseExpiry(now), jobId, RefundJob.State.RUNNING.name(), owner, now);
+        });
+        return taken != null && taken > 0;
+    }
+
+    /**
+     * Process the PENDING items of a job until none are left or the executor is closing.
+     * This instance must hold the job's lease.
+     *
+     * @return true if the job was completed, false if it was interrupted and is still RUNNING
+     */
+    public boolean run(long jobId) {
+        long started = System.currentTimeMillis();
+        long processed = 0;
+        List<Long> claimed = List.of();
+        while (!stopping && (claimed = claim(jobId)) != null && !claimed.isEmpty()) {
+            process(jobId, claimed);
+            processed += claimed.size();
+        }
+
+        if (stopping) {
+            release(jobId);
+            logger.info("Refund job {} paused after {} payments, resumes on restart", jobId, processed);
+            return false;
+        }
+        if (claimed == null) {
+            logger.warn("Refund job {} was taken over by another instance after {} payments", jobId, processed);
+            return false;
+        }
+        finish(jobId, RefundJob.State.COMPLETED, null);
+        logger.info("Refund job {} completed: {} payments in {} ms",
+            jobId, processed, System.currentTimeMillis() - started);
+        return true;
+    }
+
+    /**
+     * Resolve the items left IN_FLIGHT by an interrupted run, without calling the gateway.
+     * This instance must hold the job's lease, so the run that left them has ended.
+     *
+     * @return number of items resolved
+     * @throws IllegalStateException if another instance holds the lease
+     */
+    public int recover(long jobId) {
+        List<Long> inFlight = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            if (!renewLease(jobId, now())) {
+                throw new IllegalStateException("Refund job " + jobId + " is leased by another instance");
+            }
+            return jdbcTemplate.queryForList(
+                "SELECT payment_id FROM refund_job_item WHERE job_id = ? AND state = ? ORDER BY payment_id",
+                Long.class, jobId, RefundJobItem.State.IN_FLIGHT.name());
+        });
+        if (inFlight.isEmpty()) {
+            return 0;
+        }
+
+        Map<Long, Payment> payments = loadPayments(inFlight);
+        List<Outcome> outcomes = new ArrayList<>(inFlight.size());
+        for (Long paymentId : inFlight) {
+            Payment payment = payments.get(paymentId);
+            if (payment != null && payment.getStatus() == PaymentStatus.REFUNDED) {
+                outcomes.add(new Outcome(paymentId, payment, RefundJobItem.State.REFUNDED, null,
+                    "Recovered after an interrupted run"));
+            } else {
+                outcomes.add(new Outcome(paymentId, payment, RefundJobItem.State.UNKNOWN, null,
+                    "Interrupted during the gateway call; check the settlement file before refunding again"));
+            }
+        }
+        record(jobId, outcomes);
+        logger.warn("Recovered {} in-flight items of refund job {}", inFlight.size(), jobId);
+        return inFlight.size();
+    }
+
+    /**
+     * Mark a job RUNNING again, with this instance holding its lease, so run picks up its remaining items
+     *
+     * @return false if the job is running on another instance
+     */
+    public boolean restart(long jobId) {
+        Integer restarted = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            Timestamp now = now();
+            return jdbcTemplate.update("UPDATE refund_job SET state = ?, error = NULL, updated_at = ?, owner = ?, "
+                + "lease_expires_at = ? WHERE id = ? AND (owner IS NULL OR owner = ? OR lease_expires_at < ?)",
+                RefundJob.State.RUNNING.name(), now, owner, leaseExpiry(now), jobId, owner, now);
+        });
+        return restarted != null && restarted > 0;
+    }
+
+    /**
+     * End a job this instance holds the lease of; a job taken over by another instance is left alone
+     */
+    public void finish(long jobId, RefundJob.State state, String error) {
+        writeTransaction.executeWithoutResult(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            jdbcTemplate.update("UPDATE refund_job SET state = ?, error = ?, updated_at = ?, owner = NULL, "
+                + "lease_expires_at = NULL WHERE id = ? AND owner = ?",
+                state.name(), truncate(error), now(), jobId, owner);
+        });
+    }
+
+    /**
+     * @return IDs of jobs left RUNNING, normally by a crash or shutdown
+     */
+    public List<Long> findRunningJobs() {
+        return readTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            return jdbcTemplate.queryForList("SELECT id FROM refund_job WHERE state = ? ORDER BY id",
+                Long.class, RefundJob.State.RUNNING.name());
+        });
+    }
+
+    /**
+     * @return IDs of RUNNING jobs whose lease nobody holds
+     */
+    public List<Long> findUnleasedJobs() {
+        return readTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            return jdbcTemplate.queryForList("SELECT id FROM refund_job WHERE state = ? "
+                + "AND (owner IS NULL OR lease_expires_at < ?) ORDER BY id",
+                Long.class, RefundJob.State.RUNNING.name(), now());
+        });
+    }
+
+    /**
+     * Stop claiming batches; the batch in progress is finished first
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    @Override
+    public void close() {
+        stopping = true;
+        gatewayWorkers.shutdown();
+    }
+
+    private SortedSet<Long> resolve(RefundJobRequest request) {
+        SortedSet<Long> paymentIds = new TreeSet<>();
+        // Payments named by ID are kept whatever their status, so each gets a result
+        for (Long paymentId : request.getPaymentIds()) {
+            if (paymentId != null) {
+                paymentIds.add(paymentId);
+            }
+        }
+        checkLimit(paymentIds);
+
+        Map<Integer, List<Long>> orderIdsByShard = new TreeMap<>();
+        for (Long orderId : new LinkedHashSet<>(request.getOrderIds())) {
+            if (orderId != null) {
+                orderIdsByShard.computeIfAbsent(shardRouter.shardForOrder(orderId), shard -> new ArrayList<>())
+                    .add(orderId);
+            }
+        }
+        for (Map.Entry<Integer, List<Long>> shardOrders : orderIdsByShard.entrySet()) {
+            List<Long> orderIds = shardOrders.getValue();
+            for (int from = 0; from < orderIds.size(); from += QUERY_CHUNK_SIZE) {
+                List<Long> chunk = orderIds.subList(from, Math.min(from + QUERY_CHUNK_SIZE, orderIds.size()));
+                List<Object> arguments = new ArrayList<>(chunk.size() + 1);
+                arguments.add(PaymentStatus.COMPLETED.name());
+                arguments.addAll(chunk);
+                paymentIds.addAll(queryPaymentIds(shardOrders.getKey(),
+                    "SELECT id FROM payment WHERE status = ? AND order_id IN ("
+                        + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")", arguments.toArray()));
+                checkLimit(paymentIds);
+            }
+        }
+
+        if (request.hasTimeRange()) {
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                paymentIds.addAll(queryPaymentIds(shard,
+                    "SELECT id FROM payment WHERE status = ? AND created_at >= ? AND created_at < ?",
+                    PaymentStatus.COMPLETED.name(), UtcDateTime.of(request.getCreatedFrom()),
+                    UtcDateTime.of(request.getCreatedTo())));
+                checkLimit(paymentIds);
+            }
+        }
+        return paymentIds;
+    }
+
+    private List<Long> queryPaymentIds(int shard, String sql, Object... arguments) {
+        // Statuses are checked again on the primary when each batch runs, so a replica will do
+        return readTransaction.execute(status -> {
+            ShardContext.bindToTransaction(shard);
+            return jdbcTemplate.queryForList(sql, Long.class, arguments);
+        });
+    }
+
+    private void checkLimit(Set<Long> paymentIds) {
+        if (paymentIds.size() > properties.getMaxPayments()) {
+            throw new IllegalArgumentException(
+                "Request matches more than " + properties.getMaxPayments() + " payments");
+        }
+    }
+
+    /**
+     * @return the items claimed, or null if the job's lease was taken over
+     */
+    private List<Long> claim(long jobId) {
+        return writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            Timestamp now = now();
+            if (!renewLease(jobId, now)) {
+                return null;
+            }
+            List<Long> pending = jdbcTemplate.queryForList(
+                "SELECT payment_id FROM refund_job_item WHERE job_id = ? AND state = ? ORDER BY payment_id LIMIT ?",
+                Long.class, jobId, RefundJobItem.State.PENDING.name(), properties.getBatchSize());
+            if (pending.isEmpty()) {
+                return pending;
+            }
+
+            List<Object[]> arguments = new ArrayList<>(pending.size());
+            for (Long paymentId : pending) {
+                arguments.add(new Object[] {RefundJobItem.State.IN_FLIGHT.name(), now, jobId, paymentId,
+                    RefundJobItem.State.PENDING.name()});
+            }
+            int[] counts = jdbcTemplate.batchUpdate(
+                "UPDATE refund_job_item SET state = ?, updated_at = ? WHERE job_id = ? AND payment_id = ? AND state = ?",
+                arguments);
+
+            // Only items this run moved out of PENDING are its to refund
+            List<Long> claimed = new ArrayList<>(pending.size());
+            for (int i = 0; i < counts.length; i++) {
+                if (applied(counts[i])) {
+                    claimed.add(pending.get(i));
+                }
+            }
+            return claimed;
+        });
+    }
+
+    private void process(long jobId, List<Long> claimed) {
+        Map<Long, Payment> payments = loadPayments(claimed);
+
+        List<Outcome> outcomes = new ArrayList<>(claimed.size());
+        List<Future<Outcome>> calls = new ArrayList<>(claimed.size());
+        for (Long paymentId : claimed) {
+            Payment payment = payments.get(paymentId);
+            if (payment == null) {
+                outcomes.add(new Outcome(paymentId, null, RefundJobItem.State.SKIPPED, null, "Payment not found"));
+            } else if (payment.getStatus() != PaymentStatus.COMPLETED) {
+                outcomes.add(new Outcome(paymentId, payment, RefundJobItem.State.SKIPPED, null,
+                    "Only completed payments can be refunded. Current status: " + payment.getStatus()));
+            } else if (payment.getTransactionId() == null) {
+                outcomes.add(new Outcome(paymentId, payment, RefundJobItem.State.SKIPPED, null,
+                    "Payment has no gateway transaction"));
+            } else {
+                calls.add(gatewayWorkers.submit(() -> refund(payment)));
+            }
+        }
+        for (Future<Outcome> call : calls) {
+            outcomes.add(await(call));
+        }
+
+        Instant refundedAt = clock.instant();
+        Set<Long> stale = applyRefunds(outcomes, refundedAt);
+        List<Outcome> recorded = new ArrayList<>(outcomes.size());
+        for (Outcome outcome : outcomes) {
+            recorded.add(stale.contains(outcome.paymentId())
+                ? outcome.withError("Payment changed status during the refund") : outcome);
+        }
+        record(jobId, recorded);
+        notifyRefunded(outcomes, stale, refundedAt);
+    }
+
+    private Outcome refund(Payment payment) {
+        // Checked again right before the call: an interactive refund may have won since the batch was loaded
+        PaymentStatus current = currentStatus(payment.getId());
+        if (current != PaymentStatus.COMPLETED) {
+            return new Outcome(payment.getId(), payment, RefundJobItem.State.SKIPPED, null,
+                "Only completed payments can be refunded. Current status: " + current);
+        }
+        try {
+            GatewayResult result = paymentGatewayService.processRefund(payment.getTransactionId());
+            if (result.isApproved()) {
+                return new Outcome(payment.getId(), payment, RefundJobItem.State.REFUNDED, result.getTransactionId(), null);
+            }
+            return new Outcome(payment.getId(), payment, RefundJobItem.State.DECLINED, null, result.getDeclineReason());
+        } catch (Exception e) {
+            // The gateway may have refunded before failing, so the payment is not retried
+            logger.error("Refund of payment {} failed at the gateway", payment.getId(), e);
+            return new Outcome(payment.getId(), payment, RefundJobItem.State.UNKNOWN, null, e.getMessage());
+        }
+    }
+
+    private Outcome await(Future<Outcome> call) {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the gateway", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Refund task failed", e.getCause());
+        }
+    }
+
+    private PaymentStatus currentStatus(long paymentId) {
+        String status = writeTransaction.execute(tx -> {
+            ShardContext.bindToTransaction(shardRouter.shardForPayment(paymentId));
+            List<String> statuses = jdbcTemplate.queryForList("SELECT status FROM payment WHERE id = ?",
+                String.class, paymentId);
+            return statuses.isEmpty() ? null : statuses.get(0);
+        });
+        return status == null ? null : PaymentStatus.valueOf(status);
+    }
+
+    /**
+     * Payments are read from the primary (read-write transaction), so one refunded
+     * a moment ago on its own is not refunded again.
+     */
+    private Map<Long, Payment> loadPayments(List<Long> paymentIds) {
+        Map<Integer, List<Long>> idsByShard = new TreeMap<>();
+        for (Long paymentId : paymentIds) {
+            idsByShard.computeIfAbsent(shardRouter.shardForPayment(paymentId), shard -> new ArrayList<>()).add(paymentId);
+        }
+
+        Map<Long, Payment> payments = new HashMap<>();
+        for (Map.Entry<Integer, List<Long>> shardIds : idsByShard.entrySet()) {
+            writeTransaction.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(shardIds.getKey());
+                for (Payment payment : paymentRepository.findAllById(shardIds.getValue())) {
+                    payments.put(payment.getId(), payment);
+                }
+            });
+        }
+        return payments;
+    }
+
+    /**
+     * @return IDs of refunded payments that were no longer COMPLETED when written
+     */
+    private Set<Long> applyRefunds(List<Outcome> outcomes, Instant refundedAt) {
+        Map<Integer, List<Payment>> refundedByShard = new TreeMap<>();
+        for (Outcome outcome : outcomes) {
+            if (outcome.state() == RefundJobItem.State.REFUNDED) {
+                refundedByShard.computeIfAbsent(shardRouter.shardForPayment(outcome.paymentId()),
+                    shard -> new ArrayList<>()).add(outcome.payment());
+            }
+        }
+
+        Set<Long> stale = new HashSet<>();
+        for (Map.Entry<Integer, List<Payment>> shardPayments : refundedByShard.entrySet()) {
+            List<Payment> refunded = shardPayments.getValue();
+            writeTransaction.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(shardPayments.getKey());
+                List<Object[]> arguments = new ArrayList<>(refunded.size());
+                for (Payment payment : refunded) {
+                    arguments.add(new Object[] {PaymentStatus.REFUNDED.name(), UtcDateTime.of(refundedAt),
+                        payment.getId(), PaymentStatus.COMPLETED.name()});
+                }
+                int[] counts = jdbcTemplate.batchUpdate(
+                    "UPDATE payment SET status = ?, updated_at = ?, version = version + 1 WHERE id = ? AND status = ?", arguments);
+
+                for (int i = 0; i < counts.length; i++) {
+                    Payment payment = refunded.get(i);
+                    if (applied(counts[i])) {
+                        // Bypasses the entity, so the change is published here instead of by Payment
+                        eventPublisher.publishEvent(new PaymentStatusChangedEvent(payment.getId(),
+                            payment.getOrderId(), PaymentStatus.COMPLETED, PaymentStatus.REFUNDED,
+                            toMinorUnits(payment.getAmount()), payment.getCurrency(),
+                            refundedAt.toEpochMilli()));
+                    } else {
+                        logger.warn("Payment {} changed status while being refunded by a job", payment.getId());
+                        stale.add(payment.getId());
+                    }
+                }
+            });
+        }
+        return stale;
+    }
+
+    private void record(long jobId, List<Outcome> outcomes) {
+        writeTransaction.executeWithoutResult(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            Timestamp now = now();
+            List<Object[]> arguments = new ArrayList<>(outcomes.size());
+            for (Outcome outcome : outcomes) {
+                arguments.add(new Object[] {outcome.state().name(), outcome.refundTransactionId(),
+                    truncate(outcome.error()), now, jobId, outcome.paymentId(), RefundJobItem.State.IN_FLIGHT.name()});
+            }
+            jdbcTemplate.batchUpdate("UPDATE refund_job_item SET state = ?, refund_transaction_id = ?, error = ?, "
+                + "updated_at = ? WHERE job_id = ? AND payment_id = ? AND state = ?", arguments);
+            renewLease(jobId, now);
+        });
+    }
+
+    /**
+     * Extend this instance's lease of a job; must run on the control shard
+     *
+     * @return false if another instance took the job over
+     */
+    private boolean renewLease(long jobId, Timestamp now) {
+        return jdbcTemplate.update("UPDATE refund_job SET updated_at = ?, lease_expires_at = ? "
+            + "WHERE id = ? AND owner = ?", now, leaseExpiry(now), jobId, owner) > 0;
+    }
+
+    /**
+     * Let the lease of a paused job expire now, so the next instance to start need not wait it out
+     */
+    private void release(long jobId) {
+        writeTransaction.executeWithoutResult(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            jdbcTemplate.update("UPDATE refund_job SET lease_expires_at = ? WHERE id = ? AND owner = ?",
+                now(), jobId, owner);
+        });
+    }
+
+    private Timestamp now() {
+        return new Timestamp(clock.millis());
+    }
+
+    private Timestamp leaseExpiry(Timestamp now) {
+        return new Timestamp(now.getTime() + properties.getLeaseDuration().toMillis());
+    }
+
+    private void notifyRefunded(List<Outcome> outcomes, Set<Long> stale, Instant refundedAt) {
+        for (Outcome outcome : outcomes) {
+            if (outcome.state() != RefundJobItem.State.REFUNDED || stale.contains(outcome.paymentId())) {
+                continue;
+            }
+            Payment payment = outcome.payment();
+            try {
+                payment.setStatus(PaymentStatus.REFUNDED, refundedAt);
+                notificationService.sendRefundConfirmation(PaymentResponse.from(payment));
+                orderServiceClient.updateOrderAfterRefund(payment.getOrderId(), payment.getId());
+            } catch (Exception e) {
+                // The refund is recorded; a missed notification must not stop the job
+                logger.error("Failed to notify refund of payment {}", payment.getId(), e);
+            }
+        }
+    }
+
+    private static boolean applied(int count) {
+        // Drivers may report SUCCESS_NO_INFO (-2) for batched statements
+        return count > 0 || count == Statement.SUCCESS_NO_INFO;
+    }
+
+    private static String truncate(String error) {
+        return error == null || error.length() <= MAX_ERROR_LENGTH ? error : error.substring(0, MAX_ERROR_LENGTH);
+    }
+
+    private static long toMinorUnits(Money amount) {
+        return amount == null ? 0 : amount.unscaledValue(Money.STORAGE_SCALE);
+    }
+
+    private record Outcome(Long paymentId, Payment payment, RefundJobItem.State state, String refundTransactionId,
+                           String error) {
+
+        Outcome withError(String error) {
+            return new Outcome(paymentId, payment, state, refundTransactionId, error);
+        }
+    }
+}
+
+// 6. Refund Job Service
+// RefundJobService.java
+package com.ecommerce.payment.refund;
+
+import com.ecommerce.payment.dto.RefundJobRequest;
+import com.ecommerce.payment.dto.RefundJobResponse;
+import com.ecommerce.payment.model.RefundJob;
+import com.ecommerce.payment.model.RefundJobItem;
+import com.ecommerce.payment.repository.RefundJobItemRepository;
+import com.ecommerce.payment.repository.RefundJobRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one refund job at a time in the background. Once the application is ready, and
+ * then every lease duration while idle, it resumes a job left RUNNING by a crash or
+ * shutdown whose lease it can take, so every instance may resume jobs.
+ */
+@Service
+public class RefundJobService implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RefundJobService.class);
+
+    public static final int MAX_ITEMS_PER_PAGE = 1000;
+
+    private final RefundJobExecutor jobExecutor;
+    private final RefundJobRepository jobRepository;
+    private final RefundJobItemRepository itemRepository;
+    private final RefundJobProperties properties;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "payment-refund-jobs");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger activeJobs = new AtomicInteger();
+
+    public RefundJobService(RefundJobExecutor jobExecutor, RefundJobRepository jobRepository,
+                            RefundJobItemRepository itemRepository, RefundJobProperties properties) {
+        this.jobExecutor = jobExecutor;
+        this.jobRepository = jobRepository;
+        this.itemRepository = itemRepository;
+        this.properties = properties;
+    }
+
+    /**
+     * Create and start a refund job
+     *
+     * @return the ID of the started job, or empty if another job is running
+     * @throws IllegalArgumentException if nothing or too much matches the request
+     */
+    public Optional<Long> submit(RefundJobRequest request) {
+        if (!activeJobs.compareAndSet(0, 1)) {
+            return Optional.empty();
+        }
+        try {
+            long jobId = jobExecutor.create(request);
+            start(jobId, false);
+            return Optional.of(jobId);
+        } catch (RuntimeException e) {
+            activeJobs.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Continue a failed or interrupted job with its remaining items
+     *
+     * @return the job ID, or empty if another job is running here or this one on another instance
+     * @throws IllegalArgumentException if the job does not exist
+     * @throws IllegalStateException if the job has completed
+     */
+    public Optional<Long> resume(long jobId) {
+        RefundJob job = jobRepository.findById(jobId)
+            .orElseThrow(() -> new IllegalArgumentException("Refund job not found: " + jobId));
+        if (job.getState() == RefundJob.State.COMPLETED) {
+            throw new IllegalStateException("Refund job " + jobId + " has already completed");
+        }
+        if (!activeJobs.compareAndSet(0, 1)) {
+            return Optional.empty();
+        }
+        if (!jobExecutor.restart(jobId)) {
+            // Running on another instance
+            activeJobs.decrementAndGet();
+            return Optional.empty();
+        }
+        start(jobId, true);
+        return Optional.of(jobId);
+    }
+
+    public Optional<RefundJobResponse> getJob(long jobId) {
+        return jobRepository.findById(jobId).map(job -> {
+            Map<RefundJobItem.State, Long> counts = new EnumMap<>(RefundJobItem.State.class);
+            for (Object[] stateCount : itemRepository.countByState(jobId)) {
+                counts.put((RefundJobItem.State) stateCount[0], ((Number) stateCount[1]).longValue());
+            }
+            return RefundJobResponse.from(job, counts);
+        });
+    }
+
+    /**
+     * @param state only items in this state, or null for all
+     * @param afterPaymentId last payment ID of the previous page, or 0
+     * @param limit page size, capped at MAX_ITEMS_PER_PAGE
+     */
+    public List<RefundJobItem> getItems(long jobId, RefundJobItem.State state, long afterPaymentId, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_ITEMS_PER_PAGE));
+        return itemRepository.findPage(jobId, state, afterPaymentId, PageRequest.of(0, pageSize));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterruptedJobs() {
+        if (!properties.isResumeOnStartup()) {
+            return;
+        }
+        long interval = properties.getLeaseDuration().toMillis();
+        executor.scheduleWithFixedDelay(this::resumeInterruptedJob, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Resume one interrupted job, if this instance is idle and can take its lease
+     */
+    void resumeInterruptedJob() {
+        if (!activeJobs.compareAndSet(0, 1)) {
+            return;
+        }
+        try {
+            for (Long jobId : jobExecutor.findUnleasedJobs()) {
+                if (jobExecutor.acquire(jobId)) {
+                    logger.info("Resuming interrupted refund job {}", jobId);
+                    start(jobId, true);
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule
+            logger.error("Could not resume interrupted refund jobs", e);
+        }
+        activeJobs.decrementAndGet();
+    }
+
+    private void start(long jobId, boolean recover) {
+        executor.submit(() -> {
+            try {
+                if (recover) {
+                    jobExecutor.recover(jobId);
+                }
+                jobExecutor.run(jobId);
+            } catch (Exception e) {
+                logger.error("Refund job {} failed", jobId, e);
+                try {
+                    jobExecutor.finish(jobId, RefundJob.State.FAILED, e.getMessage());
+                } catch (Exception finishFailure) {
+                    logger.error("Could not mark refund job {} as failed", jobId, finishFailure);
+                }
+            } finally {
+                activeJobs.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        // Lets the current batch finish; the job stays RUNNING and resumes on the next start
+        jobExecutor.stop();
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn("Refund job batch still running at shutdown; its items are recovered on the next start");
+        }
+        jobExecutor.close();
+    }
+}
+
+// 7. Refund Job Configuration
+// RefundJobConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.refund.RefundJobExecutor;
+import com.ecommerce.payment.refund.RefundJobProperties;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardRouter;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+import java.time.Clock;
+
+@Configuration
+@EnableConfigurationProperties(RefundJobProperties.class)
+public class RefundJobConfig {
+
+    // Closed by RefundJobService, which must stop its coordinator first
+    @Bean(destroyMethod = "")
+    public RefundJobExecutor refundJobExecutor(DataSource dataSource, PlatformTransactionManager transactionManager,
+                                               PaymentRepository paymentRepository, ShardRouter shardRouter,
+                                               PaymentGatewayService paymentGatewayService,
+                                               PaymentNotificationService notificationService,
+                                               OrderServiceClient orderServiceClient,
+                                               ApplicationEventPublisher eventPublisher,
+                                               RefundJobProperties properties, Clock clock) {
+        return new RefundJobExecutor(dataSource, transactionManager, paymentRepository, shardRouter,
+            paymentGatewayService, notificationService, orderServiceClient, eventPublisher, properties, clock);
+    }
+}
+
+// 8. Admin Controller
+// RefundJobController.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.dto.RefundJobRequest;
+import com.ecommerce.payment.dto.RefundJobResponse;
+import com.ecommerce.payment.model.RefundJobItem;
+import com.ecommerce.payment.refund.RefundJobService;
+import jakarta.validation.Valid;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Bulk refunds for mass cancellations, replacing client loops over
+ * POST /api/payments/{id}/refund. Jobs run in the background; poll GET /{id} for progress.
+ */
+@RestController
+@RequestMapping("/api/admin/refund-jobs")
+public class RefundJobController {
+
+    private final RefundJobService refundJobService;
+
+    @Autowired
+    public RefundJobController(RefundJobService refundJobService) {
+        this.refundJobService = refundJobService;
+    }
+
+    @PostMapping
+    public ResponseEntity<RefundJobResponse> submitRefundJob(@Valid @RequestBody RefundJobRequest request) {
+        if (request.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            return refundJobService.submit(request)
+                .flatMap(refundJobService::getJob)
+                .map(job -> new ResponseEntity<>(job, HttpStatus.ACCEPTED))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.CONFLICT));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<RefundJobResponse> getRefundJob(@PathVariable("id") Long jobId) {
+        return refundJobService.getJob(jobId)
+            .map(ResponseEntity::ok)
+            .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/{id}/items")
+    public ResponseEntity<List<RefundJobItem>> getRefundJobItems(
+            @PathVariable("id") Long jobId,
+            @RequestParam(value = "state", required = false) RefundJobItem.State state,
+            @RequestParam(value = "after", defaultValue = "0") long afterPaymentId,
+            @RequestParam(value = "limit", defaultValue = "500") int limit) {
+        return ResponseEntity.ok(refundJobService.getItems(jobId, state, afterPaymentId, limit));
+    }
+
+    @PostMapping("/{id}/resume")
+    public ResponseEntity<RefundJobResponse> resumeRefundJob(@PathVariable("id") Long jobId) {
+        try {
+            return refundJobService.resume(jobId)
+                .flatMap(refundJobService::getJob)
+                .map(job -> new ResponseEntity<>(job, HttpStatus.ACCEPTED))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.CONFLICT));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.notFound().build();
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+    }
+}
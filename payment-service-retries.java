@@ -0,0 +1,931 @@
+// Persistent Retry Queue for Payment Service
+
+// 1. Transient Gateway Failure
+// GatewayUnavailableException.java
+package com.ecommerce.payment.exception;
+
+/**
+ * The gateway could not be reached or failed on its side (timeout, 5xx).
+ * Unlike a decline, the same request may succeed later.
+ */
+public class GatewayUnavailableException extends PaymentProcessingException {
+
+    public GatewayUnavailableException(String message) {
+        super(message);
+    }
+
+}
+
+// 2. Retry Task
+// RetryTask.java
+package com.ecommerce.payment.retry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A unit of work to retry, as journaled: only IDs, never card details.
+ */
+public record RetryTask(long id, Kind kind, long paymentId, long orderId, int attempt) {
+
+    public enum Kind {
+        // Charge of a PENDING payment after a transient gateway failure
+        PAYMENT,
+        // Order service notifications
+        ORDER_PAID,
+        ORDER_REFUNDED
+    }
+
+    static final byte SCHEDULED = 1;
+    static final byte DONE = 2;
+
+    private static final int SCHEDULED_BYTES = 1 + 8 + 1 + 8 + 8 + 4 + 8;
+    private static final int DONE_BYTES = 1 + 8;
+
+    RetryTask next() {
+        return new RetryTask(id, kind, paymentId, orderId, attempt + 1);
+    }
+
+    ByteBuffer encodeScheduled(long dueAtMillis) {
+        ByteBuffer buffer = ByteBuffer.allocate(SCHEDULED_BYTES);
+        buffer.put(SCHEDULED).putLong(id).put((byte) kind.ordinal()).putLong(paymentId).putLong(orderId)
+            .putInt(attempt).putLong(dueAtMillis);
+        return buffer.flip();
+    }
+
+    static ByteBuffer encodeDone(long id) {
+        return ByteBuffer.allocate(DONE_BYTES).put(DONE).putLong(id).flip();
+    }
+
+    /**
+     * @param payload a SCHEDULED record
+     */
+    static RetryTask decodeScheduled(ByteBuffer payload) {
+        return new RetryTask(payload.getLong(1), Kind.values()[payload.get(9)], payload.getLong(10),
+            payload.getLong(18), payload.getInt(26));
+    }
+
+    static long decodeDueAt(ByteBuffer payload) {
+        return payload.getLong(30);
+    }
+
+    static long decodeId(ByteBuffer payload) {
+        return payload.getLong(1);
+    }
+}
+
+// RetryableException.java
+package com.ecommerce.payment.retry;
+
+/**
+ * Thrown by a RetryHandler for failures worth another attempt. Any other
+ * exception ends the task as exhausted.
+ */
+public class RetryableException extends RuntimeException {
+
+    public RetryableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
+
+// RetryHandler.java
+package com.ecommerce.payment.retry;
+
+/**
+ * Performs the tasks of one kind. Called on a retry worker thread.
+ */
+public interface RetryHandler {
+
+    /**
+     * Attempt the task once
+     *
+     * @throws RetryableException to be attempted again after a backoff
+     */
+    void attempt(RetryTask task) throws Exception;
+
+    /**
+     * Called once when the task failed permanently or ran out of attempts
+     */
+    default void exhausted(RetryTask task, Exception cause) {
+    }
+}
+
+// 3. Timing Wheel
+// TimingWheel.java
+package com.ecommerce.payment.retry;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: a ring of slots, each a linked list of entries due in that slot
+ * in this or a later rotation. Inserting is O(1); each tick visits one slot, so an entry
+ * is looked at once per rotation until it expires.
+ *
+ * Not thread-safe; owned by a single ticker thread.
+ */
+class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final int mask;
+    private final Node<T>[] slots;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMillis, int wheelSize, long nowMillis) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+        }
+        this.tickMillis = tickMillis;
+        this.mask = wheelSize - 1;
+        this.slots = new Node[wheelSize];
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * @param deadlineMillis when the value is due; values already due expire on the next advance
+     */
+    void schedule(T value, long deadlineMillis) {
+        long deadlineTick = Math.max(Math.floorDiv(deadlineMillis + tickMillis - 1, tickMillis), currentTick);
+        int slot = (int) (deadlineTick & mask);
+        slots[slot] = new Node<>(value, deadlineTick, slots[slot]);
+        size++;
+    }
+
+    /**
+     * Expire every value due up to now
+     *
+     * @return number of values expired
+     */
+    int advance(long nowMillis, Consumer<T> expired) {
+        long nowTick = nowMillis / tickMillis;
+        if (nowTick < currentTick) {
+            return 0;
+        }
+
+        int count = 0;
+        // After a long pause every slot is visited once rather than once per missed tick
+        long lastTick = Math.min(nowTick, currentTick + mask);
+        for (long tick = currentTick; tick <= lastTick; tick++) {
+            count += expireSlot((int) (tick & mask), nowTick, expired);
+        }
+        currentTick = nowTick + 1;
+        return count;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int expireSlot(int slot, long nowTick, Consumer<T> expired) {
+        int count = 0;
+        Node<T> previous = null;
+        Node<T> node = slots[slot];
+        while (node != null) {
+            Node<T> next = node.next;
+            if (node.deadlineTick <= nowTick) {
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                size--;
+                count++;
+                expired.accept(node.value);
+            } else {
+                previous = node;
+            }
+            node = next;
+        }
+        return count;
+    }
+
+    private static final class Node<T> {
+        final T value;
+        final long deadlineTick;
+        Node<T> next;
+
+        Node(T value, long deadlineTick, Node<T> next) {
+            this.value = value;
+            this.deadlineTick = deadlineTick;
+            this.next = next;
+        }
+    }
+}
+
+// 4. Retry Configuration Properties
+// RetryProperties.java
+package com.ecommerce.payment.retry;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * Retry queue settings, bound from payment.retry.*
+ */
+@ConfigurationProperties(prefix = "payment.retry")
+public class RetryProperties {
+
+    private Path journalDirectory = Paths.get("retry-journal");
+    private DataSize segmentSize = DataSize.ofMegabytes(64);
+    private Duration tick = Duration.ofMillis(100);
+    private int wheelSize = 4096;
+    private Duration initialBackoff = Duration.ofSeconds(1);
+    private Duration maxBackoff = Duration.ofMinutes(10);
+    private int maxAttempts = 8;
+    private int workers = 8;
+
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public void setJournalDirectory(Path journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public DataSize getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(DataSize segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public Duration getTick() {
+        return tick;
+    }
+
+    public void setTick(Duration tick) {
+        this.tick = tick;
+    }
+
+    public int getWheelSize() {
+        return wheelSize;
+    }
+
+    public void setWheelSize(int wheelSize) {
+        this.wheelSize = wheelSize;
+    }
+
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public void setInitialBackoff(Duration initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public void setMaxBackoff(Duration maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Longest time a task can wait across all its attempts, backoff jitter included,
+     * not counting the attempts themselves
+     */
+    public Duration horizon() {
+        long total = 0;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            total += Math.min(maxBackoff.toMillis(), initialBackoff.toMillis() << Math.min(attempt - 1, 30));
+        }
+        return Duration.ofMillis(total);
+    }
+}
+
+// 5. Retry Queue
+// RetryQueue.java
+package com.ecommerce.payment.retry;
+
+import com.ecommerce.payment.journal.SegmentedLog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Durable, delayed retries with exponential backoff and jitter.
+ *
+ * Every schedule and completion is appended to a journal; the pending tasks live in a
+ * TimingWheel driven by one ticker thread, which hands due tasks to a small worker pool.
+ * On start the journal is replayed and unfinished tasks are put back on the wheel, the
+ * overdue ones for immediate execution.
+ *
+ * Each journal segment counts its tasks still pending. Attempts are bounded, so every
+ * task finishes eventually and the oldest segments are deleted once their count is zero.
+ */
+@Service
+public class RetryQueue implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryQueue.class);
+
+    private final RetryProperties properties;
+    private final Map<RetryTask.Kind, RetryHandler> handlers = new EnumMap<>(RetryTask.Kind.class);
+    private final Queue<Scheduled> inbox = new ConcurrentLinkedQueue<>();
+    private final NavigableMap<Long, AtomicLong> pendingBySegment = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<RetryTask.Kind, Counter> succeeded = new EnumMap<>(RetryTask.Kind.class);
+    private final Map<RetryTask.Kind, Counter> retried = new EnumMap<>(RetryTask.Kind.class);
+    private final Map<RetryTask.Kind, Counter> exhausted = new EnumMap<>(RetryTask.Kind.class);
+
+    private volatile SegmentedLog journal;
+    private volatile ThreadPoolExecutor workers;
+    private volatile Thread ticker;
+    private volatile boolean running;
+
+    public RetryQueue(RetryProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        for (RetryTask.Kind kind : RetryTask.Kind.values()) {
+            String tag = kind.name().toLowerCase();
+            succeeded.put(kind, Counter.builder("payment.retry.tasks").tag("kind", tag).tag("result", "succeeded")
+                .register(meterRegistry));
+            retried.put(kind, Counter.builder("payment.retry.tasks").tag("kind", tag).tag("result", "retried")
+                .register(meterRegistry));
+            exhausted.put(kind, Counter.builder("payment.retry.tasks").tag("kind", tag).tag("result", "exhausted")
+                .register(meterRegistry));
+        }
+        Gauge.builder("payment.retry.pending", pending, AtomicInteger::get).register(meterRegistry);
+    }
+
+    /**
+     * Register the handler of a kind of task; must happen before the queue starts
+     */
+    public void registerHandler(RetryTask.Kind kind, RetryHandler handler) {
+        synchronized (handlers) {
+            handlers.put(kind, handler);
+        }
+    }
+
+    /**
+     * Schedule the first retry of a task. Returns once the task is durable.
+     *
+     * @return the task, or null if it could not be journaled
+     */
+    public RetryTask schedule(RetryTask.Kind kind, long paymentId, long orderId) {
+        RetryTask task = new RetryTask(nextId.getAndIncrement(), kind, paymentId, orderId, 1);
+        long dueAt = System.currentTimeMillis() + backoffMillis(task.attempt());
+        try {
+            long segment = append(task, dueAt, true);
+            pending.incrementAndGet();
+            inbox.add(new Scheduled(task, dueAt, segment));
+            return task;
+        } catch (IOException e) {
+            logger.error("Could not journal {} retry of payment {}", kind, paymentId, e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * @return tasks waiting for their next attempt
+     */
+    public int pendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Delay before an attempt: exponential in the attempt number, capped, with
+     * "equal jitter" (a random point in the upper half) to spread out retry storms.
+     */
+    long backoffMillis(int attempt) {
+        long initial = properties.getInitialBackoff().toMillis();
+        long max = properties.getMaxBackoff().toMillis();
+        long delay = Math.min(max, initial << Math.min(attempt - 1, 30));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    @Override
+    public void start() {
+        try {
+            journal = new SegmentedLog(properties.getJournalDirectory(), properties.getSegmentSize().toBytes(),
+                "payment-retry-journal");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open retry journal in " + properties.getJournalDirectory(), e);
+        }
+
+        TimingWheel<Scheduled> wheel = new TimingWheel<>(properties.getTick().toMillis(), properties.getWheelSize(),
+            System.currentTimeMillis());
+        try {
+            recover(wheel);
+        } catch (IOException e) {
+            logger.error("Could not replay the retry journal; continuing with new retries", e);
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(properties.getWorkers(), properties.getWorkers(), 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "payment-retry-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        running = true;
+        ticker = new Thread(() -> tick(wheel), "payment-retry-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        Thread current = ticker;
+        if (current == null) {
+            return;
+        }
+        LockSupport.unpark(current);
+        try {
+            current.join(TimeUnit.SECONDS.toMillis(5));
+            // Queued tasks are still pending in the journal and run after restart
+            workers.getQueue().clear();
+            workers.shutdown();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.warn("Could not close retry journal", e);
+        }
+        ticker = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return ticker != null;
+    }
+
+    private void recover(TimingWheel<Scheduled> wheel) throws IOException {
+        Map<Long, Scheduled> unfinished = new HashMap<>();
+        TreeSet<Long> segments = new TreeSet<>(journal.segmentBases());
+        long[] maxId = {0};
+        journal.replay(0, (payload, nextPosition) -> {
+            long segment = segments.floor(nextPosition - SegmentedLog.RECORD_HEADER_BYTES - payload.remaining());
+            if (payload.get(0) == RetryTask.SCHEDULED) {
+                RetryTask task = RetryTask.decodeScheduled(payload);
+                unfinished.put(task.id(), new Scheduled(task, RetryTask.decodeDueAt(payload), segment));
+                maxId[0] = Math.max(maxId[0], task.id());
+            } else {
+                unfinished.remove(RetryTask.decodeId(payload));
+            }
+        });
+
+        nextId.set(maxId[0] + 1);
+        for (Scheduled scheduled : unfinished.values()) {
+            pendingBySegment.computeIfAbsent(scheduled.segment(), base -> new AtomicLong()).incrementAndGet();
+            wheel.schedule(scheduled, scheduled.dueAtMillis());
+        }
+        pending.set(unfinished.size());
+        compact();
+        if (!unfinished.isEmpty()) {
+            logger.info("Recovered {} pending retries from the journal", unfinished.size());
+        }
+    }
+
+    private void tick(TimingWheel<Scheduled> wheel) {
+        long tickNanos = properties.getTick().toNanos();
+        while (running) {
+            Scheduled scheduled;
+            while ((scheduled = inbox.poll()) != null) {
+                wheel.schedule(scheduled, scheduled.dueAtMillis());
+            }
+            wheel.advance(System.currentTimeMillis(), due -> workers.execute(() -> execute(due)));
+            LockSupport.parkNanos(tickNanos);
+        }
+    }
+
+    private void execute(Scheduled scheduled) {
+        RetryTask task = scheduled.task();
+        RetryHandler handler;
+        synchronized (handlers) {
+            handler = handlers.get(task.kind());
+        }
+
+        try {
+            if (handler == null) {
+                throw new IllegalStateException("No retry handler for " + task.kind());
+            }
+            handler.attempt(task);
+            succeeded.get(task.kind()).increment();
+            finish(scheduled);
+        } catch (RetryableException e) {
+            if (task.attempt() < properties.getMaxAttempts()) {
+                retried.get(task.kind()).increment();
+                reschedule(scheduled, e);
+            } else {
+                giveUp(scheduled, handler, e);
+            }
+        } catch (Exception e) {
+            giveUp(scheduled, handler, e);
+        }
+    }
+
+    private void reschedule(Scheduled scheduled, Exception cause) {
+        RetryTask next = scheduled.task().next();
+        long dueAt = System.currentTimeMillis() + backoffMillis(next.attempt());
+        logger.debug("Retry {} of payment {} failed ({}), attempt {} in {} ms", next.kind(), next.paymentId(),
+            cause.getMessage(), next.attempt(), dueAt - System.currentTimeMillis());
+        try {
+            long segment = append(next, dueAt, false);
+            release(scheduled.segment());
+            inbox.add(new Scheduled(next, dueAt, segment));
+        } catch (IOException | InterruptedException e) {
+            // The previous record is still live, so the task runs again after restart
+            logger.error("Could not journal retry {} of payment {}", next.id(), next.paymentId(), e);
+            inbox.add(new Scheduled(next, dueAt, scheduled.segment()));
+        }
+    }
+
+    private void giveUp(Scheduled scheduled, RetryHandler handler, Exception cause) {
+        RetryTask task = scheduled.task();
+        exhausted.get(task.kind()).increment();
+        logger.warn("Giving up {} retry of payment {} after {} attempts: {}", task.kind(), task.paymentId(),
+            task.attempt(), cause.getMessage());
+        try {
+            if (handler != null) {
+                handler.exhausted(task, cause);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Retry handler failed to handle exhausted {} task of payment {}",
+                task.kind(), task.paymentId(), e);
+        }
+        finish(scheduled);
+    }
+
+    private void finish(Scheduled scheduled) {
+        pending.decrementAndGet();
+        try {
+            // Not awaited: a lost completion only means one more attempt after a crash
+            journal.append(RetryTask.encodeDone(scheduled.task().id()));
+            release(scheduled.segment());
+        } catch (IOException e) {
+            logger.warn("Could not journal completion of retry {}", scheduled.task().id(), e);
+        }
+    }
+
+    /**
+     * @return the segment holding the record
+     */
+    private long append(RetryTask task, long dueAtMillis, boolean durable) throws IOException, InterruptedException {
+        ByteBuffer record = task.encodeScheduled(dueAtMillis);
+        long segment;
+        long position;
+        synchronized (pendingBySegment) {
+            position = journal.append(record);
+            List<Long> bases = journal.segmentBases();
+            segment = bases.get(bases.size() - 1);
+            pendingBySegment.computeIfAbsent(segment, base -> new AtomicLong()).incrementAndGet();
+        }
+        if (durable) {
+            journal.awaitDurable(position);
+        }
+        return segment;
+    }
+
+    private void release(long segment) throws IOException {
+        AtomicLong count = pendingBySegment.get(segment);
+        if (count != null && count.decrementAndGet() == 0) {
+            compact();
+        }
+    }
+
+    private void compact() throws IOException {
+        synchronized (pendingBySegment) {
+            // Drop empty counts from the front; the first segment with pending tasks bounds deletion
+            while (!pendingBySegment.isEmpty() && pendingBySegment.firstEntry().getValue().get() == 0) {
+                pendingBySegment.pollFirstEntry();
+            }
+            journal.deleteSegmentsBefore(pendingBySegment.isEmpty()
+                ? journal.endPosition() : pendingBySegment.firstKey());
+        }
+    }
+
+    private record Scheduled(RetryTask task, long dueAtMillis, long segment) {
+    }
+}
+
+// 6. Payment Retry Handler
+// PaymentRetryHandler.java
+package com.ecommerce.payment.retry;
+
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.GatewayUnavailableException;
+import com.ecommerce.payment.exception.PaymentProcessingException;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Retries the gateway charge of payments left PENDING by a transient gateway failure.
+ *
+ * Card details are kept in memory only, never in the retry journal. A retry that
+ * finds them gone (the node restarted) cannot charge again and gives up.
+ * Every charge carries the payment ID as idempotency key, so a charge that went
+ * through before a timeout is answered again rather than taken twice.
+ *
+ * A payment whose retries give up is settled by looking its charge up at the gateway,
+ * as the stuck-payment sweeper does: a charge made by a call that timed out completes
+ * it, a decline fails it, no charge at all marks it UNKNOWN for manual review. If the
+ * lookup fails too, the payment stays PENDING for the sweeper.
+ *
+ * A retry can still charge a payment that was settled otherwise meanwhile (failed by
+ * the sweeper, or deleted). That charge is refunded; if the refund fails too, it is
+ * logged for manual review and counted in payment.retry.orphaned.charges.
+ */
+@Component
+public class PaymentRetryHandler implements RetryHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(PaymentRetryHandler.class);
+
+    static final String LOST_ON_RESTART = "Payment could not be retried after a restart";
+
+    private final RetryQueue retryQueue;
+    private final PaymentRepository paymentRepository;
+    private final PaymentGatewayService paymentGatewayService;
+    private final PaymentNotificationService notificationService;
+    private final OrderServiceClient orderServiceClient;
+    private final VelocityEngine velocityEngine;
+    private final TransactionIdIndex transactionIdIndex;
+    private final ShardRouter shardRouter;
+    private final TransactionTemplate writeTransaction;
+    private final Clock clock;
+    private final Counter orphanedCharges;
+    private final Map<Long, PaymentRequest> requests = new ConcurrentHashMap<>();
+
+    public PaymentRetryHandler(RetryQueue retryQueue, PaymentRepository paymentRepository,
+                               PaymentGatewayService paymentGatewayService,
+                               PaymentNotificationService notificationService,
+                               OrderServiceClient orderServiceClient, VelocityEngine velocityEngine,
+                               TransactionIdIndex transactionIdIndex, ShardRouter shardRouter,
+                               PlatformTransactionManager transactionManager, Clock clock,
+                               MeterRegistry meterRegistry) {
+        this.retryQueue = retryQueue;
+        this.paymentRepository = paymentRepository;
+        this.paymentGatewayService = paymentGatewayService;
+        this.notificationService = notificationService;
+        this.orderServiceClient = orderServiceClient;
+        this.velocityEngine = velocityEngine;
+        this.transactionIdIndex = transactionIdIndex;
+        this.shardRouter = shardRouter;
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.clock = clock;
+        this.orphanedCharges = Counter.builder("payment.retry.orphaned.charges").register(meterRegistry);
+        retryQueue.registerHandler(RetryTask.Kind.PAYMENT, this);
+    }
+
+    /**
+     * Schedule a retry of a PENDING payment once the current transaction commits,
+     * so the retry never sees the payment before its status does
+     */
+    public void scheduleAfterCommit(Payment payment, PaymentRequest request) {
+        long paymentId = payment.getId();
+        long orderId = payment.getOrderId();
+        Runnable schedule = () -> {
+            requests.put(paymentId, request);
+            if (retryQueue.schedule(RetryTask.Kind.PAYMENT, paymentId, orderId) == null) {
+                // Left PENDING; the stuck-payment sweeper resolves it
+                requests.remove(paymentId);
+            }
+        };
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            schedule.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                schedule.run();
+            }
+        });
+    }
+
+    @Override
+    public void attempt(RetryTask task) {
+        Payment payment = load(task.paymentId());
+        if (payment == null || payment.getStatus() != PaymentStatus.PENDING) {
+            // Resolved meanwhile (sweeper, webhook or deletion)
+            requests.remove(task.paymentId());
+            return;
+        }
+
+        PaymentRequest request = requests.get(task.paymentId());
+        if (request == null) {
+            throw new IllegalStateException(LOST_ON_RESTART);
+        }
+
+        GatewayResult result;
+        try {
+            result = paymentGatewayService.processPayment(task.paymentId(), request);
+        } catch (GatewayUnavailableException e) {
+            throw new RetryableException(e.getMessage(), e);
+        }
+
+        requests.remove(task.paymentId());
+        if (!result.isApproved()) {
+            velocityEngine.recordDecline(request);
+            fail(task.paymentId(), result.getDeclineReason());
+            return;
+        }
+
+        if (complete(task.paymentId(), result.getTransactionId())) {
+            logger.info("Payment {} completed on retry attempt {}", task.paymentId(), task.attempt());
+        }
+    }
+
+    @Override
+    public void exhausted(RetryTask task, Exception cause) {
+        requests.remove(task.paymentId());
+        Payment payment = load(task.paymentId());
+        if (payment == null || payment.getStatus() != PaymentStatus.PENDING) {
+            return;
+        }
+
+        // An attempt that timed out may have charged the card, so the gateway decides
+        GatewayResult result;
+        try {
+            result = paymentGatewayService.findPayment(task.paymentId());
+        } catch (PaymentProcessingException e) {
+            logger.warn("Retries of payment {} gave up ({}) and the gateway lookup failed, "
+                + "leaving it PENDING for the sweeper: {}", task.paymentId(), cause.getMessage(), e.getMessage());
+            return;
+        }
+
+        if (result.isApproved()) {
+            if (complete(task.paymentId(), result.getTransactionId())) {
+                logger.warn("Payment {} completed with charge {} found at the gateway after its retries gave up",
+                    task.paymentId(), result.getTransactionId());
+            }
+        } else if (GatewayResult.PAYMENT_NOT_FOUND.equals(result.getDeclineReason())) {
+            if (settle(task.paymentId(), PaymentStatus.UNKNOWN) != null) {
+                // Neither the customer nor the order service is told anything until someone has looked
+                logger.error("Manual review needed: retries of payment {} gave up ({}) and the gateway has "
+                    + "no charge for it, marked {}", task.paymentId(), cause.getMessage(), PaymentStatus.UNKNOWN);
+            }
+        } else {
+            fail(task.paymentId(), result.getDeclineReason());
+        }
+    }
+
+    /**
+     * Complete a PENDING payment with an approved charge, or refund the charge if the
+     * payment was settled otherwise meanwhile
+     *
+     * @return true if the payment was completed
+     */
+    private boolean complete(long paymentId, String transactionId) {
+        Payment completed = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(shardRouter.shardForPayment(paymentId));
+            Payment current = paymentRepository.findById(paymentId).orElse(null);
+            if (current == null || current.getStatus() != PaymentStatus.PENDING) {
+                return null;
+            }
+            current.setTransactionId(transactionId);
+            current.setStatus(PaymentStatus.COMPLETED, clock.instant());
+            Payment saved = paymentRepository.save(current);
+            transactionIdIndex.indexAfterCommit(saved.getTransactionId(), saved.getId());
+            return saved;
+        });
+        if (completed == null) {
+            Payment current = load(paymentId);
+            if (current != null && transactionId.equals(current.getTransactionId())) {
+                // Settled with this very charge, e.g. by the sweeper after a lookup
+                return false;
+            }
+            refundOrphanedCharge(paymentId, transactionId);
+            return false;
+        }
+
+        notificationService.sendPaymentConfirmation(PaymentResponse.from(completed));
+        orderServiceClient.updateOrderAfterPayment(completed.getOrderId(), completed.getId());
+        return true;
+    }
+
+    private void refundOrphanedCharge(long paymentId, String transactionId) {
+        String reason;
+        try {
+            GatewayResult refund = paymentGatewayService.processRefund(transactionId);
+            if (refund.isApproved()) {
+                logger.warn("Payment {} was charged on retry but resolved meanwhile; charge {} refunded as {}",
+                    paymentId, transactionId, refund.getTransactionId());
+                return;
+            }
+            reason = refund.getDeclineReason();
+        } catch (PaymentProcessingException e) {
+            reason = e.getMessage();
+        }
+        orphanedCharges.increment();
+        logger.error("Manual review needed: payment {} was charged on retry as {} after being resolved, "
+            + "and the refund failed: {}", paymentId, transactionId, reason);
+    }
+
+    private Payment load(long paymentId) {
+        return writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(shardRouter.shardForPayment(paymentId));
+            return paymentRepository.findById(paymentId).orElse(null);
+        });
+    }
+
+    private void fail(long paymentId, String reason) {
+        Payment failed = settle(paymentId, PaymentStatus.FAILED);
+        if (failed != null) {
+            notificationService.sendPaymentFailureNotification(failed.getOrderId(), reason);
+        }
+    }
+
+    /**
+     * @return the payment moved from PENDING to the status, or null if it was no longer PENDING
+     */
+    private Payment settle(long paymentId, PaymentStatus target) {
+        return writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(shardRouter.shardForPayment(paymentId));
+            Payment current = paymentRepository.findById(paymentId).orElse(null);
+            if (current == null || current.getStatus() != PaymentStatus.PENDING) {
+                return null;
+            }
+            current.setStatus(target, clock.instant());
+            return paymentRepository.save(current);
+        });
+    }
+}
+
+// 7. Retry Configuration
+// RetryConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.retry.RetryProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(RetryProperties.class)
+public class RetryConfig {
+}
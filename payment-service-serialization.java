@@ -0,0 +1,396 @@
+// Precompiled JSON/CBOR Serialization for Payment Service
+
+// 1. Shared Field Writers
+// JsonFields.java
+package com.ecommerce.payment.json;
+
+import com.ecommerce.payment.model.Money;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Null-skipping field writers shared by the hand-written serializers.
+ * Output matches the application's Jackson settings (non_null inclusion,
+ * ISO-8601 dates) so the wire format is unchanged.
+ */
+final class JsonFields {
+
+    // Up to "9999-12-31T23:59:59.999999999Z"
+    static final int MAX_INSTANT_LENGTH = 30;
+
+    // 10000-01-01T00:00:00Z; later and pre-1970 instants go through DateTimeFormatter
+    private static final long MAX_FAST_EPOCH_SECOND = 253_402_300_800L;
+
+    private JsonFields() {
+    }
+
+    static void writeNumber(JsonGenerator gen, SerializableString name, Long value) throws IOException {
+        if (value != null) {
+            gen.writeFieldName(name);
+            gen.writeNumber(value.longValue());
+        }
+    }
+
+    static void writeMoney(JsonGenerator gen, SerializableString name, Money value) throws IOException {
+        if (value != null) {
+            gen.writeFieldName(name);
+            writeAmount(gen, value);
+        }
+    }
+
+    /**
+     * The amount as a JSON number with the currency's digits, as BigDecimal amounts were written
+     */
+    static void writeAmount(JsonGenerator gen, Money value) throws IOException {
+        if (value.getCurrency().getDefaultFractionDigits() == 0) {
+            gen.writeNumber(value.getMinorUnits());
+        } else if (gen.canWriteFormattedNumbers()) {
+            gen.writeNumber(value.toPlainString());
+        } else {
+            // Binary formats have no textual numbers
+            gen.writeNumber(value.toBigDecimal());
+        }
+    }
+
+    static void writeString(JsonGenerator gen, SerializableString name, String value) throws IOException {
+        if (value != null) {
+            gen.writeFieldName(name);
+            gen.writeString(value);
+        }
+    }
+
+    static void writeEnum(JsonGenerator gen, SerializableString name, Enum<?> value) throws IOException {
+        if (value != null) {
+            gen.writeFieldName(name);
+            gen.writeString(value.name());
+        }
+    }
+
+    static void writeDateTime(JsonGenerator gen, SerializableString name, LocalDateTime value) throws IOException {
+        if (value != null) {
+            gen.writeFieldName(name);
+            gen.writeString(DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(value));
+        }
+    }
+
+    static void writeInstant(JsonGenerator gen, SerializableString name, Instant value) throws IOException {
+        if (value != null) {
+            gen.writeFieldName(name);
+            long epochSecond = value.getEpochSecond();
+            if (epochSecond < 0 || epochSecond >= MAX_FAST_EPOCH_SECOND) {
+                gen.writeString(DateTimeFormatter.ISO_INSTANT.format(value));
+                return;
+            }
+            char[] buffer = new char[MAX_INSTANT_LENGTH];
+            gen.writeString(buffer, 0, formatInstant(epochSecond, value.getNano(), buffer));
+        }
+    }
+
+    /**
+     * Write an instant from 1970 to 9999 as DateTimeFormatter.ISO_INSTANT does, e.g.
+     * "2024-05-01T12:30:15.123Z", without the formatter's parsed-field map and StringBuilder
+     *
+     * @return number of chars written
+     */
+    static int formatInstant(long epochSecond, int nanos, char[] buffer) {
+        long epochDay = epochSecond / 86_400;
+        int secondOfDay = (int) (epochSecond % 86_400);
+
+        // Civil date from a day count, in 400-year eras starting March 1st
+        long days = epochDay + 719_468;
+        long era = days / 146_097;
+        int dayOfEra = (int) (days - era * 146_097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1_460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        writeDigits(buffer, 0, year, 4);
+        buffer[4] = '-';
+        writeDigits(buffer, 5, month, 2);
+        buffer[7] = '-';
+        writeDigits(buffer, 8, day, 2);
+        buffer[10] = 'T';
+        writeDigits(buffer, 11, secondOfDay / 3_600, 2);
+        buffer[13] = ':';
+        writeDigits(buffer, 14, secondOfDay / 60 % 60, 2);
+        buffer[16] = ':';
+        writeDigits(buffer, 17, secondOfDay % 60, 2);
+        int length = 19;
+        // Fractions in groups of three digits, as many as needed
+        if (nanos != 0) {
+            buffer[length++] = '.';
+            if (nanos % 1_000_000 == 0) {
+                writeDigits(buffer, length, nanos / 1_000_000, 3);
+                length += 3;
+            } else if (nanos % 1_000 == 0) {
+                writeDigits(buffer, length, nanos / 1_000, 6);
+                length += 6;
+            } else {
+                writeDigits(buffer, length, nanos, 9);
+                length += 9;
+            }
+        }
+        buffer[length++] = 'Z';
+        return length;
+    }
+
+    private static void writeDigits(char[] buffer, int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
+
+// 2. PaymentResponse Serializer
+// PaymentResponseSerializer.java
+package com.ecommerce.payment.json;
+
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import org.springframework.boot.jackson.JsonComponent;
+
+import java.io.IOException;
+
+/**
+ * Hand-written serializer for PaymentResponse, the body of every successful
+ * PaymentController call. Field names are pre-encoded once.
+ */
+@JsonComponent
+public class PaymentResponseSerializer extends StdSerializer<PaymentResponse> {
+
+    private static final SerializedString ID = new SerializedString("id");
+    private static final SerializedString ORDER_ID = new SerializedString("orderId");
+    private static final SerializedString AMOUNT = new SerializedString("amount");
+    private static final SerializedString CURRENCY = new SerializedString("currency");
+    private static final SerializedString TRANSACTION_ID = new SerializedString("transactionId");
+    private static final SerializedString PAYMENT_METHOD = new SerializedString("paymentMethod");
+    private static final SerializedString STATUS = new SerializedString("status");
+    private static final SerializedString CREATED_AT = new SerializedString("createdAt");
+    private static final SerializedString UPDATED_AT = new SerializedString("updatedAt");
+
+    public PaymentResponseSerializer() {
+        super(PaymentResponse.class);
+    }
+
+    @Override
+    public void serialize(PaymentResponse value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartObject(value);
+        JsonFields.writeNumber(gen, ID, value.getId());
+        JsonFields.writeNumber(gen, ORDER_ID, value.getOrderId());
+        JsonFields.writeMoney(gen, AMOUNT, value.getAmount());
+        if (value.getAmount() != null) {
+            JsonFields.writeString(gen, CURRENCY, value.getAmount().getCurrency().getCurrencyCode());
+        }
+        JsonFields.writeString(gen, TRANSACTION_ID, value.getTransactionId());
+        JsonFields.writeEnum(gen, PAYMENT_METHOD, value.getPaymentMethod());
+        JsonFields.writeEnum(gen, STATUS, value.getStatus());
+        JsonFields.writeInstant(gen, CREATED_AT, value.getCreatedAt());
+        JsonFields.writeInstant(gen, UPDATED_AT, value.getUpdatedAt());
+        gen.writeEndObject();
+    }
+}
+
+// 3. ErrorResponse Serializer
+// ErrorResponseSerializer.java
+package com.ecommerce.payment.json;
+
+import com.ecommerce.payment.exception.ErrorResponse;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import org.springframework.boot.jackson.JsonComponent;
+
+import java.io.IOException;
+
+/**
+ * Hand-written serializer for ErrorResponse bodies produced by GlobalExceptionHandler
+ */
+@JsonComponent
+public class ErrorResponseSerializer extends StdSerializer<ErrorResponse> {
+
+    private static final SerializedString STATUS = new SerializedString("status");
+    private static final SerializedString MESSAGE = new SerializedString("message");
+    private static final SerializedString TIMESTAMP = new SerializedString("timestamp");
+
+    public ErrorResponseSerializer() {
+        super(ErrorResponse.class);
+    }
+
+    @Override
+    public void serialize(ErrorResponse value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        gen.writeStartObject(value);
+        gen.writeFieldName(STATUS);
+        gen.writeNumber(value.getStatus());
+        JsonFields.writeString(gen, MESSAGE, value.getMessage());
+        JsonFields.writeDateTime(gen, TIMESTAMP, value.getTimestamp());
+        gen.writeEndObject();
+    }
+}
+
+// 4. Money Serializer
+// MoneySerializer.java
+package com.ecommerce.payment.json;
+
+import com.ecommerce.payment.model.Money;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import org.springframework.boot.jackson.JsonComponent;
+
+import java.io.IOException;
+
+/**
+ * Money as a plain JSON number, for types serialized by Jackson itself.
+ * The currency is a separate property of the enclosing object.
+ */
+@JsonComponent
+public class MoneySerializer extends StdSerializer<Money> {
+
+    public MoneySerializer() {
+        super(Money.class);
+    }
+
+    @Override
+    public void serialize(Money value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        JsonFields.writeAmount(gen, value);
+    }
+}
+
+// 5. PaymentRequest Deserializer
+// PaymentRequestDeserializer.java
+package com.ecommerce.payment.json;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import org.springframework.boot.jackson.JsonComponent;
+
+import java.io.IOException;
+import java.util.Currency;
+
+/**
+ * Hand-written deserializer for PaymentRequest, the body of every payment.
+ * The amount is parsed straight from the parser's buffer into hundredths and
+ * becomes Money once the currency, which may follow it, is known.
+ */
+@JsonComponent
+public class PaymentRequestDeserializer extends StdDeserializer<PaymentRequest> {
+
+    public PaymentRequestDeserializer() {
+        super(PaymentRequest.class);
+    }
+
+    @Override
+    public PaymentRequest deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        if (!p.isExpectedStartObjectToken()) {
+            return (PaymentRequest) ctxt.handleUnexpectedToken(PaymentRequest.class, p);
+        }
+        PaymentRequest request = new PaymentRequest();
+        long amount = 0;
+        boolean hasAmount = false;
+        Currency currency = Money.DEFAULT_CURRENCY;
+
+        for (String field = p.nextFieldName(); field != null; field = p.nextFieldName()) {
+            if (p.nextToken() == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "orderId" -> request.setOrderId(_parseLongPrimitive(p, ctxt));
+                case "amount" -> {
+                    amount = parseAmount(p);
+                    hasAmount = true;
+                }
+                case "currency" -> currency = parseCurrency(p, ctxt);
+                case "paymentMethod" -> request.setPaymentMethod(ctxt.readValue(p, PaymentMethod.class));
+                case "cardNumber" -> request.setCardNumber(text(p, ctxt));
+                case "cardHolderName" -> request.setCardHolderName(text(p, ctxt));
+                case "expiryDate" -> request.setExpiryDate(text(p, ctxt));
+                case "cvv" -> request.setCvv(text(p, ctxt));
+                case "paypalEmail" -> request.setPaypalEmail(text(p, ctxt));
+                default -> handleUnknownProperty(p, ctxt, request, field);
+            }
+        }
+
+        if (hasAmount) {
+            try {
+                request.setAmount(Money.ofUnscaled(amount, Money.STORAGE_SCALE, currency));
+            } catch (ArithmeticException e) {
+                throw InvalidFormatException.from(p, "Amount has more decimals than " + currency.getCurrencyCode()
+                    + " allows", amount, Money.class);
+            } catch (IllegalArgumentException e) {
+                throw InvalidFormatException.from(p, e.getMessage(), currency.getCurrencyCode(), Currency.class);
+            }
+        }
+        return request;
+    }
+
+    private static long parseAmount(JsonParser p) throws IOException {
+        JsonToken token = p.currentToken();
+        if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT
+            && token != JsonToken.VALUE_STRING) {
+            throw InvalidFormatException.from(p, "Amount must be a number", p.getText(), Money.class);
+        }
+        try {
+            return Money.parseUnscaled(p.getTextCharacters(), p.getTextOffset(), p.getTextLength(),
+                Money.STORAGE_SCALE);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw InvalidFormatException.from(p, "Invalid amount: " + e.getMessage(), p.getText(), Money.class);
+        }
+    }
+
+    private static Currency parseCurrency(JsonParser p, DeserializationContext ctxt) throws IOException {
+        String code = text(p, ctxt);
+        try {
+            return Currency.getInstance(code);
+        } catch (IllegalArgumentException e) {
+            throw InvalidFormatException.from(p, "Unknown currency: " + code, code, Currency.class);
+        }
+    }
+
+    private static String text(JsonParser p, DeserializationContext ctxt) throws IOException {
+        return p.hasToken(JsonToken.VALUE_STRING) ? p.getText() : ctxt.readValue(p, String.class);
+    }
+}
+
+// 6. Jackson Configuration
+// JacksonConfig.java
+package com.ecommerce.payment.config;
+
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Extra Jackson modules, picked up by Spring Boot's auto-configured ObjectMapper
+ */
+@Configuration
+public class JacksonConfig {
+
+    /**
+     * Replaces reflective getter/setter calls with generated lambdas for every
+     * type without a hand-written (de)serializer
+     */
+    @Bean
+    public Module blackbirdModule() {
+        return new BlackbirdModule();
+    }
+}
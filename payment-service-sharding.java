@@ -0,0 +1,889 @@
+// Sharded Payment Storage for Payment Service
+
+// 1. Payment ID Allocator
+// PaymentIdAllocator.java
+package com.ecommerce.payment.shard;
+
+import java.time.Clock;
+
+/**
+ * Allocates 53-bit payment IDs that carry the shard they were written to,
+ * so a payment can be found from its ID alone without querying every shard.
+ *
+ * Layout (high to low): 1 marker bit, always set, 31 bits seconds since
+ * 2024-01-01T00:00:00Z, 6 bits shard, 5 bits node, 10 bits per-second sequence.
+ * IDs stay within 2^53 so they are exact as JavaScript numbers. The marker bit
+ * tells them apart from auto-increment IDs written before sharding, which are
+ * all below 2^52.
+ *
+ * When a node allocates more than 1024 IDs for a shard within one second, the
+ * timestamp borrows from the next second instead of blocking; it catches up
+ * with the clock once the burst is over.
+ *
+ * The node ID is assigned by NodeIdLease for as long as this instance holds it,
+ * together with the seconds to continue above and how far ahead of the clock
+ * borrowing may run.
+ */
+public class PaymentIdAllocator {
+
+    public static final int MAX_SHARDS = 64;
+    public static final int MAX_NODES = 32;
+
+    static final long EPOCH_SECONDS = 1_704_067_200L;
+    static final int SEQUENCE_BITS = 10;
+    static final int NODE_BITS = 5;
+    static final int SHARD_BITS = 6;
+    static final int TIMESTAMP_BITS = 31;
+    static final int SHARD_SHIFT = SEQUENCE_BITS + NODE_BITS;
+    static final int TIMESTAMP_SHIFT = SHARD_SHIFT + SHARD_BITS;
+    static final long MARKER = 1L << (TIMESTAMP_SHIFT + TIMESTAMP_BITS);
+
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_SECOND = (1L << TIMESTAMP_BITS) - 1;
+    private static final int UNASSIGNED = -1;
+
+    private final Clock clock;
+    private final long[] lastSecond;
+    private final long[] sequence;
+
+    private int nodeId = UNASSIGNED;
+    private long maxLeadSeconds;
+    private long validUntilMillis;
+
+    /**
+     * An allocator that allocates nothing until a node ID is assigned
+     *
+     * @param clock time source
+     */
+    public PaymentIdAllocator(Clock clock) {
+        this.clock = clock;
+        this.lastSecond = new long[MAX_SHARDS];
+        this.sequence = new long[MAX_SHARDS];
+    }
+
+    /**
+     * An allocator with a fixed node ID and no bound on borrowing
+     *
+     * @param nodeId identifier of this instance, unique among instances writing to the same shards
+     * @param clock time source
+     */
+    public PaymentIdAllocator(int nodeId, Clock clock) {
+        this(clock);
+        assign(nodeId, 0, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Start allocating with a node ID
+     *
+     * @param nodeId identifier of this instance, unique among instances writing to the same shards
+     * @param afterSecond highest second earlier holders of the node ID allocated from; IDs continue above it
+     * @param maxLeadSeconds how many seconds the timestamp may borrow ahead of the clock
+     * @param validUntilMillis epoch millisecond at which allocation stops unless extended
+     */
+    public synchronized void assign(int nodeId, long afterSecond, long maxLeadSeconds, long validUntilMillis) {
+        if (nodeId < 0 || nodeId >= MAX_NODES) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + (MAX_NODES - 1) + ": " + nodeId);
+        }
+        this.nodeId = nodeId;
+        this.maxLeadSeconds = maxLeadSeconds;
+        this.validUntilMillis = validUntilMillis;
+        for (int shard = 0; shard < MAX_SHARDS; shard++) {
+            // The next ID of every shard borrows afterSecond + 1 unless the clock is already past it
+            lastSecond[shard] = afterSecond;
+            sequence[shard] = MAX_SEQUENCE;
+        }
+    }
+
+    /**
+     * Keep allocating with the current node ID until the given time
+     */
+    public synchronized void extend(long validUntilMillis) {
+        this.validUntilMillis = validUntilMillis;
+    }
+
+    /**
+     * Stop allocating; the node ID may be handed to another instance
+     *
+     * @return highest second allocated from with the node ID
+     */
+    public synchronized long revoke() {
+        nodeId = UNASSIGNED;
+        return highWaterSecond();
+    }
+
+    /**
+     * @return highest second allocated from so far
+     */
+    public synchronized long highWaterSecond() {
+        long highest = 0;
+        for (long second : lastSecond) {
+            highest = Math.max(highest, second);
+        }
+        return highest;
+    }
+
+    /**
+     * Allocate the next payment ID for a shard
+     *
+     * @param shard the shard the payment is stored on
+     * @return a new unique payment ID
+     * @throws IllegalStateException if this instance holds no node ID or has borrowed as far ahead as it may
+     */
+    public synchronized long next(int shard) {
+        if (shard < 0 || shard >= MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard must be between 0 and " + (MAX_SHARDS - 1) + ": " + shard);
+        }
+        long now = clock.millis();
+        if (nodeId == UNASSIGNED || now >= validUntilMillis) {
+            throw new IllegalStateException("No payment node ID is held, cannot allocate payment IDs");
+        }
+
+        long second = now / 1000 - EPOCH_SECONDS;
+        if (second > lastSecond[shard]) {
+            lastSecond[shard] = second;
+            sequence[shard] = 0;
+        } else if (++sequence[shard] > MAX_SEQUENCE) {
+            // Sequence exhausted (or clock moved back): borrow the next second
+            if (lastSecond[shard] + 1 - second > maxLeadSeconds) {
+                sequence[shard] = MAX_SEQUENCE;
+                throw new IllegalStateException("Payment IDs of shard " + shard + " are allocated "
+                    + maxLeadSeconds + " seconds ahead of the clock");
+            }
+            lastSecond[shard]++;
+            sequence[shard] = 0;
+        }
+        if (lastSecond[shard] > MAX_SECOND) {
+            throw new IllegalStateException("Payment ID timestamp overflow");
+        }
+
+        return MARKER
+            | (lastSecond[shard] << TIMESTAMP_SHIFT)
+            | ((long) shard << SHARD_SHIFT)
+            | ((long) nodeId << SEQUENCE_BITS)
+            | sequence[shard];
+    }
+
+    /**
+     * Decode the shard from a payment ID.
+     * IDs without the marker bit (auto-increment values from before sharding)
+     * belong to shard 0, which is the original database.
+     *
+     * @param paymentId the payment ID
+     * @return the shard the payment is stored on
+     */
+    public static int shardOf(long paymentId) {
+        if ((paymentId & MARKER) == 0) {
+            return 0;
+        }
+        return (int) ((paymentId >>> SHARD_SHIFT) & (MAX_SHARDS - 1));
+    }
+}
+
+// NodeIdLease.java
+package com.ecommerce.payment.shard;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leases this instance's node ID from payment_node_lease on the first shard and hands
+ * it to the PaymentIdAllocator, so no two running instances allocate with the same one.
+ *
+ * A node ID is free once its lease has expired. Its row keeps the highest second the
+ * holder allocated from, written at every renewal and on release, and the next holder
+ * continues above it; so a restart within the same second, or after borrowing ahead,
+ * does not repeat IDs. If the holder dies between renewals, its last IDs may be above
+ * the recorded second. It allocates only until half the lease has passed without a
+ * renewal, and borrows at most a third of the lease ahead, so those IDs stay below the
+ * seconds of anyone taking the expired lease. As with the sweeper leases, the instances'
+ * clocks must not drift by anything close to the lease duration.
+ */
+public class NodeIdLease implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodeIdLease.class);
+
+    static final int CONTROL_SHARD = 0;
+
+    private final PaymentIdAllocator allocator;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate writeTransaction;
+    private final String owner = UUID.randomUUID().toString();
+    private final long durationMillis;
+
+    private volatile ScheduledExecutorService scheduler;
+    private volatile int nodeId = -1;
+
+    public NodeIdLease(PaymentIdAllocator allocator, JdbcTemplate jdbcTemplate, TransactionTemplate writeTransaction,
+                       long durationMillis) {
+        this.allocator = allocator;
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeTransaction = writeTransaction;
+        this.durationMillis = durationMillis;
+    }
+
+    @Override
+    public void start() {
+        claim();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-node-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = durationMillis / 3;
+        scheduler.scheduleWithFixedDelay(this::renewQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService current = scheduler;
+        if (current == null) {
+            return;
+        }
+        current.shutdownNow();
+        long highWaterSecond = allocator.revoke();
+        try {
+            // Free the node ID now, so a replacement instance need not wait the lease out
+            writeTransaction.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(CONTROL_SHARD);
+                jdbcTemplate.update("UPDATE payment_node_lease SET expires_at = ?, high_water_second = ? "
+                    + "WHERE node_id = ? AND owner = ?",
+                    new Timestamp(System.currentTimeMillis()), highWaterSecond, nodeId, owner);
+            });
+        } catch (RuntimeException e) {
+            logger.warn("Could not release payment node ID {}; it is free once the lease expires", nodeId, e);
+        }
+        scheduler = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return scheduler != null;
+    }
+
+    @Override
+    public int getPhase() {
+        // Before anything that may create payments, the web server included
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * @return the node ID held, or -1 if none
+     */
+    public int nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Take the lowest node ID whose lease has expired or that was never leased
+     *
+     * @throws IllegalStateException if every node ID is held by a running instance
+     */
+    void claim() {
+        for (int candidate = 0; candidate < PaymentIdAllocator.MAX_NODES; candidate++) {
+            long now = System.currentTimeMillis();
+            Long highWaterSecond = take(candidate, now);
+            if (highWaterSecond != null) {
+                nodeId = candidate;
+                allocator.assign(candidate, highWaterSecond, durationMillis / 3000, now + durationMillis / 2);
+                logger.info("Allocating payment IDs as node {} (lease owner {})", candidate, owner);
+                return;
+            }
+        }
+        throw new IllegalStateException("All " + PaymentIdAllocator.MAX_NODES
+            + " payment node IDs are leased by running instances");
+    }
+
+    /**
+     * @return the high-water second of the node ID if this instance took its lease, otherwise null
+     */
+    private Long take(int candidate, long now) {
+        Timestamp expiresAt = new Timestamp(now + durationMillis);
+        Long taken = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            int updated = jdbcTemplate.update("UPDATE payment_node_lease SET owner = ?, expires_at = ? "
+                + "WHERE node_id = ? AND expires_at < ?", owner, expiresAt, candidate, new Timestamp(now));
+            if (updated == 0) {
+                return null;
+            }
+            return jdbcTemplate.queryForObject("SELECT high_water_second FROM payment_node_lease WHERE node_id = ?",
+                Long.class, candidate);
+        });
+        if (taken != null) {
+            return taken;
+        }
+
+        try {
+            writeTransaction.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(CONTROL_SHARD);
+                jdbcTemplate.update("INSERT INTO payment_node_lease (node_id, owner, expires_at, high_water_second) "
+                    + "VALUES (?, ?, ?, 0)", candidate, owner, expiresAt);
+            });
+            return 0L;
+        } catch (DuplicateKeyException e) {
+            // Held by another instance
+            return null;
+        }
+    }
+
+    void renew() {
+        long now = System.currentTimeMillis();
+        long highWaterSecond = allocator.highWaterSecond();
+        Integer renewed = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            return jdbcTemplate.update("UPDATE payment_node_lease SET expires_at = ?, high_water_second = ? "
+                + "WHERE node_id = ? AND owner = ?",
+                new Timestamp(now + durationMillis), highWaterSecond, nodeId, owner);
+        });
+        if (renewed != null && renewed > 0) {
+            allocator.extend(now + durationMillis / 2);
+            return;
+        }
+
+        // Not renewed for the whole lease and taken over meanwhile
+        allocator.revoke();
+        logger.error("Lost the lease of payment node ID {}, claiming another", nodeId);
+        nodeId = -1;
+        claim();
+    }
+
+    private void renewQuietly() {
+        try {
+            renew();
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule; allocation stops once half the lease has passed
+            logger.warn("Could not renew the lease of payment node ID {}", nodeId, e);
+        }
+    }
+}
+
+// PaymentNodeLease.java
+package com.ecommerce.payment.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import org.hibernate.annotations.Immutable;
+
+import java.time.LocalDateTime;
+
+/**
+ * A row of payment_node_lease, mapped so that ddl-auto creates the table where Flyway
+ * does not run (V10 creates it otherwise). Written only by NodeIdLease; read-only for JPA.
+ */
+@Entity
+@Immutable
+@Table(name = "payment_node_lease")
+public class PaymentNodeLease {
+
+    @Id
+    private Integer nodeId;
+
+    @Column(nullable = false, length = 64)
+    private String owner;
+
+    @Column(nullable = false)
+    private LocalDateTime expiresAt;
+
+    private long highWaterSecond;
+
+    protected PaymentNodeLease() {
+    }
+
+    public Integer getNodeId() {
+        return nodeId;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+
+    public long getHighWaterSecond() {
+        return highWaterSecond;
+    }
+}
+
+// 2. Shard Router
+// ShardRouter.java
+package com.ecommerce.payment.shard;
+
+/**
+ * Maps orders and payment IDs to shards.
+ *
+ * Orders are placed by a hash of the order ID, so all payments of an order share
+ * a shard. The shard count is fixed once data has been written: changing it moves
+ * orders to other shards and requires a data migration.
+ */
+public class ShardRouter {
+
+    private final int shardCount;
+
+    public ShardRouter(int shardCount) {
+        if (shardCount < 1 || shardCount > PaymentIdAllocator.MAX_SHARDS) {
+            throw new IllegalArgumentException(
+                "Shard count must be between 1 and " + PaymentIdAllocator.MAX_SHARDS + ": " + shardCount);
+        }
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * @param orderId the order ID
+     * @return the shard holding the order's payments
+     */
+    public int shardForOrder(long orderId) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        long hash = orderId * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 32;
+        return (int) Math.floorMod(hash, (long) shardCount);
+    }
+
+    /**
+     * @param paymentId the payment ID
+     * @return the shard holding the payment, or -1 if the ID points at a shard that does not exist
+     */
+    public int shardForPayment(long paymentId) {
+        int shard = PaymentIdAllocator.shardOf(paymentId);
+        return shard < shardCount ? shard : -1;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+}
+
+// 3. Shard Context
+// ShardContext.java
+package com.ecommerce.payment.shard;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Shard of the current transaction, read by ShardRoutingDataSource when the
+ * transaction first touches the database. A transaction works on exactly one shard.
+ */
+public final class ShardContext {
+
+    private static final ThreadLocal<Integer> CURRENT = new ThreadLocal<>();
+
+    private ShardContext() {
+    }
+
+    /**
+     * Bind the current transaction to a shard until it completes.
+     * Must be called before the transaction's first statement.
+     *
+     * @param shard the shard to use
+     */
+    public static void bindToTransaction(int shard) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Shard can only be bound inside a transaction");
+        }
+
+        Integer current = CURRENT.get();
+        if (current != null) {
+            if (current != shard) {
+                throw new IllegalStateException(
+                    "Transaction is bound to shard " + current + ", cannot switch to shard " + shard);
+            }
+            return;
+        }
+
+        CURRENT.set(shard);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                CURRENT.remove();
+            }
+        });
+    }
+
+    /**
+     * @return the shard bound to the current transaction, or null if none
+     */
+    public static Integer current() {
+        return CURRENT.get();
+    }
+}
+
+// 4. Shard Routing Data Source
+// ShardRoutingDataSource.java
+package com.ecommerce.payment.shard;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes each transaction to the data source of the shard bound in ShardContext.
+ *
+ * Connections requested without a bound shard (schema validation and metadata
+ * lookups at startup) go to shard 0. Like ReadReplicaRoutingDataSource it must be
+ * wrapped in a LazyConnectionDataSourceProxy, so the shard is chosen at the first
+ * statement rather than when the transaction begins.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+    private final List<? extends DataSource> shards;
+
+    public ShardRoutingDataSource(List<? extends DataSource> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = shards;
+
+        Map<Object, Object> targets = new HashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            targets.put(i, shards.get(i));
+        }
+
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(shards.get(0));
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return ShardContext.current();
+    }
+
+    /**
+     * @param shard the shard index
+     * @return the data source of a single shard
+     */
+    public DataSource getShard(int shard) {
+        return shards.get(shard);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Close the underlying connection pools on shutdown
+     */
+    @Override
+    public void close() throws Exception {
+        for (DataSource shard : shards) {
+            if (shard instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        }
+    }
+}
+
+// 5. Hibernate ID Generator
+// ShardedPaymentId.java
+package com.ecommerce.payment.shard;
+
+import org.hibernate.annotations.IdGeneratorType;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the payment ID as allocated by PaymentIdAllocator on the shard of the payment's order
+ */
+@IdGeneratorType(ShardedPaymentIdGenerator.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface ShardedPaymentId {
+}
+
+// ShardedPaymentIdGenerator.java
+package com.ecommerce.payment.shard;
+
+import com.ecommerce.payment.model.Payment;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.factory.spi.CustomIdGeneratorCreationContext;
+import org.hibernate.resource.beans.container.spi.BeanContainer;
+import org.hibernate.resource.beans.container.spi.ContainedBean;
+import org.hibernate.resource.beans.spi.BeanInstanceProducer;
+import org.hibernate.resource.beans.spi.ManagedBeanRegistry;
+
+import java.lang.reflect.Member;
+
+/**
+ * Hibernate generator delegating to the application's PaymentIdAllocator and ShardRouter.
+ * Both are looked up as Spring singletons through Hibernate's bean container, so IDs
+ * allocated here and elsewhere in the application never collide.
+ */
+public class ShardedPaymentIdGenerator implements IdentifierGenerator {
+
+    private static final BeanContainer.LifecycleOptions SINGLETON_LOOKUP = new BeanContainer.LifecycleOptions() {
+        @Override
+        public boolean canUseCachedReferences() {
+            return true;
+        }
+
+        @Override
+        public boolean useJpaCompliantCreation() {
+            return false;
+        }
+    };
+
+    private static final BeanInstanceProducer NO_FALLBACK = new BeanInstanceProducer() {
+        @Override
+        public <B> B produceBeanInstance(Class<B> beanType) {
+            throw new IllegalStateException("No " + beanType.getSimpleName() + " bean available to Hibernate");
+        }
+
+        @Override
+        public <B> B produceBeanInstance(String name, Class<B> beanType) {
+            return produceBeanInstance(beanType);
+        }
+    };
+
+    private final BeanContainer beanContainer;
+    private volatile PaymentIdAllocator allocator;
+    private volatile ShardRouter router;
+
+    public ShardedPaymentIdGenerator(ShardedPaymentId config, Member member, CustomIdGeneratorCreationContext context) {
+        this.beanContainer = context.getServiceRegistry().getService(ManagedBeanRegistry.class).getBeanContainer();
+        if (beanContainer == null) {
+            throw new IllegalStateException("Sharded payment IDs require Hibernate to run with a Spring bean container");
+        }
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object object) {
+        if (allocator == null) {
+            // Resolved on first use: the beans may not exist yet while the EntityManagerFactory is built
+            router = lookup(ShardRouter.class);
+            allocator = lookup(PaymentIdAllocator.class);
+        }
+
+        Payment payment = (Payment) object;
+        return allocator.next(router.shardForOrder(payment.getOrderId()));
+    }
+
+    private <T> T lookup(Class<T> type) {
+        ContainedBean<T> bean = beanContainer.getBean(type, SINGLETON_LOOKUP, NO_FALLBACK);
+        return bean.getBeanInstance();
+    }
+}
+
+// 6. Configuration Properties
+// ShardingProperties.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.datasource.DataSourceEndpoint;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shard topology, bound from payment.sharding.*
+ * Shard order is significant: the index of a shard in the list is encoded in payment IDs.
+ */
+@ConfigurationProperties(prefix = "payment.sharding")
+public class ShardingProperties {
+
+    private boolean enabled = false;
+    private Duration nodeLeaseDuration = Duration.ofMinutes(1);
+    private List<Shard> shards = new ArrayList<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Duration getNodeLeaseDuration() {
+        return nodeLeaseDuration;
+    }
+
+    public void setNodeLeaseDuration(Duration nodeLeaseDuration) {
+        this.nodeLeaseDuration = nodeLeaseDuration;
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public void setShards(List<Shard> shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * One shard: a primary and optional read replicas
+     */
+    public static class Shard {
+
+        private DataSourceEndpoint primary = new DataSourceEndpoint();
+        private List<DataSourceEndpoint> replicas = new ArrayList<>();
+
+        public DataSourceEndpoint getPrimary() {
+            return primary;
+        }
+
+        public void setPrimary(DataSourceEndpoint primary) {
+            this.primary = primary;
+        }
+
+        public List<DataSourceEndpoint> getReplicas() {
+            return replicas;
+        }
+
+        public void setReplicas(List<DataSourceEndpoint> replicas) {
+            this.replicas = replicas;
+        }
+    }
+}
+
+// 7. Sharding Configuration
+// ShardingConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.shard.NodeIdLease;
+import com.ecommerce.payment.shard.PaymentIdAllocator;
+import com.ecommerce.payment.shard.ShardRouter;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.time.Clock;
+
+/**
+ * Payment ID allocation and shard mapping. Always active: with sharding disabled
+ * there is a single shard and IDs are still allocated by the application, with
+ * the node ID leased from the database.
+ */
+@Configuration
+@EnableConfigurationProperties(ShardingProperties.class)
+public class ShardingConfig {
+
+    @Bean
+    public ShardRouter shardRouter(ShardingProperties properties) {
+        return new ShardRouter(properties.isEnabled() ? properties.getShards().size() : 1);
+    }
+
+    @Bean
+    public PaymentIdAllocator paymentIdAllocator() {
+        return new PaymentIdAllocator(Clock.systemUTC());
+    }
+
+    @Bean
+    public NodeIdLease nodeIdLease(PaymentIdAllocator paymentIdAllocator, DataSource dataSource,
+                                   PlatformTransactionManager transactionManager, ShardingProperties properties) {
+        return new NodeIdLease(paymentIdAllocator, new JdbcTemplate(dataSource),
+            new TransactionTemplate(transactionManager), properties.getNodeLeaseDuration().toMillis());
+    }
+}
+
+// ShardedDataSourceConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.datasource.DataSourceEndpoint;
+import com.ecommerce.payment.datasource.ReadReplicaRoutingDataSource;
+import com.ecommerce.payment.datasource.ReadYourWritesFilter;
+import com.ecommerce.payment.shard.ShardRoutingDataSource;
+import com.zaxxer.hikari.HikariDataSource;
+import org.flywaydb.core.Flyway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the single auto-configured DataSource with one pool per shard
+ * (each with optional replicas) when payment.sharding.enabled=true
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "payment.sharding", name = "enabled", havingValue = "true")
+@EnableConfigurationProperties(ReadReplicaProperties.class)
+public class ShardedDataSourceConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedDataSourceConfig.class);
+
+    @Bean(destroyMethod = "close")
+    public ShardRoutingDataSource shardRoutingDataSource(ShardingProperties properties) {
+        List<ReadReplicaRoutingDataSource> shards = new ArrayList<>();
+        for (int i = 0; i < properties.getShards().size(); i++) {
+            ShardingProperties.Shard shard = properties.getShards().get(i);
+            HikariDataSource primary = shard.getPrimary().createDataSource("payment-shard-" + i);
+
+            List<HikariDataSource> replicas = new ArrayList<>();
+            List<DataSourceEndpoint> endpoints = shard.getReplicas();
+            for (int j = 0; j < endpoints.size(); j++) {
+                replicas.add(endpoints.get(j).createDataSource("payment-shard-" + i + "-replica-" + j));
+            }
+
+            shards.add(new ReadReplicaRoutingDataSource(primary, replicas));
+        }
+
+        return new ShardRoutingDataSource(shards);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ShardRoutingDataSource shardRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(shardRoutingDataSource);
+    }
+
+    /**
+     * Apply the same migrations to every shard instead of only the default one
+     */
+    @Bean
+    public FlywayMigrationStrategy shardedFlywayMigrationStrategy(ShardRoutingDataSource shardRoutingDataSource) {
+        return flyway -> {
+            for (int i = 0; i < shardRoutingDataSource.getShardCount(); i++) {
+                logger.info("Migrating payment shard {}", i);
+                Flyway.configure()
+                    .configuration(flyway.getConfiguration())
+                    .dataSource(shardRoutingDataSource.getShard(i))
+                    .load()
+                    .migrate();
+            }
+        };
+    }
+
+    @Bean
+    public FilterRegistrationBean<ReadYourWritesFilter> readYourWritesFilter(ReadReplicaProperties properties) {
+        FilterRegistrationBean<ReadYourWritesFilter> registration =
+            new FilterRegistrationBean<>(new ReadYourWritesFilter(properties.getReadYourWritesWindow()));
+        registration.addUrlPatterns("/api/*");
+        return registration;
+    }
+}
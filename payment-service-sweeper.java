@@ -0,0 +1,643 @@
+// Stuck Payment Sweeper for Payment Service
+
+// 1. Sweeper Configuration Properties
+// SweeperProperties.java
+package com.ecommerce.payment.sweeper;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * Stuck-payment sweeper settings, bound from payment.sweeper.*
+ */
+@ConfigurationProperties(prefix = "payment.sweeper")
+public class SweeperProperties {
+
+    private boolean enabled = true;
+    private Duration interval = Duration.ofMinutes(1);
+    private Duration processingTimeout = Duration.ofMinutes(10);
+    private Duration pendingTimeout = Duration.ofMinutes(30);
+    private int pageSize = 200;
+    private int gatewayConcurrency = 8;
+    private Duration leaseDuration = Duration.ofMinutes(5);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Duration getInterval() {
+        return interval;
+    }
+
+    public void setInterval(Duration interval) {
+        this.interval = interval;
+    }
+
+    public Duration getProcessingTimeout() {
+        return processingTimeout;
+    }
+
+    public void setProcessingTimeout(Duration processingTimeout) {
+        this.processingTimeout = processingTimeout;
+    }
+
+    public Duration getPendingTimeout() {
+        return pendingTimeout;
+    }
+
+    public void setPendingTimeout(Duration pendingTimeout) {
+        this.pendingTimeout = pendingTimeout;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public int getGatewayConcurrency() {
+        return gatewayConcurrency;
+    }
+
+    public void setGatewayConcurrency(int gatewayConcurrency) {
+        this.gatewayConcurrency = gatewayConcurrency;
+    }
+
+    public Duration getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public void setLeaseDuration(Duration leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+}
+
+// 2. Sweep Leases
+// PaymentSweepLease.java
+package com.ecommerce.payment.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import org.hibernate.annotations.Immutable;
+
+import java.time.LocalDateTime;
+
+/**
+ * Which node sweeps a shard for stuck payments, until when. Written only by SweepLeases;
+ * mapped so ddl-auto creates the table where Flyway does not run.
+ */
+@Entity
+@Immutable
+@Table(name = "payment_sweep_lease")
+public class PaymentSweepLease {
+
+    @Id
+    private Integer shardId;
+
+    @Column(nullable = false, length = 64)
+    private String owner;
+
+    @Column(nullable = false)
+    private LocalDateTime expiresAt;
+
+    protected PaymentSweepLease() {
+    }
+
+    public Integer getShardId() {
+        return shardId;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+}
+
+// SweepLeases.java
+package com.ecommerce.payment.sweeper;
+
+import com.ecommerce.payment.shard.ShardContext;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Clock;
+
+/**
+ * One lease row per shard in payment_sweep_lease, on the first shard.
+ *
+ * The holder renews its lease while it sweeps and keeps it between sweeps; another
+ * node takes a shard over once the lease has not been renewed for its duration.
+ * Expiry is compared using the nodes' clocks, so these must not drift by anything
+ * close to the lease duration.
+ */
+class SweepLeases {
+
+    static final int CONTROL_SHARD = 0;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate writeTransaction;
+    private final String owner;
+    private final long durationMillis;
+    private final Clock clock;
+
+    SweepLeases(JdbcTemplate jdbcTemplate, TransactionTemplate writeTransaction, String owner, long durationMillis,
+                Clock clock) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeTransaction = writeTransaction;
+        this.owner = owner;
+        this.durationMillis = durationMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Fail at startup rather than on every sweep when the lease table is missing
+     *
+     * @throws IllegalStateException if payment_sweep_lease cannot be read
+     */
+    void checkTable() {
+        try {
+            writeTransaction.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(CONTROL_SHARD);
+                jdbcTemplate.queryForObject("SELECT COUNT(*) FROM payment_sweep_lease", Integer.class);
+            });
+        } catch (DataAccessException e) {
+            throw new IllegalStateException("Stuck-payment sweeper needs table payment_sweep_lease on shard "
+                + CONTROL_SHARD + "; apply the migrations or set payment.sweeper.enabled=false", e);
+        }
+    }
+
+    /**
+     * Take or renew the lease of a shard
+     *
+     * @return true if this node holds the lease until its duration has passed
+     */
+    boolean acquire(int shard) {
+        long now = clock.millis();
+        Timestamp expiresAt = new Timestamp(now + durationMillis);
+        Integer renewed = writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            return jdbcTemplate.update("UPDATE payment_sweep_lease SET owner = ?, expires_at = ? "
+                + "WHERE shard_id = ? AND (owner = ? OR expires_at < ?)",
+                owner, expiresAt, shard, owner, new Timestamp(now));
+        });
+        if (renewed != null && renewed > 0) {
+            return true;
+        }
+
+        try {
+            writeTransaction.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(CONTROL_SHARD);
+                jdbcTemplate.update("INSERT INTO payment_sweep_lease (shard_id, owner, expires_at) VALUES (?, ?, ?)",
+                    shard, owner, expiresAt);
+            });
+            return true;
+        } catch (DuplicateKeyException e) {
+            // Held by another node
+            return false;
+        }
+    }
+
+    /**
+     * Let the leases of this node expire now, so other nodes need not wait them out
+     */
+    void releaseAll() {
+        writeTransaction.executeWithoutResult(status -> {
+            ShardContext.bindToTransaction(CONTROL_SHARD);
+            jdbcTemplate.update("UPDATE payment_sweep_lease SET expires_at = ? WHERE owner = ?",
+                new Timestamp(clock.millis()), owner);
+        });
+    }
+
+    String owner() {
+        return owner;
+    }
+}
+
+// 3. Stuck Payment Sweeper
+// StuckPaymentSweeper.java
+package com.ecommerce.payment.sweeper;
+
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.UtcDateTime;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Settles payments stuck in PROCESSING or PENDING, such as those of a node that died
+ * during the gateway call or a retry that could not be journaled.
+ *
+ * Each shard is scanned oldest first over ix_payment_status_updated_at with keyset
+ * pagination, so a sweep reads only the stuck rows however large the table is. Every
+ * stuck payment is looked up at the gateway by its idempotency key on a bounded pool:
+ * an approved charge completes the payment and a declined one fails it. When the gateway
+ * has no charge for the key, the request may never have reached it or may have been lost
+ * on its side, so the payment is marked UNKNOWN for manual review rather than failed.
+ * A gateway error leaves the payment for the next sweep.
+ *
+ * A node sweeps a shard only while it holds the shard's lease. Should leases of two
+ * nodes still overlap, the lookups are read-only and every update is guarded by the
+ * status and updated_at that were read, so each payment is settled once.
+ */
+public class StuckPaymentSweeper implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(StuckPaymentSweeper.class);
+
+    // Before every updated_at; payment IDs are positive
+    private static final Instant SCAN_START = Instant.EPOCH;
+
+    private final PaymentRepository paymentRepository;
+    private final ShardRouter shardRouter;
+    private final PaymentGatewayService paymentGatewayService;
+    private final PaymentNotificationService notificationService;
+    private final OrderServiceClient orderServiceClient;
+    private final TransactionIdIndex transactionIdIndex;
+    private final ApplicationEventPublisher eventPublisher;
+    private final SweeperProperties properties;
+    private final Clock clock;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readTransaction;
+    private final TransactionTemplate writeTransaction;
+    private final SweepLeases leases;
+    private final Counter completed;
+    private final Counter failed;
+    private final Counter unknown;
+    private final Counter unresolved;
+
+    private volatile ScheduledExecutorService scheduler;
+    private volatile ExecutorService gatewayWorkers;
+    private volatile boolean stopping;
+
+    public StuckPaymentSweeper(DataSource dataSource, PlatformTransactionManager transactionManager,
+                               PaymentRepository paymentRepository, ShardRouter shardRouter,
+                               PaymentGatewayService paymentGatewayService,
+                               PaymentNotificationService notificationService,
+                               OrderServiceClient orderServiceClient, TransactionIdIndex transactionIdIndex,
+                               ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry,
+                               SweeperProperties properties, Clock clock) {
+        this.paymentRepository = paymentRepository;
+        this.shardRouter = shardRouter;
+        this.paymentGatewayService = paymentGatewayService;
+        this.notificationService = notificationService;
+        this.orderServiceClient = orderServiceClient;
+        this.transactionIdIndex = transactionIdIndex;
+        this.eventPublisher = eventPublisher;
+        this.properties = properties;
+        this.clock = clock;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.writeTransaction = new TransactionTemplate(transactionManager);
+        this.leases = new SweepLeases(jdbcTemplate, writeTransaction, UUID.randomUUID().toString(),
+            properties.getLeaseDuration().toMillis(), clock);
+        this.completed = Counter.builder("payment.sweeper.payments").tag("result", "completed").register(meterRegistry);
+        this.failed = Counter.builder("payment.sweeper.payments").tag("result", "failed").register(meterRegistry);
+        this.unknown = Counter.builder("payment.sweeper.payments").tag("result", "unknown").register(meterRegistry);
+        this.unresolved = Counter.builder("payment.sweeper.payments").tag("result", "unresolved")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Sweep every shard this node holds or can take the lease of
+     *
+     * @return number of payments settled
+     */
+    public int sweep() {
+        Instant now = clock.instant();
+        Instant processingCutoff = now.minus(properties.getProcessingTimeout());
+        Instant pendingCutoff = now.minus(properties.getPendingTimeout());
+
+        int settled = 0;
+        for (int shard = 0; shard < shardRouter.getShardCount() && !stopping; shard++) {
+            settled += sweep(shard, PaymentStatus.PROCESSING, processingCutoff);
+            settled += sweep(shard, PaymentStatus.PENDING, pendingCutoff);
+        }
+        if (settled > 0) {
+            logger.info("Stuck-payment sweep settled {} payments in {} ms", settled,
+                clock.millis() - now.toEpochMilli());
+        }
+        return settled;
+    }
+
+    @Override
+    public void start() {
+        leases.checkTable();
+        stopping = false;
+        AtomicInteger threadCount = new AtomicInteger();
+        gatewayWorkers = Executors.newFixedThreadPool(properties.getGatewayConcurrency(), runnable -> {
+            Thread thread = new Thread(runnable, "payment-sweeper-gateway-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = properties.getInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::sweepQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        logger.info("Stuck-payment sweeper started as lease owner {}", leases.owner());
+    }
+
+    @Override
+    public void stop() {
+        ScheduledExecutorService current = scheduler;
+        if (current == null) {
+            return;
+        }
+        // The page in progress is finished first
+        stopping = true;
+        current.shutdown();
+        try {
+            current.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        gatewayWorkers.shutdown();
+        try {
+            leases.releaseAll();
+        } catch (RuntimeException e) {
+            logger.warn("Could not release sweeper leases; other nodes take over when they expire", e);
+        }
+        scheduler = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return scheduler != null;
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule
+            logger.error("Stuck-payment sweep failed", e);
+        }
+    }
+
+    private int sweep(int shard, PaymentStatus status, Instant cutoff) {
+        Instant afterUpdatedAt = SCAN_START;
+        long afterId = 0;
+        int settled = 0;
+        // The lease is renewed before every page, so it cannot lapse during a long sweep
+        while (!stopping && leases.acquire(shard)) {
+            List<Payment> page = findPage(shard, status, cutoff, afterUpdatedAt, afterId);
+            if (page.isEmpty()) {
+                break;
+            }
+            settled += settle(shard, page);
+
+            Payment last = page.get(page.size() - 1);
+            afterUpdatedAt = last.getUpdatedAt();
+            afterId = last.getId();
+            if (page.size() < properties.getPageSize()) {
+                break;
+            }
+        }
+        return settled;
+    }
+
+    private List<Payment> findPage(int shard, PaymentStatus status, Instant cutoff,
+                                   Instant afterUpdatedAt, long afterId) {
+        // A lagging replica will do: the rows are old and every update re-checks them on the primary
+        return readTransaction.execute(tx -> {
+            ShardContext.bindToTransaction(shard);
+            return paymentRepository.findStaleAfter(status, cutoff, afterUpdatedAt, afterId,
+                PageRequest.of(0, properties.getPageSize()));
+        });
+    }
+
+    private int settle(int shard, List<Payment> page) {
+        List<Future<Resolution>> lookups = new ArrayList<>(page.size());
+        for (Payment payment : page) {
+            lookups.add(gatewayWorkers.submit(() -> lookUp(payment)));
+        }
+        List<Resolution> resolutions = new ArrayList<>(page.size());
+        for (Future<Resolution> lookup : lookups) {
+            Resolution resolution = await(lookup);
+            if (resolution != null) {
+                resolutions.add(resolution);
+            }
+        }
+        if (resolutions.isEmpty()) {
+            return 0;
+        }
+
+        Instant settledAt = clock.instant();
+        List<Resolution> applied = apply(shard, resolutions, settledAt);
+        notifySettled(applied, settledAt);
+        return applied.size();
+    }
+
+    private Resolution lookUp(Payment payment) {
+        try {
+            GatewayResult result = paymentGatewayService.findPayment(payment.getId());
+            if (result.isApproved()) {
+                return new Resolution(payment, PaymentStatus.COMPLETED, result.getTransactionId(), null);
+            }
+            PaymentStatus status = GatewayResult.PAYMENT_NOT_FOUND.equals(result.getDeclineReason())
+                ? PaymentStatus.UNKNOWN
+                : PaymentStatus.FAILED;
+            return new Resolution(payment, status, null, result.getDeclineReason());
+        } catch (Exception e) {
+            unresolved.increment();
+            logger.warn("Could not look up stuck payment {} at the gateway, retrying next sweep: {}",
+                payment.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private Resolution await(Future<Resolution> lookup) {
+        try {
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the gateway", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Gateway lookup failed", e.getCause());
+        }
+    }
+
+    /**
+     * @return resolutions written; the others were settled or updated meanwhile
+     */
+    private List<Resolution> apply(int shard, List<Resolution> resolutions, Instant settledAt) {
+        return writeTransaction.execute(status -> {
+            ShardContext.bindToTransaction(shard);
+            List<Object[]> arguments = new ArrayList<>(resolutions.size());
+            for (Resolution resolution : resolutions) {
+                Payment payment = resolution.payment();
+                arguments.add(new Object[] {resolution.status().name(), resolution.transactionId(),
+                    UtcDateTime.of(settledAt), payment.getId(), payment.getStatus().name(),
+                    UtcDateTime.of(payment.getUpdatedAt())});
+            }
+            int[] counts = jdbcTemplate.batchUpdate("UPDATE payment SET status = ?, "
+                + "transaction_id = COALESCE(?, transaction_id), updated_at = ?, version = version + 1 "
+                + "WHERE id = ? AND status = ? AND updated_at = ?", arguments);
+
+            List<Resolution> applied = new ArrayList<>(counts.length);
+            for (int i = 0; i < counts.length; i++) {
+                Resolution resolution = resolutions.get(i);
+                Payment payment = resolution.payment();
+                if (!applied(counts[i])) {
+                    logger.debug("Stuck payment {} changed while being settled", payment.getId());
+                    continue;
+                }
+                applied.add(resolution);
+                if (resolution.transactionId() != null) {
+                    transactionIdIndex.indexAfterCommit(resolution.transactionId(), payment.getId());
+                }
+                // Bypasses the entity, so the change is published here instead of by Payment
+                eventPublisher.publishEvent(new PaymentStatusChangedEvent(payment.getId(), payment.getOrderId(),
+                    payment.getStatus(), resolution.status(), toMinorUnits(payment.getAmount()),
+                    payment.getCurrency(), settledAt.toEpochMilli()));
+            }
+            return applied;
+        });
+    }
+
+    private void notifySettled(List<Resolution> applied, Instant settledAt) {
+        for (Resolution resolution : applied) {
+            Payment payment = resolution.payment();
+            if (resolution.status() == PaymentStatus.UNKNOWN) {
+                // Neither the customer nor the order service is told anything until someone has looked
+                unknown.increment();
+                logger.error("Manual review needed: payment {} stuck in {} has no charge at the gateway, marked {}",
+                    payment.getId(), payment.getStatus(), PaymentStatus.UNKNOWN);
+                continue;
+            }
+            logger.warn("Settled payment {} stuck in {} as {}", payment.getId(), payment.getStatus(),
+                resolution.status());
+            try {
+                if (resolution.status() == PaymentStatus.COMPLETED) {
+                    completed.increment();
+                    payment.setTransactionId(resolution.transactionId());
+                    payment.setStatus(PaymentStatus.COMPLETED, settledAt);
+                    notificationService.sendPaymentConfirmation(PaymentResponse.from(payment));
+                    orderServiceClient.updateOrderAfterPayment(payment.getOrderId(), payment.getId());
+                } else {
+                    failed.increment();
+                    notificationService.sendPaymentFailureNotification(payment.getOrderId(), resolution.reason());
+                }
+            } catch (Exception e) {
+                // The outcome is recorded; a missed notification must not stop the sweep
+                logger.error("Failed to notify settlement of payment {}", payment.getId(), e);
+            }
+        }
+    }
+
+    private static boolean applied(int count) {
+        // Drivers may report SUCCESS_NO_INFO (-2) for batched statements
+        return count > 0 || count == Statement.SUCCESS_NO_INFO;
+    }
+
+    private static long toMinorUnits(Money amount) {
+        return amount == null ? 0 : amount.unscaledValue(Money.STORAGE_SCALE);
+    }
+
+    private record Resolution(Payment payment, PaymentStatus status, String transactionId, String reason) {
+    }
+}
+
+// 4. Sweeper Configuration
+// SweeperConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.retry.RetryProperties;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.sweeper.StuckPaymentSweeper;
+import com.ecommerce.payment.sweeper.SweeperProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+import java.time.Clock;
+
+@Configuration
+@ConditionalOnProperty(prefix = "payment.sweeper", name = "enabled", havingValue = "true", matchIfMissing = true)
+@EnableConfigurationProperties(SweeperProperties.class)
+public class SweeperConfig {
+
+    @Bean
+    public StuckPaymentSweeper stuckPaymentSweeper(DataSource dataSource, PlatformTransactionManager transactionManager,
+                                                   PaymentRepository paymentRepository, ShardRouter shardRouter,
+                                                   PaymentGatewayService paymentGatewayService,
+                                                   PaymentNotificationService notificationService,
+                                                   OrderServiceClient orderServiceClient,
+                                                   TransactionIdIndex transactionIdIndex,
+                                                   ApplicationEventPublisher eventPublisher,
+                                                   MeterRegistry meterRegistry, SweeperProperties properties,
+                                                   RetryProperties retryProperties, Clock clock) {
+        // A PENDING payment may still be charged by its retries until they run out
+        if (properties.getPendingTimeout().compareTo(retryProperties.horizon()) <= 0) {
+            throw new IllegalStateException("payment.sweeper.pending-timeout must exceed the retry horizon of "
+                + retryProperties.horizon());
+        }
+        if (properties.getLeaseDuration().compareTo(properties.getInterval()) <= 0) {
+            throw new IllegalStateException("payment.sweeper.lease-duration must exceed payment.sweeper.interval");
+        }
+        return new StuckPaymentSweeper(dataSource, transactionManager, paymentRepository, shardRouter,
+            paymentGatewayService, notificationService, orderServiceClient, transactionIdIndex, eventPublisher,
+            meterRegistry, properties, clock);
+    }
+}
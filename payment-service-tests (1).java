@@ -4,24 +4,39 @@
 // PaymentControllerTest.java
 package com.ecommerce.payment.controller;
 
+import com.ecommerce.payment.dto.OrderPaymentSummaryResponse;
 import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
 import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.lane.Lane;
+import com.ecommerce.payment.lane.LaneExecutors;
+import com.ecommerce.payment.model.Money;
 import com.ecommerce.payment.model.PaymentMethod;
 import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.readmodel.OrderPaymentSummaryService;
 import com.ecommerce.payment.service.PaymentService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 
 import java.math.BigDecimal;
-import java.time.LocalDateTime;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 import static org.hamcrest.Matchers.hasSize;
 import static org.mockito.ArgumentMatchers.any;
@@ -39,18 +54,34 @@ public class PaymentControllerTest {
     @MockBean
     private PaymentService paymentService;
 
+    @MockBean
+    private OrderPaymentSummaryService summaryService;
+
+    @MockBean
+    private LaneExecutors lanes;
+
     @Autowired
     private ObjectMapper objectMapper;
 
     private PaymentRequest paymentRequest;
     private PaymentResponse paymentResponse;
 
+    @TestConfiguration
+    static class ValidationConfig {
+
+        // Before the 12/25 expiry of the test card
+        @Bean
+        PaymentRequestValidator paymentRequestValidator() {
+            return new PaymentRequestValidator(Clock.fixed(Instant.parse("2024-05-01T00:00:00Z"), ZoneOffset.UTC));
+        }
+    }
+
     @BeforeEach
     void setUp() {
         // Setup test data
         paymentRequest = new PaymentRequest();
         paymentRequest.setOrderId(1L);
-        paymentRequest.setAmount(new BigDecimal("99.99"));
+        paymentRequest.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
         paymentRequest.setPaymentMethod(PaymentMethod.CREDIT_CARD);
         paymentRequest.setCardNumber("4111111111111111");
         paymentRequest.setCardHolderName("John Doe");
@@ -60,19 +91,29 @@ public class PaymentControllerTest {
         paymentResponse = new PaymentResponse();
         paymentResponse.setId(1L);
         paymentResponse.setOrderId(1L);
-        paymentResponse.setAmount(new BigDecimal("99.99"));
+        paymentResponse.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
         paymentResponse.setTransactionId("tx-123456789");
         paymentResponse.setPaymentMethod(PaymentMethod.CREDIT_CARD);
         paymentResponse.setStatus(PaymentStatus.COMPLETED);
-        paymentResponse.setCreatedAt(LocalDateTime.now());
-        paymentResponse.setUpdatedAt(LocalDateTime.now());
+        paymentResponse.setCreatedAt(Instant.parse("2024-05-01T12:30:15.123Z"));
+        paymentResponse.setUpdatedAt(Instant.parse("2024-05-01T12:30:16.456Z"));
+
+        // Lanes run the work inline; the controller still completes asynchronously
+        when(lanes.submit(any(Lane.class), any())).thenAnswer(invocation -> {
+            Supplier<?> task = invocation.getArgument(1);
+            try {
+                return CompletableFuture.completedFuture(task.get());
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
     }
 
     @Test
     void processPayment_ShouldReturnCreatedStatus() throws Exception {
         when(paymentService.processPayment(any(PaymentRequest.class))).thenReturn(paymentResponse);
 
-        mockMvc.perform(post("/api/payments")
+        performAsync(post("/api/payments")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(paymentRequest)))
                 .andExpect(status().isCreated())
@@ -82,13 +123,30 @@ public class PaymentControllerTest {
                 .andExpect(jsonPath("$.status").value("COMPLETED"));
 
         verify(paymentService, times(1)).processPayment(any(PaymentRequest.class));
+        verify(lanes).submit(eq(Lane.CHECKOUT), any());
+    }
+
+    @Test
+    void processPayment_ShouldReturnFieldErrors_WhenCardFieldsAreInvalid() throws Exception {
+        paymentRequest.setCardNumber("4111111111111112");
+        paymentRequest.setCvv("12");
+
+        mockMvc.perform(post("/api/payments")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(paymentRequest)))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.cardNumber").value("Card number is invalid"))
+                .andExpect(jsonPath("$.cvv").value("CVV must be 3 or 4 digits"))
+                .andExpect(jsonPath("$.expiryDate").doesNotExist());
+
+        verifyNoInteractions(paymentService);
     }
 
     @Test
     void getPaymentById_ShouldReturnPayment() throws Exception {
         when(paymentService.getPaymentById(1L)).thenReturn(paymentResponse);
 
-        mockMvc.perform(get("/api/payments/1"))
+        performAsync(get("/api/payments/1"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.id").value(1))
                 .andExpect(jsonPath("$.transactionId").value("tx-123456789"));
@@ -101,7 +159,7 @@ public class PaymentControllerTest {
         List<PaymentResponse> payments = Arrays.asList(paymentResponse);
         when(paymentService.getPaymentsByOrderId(1L)).thenReturn(payments);
 
-        mockMvc.perform(get("/api/payments/order/1"))
+        performAsync(get("/api/payments/order/1"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$", hasSize(1)))
                 .andExpect(jsonPath("$[0].id").value(1));
@@ -109,6 +167,32 @@ public class PaymentControllerTest {
         verify(paymentService, times(1)).getPaymentsByOrderId(1L);
     }
 
+    @Test
+    void getOrderSummary_ShouldReturnTotals() throws Exception {
+        OrderPaymentSummaryResponse summary = new OrderPaymentSummaryResponse();
+        summary.setOrderId(1L);
+        summary.setCurrency("USD");
+        summary.setPaymentCount(3);
+        summary.setTotalCaptured(new BigDecimal("99.99"));
+        summary.setTotalRefunded(BigDecimal.ZERO);
+        summary.setTotalFailed(new BigDecimal("99.99"));
+        summary.setTotalOutstanding(new BigDecimal("10.00"));
+        when(summaryService.getOrderSummary(1L)).thenReturn(List.of(summary));
+
+        performAsync(get("/api/payments/order/1/summary"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].orderId").value(1))
+                .andExpect(jsonPath("$[0].currency").value("USD"))
+                .andExpect(jsonPath("$[0].paymentCount").value(3))
+                .andExpect(jsonPath("$[0].totalCaptured").value(99.99))
+                .andExpect(jsonPath("$[0].totalFailed").value(99.99))
+                .andExpect(jsonPath("$[0].totalOutstanding").value(10.00));
+
+        verify(summaryService, times(1)).getOrderSummary(1L);
+        verifyNoInteractions(paymentService);
+    }
+
     @Test
     void refundPayment_ShouldReturnRefundedPayment() throws Exception {
         PaymentResponse refundedPayment = new PaymentResponse();
@@ -117,12 +201,13 @@ public class PaymentControllerTest {
         
         when(paymentService.refundPayment(1L)).thenReturn(refundedPayment);
 
-        mockMvc.perform(post("/api/payments/1/refund"))
+        performAsync(post("/api/payments/1/refund"))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.id").value(1))
                 .andExpect(jsonPath("$.status").value("REFUNDED"));
 
         verify(paymentService, times(1)).refundPayment(1L);
+        verify(lanes).submit(eq(Lane.REFUND), any());
     }
 
     @Test
@@ -134,6 +219,13 @@ public class PaymentControllerTest {
 
         verify(paymentService, times(1)).deletePayment(1L);
     }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        MvcResult result = mockMvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mockMvc.perform(asyncDispatch(result));
+    }
 }
 
 // 2. Service Tests
@@ -142,8 +234,10 @@ package com.ecommerce.payment.service.impl;
 
 import com.ecommerce.payment.dto.PaymentRequest;
 import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
 import com.ecommerce.payment.exception.PaymentNotFoundException;
 import com.ecommerce.payment.exception.PaymentProcessingException;
+import com.ecommerce.payment.model.Money;
 import com.ecommerce.payment.model.Payment;
 import com.ecommerce.payment.model.PaymentMethod;
 import com.ecommerce.payment.model.PaymentStatus;
@@ -151,12 +245,14 @@ import com.ecommerce.payment.repository.PaymentRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
 
-import java.math.BigDecimal;
-import java.time.LocalDateTime;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
@@ -168,10 +264,14 @@ import static org.mockito.Mockito.*;
 @ExtendWith(MockitoExtension.class)
 public class PaymentServiceImplTest {
 
+    private static final Instant NOW = Instant.parse("2024-05-01T12:30:15.123Z");
+
     @Mock
     private PaymentRepository paymentRepository;
 
-    @InjectMocks
+    @Mock
+    private ApplicationEventPublisher eventPublisher;
+
     private PaymentServiceImpl paymentService;
 
     private PaymentRequest paymentRequest;
@@ -179,10 +279,12 @@ public class PaymentServiceImplTest {
 
     @BeforeEach
     void setUp() {
+        paymentService = new PaymentServiceImpl(paymentRepository, eventPublisher, Clock.fixed(NOW, ZoneOffset.UTC));
+
         // Setup test data
         paymentRequest = new PaymentRequest();
         paymentRequest.setOrderId(1L);
-        paymentRequest.setAmount(new BigDecimal("99.99"));
+        paymentRequest.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
         paymentRequest.setPaymentMethod(PaymentMethod.CREDIT_CARD);
         paymentRequest.setCardNumber("4111111111111111");
         paymentRequest.setCardHolderName("John Doe");
@@ -192,12 +294,11 @@ public class PaymentServiceImplTest {
         payment = new Payment();
         payment.setId(1L);
         payment.setOrderId(1L);
-        payment.setAmount(new BigDecimal("99.99"));
+        payment.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
         payment.setTransactionId("tx-123456789");
         payment.setPaymentMethod(PaymentMethod.CREDIT_CARD);
-        payment.setStatus(PaymentStatus.COMPLETED);
-        payment.setCreatedAt(LocalDateTime.now());
-        payment.setUpdatedAt(LocalDateTime.now());
+        payment.setStatus(PaymentStatus.COMPLETED, NOW.minusSeconds(60));
+        payment.setCreatedAt(NOW.minusSeconds(60));
     }
 
     @Test
@@ -268,6 +369,7 @@ public class PaymentServiceImplTest {
         // Assert
         assertNotNull(response);
         assertEquals(PaymentStatus.REFUNDED, response.getStatus());
+        assertEquals(NOW, response.getUpdatedAt());
         verify(paymentRepository, times(1)).findById(1L);
         verify(paymentRepository, times(1)).save(any(Payment.class));
     }
@@ -277,7 +379,7 @@ public class PaymentServiceImplTest {
         // Arrange
         Payment pendingPayment = new Payment();
         pendingPayment.setId(1L);
-        pendingPayment.setStatus(PaymentStatus.PENDING);
+        pendingPayment.setStatus(PaymentStatus.PENDING, NOW);
         
         when(paymentRepository.findById(1L)).thenReturn(Optional.of(pendingPayment));
 
@@ -290,25 +392,5012 @@ public class PaymentServiceImplTest {
     @Test
     void deletePayment_ShouldDeleteSuccessfully() {
         // Arrange
-        when(paymentRepository.existsById(1L)).thenReturn(true);
-        doNothing().when(paymentRepository).deleteById(1L);
+        when(paymentRepository.findById(1L)).thenReturn(Optional.of(payment));
 
         // Act
         paymentService.deletePayment(1L);
 
         // Assert
-        verify(paymentRepository, times(1)).existsById(1L);
-        verify(paymentRepository, times(1)).deleteById(1L);
+        verify(paymentRepository, times(1)).findById(1L);
+        verify(paymentRepository, times(1)).delete(payment);
+
+        // The order summary subtracts the deleted payment
+        ArgumentCaptor<PaymentStatusChangedEvent> removed = ArgumentCaptor.forClass(PaymentStatusChangedEvent.class);
+        verify(eventPublisher).publishEvent(removed.capture());
+        assertTrue(removed.getValue().isRemoval());
+        assertEquals(PaymentStatus.COMPLETED, removed.getValue().getPreviousStatus());
+        assertEquals(9999, removed.getValue().getAmountMinor());
+        assertEquals(Money.DEFAULT_CURRENCY, removed.getValue().getCurrency());
     }
 
     @Test
     void deletePayment_ShouldThrowException_WhenPaymentNotFound() {
         // Arrange
-        when(paymentRepository.existsById(99L)).thenReturn(false);
+        when(paymentRepository.findById(99L)).thenReturn(Optional.empty());
 
         // Act & Assert
         assertThrows(PaymentNotFoundException.class, () -> paymentService.deletePayment(99L));
-        verify(paymentRepository, times(1)).existsById(99L);
-        verify(paymentRepository, never()).deleteById(any());
+        verify(paymentRepository, times(1)).findById(99L);
+        verify(paymentRepository, never()).delete(any());
+        verify(eventPublisher, never()).publishEvent(any(Object.class));
+    }
+}
+// PaymentDeclineTest.java
+package com.ecommerce.payment.service.impl;
+
+import com.ecommerce.payment.cache.PaymentCache;
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.exception.PaymentDeclinedException;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.retry.PaymentRetryHandler;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.PaymentDataMasker;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import com.ecommerce.payment.velocity.VelocityVerdict;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+/**
+ * The decline path of the gateway-backed PaymentServiceImpl: a decline is an outcome,
+ * not a failure, and must leave the payment FAILED rather than roll it back
+ */
+public class PaymentDeclineTest {
+
+    private static final Instant NOW = Instant.parse("2024-05-01T12:30:15.123Z");
+
+    private PaymentRepository paymentRepository;
+    private PaymentGatewayService paymentGatewayService;
+    private PaymentNotificationService notificationService;
+    private OrderServiceClient orderServiceClient;
+    private VelocityEngine velocityEngine;
+    private PaymentRetryHandler paymentRetryHandler;
+    private PaymentServiceImpl paymentService;
+
+    @BeforeEach
+    void setUp() {
+        paymentRepository = mock(PaymentRepository.class);
+        paymentGatewayService = mock(PaymentGatewayService.class);
+        notificationService = mock(PaymentNotificationService.class);
+        orderServiceClient = mock(OrderServiceClient.class);
+        velocityEngine = mock(VelocityEngine.class);
+        paymentRetryHandler = mock(PaymentRetryHandler.class);
+        when(velocityEngine.evaluate(any())).thenReturn(VelocityVerdict.ALLOW);
+        when(paymentRepository.save(any(Payment.class))).thenAnswer(invocation -> {
+            Payment payment = invocation.getArgument(0);
+            if (payment.getId() == null) {
+                payment.setId(1L);
+            }
+            return payment;
+        });
+
+        paymentService = new PaymentServiceImpl(paymentRepository, paymentGatewayService, notificationService,
+            orderServiceClient, new PaymentDataMasker(), velocityEngine, new ShardRouter(1),
+            mock(TransactionIdIndex.class), paymentRetryHandler, mock(PaymentCache.class),
+            mock(ApplicationEventPublisher.class), mock(PlatformTransactionManager.class),
+            Clock.fixed(NOW, ZoneOffset.UTC));
+
+        // processPayment binds the order's shard to the surrounding transaction
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    @AfterEach
+    void tearDown() {
+        TransactionSynchronizationUtils.invokeAfterCompletion(
+            TransactionSynchronizationManager.getSynchronizations(), TransactionSynchronization.STATUS_COMMITTED);
+        TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    @Test
+    void processPayment_ShouldKeepPaymentFailed_AndThrowDecline_WhenGatewayDeclines() {
+        PaymentRequest request = cardRequest();
+        when(paymentGatewayService.processPayment(anyLong(), any()))
+            .thenReturn(GatewayResult.declined(GatewayResult.PAYMENT_DECLINED));
+
+        PaymentDeclinedException e = assertThrows(PaymentDeclinedException.class,
+            () -> paymentService.processPayment(request));
+
+        assertEquals(GatewayResult.PAYMENT_DECLINED, e.getMessage());
+        // Declines are frequent: no stack trace to fill in
+        assertEquals(0, e.getStackTrace().length);
+
+        ArgumentCaptor<Payment> saved = ArgumentCaptor.forClass(Payment.class);
+        verify(paymentRepository, times(2)).save(saved.capture());
+        assertEquals(PaymentStatus.FAILED, saved.getValue().getStatus());
+        assertEquals(NOW, saved.getValue().getUpdatedAt());
+
+        verify(velocityEngine).recordDecline(request);
+        verify(notificationService).sendPaymentFailureNotification(1L, GatewayResult.PAYMENT_DECLINED);
+        verify(paymentGatewayService).processPayment(1L, request);
+        verifyNoInteractions(orderServiceClient, paymentRetryHandler);
+        verify(notificationService, never()).sendPaymentConfirmation(any());
+    }
+
+    @Test
+    void processPayment_ShouldDeclineBeforeTheGateway_WhenVelocityRejects() {
+        PaymentRequest request = cardRequest();
+        when(velocityEngine.evaluate(request)).thenReturn(VelocityVerdict.REJECT_CARD_VELOCITY);
+
+        PaymentDeclinedException e = assertThrows(PaymentDeclinedException.class,
+            () -> paymentService.processPayment(request));
+
+        assertEquals(VelocityEngine.REJECTION_MESSAGE, e.getMessage());
+        verifyNoInteractions(paymentRepository, paymentGatewayService, orderServiceClient);
+    }
+
+    private static PaymentRequest cardRequest() {
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(1L);
+        request.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
+        request.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        request.setCardNumber("4111111111111111");
+        request.setCardHolderName("John Doe");
+        request.setExpiryDate("12/25");
+        request.setCvv("123");
+        return request;
+    }
+}
+
+// 3. Data Source Routing Tests
+// ReadReplicaRoutingDataSourceTest.java
+package com.ecommerce.payment.datasource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadReplicaRoutingDataSourceTest {
+
+    private EmbeddedDatabase primary;
+    private EmbeddedDatabase replica;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    void setUp() {
+        // Two independent H2 databases, each labelled with its role
+        primary = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        replica = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        label(primary, "primary");
+        label(replica, "replica");
+
+        ReadReplicaRoutingDataSource routing = new ReadReplicaRoutingDataSource(primary, List.of(replica));
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(routing);
+
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReadYourWritesContext.clear();
+        primary.shutdown();
+        replica.shutdown();
+    }
+
+    @Test
+    void readOnlyTransaction_ShouldUseReplica() {
+        transactionTemplate.setReadOnly(true);
+
+        assertEquals("replica", currentRole());
+    }
+
+    @Test
+    void readWriteTransaction_ShouldUsePrimary() {
+        transactionTemplate.setReadOnly(false);
+
+        assertEquals("primary", currentRole());
+    }
+
+    @Test
+    void readOnlyTransaction_ShouldUsePrimary_WhenPinnedAfterWrite() {
+        transactionTemplate.setReadOnly(true);
+        ReadYourWritesContext.pinToPrimary();
+
+        assertEquals("primary", currentRole());
+    }
+
+    private String currentRole() {
+        return transactionTemplate.execute(status ->
+            jdbcTemplate.queryForObject("SELECT role FROM db_role", String.class));
+    }
+
+    private void label(EmbeddedDatabase database, String role) {
+        JdbcTemplate template = new JdbcTemplate(database);
+        template.execute("CREATE TABLE db_role (role VARCHAR(16))");
+        template.update("INSERT INTO db_role (role) VALUES (?)", role);
+    }
+}
+
+// 4. Error Response Tests
+// ErrorResponseCacheTest.java
+package com.ecommerce.payment.exception;
+
+import com.ecommerce.payment.json.ErrorResponseSerializer;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ErrorResponseCacheTest {
+
+    private ObjectMapper objectMapper;
+    private ErrorResponseCache cache;
+
+    @BeforeEach
+    void setUp() {
+        objectMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .registerModule(new SimpleModule().addSerializer(ErrorResponse.class, new ErrorResponseSerializer()))
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        cache = new ErrorResponseCache(objectMapper, HttpStatus.BAD_REQUEST);
+        cache.register("Payment declined by payment gateway");
+    }
+
+    @Test
+    void render_ShouldMatchRegularSerialization() throws Exception {
+        LocalDateTime timestamp = LocalDateTime.of(2024, 5, 1, 12, 30, 15, 123_000_000);
+
+        byte[] cached = cache.render("Payment declined by payment gateway", timestamp);
+        byte[] regular = objectMapper.writeValueAsBytes(
+            new ErrorResponse(400, "Payment declined by payment gateway", timestamp));
+
+        assertArrayEquals(regular, cached);
+    }
+
+    @Test
+    void render_ShouldReturnNull_WhenMessageNotRegistered() {
+        assertNull(cache.render("Some other failure", LocalDateTime.now()));
+    }
+
+    @Test
+    void acceptsJson_ShouldRequireJsonAmongTheMostPreferredTypes() {
+        assertTrue(ErrorResponseCache.acceptsJson(null));
+        assertTrue(ErrorResponseCache.acceptsJson("*/*"));
+        assertTrue(ErrorResponseCache.acceptsJson("application/json"));
+        assertTrue(ErrorResponseCache.acceptsJson("application/*"));
+        assertTrue(ErrorResponseCache.acceptsJson("application/json, */*;q=0.8"));
+        assertTrue(ErrorResponseCache.acceptsJson("application/cbor;q=0.5, application/json"));
+
+        // Substring matching served JSON to all of these
+        assertFalse(ErrorResponseCache.acceptsJson("application/cbor, */*"));
+        assertFalse(ErrorResponseCache.acceptsJson("application/x-jsonlines"));
+        assertFalse(ErrorResponseCache.acceptsJson("text/html, application/json;q=0.1"));
+        assertFalse(ErrorResponseCache.acceptsJson("application/json;q=0"));
+        assertFalse(ErrorResponseCache.acceptsJson("not a media type"));
+    }
+}
+
+// 5. Velocity Engine Tests
+// VelocityEngineTest.java
+package com.ecommerce.payment.velocity;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Currency;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VelocityEngineTest {
+
+    private SimpleMeterRegistry meterRegistry;
+    private VelocityProperties properties;
+    private Instant now;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        properties = new VelocityProperties();
+        properties.setWindow(Duration.ofMinutes(10));
+        properties.setMaxAttemptsPerCard(3);
+        properties.setMaxAttemptsPerOrder(100);
+        properties.setMaxDeclinesPerCard(2);
+        properties.setMaxAmountPerCard(Money.parse("500.00", Money.DEFAULT_CURRENCY));
+        now = Instant.parse("2024-05-01T12:00:00Z");
+    }
+
+    @Test
+    void evaluate_ShouldRejectCard_AfterMaxAttempts() {
+        VelocityEngine engine = newEngine();
+
+        for (long orderId = 1; orderId <= 3; orderId++) {
+            assertEquals(VelocityVerdict.ALLOW, engine.evaluate(cardPayment(orderId, "4111111111111111", "10.00")));
+        }
+
+        assertEquals(VelocityVerdict.REJECT_CARD_VELOCITY,
+            engine.evaluate(cardPayment(4L, "4111 1111 1111 1111", "10.00")));
+        assertEquals(VelocityVerdict.ALLOW, engine.evaluate(cardPayment(5L, "5500000000000004", "10.00")));
+        assertEquals(1.0, meterRegistry.get("payment.velocity.verdicts")
+            .tag("verdict", "REJECT_CARD_VELOCITY").counter().count());
+    }
+
+    @Test
+    void evaluate_ShouldRejectCard_AfterRepeatedDeclines() {
+        VelocityEngine engine = newEngine();
+        PaymentRequest request = cardPayment(1L, "4111111111111111", "10.00");
+
+        engine.recordDecline(request);
+        engine.recordDecline(request);
+
+        assertEquals(VelocityVerdict.REJECT_REPEATED_DECLINES, engine.evaluate(request));
+    }
+
+    @Test
+    void evaluate_ShouldRejectAmountSpike() {
+        VelocityEngine engine = newEngine();
+
+        assertEquals(VelocityVerdict.ALLOW, engine.evaluate(cardPayment(1L, "4111111111111111", "400.00")));
+        assertEquals(VelocityVerdict.REJECT_AMOUNT_SPIKE, engine.evaluate(cardPayment(2L, "4111111111111111", "200.00")));
+    }
+
+    @Test
+    void evaluate_ShouldOnlyAddUpAmountsInTheCapCurrency() {
+        VelocityEngine engine = newEngine();
+        PaymentRequest yen = cardPayment(1L, "4111111111111111", "0.01");
+        yen.setAmount(Money.parse("10000", Currency.getInstance("JPY")));
+
+        // ¥10,000 is not 100.00 in hundredths, and does not count against a USD cap
+        assertEquals(VelocityVerdict.ALLOW, engine.evaluate(yen));
+        assertEquals(VelocityVerdict.ALLOW, engine.evaluate(cardPayment(2L, "4111111111111111", "450.00")));
+        assertEquals(VelocityVerdict.REJECT_AMOUNT_SPIKE, engine.evaluate(cardPayment(3L, "4111111111111111", "100.00")));
+    }
+
+    @Test
+    void evaluate_ShouldAllowAgain_AfterWindowPasses() {
+        VelocityEngine engine = newEngine();
+        for (long orderId = 1; orderId <= 3; orderId++) {
+            engine.evaluate(cardPayment(orderId, "4111111111111111", "10.00"));
+        }
+        assertEquals(VelocityVerdict.REJECT_CARD_VELOCITY, engine.evaluate(cardPayment(4L, "4111111111111111", "10.00")));
+
+        now = now.plus(Duration.ofMinutes(11));
+        assertEquals(VelocityVerdict.ALLOW, engine.evaluate(cardPayment(5L, "4111111111111111", "10.00")));
+    }
+
+    @Test
+    void evaluate_ShouldAllowEverything_WhenDisabled() {
+        properties.setEnabled(false);
+        VelocityEngine engine = newEngine();
+
+        for (long orderId = 1; orderId <= 10; orderId++) {
+            assertEquals(VelocityVerdict.ALLOW, engine.evaluate(cardPayment(orderId, "4111111111111111", "10.00")));
+        }
+    }
+
+    @Test
+    void distinctCards_ShouldBeApproximatelyCounted() {
+        WindowedHyperLogLog distinct = new WindowedHyperLogLog(Duration.ofMinutes(10), 10, 12);
+        long millis = now.toEpochMilli();
+        for (long i = 0; i < 50_000; i++) {
+            distinct.add(VelocityKeys.card(Long.toString(4_000_000_000_000_000L + i)), millis);
+        }
+
+        assertEquals(50_000, distinct.estimate(millis), 50_000 * 0.05);
+    }
+
+    private VelocityEngine newEngine() {
+        // The clock reads the test's current instant, so tests can move time forward
+        Clock clock = new Clock() {
+            @Override
+            public ZoneOffset getZone() {
+                return ZoneOffset.UTC;
+            }
+
+            @Override
+            public Clock withZone(ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                return now;
+            }
+        };
+        return new VelocityEngine(properties, meterRegistry, clock);
+    }
+
+    private PaymentRequest cardPayment(Long orderId, String cardNumber, String amount) {
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(orderId);
+        request.setAmount(Money.parse(amount, Money.DEFAULT_CURRENCY));
+        request.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        request.setCardNumber(cardNumber);
+        return request;
+    }
+}
+
+// 6. Sharding Tests
+// ShardRoutingDataSourceTest.java
+package com.ecommerce.payment.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShardRoutingDataSourceTest {
+
+    private EmbeddedDatabase shard0;
+    private EmbeddedDatabase shard1;
+    private JdbcTemplate jdbcTemplate;
+    private TransactionTemplate transactionTemplate;
+    private ShardRouter router;
+    private PaymentIdAllocator allocator;
+
+    @BeforeEach
+    void setUp() {
+        // Two independent H2 databases with the same payment table
+        shard0 = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        shard1 = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        createPaymentTable(shard0);
+        createPaymentTable(shard1);
+
+        LazyConnectionDataSourceProxy dataSource =
+            new LazyConnectionDataSourceProxy(new ShardRoutingDataSource(List.of(shard0, shard1)));
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        router = new ShardRouter(2);
+        allocator = new PaymentIdAllocator(3, Clock.systemUTC());
+    }
+
+    @AfterEach
+    void tearDown() {
+        shard0.shutdown();
+        shard1.shutdown();
+    }
+
+    @Test
+    void paymentsOfAnOrder_ShouldBeWrittenToOneShard_AndFoundById() {
+        for (long orderId = 1; orderId <= 50; orderId++) {
+            insertPayment(orderId);
+            insertPayment(orderId);
+        }
+
+        int onShard0 = new JdbcTemplate(shard0).queryForObject("SELECT COUNT(*) FROM payment", Integer.class);
+        int onShard1 = new JdbcTemplate(shard1).queryForObject("SELECT COUNT(*) FROM payment", Integer.class);
+        assertEquals(100, onShard0 + onShard1);
+        assertTrue(onShard0 > 0 && onShard1 > 0, "orders should be spread over both shards");
+
+        for (long orderId = 1; orderId <= 50; orderId++) {
+            long order = orderId;
+            List<Long> ids = transactionTemplate.execute(status -> {
+                ShardContext.bindToTransaction(router.shardForOrder(order));
+                return jdbcTemplate.queryForList("SELECT id FROM payment WHERE order_id = ?", Long.class, order);
+            });
+            assertEquals(2, ids.size());
+
+            for (Long id : ids) {
+                Long found = transactionTemplate.execute(status -> {
+                    ShardContext.bindToTransaction(router.shardForPayment(id));
+                    return jdbcTemplate.queryForObject("SELECT order_id FROM payment WHERE id = ?", Long.class, id);
+                });
+                assertEquals(order, found);
+            }
+        }
+    }
+
+    @Test
+    void bindToTransaction_ShouldRejectSwitchingShards() {
+        assertThrows(IllegalStateException.class, () -> transactionTemplate.executeWithoutResult(status -> {
+            ShardContext.bindToTransaction(0);
+            ShardContext.bindToTransaction(1);
+        }));
+        assertNull(ShardContext.current());
     }
-}
\ No newline at end of file
+
+    @Test
+    void bindToTransaction_ShouldFail_OutsideTransaction() {
+        assertThrows(IllegalStateException.class, () -> ShardContext.bindToTransaction(0));
+    }
+
+    @Test
+    void allocator_ShouldEncodeShard_AndStayUniqueAndJavaScriptSafe() {
+        Clock fixed = Clock.fixed(Instant.parse("2030-01-01T00:00:00Z"), ZoneOffset.UTC);
+        PaymentIdAllocator burstAllocator = new PaymentIdAllocator(31, fixed);
+
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 5000; i++) {
+            long id = burstAllocator.next(63);
+            assertTrue(ids.add(id), "duplicate ID " + id);
+            assertTrue(id > 0 && id < (1L << 53));
+            assertEquals(63, PaymentIdAllocator.shardOf(id));
+        }
+    }
+
+    @Test
+    void shardOf_ShouldMapPreShardingIdsToShardZero() {
+        assertEquals(0, PaymentIdAllocator.shardOf(1L));
+        assertEquals(0, PaymentIdAllocator.shardOf(1_500_000L));
+        // Auto-increment IDs above 2^21 look like allocated ones but for the marker bit
+        assertEquals(0, PaymentIdAllocator.shardOf(2_097_153L));
+        assertEquals(0, router.shardForPayment(2_097_153L));
+        assertEquals(0, router.shardForPayment(9_876_543_210L));
+        assertEquals(-1, router.shardForPayment(allocator.next(5)));
+    }
+
+    private void insertPayment(long orderId) {
+        transactionTemplate.executeWithoutResult(status -> {
+            int shard = router.shardForOrder(orderId);
+            ShardContext.bindToTransaction(shard);
+            jdbcTemplate.update("INSERT INTO payment (id, order_id) VALUES (?, ?)", allocator.next(shard), orderId);
+        });
+    }
+
+    private void createPaymentTable(EmbeddedDatabase database) {
+        new JdbcTemplate(database).execute("CREATE TABLE payment (id BIGINT PRIMARY KEY, order_id BIGINT)");
+    }
+}
+
+// NodeIdLeaseTest.java
+package com.ecommerce.payment.shard;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NodeIdLeaseTest {
+
+    private static final long LEASE_MILLIS = 3_600_000;
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        jdbcTemplate = new JdbcTemplate(database);
+        jdbcTemplate.execute("CREATE TABLE payment_node_lease (node_id INT PRIMARY KEY, owner VARCHAR(64) NOT NULL, "
+            + "expires_at TIMESTAMP NOT NULL, high_water_second BIGINT NOT NULL)");
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    void instances_ShouldLeaseDistinctNodeIds() {
+        NodeIdLease first = newLease(new PaymentIdAllocator(Clock.systemUTC()));
+        NodeIdLease second = newLease(new PaymentIdAllocator(Clock.systemUTC()));
+        first.start();
+        second.start();
+        try {
+            assertEquals(0, first.nodeId());
+            assertEquals(1, second.nodeId());
+        } finally {
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    void allocator_ShouldRefuse_WithoutNodeId() {
+        PaymentIdAllocator allocator = new PaymentIdAllocator(Clock.systemUTC());
+        assertThrows(IllegalStateException.class, () -> allocator.next(0));
+
+        NodeIdLease lease = newLease(allocator);
+        lease.start();
+        allocator.next(0);
+        lease.stop();
+
+        assertThrows(IllegalStateException.class, () -> allocator.next(0));
+    }
+
+    @Test
+    void restart_ShouldNotRepeatIds_WithinTheSameSecond() {
+        Set<Long> ids = new HashSet<>();
+        for (int restart = 0; restart < 3; restart++) {
+            PaymentIdAllocator allocator = new PaymentIdAllocator(Clock.systemUTC());
+            NodeIdLease lease = newLease(allocator);
+            lease.start();
+            assertEquals(0, lease.nodeId());
+            // Enough to borrow a few seconds ahead of the clock
+            for (int i = 0; i < 3000; i++) {
+                assertTrue(ids.add(allocator.next(0)), "duplicate ID after restart " + restart);
+            }
+            lease.stop();
+        }
+    }
+
+    @Test
+    void claim_ShouldSkipNodeIdsLeasedByRunningInstances_AndTakeExpiredOnes() {
+        long now = System.currentTimeMillis();
+        jdbcTemplate.update("INSERT INTO payment_node_lease VALUES (0, 'other', ?, 0)", new Timestamp(now + 60_000));
+        jdbcTemplate.update("INSERT INTO payment_node_lease VALUES (1, 'crashed', ?, 0)", new Timestamp(now - 1));
+
+        NodeIdLease lease = newLease(new PaymentIdAllocator(Clock.systemUTC()));
+        lease.start();
+        try {
+            assertEquals(1, lease.nodeId());
+        } finally {
+            lease.stop();
+        }
+    }
+
+    @Test
+    void claim_ShouldFail_WhenEveryNodeIdIsLeased() {
+        Timestamp expiresAt = new Timestamp(System.currentTimeMillis() + 60_000);
+        for (int nodeId = 0; nodeId < PaymentIdAllocator.MAX_NODES; nodeId++) {
+            jdbcTemplate.update("INSERT INTO payment_node_lease VALUES (?, 'other', ?, 0)", nodeId, expiresAt);
+        }
+
+        NodeIdLease lease = newLease(new PaymentIdAllocator(Clock.systemUTC()));
+        assertThrows(IllegalStateException.class, lease::start);
+    }
+
+    private NodeIdLease newLease(PaymentIdAllocator allocator) {
+        return new NodeIdLease(allocator, jdbcTemplate,
+            new TransactionTemplate(new DataSourceTransactionManager(database)), LEASE_MILLIS);
+    }
+}
+
+// 7. Reconciliation Tests
+// ReconciliationEngineTest.java
+package com.ecommerce.payment.reconciliation;
+
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.shard.ShardRouter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.util.unit.DataSize;
+
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReconciliationEngineTest {
+
+    @TempDir
+    Path directory;
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private ReconciliationEngine engine;
+    private final List<Object> publishedEvents = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        jdbcTemplate = new JdbcTemplate(database);
+        jdbcTemplate.execute("CREATE TABLE payment (id BIGINT PRIMARY KEY, order_id BIGINT, amount DECIMAL(38, 2), "
+            + "currency CHAR(3) DEFAULT 'USD' NOT NULL, transaction_id VARCHAR(255), payment_method VARCHAR(32), "
+            + "status VARCHAR(32), created_at TIMESTAMP, updated_at TIMESTAMP, version BIGINT DEFAULT 0 NOT NULL)");
+
+        ReconciliationProperties properties = new ReconciliationProperties();
+        // Smallest chunk size, so the file below is split across several chunks
+        properties.setChunkSize(DataSize.ofBytes(1));
+        properties.setParallelism(4);
+        engine = new ReconciliationEngine(database, new DataSourceTransactionManager(database),
+            new ShardRouter(1), properties, publishedEvents::add, Clock.systemUTC());
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    void reconcile_ShouldMatchReportAndFixAcrossChunks() throws Exception {
+        StringBuilder file = new StringBuilder("transaction_id,status,amount,settled_at\r\n");
+        for (long id = 1; id <= 400; id++) {
+            String transactionId = insertPayment(id, "COMPLETED", "25.50");
+            file.append(transactionId).append(",SETTLED,25.5,2024-05-01T10:00:00\r\n");
+        }
+
+        String stuck = insertPayment(401, "PROCESSING", "10.00");
+        jdbcTemplate.update("UPDATE payment SET currency = 'EUR' WHERE id = 401");
+        String refunded = insertPayment(402, "REFUNDED", "10.00");
+        String wrongAmount = insertPayment(403, "COMPLETED", "10.00");
+        file.append(stuck).append(",SETTLED,10.00\n");
+        file.append(refunded).append(",SETTLED,10.00\n");
+        file.append(wrongAmount).append(",SETTLED,12.00\n");
+        file.append("PG-").append(UUID.randomUUID()).append(",SETTLED,1.00\n");
+        file.append("not-a-transaction,SETTLED,1.00");
+
+        Path settlementFile = directory.resolve("settlement.csv");
+        Files.writeString(settlementFile, file);
+        assertTrue(Files.size(settlementFile) > 4 * 4096, "file should span several chunks");
+
+        ReconciliationReport report = engine.reconcile(settlementFile, directory.resolve("report.csv"), false);
+
+        assertEquals(405, report.getLinesRead());
+        assertEquals(400, report.getMatched());
+        assertEquals(2, report.getStatusMismatches());
+        assertEquals(1, report.getAmountMismatches());
+        assertEquals(1, report.getUnknownTransactions());
+        assertEquals(1, report.getMalformedLines());
+        assertEquals(1, report.getAutoFixable());
+        assertEquals(1, report.getAutoFixed());
+
+        assertEquals("COMPLETED", statusOf(401));
+        assertEquals("REFUNDED", statusOf(402));
+
+        assertEquals(1, publishedEvents.size());
+        PaymentStatusChangedEvent event = (PaymentStatusChangedEvent) publishedEvents.get(0);
+        assertEquals(401, event.getPaymentId());
+        assertEquals(401, event.getOrderId());
+        assertEquals(PaymentStatus.PROCESSING, event.getPreviousStatus());
+        assertEquals(PaymentStatus.COMPLETED, event.getStatus());
+        assertEquals(1000, event.getAmountMinor());
+        assertEquals(Currency.getInstance("EUR"), event.getCurrency());
+
+        List<String> lines = Files.readAllLines(directory.resolve("report.csv"));
+        assertEquals(6, lines.size());
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("STATUS_MISMATCH," + stuck) && line.endsWith("AUTO_FIX")));
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("STATUS_MISMATCH," + refunded) && line.endsWith("REVIEW")));
+    }
+
+    @Test
+    void reconcile_ShouldReportAmountAndStatusMismatch_OfTheSameLine() throws Exception {
+        String stuck = insertPayment(1, "PROCESSING", "10.00");
+        Path settlementFile = directory.resolve("settlement.csv");
+        Files.writeString(settlementFile, stuck + ",SETTLED,12.00\n");
+
+        ReconciliationReport report = engine.reconcile(settlementFile, directory.resolve("report.csv"), false);
+
+        assertEquals(0, report.getMatched());
+        assertEquals(1, report.getAmountMismatches());
+        assertEquals(1, report.getStatusMismatches());
+        // With the amount in dispute the status is left for review
+        assertEquals(0, report.getAutoFixable());
+        assertEquals("PROCESSING", statusOf(1));
+
+        List<String> lines = Files.readAllLines(directory.resolve("report.csv"));
+        assertEquals(3, lines.size());
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("AMOUNT_MISMATCH," + stuck)));
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("STATUS_MISMATCH," + stuck) && line.endsWith("REVIEW")));
+    }
+
+    @Test
+    void reconcile_ShouldNotUpdate_WhenDryRun() throws Exception {
+        String stuck = insertPayment(1, "PROCESSING", "10.00");
+        Path settlementFile = directory.resolve("settlement.csv");
+        Files.writeString(settlementFile, stuck + ",DECLINED,10.00\n");
+
+        ReconciliationReport report = engine.reconcile(settlementFile, directory.resolve("report.csv"), true);
+
+        assertEquals(1, report.getAutoFixable());
+        assertEquals(0, report.getAutoFixed());
+        assertEquals("PROCESSING", statusOf(1));
+    }
+
+    private String insertPayment(long id, String status, String amount) {
+        String transactionId = "PG-" + UUID.randomUUID();
+        jdbcTemplate.update("INSERT INTO payment (id, order_id, amount, transaction_id, status) VALUES (?, ?, ?, ?, ?)",
+            id, id, new BigDecimal(amount), transactionId, status);
+        return transactionId;
+    }
+
+    private String statusOf(long id) {
+        return jdbcTemplate.queryForObject("SELECT status FROM payment WHERE id = ?", String.class, id);
+    }
+}
+
+// 8. Transaction ID Index Tests
+// OffHeapTransactionIndexTest.java
+package com.ecommerce.payment.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapTransactionIndexTest {
+
+    @Test
+    void put_ShouldBeVisibleToGet_AcrossConcurrentWriters() throws Exception {
+        OffHeapTransactionIndex index = new OffHeapTransactionIndex(1 << 16);
+        List<UUID> keys = new ArrayList<>();
+        for (int i = 0; i < 40_000; i++) {
+            keys.add(UUID.randomUUID());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int writer = 0; writer < 4; writer++) {
+                int first = writer;
+                writers.add(executor.submit(() -> {
+                    for (int i = first; i < keys.size(); i += 4) {
+                        UUID key = keys.get(i);
+                        assertTrue(index.put(key.getMostSignificantBits(), key.getLeastSignificantBits(), i + 1));
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            UUID key = keys.get(i);
+            assertEquals(i + 1, index.get(key.getMostSignificantBits(), key.getLeastSignificantBits()));
+        }
+        assertEquals(0, index.get(1L, 2L));
+        assertEquals(40_000, index.usedSlots());
+        assertEquals(65_536L * 24, index.sizeInBytes());
+    }
+
+    @Test
+    void remove_ShouldHideEntry_AndAllowReinsert() {
+        OffHeapTransactionIndex index = new OffHeapTransactionIndex(64);
+        index.put(10L, 20L, 7L);
+        index.put(11L, 21L, 8L);
+
+        index.remove(10L, 20L);
+        assertEquals(0, index.get(10L, 20L));
+        assertEquals(8, index.get(11L, 21L));
+
+        index.put(10L, 20L, 9L);
+        assertEquals(9, index.get(10L, 20L));
+    }
+
+    @Test
+    void put_ShouldRefuse_WhenFull() {
+        OffHeapTransactionIndex index = new OffHeapTransactionIndex(16);
+        int accepted = 0;
+        for (long i = 1; i <= 20; i++) {
+            if (index.put(i, i, i)) {
+                accepted++;
+            }
+        }
+
+        assertEquals(12, accepted);
+        assertEquals(5, index.get(5L, 5L));
+    }
+}
+
+// TransactionIdIndexTest.java
+package com.ecommerce.payment.index;
+
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.TransactionIds;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class TransactionIdIndexTest {
+
+    private static final String DELETED = "PG-6f1c2a3b-4d5e-4f60-8a7b-9c0d1e2f3a4b";
+    private static final String KEPT = "PG-0a1b2c3d-4e5f-4061-8273-849596a7b8c9";
+
+    @Test
+    void load_ShouldNotReAddPayments_DeletedWhileLoading() {
+        TransactionIdIndex transactionIdIndex = new TransactionIdIndex(mock(PaymentRepository.class),
+            mock(DataSource.class), mock(PlatformTransactionManager.class), new ShardRouter(1),
+            new SimpleMeterRegistry(), 64, 100);
+        OffHeapTransactionIndex index = transactionIdIndex.beginLoad(64);
+
+        // The loader read both rows before the delete committed
+        transactionIdIndex.removeAfterCommit(DELETED);
+        transactionIdIndex.loadEntry(DELETED, 41L);
+        transactionIdIndex.loadEntry(KEPT, 42L);
+
+        assertEquals(0, index.get(TransactionIds.high(DELETED), TransactionIds.low(DELETED)));
+        assertEquals(42, index.get(TransactionIds.high(KEPT), TransactionIds.low(KEPT)));
+    }
+}
+
+// 9. Webhook Ingestion Tests
+// SegmentedLogTest.java
+package com.ecommerce.payment.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentedLogTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replay_ShouldReturnRecordsInOrder_AcrossSegments() throws IOException {
+        try (SegmentedLog log = new SegmentedLog(directory, 256, "test")) {
+            long end = 0;
+            for (int i = 0; i < 100; i++) {
+                end = log.append(record(i));
+            }
+            log.awaitDurable(end);
+
+            assertTrue(log.segmentBases().size() > 1);
+            assertEquals(end, log.durablePosition());
+            assertEquals(range(100), replay(log, 0));
+        }
+    }
+
+    @Test
+    void close_ShouldMakeRecordsOfEveryRolledSegmentDurable() throws IOException {
+        long end;
+        SegmentedLog log = new SegmentedLog(directory, 256, "test");
+        try {
+            for (int i = 0; i < 100; i++) {
+                log.append(record(i));
+            }
+            end = log.endPosition();
+        } finally {
+            log.close();
+        }
+
+        assertTrue(log.segmentBases().size() > 1);
+        assertEquals(end, log.durablePosition());
+        try (SegmentedLog reopened = new SegmentedLog(directory, 256, "test")) {
+            assertEquals(range(100), replay(reopened, 0));
+        }
+    }
+
+    @Test
+    void open_ShouldTruncateTornTail() throws IOException {
+        long end;
+        try (SegmentedLog log = new SegmentedLog(directory, 1 << 20, "test")) {
+            for (int i = 0; i < 10; i++) {
+                log.append(record(i));
+            }
+            end = log.endPosition();
+        }
+
+        // A crash in the middle of a write leaves a partial record behind
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d.log", 0)),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 42, 1, 2}), end);
+        }
+
+        try (SegmentedLog log = new SegmentedLog(directory, 1 << 20, "test")) {
+            assertEquals(end, log.endPosition());
+            log.append(record(10));
+            assertEquals(range(11), replay(log, 0));
+        }
+    }
+
+    @Test
+    void deleteSegmentsBefore_ShouldKeepSegmentHoldingPosition() throws IOException {
+        try (SegmentedLog log = new SegmentedLog(directory, 256, "test")) {
+            long middle = 0;
+            for (int i = 0; i < 100; i++) {
+                long position = log.append(record(i));
+                if (i == 49) {
+                    middle = position;
+                }
+            }
+
+            log.deleteSegmentsBefore(middle);
+
+            assertEquals(range(50, 100), replay(log, middle));
+            assertTrue(log.segmentBases().get(0) <= middle);
+        }
+    }
+
+    @Test
+    void open_ShouldStopAtZeroFilledTail_AndRejectEmptyRecords() throws IOException {
+        long end;
+        try (SegmentedLog log = new SegmentedLog(directory, 1 << 20, "test")) {
+            for (int i = 0; i < 3; i++) {
+                log.append(record(i));
+            }
+            end = log.endPosition();
+            assertThrows(IllegalArgumentException.class, () -> log.append(ByteBuffer.allocate(0)));
+        }
+
+        // Preallocated or zeroed blocks read as headers with length 0 and CRC 0
+        try (FileChannel channel = FileChannel.open(directory.resolve(String.format("%020d.log", 0)),
+                StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4096), end);
+        }
+
+        try (SegmentedLog log = new SegmentedLog(directory, 1 << 20, "test")) {
+            assertEquals(end, log.endPosition());
+            assertEquals(range(3), replay(log, 0));
+        }
+    }
+
+    private static ByteBuffer record(int value) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(value).flip();
+    }
+
+    private static List<Integer> replay(SegmentedLog log, long from) throws IOException {
+        List<Integer> values = new ArrayList<>();
+        log.replay(from, (payload, next) -> values.add(payload.getInt()));
+        return values;
+    }
+
+    private static List<Integer> range(int end) {
+        return range(0, end);
+    }
+
+    private static List<Integer> range(int start, int end) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            values.add(i);
+        }
+        return values;
+    }
+}
+
+// WebhookSignatureVerifierTest.java
+package com.ecommerce.payment.webhook;
+
+import com.ecommerce.payment.model.PaymentStatus;
+import com.fasterxml.jackson.core.JsonFactory;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WebhookSignatureVerifierTest {
+
+    private static final byte[] BODY = ("{\"id\":\"evt_1\",\"type\":\"payment.succeeded\",\"created\":1700000000,"
+        + "\"data\":{\"transactionId\":\"PG-123\",\"metadata\":{\"id\":\"nested\"}}}").getBytes(StandardCharsets.UTF_8);
+
+    private final WebhookSignatureVerifier verifier =
+        new WebhookSignatureVerifier(Map.of("gateway", "s3cret", "unconfigured", ""));
+
+    @Test
+    void verify_ShouldAcceptOwnSignature_AndRejectTampering() {
+        String signature = verifier.sign("gateway", BODY);
+
+        assertTrue(verifier.verify("gateway", BODY, signature));
+        assertFalse(verifier.verify("gateway", "{}".getBytes(StandardCharsets.UTF_8), signature));
+        assertFalse(verifier.verify("gateway", BODY, "sha256=not-hex"));
+        assertFalse(verifier.verify("gateway", BODY, null));
+        assertFalse(verifier.isKnownProvider("unconfigured"));
+    }
+
+    @Test
+    void parse_ShouldReadTopLevelIdAndNestedTransactionId() {
+        WebhookEventParser parser = new WebhookEventParser(new JsonFactory());
+
+        WebhookEvent event = parser.parse(BODY, 42L);
+
+        assertEquals("evt_1", event.getEventId());
+        assertEquals("PG-123", event.getTransactionId());
+        assertEquals(PaymentStatus.COMPLETED, event.getTargetStatus());
+
+        WebhookEvent decoded = WebhookEvent.decode(event.encode());
+        assertEquals("evt_1", decoded.getEventId());
+        assertEquals("PG-123", decoded.getTransactionId());
+        assertEquals(42L, decoded.getReceivedAt());
+    }
+
+    @Test
+    void encode_ShouldRoundTripIdsLongerThan255Bytes() {
+        // 128 characters, the parser's limit, of three bytes each in UTF-8
+        String eventId = "\u20ac".repeat(128);
+        WebhookEvent event = new WebhookEvent(eventId, "PG-" + eventId, PaymentStatus.REFUNDED, 7L);
+
+        WebhookEvent decoded = WebhookEvent.decode(event.encode());
+
+        assertEquals(eventId, decoded.getEventId());
+        assertEquals("PG-" + eventId, decoded.getTransactionId());
+        assertEquals(PaymentStatus.REFUNDED, decoded.getTargetStatus());
+    }
+
+    @Test
+    void decode_ShouldReadRecordsWithOneByteLengths() {
+        byte[] event = "evt_1".getBytes(StandardCharsets.UTF_8);
+        byte[] transaction = "PG-123".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer legacy = ByteBuffer.allocate(1 + Long.BYTES + 1 + event.length + 1 + transaction.length);
+        legacy.put((byte) PaymentStatus.FAILED.ordinal()).putLong(42L)
+            .put((byte) event.length).put(event)
+            .put((byte) transaction.length).put(transaction)
+            .flip();
+
+        WebhookEvent decoded = WebhookEvent.decode(legacy);
+
+        assertEquals("evt_1", decoded.getEventId());
+        assertEquals("PG-123", decoded.getTransactionId());
+        assertEquals(PaymentStatus.FAILED, decoded.getTargetStatus());
+    }
+
+    @Test
+    void parse_ShouldIgnoreUnrelatedTypes_AndRejectIncompleteBodies() {
+        WebhookEventParser parser = new WebhookEventParser(new JsonFactory());
+
+        assertNull(parser.parse("{\"id\":\"evt_2\",\"type\":\"customer.created\",\"data\":{\"transactionId\":\"x\"}}"
+            .getBytes(StandardCharsets.UTF_8), 0));
+        assertThrows(IllegalArgumentException.class,
+            () -> parser.parse("{\"id\":\"evt_3\"}".getBytes(StandardCharsets.UTF_8), 0));
+        assertThrows(IllegalArgumentException.class,
+            () -> parser.parse("not json".getBytes(StandardCharsets.UTF_8), 0));
+    }
+}
+
+// WebhookPartitionTest.java
+package com.ecommerce.payment.webhook;
+
+import com.ecommerce.payment.model.PaymentStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+public class WebhookPartitionTest {
+
+    @TempDir
+    Path directory;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final WebhookMetrics metrics = new WebhookMetrics(meterRegistry);
+    private final WebhookEventApplier applier = mock(WebhookEventApplier.class);
+
+    @Test
+    void poisonEvent_ShouldBeDeadLettered_WhileTheRestOfTheBatchIsApplied() throws Exception {
+        List<String> applied = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            List<WebhookEvent> events = invocation.getArgument(0);
+            for (WebhookEvent event : events) {
+                if (event.getEventId().equals("evt_poison")) {
+                    throw new IllegalStateException("cannot apply " + event.getEventId());
+                }
+            }
+            events.forEach(event -> applied.add(event.getEventId()));
+            return null;
+        }).when(applier).apply(anyList());
+
+        try (WebhookPartition partition = newPartition()) {
+            partition.start();
+            partition.offer(event("evt_1"));
+            partition.offer(event("evt_poison"));
+            partition.offer(event("evt_2"));
+
+            awaitCount("dead_lettered", 1);
+            assertTrue(applied.containsAll(List.of("evt_1", "evt_2")));
+
+            List<String> deadLettered = new ArrayList<>();
+            partition.deadLetters().replay(0,
+                (payload, next) -> deadLettered.add(WebhookEvent.decode(payload).getEventId()));
+            assertEquals(List.of("evt_poison"), deadLettered);
+        }
+    }
+
+    @Test
+    void failedEvent_ShouldNotBeRecordedAsDuplicate_WhenRedelivered() throws Exception {
+        List<String> applied = new CopyOnWriteArrayList<>();
+        // Fails the batch and the single-event attempt, then recovers
+        doThrow(new IllegalStateException("database down"))
+            .doThrow(new IllegalStateException("database down"))
+            .doAnswer(invocation -> {
+                List<WebhookEvent> events = invocation.getArgument(0);
+                events.forEach(event -> applied.add(event.getEventId()));
+                return null;
+            })
+            .when(applier).apply(anyList());
+
+        try (WebhookPartition partition = newPartition()) {
+            partition.start();
+            partition.offer(event("evt_1"));
+            awaitCount("dead_lettered", 1);
+
+            // The gateway redelivers the event; it must be applied, not dropped as a duplicate
+            partition.offer(event("evt_1"));
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (applied.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(List.of("evt_1"), applied);
+            assertEquals(0, count("duplicate"));
+        }
+    }
+
+    private WebhookPartition newPartition() throws Exception {
+        WebhookProperties properties = new WebhookProperties();
+        properties.setQueueCapacity(16);
+        properties.setMaxApplyAttempts(1);
+        return new WebhookPartition(0, directory, properties, applier, metrics);
+    }
+
+    private static WebhookEvent event(String eventId) {
+        return new WebhookEvent(eventId, "PG-1", PaymentStatus.COMPLETED, 0L);
+    }
+
+    private double count(String result) {
+        return meterRegistry.get("payment.webhooks.processed").tag("result", result).counter().count();
+    }
+
+    private void awaitCount(String result, double expected) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (count(result) < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, count(result));
+    }
+}
+
+// 10. Payment Event Log Tests
+// PaymentEventLogTest.java
+package com.ecommerce.payment.event;
+
+import com.ecommerce.payment.model.PaymentStatus;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PaymentEventLogTest {
+
+    private static final Currency USD = Currency.getInstance("USD");
+    private static final Currency EUR = Currency.getInstance("EUR");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void decode_ShouldReadTheCurrency_AndTakeUsdForRecordsWrittenWithoutIt() {
+        ByteBuffer buffer = ByteBuffer.allocate(PaymentStatusChangedEvent.ENCODED_BYTES);
+        new PaymentStatusChangedEvent(2, 1, PaymentStatus.PENDING, PaymentStatus.COMPLETED, 1250, EUR, 10)
+            .encodeTo(buffer);
+
+        PaymentStatusChangedEvent decoded = PaymentStatusChangedEvent.decode(buffer.flip().duplicate());
+        assertEquals(EUR, decoded.getCurrency());
+        assertEquals(1250, decoded.getAmountMinor());
+        assertEquals(10, decoded.getOccurredAt());
+
+        PaymentStatusChangedEvent older = PaymentStatusChangedEvent.decode(
+            buffer.limit(PaymentStatusChangedEvent.ENCODED_BYTES - 3));
+        assertEquals(USD, older.getCurrency());
+        assertEquals(PaymentStatus.COMPLETED, older.getStatus());
+        assertEquals(10, older.getOccurredAt());
+    }
+
+    @Test
+    void rebuild_ShouldKeepLatestStatus_AcrossParallelSegments() throws IOException {
+        try (PaymentEventLog eventLog = new PaymentEventLog(properties(), new SimpleMeterRegistry())) {
+            appendLifecycles(eventLog, 1, 2000);
+
+            PaymentStateTable state = eventLog.rebuild();
+
+            assertEquals(2000, state.size());
+            assertEquals(PaymentStatus.COMPLETED, state.get(2).status());
+            assertEquals(PaymentStatus.FAILED, state.get(3).status());
+            assertEquals(300, state.get(3).amountMinor());
+            assertNull(state.get(2001));
+        }
+    }
+
+    @Test
+    void rebuild_ShouldCombineSnapshotWithLaterEvents_AfterReopen() throws IOException {
+        try (PaymentEventLog eventLog = new PaymentEventLog(properties(), new SimpleMeterRegistry())) {
+            appendLifecycles(eventLog, 1, 1000);
+            eventLog.snapshot();
+            eventLog.append(List.of(
+                new PaymentStatusChangedEvent(2, 1, PaymentStatus.COMPLETED, PaymentStatus.REFUNDED, 200, USD, 10),
+                new PaymentStatusChangedEvent(1001, 500, null, PaymentStatus.PENDING, 100, USD, 10)));
+        }
+
+        try (PaymentEventLog eventLog = new PaymentEventLog(properties(), new SimpleMeterRegistry())) {
+            PaymentStateTable state = eventLog.rebuild();
+
+            assertEquals(1001, state.size());
+            assertEquals(PaymentStatus.REFUNDED, state.get(2).status());
+            assertEquals(PaymentStatus.FAILED, state.get(1).status());
+            assertEquals(PaymentStatus.PENDING, state.get(1001).status());
+
+            List<PaymentStatusChangedEvent> history = new ArrayList<>();
+            eventLog.replay((event, position) -> {
+                if (event.getPaymentId() == 2) {
+                    history.add(event);
+                }
+            });
+            assertEquals(List.of(PaymentStatus.PENDING, PaymentStatus.PROCESSING, PaymentStatus.COMPLETED,
+                PaymentStatus.REFUNDED), history.stream().map(PaymentStatusChangedEvent::getStatus).toList());
+        }
+    }
+
+    @Test
+    void rebuild_ShouldKeepDeletedPaymentsAsTombstones_AcrossSnapshots() throws IOException {
+        try (PaymentEventLog eventLog = new PaymentEventLog(properties(), new SimpleMeterRegistry())) {
+            appendLifecycles(eventLog, 1, 10);
+            eventLog.append(List.of(PaymentStatusChangedEvent.removed(3, 1, PaymentStatus.FAILED, 300, USD, 20)));
+            eventLog.snapshot();
+        }
+
+        try (PaymentEventLog eventLog = new PaymentEventLog(properties(), new SimpleMeterRegistry())) {
+            PaymentStateTable state = eventLog.rebuild();
+
+            assertNull(state.get(3).status());
+            assertEquals(PaymentStatus.COMPLETED, state.get(2).status());
+        }
+    }
+
+    private PaymentEventLogProperties properties() {
+        PaymentEventLogProperties properties = new PaymentEventLogProperties();
+        properties.setDirectory(directory);
+        // Small segments, so replay runs over several of them in parallel
+        properties.setSegmentSize(DataSize.ofKilobytes(16));
+        properties.setReplayParallelism(4);
+        properties.setStripes(8);
+        return properties;
+    }
+
+    private static void appendLifecycles(PaymentEventLog eventLog, long firstPaymentId, int payments) {
+        List<PaymentStatusChangedEvent> events = new ArrayList<>();
+        for (long id = firstPaymentId; id < firstPaymentId + payments; id++) {
+            PaymentStatus outcome = id % 2 == 0 ? PaymentStatus.COMPLETED : PaymentStatus.FAILED;
+            events.add(new PaymentStatusChangedEvent(id, id / 2, null, PaymentStatus.PENDING, id * 100, USD, id));
+            events.add(new PaymentStatusChangedEvent(id, id / 2, PaymentStatus.PENDING, PaymentStatus.PROCESSING,
+                id * 100, USD, id));
+            events.add(new PaymentStatusChangedEvent(id, id / 2, PaymentStatus.PROCESSING, outcome, id * 100, USD,
+                id));
+        }
+        eventLog.append(events);
+    }
+}
+
+// 11. Read Model Tests
+// OrderPaymentSummaryProjectorTest.java
+package com.ecommerce.payment.readmodel;
+
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.shard.ShardRouter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OrderPaymentSummaryProjectorTest {
+
+    private static final Currency USD = Currency.getInstance("USD");
+    private static final Currency EUR = Currency.getInstance("EUR");
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private OrderPaymentSummaryProjector projector;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        jdbcTemplate = new JdbcTemplate(database);
+        jdbcTemplate.execute("CREATE TABLE payment (id BIGINT PRIMARY KEY, order_id BIGINT, amount DECIMAL(38, 2), "
+            + "currency CHAR(3) DEFAULT 'USD' NOT NULL, transaction_id VARCHAR(255), payment_method VARCHAR(32), "
+            + "status VARCHAR(32), created_at TIMESTAMP, updated_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE order_payment_summary (order_id BIGINT NOT NULL, currency CHAR(3) NOT NULL, "
+            + "payment_count BIGINT NOT NULL, captured_amount DECIMAL(38, 2) NOT NULL, "
+            + "refunded_amount DECIMAL(38, 2) NOT NULL, failed_amount DECIMAL(38, 2) NOT NULL, "
+            + "outstanding_amount DECIMAL(38, 2) NOT NULL, latest_payment_id BIGINT, latest_status VARCHAR(32), "
+            + "updated_at TIMESTAMP, PRIMARY KEY (order_id, currency))");
+
+        projector = new OrderPaymentSummaryProjector(database, new DataSourceTransactionManager(database),
+            new ShardRouter(1), new ReadModelProperties(), new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    void apply_ShouldAccumulateTotals_AcrossBatches() {
+        projector.apply(List.of(
+            event(1, 7, null, PaymentStatus.PENDING, 1000),
+            event(1, 7, PaymentStatus.PENDING, PaymentStatus.PROCESSING, 1000),
+            event(1, 7, PaymentStatus.PROCESSING, PaymentStatus.FAILED, 1000),
+            event(2, 7, null, PaymentStatus.PENDING, 2550),
+            event(2, 7, PaymentStatus.PENDING, PaymentStatus.PROCESSING, 2550),
+            event(2, 7, PaymentStatus.PROCESSING, PaymentStatus.COMPLETED, 2550),
+            event(3, 8, null, PaymentStatus.PENDING, 500)));
+        projector.apply(List.of(
+            event(2, 7, PaymentStatus.COMPLETED, PaymentStatus.REFUNDED, 2550),
+            // A late change of an older attempt does not replace the latest status
+            event(1, 7, PaymentStatus.FAILED, PaymentStatus.COMPLETED, 1000)));
+
+        Map<String, Object> order = summaryOf(7);
+        assertEquals(2L, ((Number) order.get("PAYMENT_COUNT")).longValue());
+        assertEquals(new BigDecimal("35.50"), order.get("CAPTURED_AMOUNT"));
+        assertEquals(new BigDecimal("25.50"), order.get("REFUNDED_AMOUNT"));
+        assertEquals(new BigDecimal("0.00"), order.get("FAILED_AMOUNT"));
+        assertEquals(new BigDecimal("0.00"), order.get("OUTSTANDING_AMOUNT"));
+        assertEquals(2L, ((Number) order.get("LATEST_PAYMENT_ID")).longValue());
+        assertEquals("REFUNDED", order.get("LATEST_STATUS"));
+
+        assertEquals(new BigDecimal("0.00"), summaryOf(8).get("CAPTURED_AMOUNT"));
+        assertEquals(new BigDecimal("5.00"), summaryOf(8).get("OUTSTANDING_AMOUNT"));
+        assertEquals("PENDING", summaryOf(8).get("LATEST_STATUS"));
+    }
+
+    @Test
+    void apply_ShouldSubtractDeletedPayments() {
+        projector.apply(List.of(
+            event(1, 7, null, PaymentStatus.PENDING, 1000),
+            event(1, 7, PaymentStatus.PENDING, PaymentStatus.COMPLETED, 1000),
+            event(2, 7, null, PaymentStatus.PENDING, 2550),
+            event(2, 7, PaymentStatus.PENDING, PaymentStatus.FAILED, 2550)));
+        projector.apply(List.of(
+            PaymentStatusChangedEvent.removed(1, 7, PaymentStatus.COMPLETED, 1000, USD, System.currentTimeMillis())));
+
+        Map<String, Object> order = summaryOf(7);
+        assertEquals(1L, ((Number) order.get("PAYMENT_COUNT")).longValue());
+        assertEquals(new BigDecimal("0.00"), order.get("CAPTURED_AMOUNT"));
+        assertEquals(new BigDecimal("25.50"), order.get("FAILED_AMOUNT"));
+        assertEquals(2L, ((Number) order.get("LATEST_PAYMENT_ID")).longValue());
+        assertEquals("FAILED", order.get("LATEST_STATUS"));
+
+        // Deleting from an order without a summary row writes nothing
+        projector.apply(List.of(
+            PaymentStatusChangedEvent.removed(9, 123, PaymentStatus.PENDING, 100, USD, System.currentTimeMillis())));
+        assertEquals(0, jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM order_payment_summary WHERE order_id = 123", Integer.class));
+    }
+
+    @Test
+    void rebuild_ShouldMatchIncrementalTotals() {
+        insertPayment(1, 7, "10.00", "COMPLETED");
+        insertPayment(2, 7, "25.50", "REFUNDED");
+        insertPayment(3, 7, "5.00", "FAILED");
+        insertPayment(4, 9, "1.00", "PENDING");
+        projector.apply(List.of(event(99, 123, null, PaymentStatus.PENDING, 100)));
+
+        assertEquals(2, projector.rebuild());
+
+        Map<String, Object> order = summaryOf(7);
+        assertEquals(3L, ((Number) order.get("PAYMENT_COUNT")).longValue());
+        assertEquals(new BigDecimal("35.50"), order.get("CAPTURED_AMOUNT"));
+        assertEquals(new BigDecimal("25.50"), order.get("REFUNDED_AMOUNT"));
+        assertEquals(new BigDecimal("5.00"), order.get("FAILED_AMOUNT"));
+        assertEquals(new BigDecimal("0.00"), order.get("OUTSTANDING_AMOUNT"));
+        assertEquals("FAILED", order.get("LATEST_STATUS"));
+        assertEquals(new BigDecimal("1.00"), summaryOf(9).get("OUTSTANDING_AMOUNT"));
+        assertEquals(0, jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM order_payment_summary WHERE order_id = 123", Integer.class));
+    }
+
+    @Test
+    void apply_ShouldKeepTotalsPerCurrency_ForOrderPaidInTwoCurrencies() {
+        projector.apply(List.of(
+            event(1, 7, null, PaymentStatus.PENDING, 1000),
+            event(1, 7, PaymentStatus.PENDING, PaymentStatus.COMPLETED, 1000),
+            event(2, 7, null, PaymentStatus.PENDING, 2550, EUR),
+            event(2, 7, PaymentStatus.PENDING, PaymentStatus.COMPLETED, 2550, EUR)));
+        projector.apply(List.of(
+            event(3, 7, null, PaymentStatus.PENDING, 500, EUR),
+            event(3, 7, PaymentStatus.PENDING, PaymentStatus.FAILED, 500, EUR)));
+
+        Map<String, Object> dollars = summaryOf(7, USD);
+        assertEquals(1L, ((Number) dollars.get("PAYMENT_COUNT")).longValue());
+        assertEquals(new BigDecimal("10.00"), dollars.get("CAPTURED_AMOUNT"));
+        assertEquals(1L, ((Number) dollars.get("LATEST_PAYMENT_ID")).longValue());
+        assertEquals("COMPLETED", dollars.get("LATEST_STATUS"));
+
+        Map<String, Object> euros = summaryOf(7, EUR);
+        assertEquals(2L, ((Number) euros.get("PAYMENT_COUNT")).longValue());
+        assertEquals(new BigDecimal("25.50"), euros.get("CAPTURED_AMOUNT"));
+        assertEquals(new BigDecimal("5.00"), euros.get("FAILED_AMOUNT"));
+        assertEquals(3L, ((Number) euros.get("LATEST_PAYMENT_ID")).longValue());
+        assertEquals("FAILED", euros.get("LATEST_STATUS"));
+
+        // A rebuild groups the payment table the same way
+        insertPayment(1, 7, "10.00", "COMPLETED");
+        insertPayment(2, 7, "25.50", "COMPLETED", EUR);
+        insertPayment(3, 7, "5.00", "FAILED", EUR);
+        assertEquals(2, projector.rebuild());
+        assertEquals(new BigDecimal("10.00"), summaryOf(7, USD).get("CAPTURED_AMOUNT"));
+        assertEquals(new BigDecimal("25.50"), summaryOf(7, EUR).get("CAPTURED_AMOUNT"));
+        assertEquals(new BigDecimal("5.00"), summaryOf(7, EUR).get("FAILED_AMOUNT"));
+    }
+
+    private static PaymentStatusChangedEvent event(long paymentId, long orderId, PaymentStatus previous,
+                                                   PaymentStatus status, long amountMinor) {
+        return event(paymentId, orderId, previous, status, amountMinor, USD);
+    }
+
+    private static PaymentStatusChangedEvent event(long paymentId, long orderId, PaymentStatus previous,
+                                                   PaymentStatus status, long amountMinor, Currency currency) {
+        return new PaymentStatusChangedEvent(paymentId, orderId, previous, status, amountMinor, currency,
+            System.currentTimeMillis());
+    }
+
+    private void insertPayment(long id, long orderId, String amount, String status) {
+        insertPayment(id, orderId, amount, status, USD);
+    }
+
+    private void insertPayment(long id, long orderId, String amount, String status, Currency currency) {
+        jdbcTemplate.update("INSERT INTO payment (id, order_id, amount, currency, status) VALUES (?, ?, ?, ?, ?)",
+            id, orderId, new BigDecimal(amount), currency.getCurrencyCode(), status);
+    }
+
+    private Map<String, Object> summaryOf(long orderId) {
+        return summaryOf(orderId, USD);
+    }
+
+    private Map<String, Object> summaryOf(long orderId, Currency currency) {
+        return jdbcTemplate.queryForMap("SELECT * FROM order_payment_summary WHERE order_id = ? AND currency = ?",
+            orderId, currency.getCurrencyCode());
+    }
+}
+
+// PaymentRepositoryAggregateTest.java
+package com.ecommerce.payment.repository;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the native aggregateByOrderId query, the fallback of OrderPaymentSummaryService.getOrderSummary,
+ * against the schema Hibernate generates, and maps it through the OrderPaymentTotals projection
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+public class PaymentRepositoryAggregateTest {
+
+    @Autowired
+    private PaymentRepository paymentRepository;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Test
+    void aggregateByOrderId_ShouldTotalPaymentsByStatus() {
+        insertPayment(1, 7, "10.00", "COMPLETED");
+        insertPayment(2, 7, "25.50", "REFUNDED");
+        insertPayment(3, 7, "5.00", "FAILED");
+        insertPayment(4, 7, "2.25", "UNKNOWN");
+        insertPayment(5, 7, "1.00", "PENDING");
+        insertPayment(6, 8, "99.00", "COMPLETED");
+
+        List<OrderPaymentTotals> byCurrency = paymentRepository.aggregateByOrderId(7L);
+
+        assertEquals(1, byCurrency.size());
+        OrderPaymentTotals totals = byCurrency.get(0);
+        assertEquals("USD", totals.getCurrency());
+        assertEquals(5, totals.getPaymentCount());
+        assertEquals(0, new BigDecimal("35.50").compareTo(totals.getCapturedAmount()));
+        assertEquals(0, new BigDecimal("25.50").compareTo(totals.getRefundedAmount()));
+        assertEquals(0, new BigDecimal("5.00").compareTo(totals.getFailedAmount()));
+        assertEquals(0, new BigDecimal("3.25").compareTo(totals.getOutstandingAmount()));
+        assertEquals(5L, totals.getLatestPaymentId());
+        assertEquals("PENDING", totals.getLatestStatus());
+    }
+
+    @Test
+    void aggregateByOrderId_ShouldTotalEachCurrencyApart() {
+        insertPayment(1, 7, "10.00", "COMPLETED");
+        insertPayment(2, 7, "25.50", "COMPLETED", "EUR");
+        insertPayment(3, 7, "5.00", "PENDING", "EUR");
+        insertPayment(4, 7, "1.00", "FAILED");
+
+        List<OrderPaymentTotals> byCurrency = paymentRepository.aggregateByOrderId(7L);
+
+        assertEquals(List.of("EUR", "USD"), byCurrency.stream().map(OrderPaymentTotals::getCurrency).toList());
+        OrderPaymentTotals euros = byCurrency.get(0);
+        assertEquals(2, euros.getPaymentCount());
+        assertEquals(0, new BigDecimal("25.50").compareTo(euros.getCapturedAmount()));
+        assertEquals(0, new BigDecimal("5.00").compareTo(euros.getOutstandingAmount()));
+        assertEquals(3L, euros.getLatestPaymentId());
+        assertEquals("PENDING", euros.getLatestStatus());
+        OrderPaymentTotals dollars = byCurrency.get(1);
+        assertEquals(2, dollars.getPaymentCount());
+        assertEquals(0, new BigDecimal("10.00").compareTo(dollars.getCapturedAmount()));
+        assertEquals(0, new BigDecimal("1.00").compareTo(dollars.getFailedAmount()));
+        assertEquals(4L, dollars.getLatestPaymentId());
+        assertEquals("FAILED", dollars.getLatestStatus());
+    }
+
+    @Test
+    void aggregateByOrderId_ShouldReturnNoTotals_ForOrderWithoutPayments() {
+        assertTrue(paymentRepository.aggregateByOrderId(404L).isEmpty());
+    }
+
+    private void insertPayment(long id, long orderId, String amount, String status) {
+        insertPayment(id, orderId, amount, status, "USD");
+    }
+
+    private void insertPayment(long id, long orderId, String amount, String status, String currency) {
+        jdbcTemplate.update("INSERT INTO payment (id, order_id, amount, currency, payment_method, status, version) "
+            + "VALUES (?, ?, ?, ?, 'CREDIT_CARD', ?, 0)", id, orderId, new BigDecimal(amount), currency, status);
+    }
+}
+
+// 12. Bulk Lookup Tests
+// PaymentLookupServiceTest.java
+package com.ecommerce.payment.service;
+
+import com.ecommerce.payment.cache.LoopbackInvalidationTransport;
+import com.ecommerce.payment.cache.NearCacheProperties;
+import com.ecommerce.payment.cache.PaymentCache;
+import com.ecommerce.payment.dto.PaymentLookupRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.shard.ShardRouter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.*;
+
+public class PaymentLookupServiceTest {
+
+    private EmbeddedDatabase database;
+    private PaymentRepository paymentRepository;
+    private PaymentCache paymentCache;
+    private PaymentLookupService lookupService;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        paymentRepository = mock(PaymentRepository.class);
+        NearCacheProperties cacheProperties = new NearCacheProperties();
+        cacheProperties.setEnabled(true);
+        paymentCache = new PaymentCache(cacheProperties, new LoopbackInvalidationTransport(), new SimpleMeterRegistry());
+        lookupService = new PaymentLookupService(paymentRepository, new ShardRouter(1), paymentCache,
+            new DataSourceTransactionManager(database));
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void lookup_ShouldQueryInChunks_AndEmitEachPaymentOnce() {
+        when(paymentRepository.findAllById(anyIterable())).thenAnswer(invocation -> {
+            List<Payment> found = new ArrayList<>();
+            for (Long id : (Iterable<Long>) invocation.getArgument(0)) {
+                // Odd IDs do not exist
+                if (id % 2 == 0) {
+                    found.add(payment(id, id / 100));
+                }
+            }
+            return found;
+        });
+        when(paymentRepository.findByOrderIdIn(anyCollection())).thenAnswer(invocation ->
+            ((Collection<Long>) invocation.getArgument(0)).stream()
+                .flatMap(orderId -> LongStream.of(orderId * 100, orderId * 100 + 2).mapToObj(id -> payment(id, orderId)))
+                .collect(Collectors.toList()));
+
+        PaymentLookupRequest request = new PaymentLookupRequest();
+        request.setPaymentIds(LongStream.rangeClosed(1, 1200).boxed().collect(Collectors.toList()));
+        // Order 1 has payments 100 and 102, which were requested by ID already
+        request.setOrderIds(List.of(1L, 50L, 50L));
+
+        List<PaymentResponse> responses = new ArrayList<>();
+        int found = lookupService.lookup(request, responses::add);
+
+        assertEquals(602, found);
+        assertEquals(602, responses.size());
+        assertEquals(602, responses.stream().map(PaymentResponse::getId).distinct().count());
+        assertTrue(responses.stream().anyMatch(response -> response.getId() == 5002L && response.getOrderId() == 50L));
+
+        verify(paymentRepository, times(3)).findAllById(anyIterable());
+        verify(paymentRepository, times(1)).findByOrderIdIn(List.of(1L, 50L));
+        verify(paymentRepository, never()).findById(any());
+    }
+
+    @Test
+    void lookup_ShouldQueryOnlyPaymentIdsMissingFromCache_AndCacheWhatItReads() {
+        PaymentResponse cached = PaymentResponse.from(payment(2L, 1L));
+        paymentCache.put(2L, 0, cached, paymentCache.startLoad());
+        when(paymentRepository.findAllById(anyIterable())).thenReturn(List.of(payment(4L, 1L)));
+
+        PaymentLookupRequest request = new PaymentLookupRequest();
+        request.setPaymentIds(List.of(2L, 4L));
+
+        List<PaymentResponse> responses = new ArrayList<>();
+        assertEquals(2, lookupService.lookup(request, responses::add));
+        assertSame(cached, responses.get(0));
+        verify(paymentRepository).findAllById(List.of(4L));
+
+        // Payment 4 is cached now, so a second lookup reads nothing
+        responses.clear();
+        assertEquals(2, lookupService.lookup(request, responses::add));
+        assertEquals(2, responses.size());
+        verify(paymentRepository, times(1)).findAllById(anyIterable());
+    }
+
+    private static Payment payment(long id, long orderId) {
+        Payment payment = new Payment(orderId, Money.of(1000, Money.DEFAULT_CURRENCY), PaymentMethod.CREDIT_CARD,
+            Instant.EPOCH);
+        payment.setId(id);
+        return payment;
+    }
+}
+
+// PaymentLookupControllerTest.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.dto.PaymentLookupRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.service.PaymentLookupService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@WebMvcTest(PaymentLookupController.class)
+public class PaymentLookupControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private PaymentLookupService lookupService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    void lookup_ShouldStreamPaymentsAsJsonArray() throws Exception {
+        when(lookupService.lookup(any(), any())).thenAnswer(invocation -> {
+            Consumer<PaymentResponse> sink = invocation.getArgument(1);
+            sink.accept(response(1L));
+            sink.accept(response(2L));
+            return 2;
+        });
+
+        MvcResult result = mockMvc.perform(post("/api/payments/lookup")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"paymentIds\": [1, 2]}"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.length()").value(2))
+            .andExpect(jsonPath("$[1].id").value(2));
+    }
+
+    @Test
+    void lookup_ShouldReturnBadRequest_WhenNoIdsGiven() throws Exception {
+        mockMvc.perform(post("/api/payments/lookup")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{}"))
+            .andExpect(status().isBadRequest());
+
+        verifyNoInteractions(lookupService);
+    }
+
+    @Test
+    void lookup_ShouldReturnBadRequest_WhenTooManyIdsGiven() throws Exception {
+        String body = objectMapper.writeValueAsString(Map.of("orderIds",
+            LongStream.rangeClosed(1, PaymentLookupRequest.MAX_IDS + 1).boxed().collect(Collectors.toList())));
+
+        mockMvc.perform(post("/api/payments/lookup")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.orderIds").value("At most 5000 order IDs can be looked up at once"));
+
+        verifyNoInteractions(lookupService);
+    }
+
+    @Test
+    void lookup_ShouldLeaveArrayUnclosed_WhenReadingFailsMidStream() throws Exception {
+        when(lookupService.lookup(any(), any())).thenAnswer(invocation -> {
+            Consumer<PaymentResponse> sink = invocation.getArgument(1);
+            sink.accept(response(1L));
+            throw new DataAccessResourceFailureException("Connection reset");
+        });
+
+        MvcResult result = mockMvc.perform(post("/api/payments/lookup")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"paymentIds\": [1, 2]}"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        mockMvc.perform(asyncDispatch(result));
+
+        // Whatever was sent is not a complete array a client could mistake for the whole result
+        String content = result.getResponse().getContentAsString();
+        assertTrue(content.startsWith("[{"), content);
+        assertThrows(JsonProcessingException.class, () -> objectMapper.readTree(content));
+    }
+
+    private static PaymentResponse response(Long id) {
+        PaymentResponse response = new PaymentResponse();
+        response.setId(id);
+        response.setOrderId(1L);
+        response.setAmount(Money.of(1000, Money.DEFAULT_CURRENCY));
+        response.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        response.setStatus(PaymentStatus.COMPLETED);
+        response.setCreatedAt(Instant.EPOCH);
+        response.setUpdatedAt(Instant.EPOCH);
+        return response;
+    }
+}
+
+// 13. Admission Control Tests
+// AdmissionControlTest.java
+package com.ecommerce.payment.admission;
+
+import com.ecommerce.payment.exception.ErrorResponseCache;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdmissionControlTest {
+
+    private static final long MILLI = 1_000_000L;
+
+    @Test
+    void tokenBuckets_ShouldAllowBurst_ThenRefillAtRate() {
+        TokenBuckets buckets = new TokenBuckets(2, 10, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, buckets.tryAcquire(0, 0));
+        }
+        assertEquals(100 * MILLI, buckets.tryAcquire(0, 0));
+        // Buckets are independent
+        assertEquals(0, buckets.tryAcquire(1, 0));
+
+        assertEquals(0, buckets.tryAcquire(0, 100 * MILLI));
+        assertTrue(buckets.tryAcquire(0, 100 * MILLI) > 0);
+    }
+
+    @Test
+    void concurrencyLimit_ShouldFollowLatency() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 4, 200);
+
+        saturate(limit, 10 * MILLI, 2000);
+        assertEquals(200, limit.getLimit());
+
+        // Ten times the no-load latency means requests are queueing downstream
+        saturate(limit, 100 * MILLI, 2000);
+        assertTrue(limit.getLimit() < 20, "limit " + limit.getLimit());
+
+        saturate(limit, 10 * MILLI, 2000);
+        assertEquals(200, limit.getLimit());
+
+        assertTrue(limit.tryAcquire());
+        limit.release(10 * MILLI, true);
+        assertEquals(180, limit.getLimit());
+    }
+
+    @Test
+    void filter_ShouldRejectWith429AndRetryAfter_WhenClientExceedsRate() throws Exception {
+        AdmissionProperties properties = new AdmissionProperties();
+        properties.setClientRate(1);
+        properties.setClientBurst(2);
+        AdmissionControl admission = new AdmissionControl(properties, new SimpleMeterRegistry());
+        AdmissionFilter filter = newFilter(properties, admission);
+
+        assertEquals(200, process(filter, "client-a").getStatus());
+        assertEquals(200, process(filter, "client-a").getStatus());
+
+        MockHttpServletResponse rejected = process(filter, "client-a");
+        assertEquals(429, rejected.getStatus());
+        assertEquals("1", rejected.getHeader("Retry-After"));
+        assertTrue(rejected.getContentAsString().contains(AdmissionControl.RATE_LIMITED));
+
+        // Other clients keep their own budget
+        assertEquals(200, process(filter, "client-b").getStatus());
+        assertEquals(0, admission.getConcurrencyLimit().getInFlight());
+    }
+
+    @Test
+    void filter_ShouldIgnoreClientIdHeader_UnlessTrusted() throws Exception {
+        AdmissionProperties properties = new AdmissionProperties();
+        properties.setClientRate(1);
+        properties.setClientBurst(1);
+        AdmissionFilter filter = newFilter(properties);
+
+        // A caller rotating the header gets no fresh budgets, and anonymous callers have no per-client limit
+        assertEquals(200, processWithHeader(filter, "spoofed-1").getStatus());
+        assertEquals(200, processWithHeader(filter, "spoofed-1").getStatus());
+
+        properties.setTrustClientIdHeader(true);
+        AdmissionFilter trusting = newFilter(properties);
+        assertEquals(200, processWithHeader(trusting, "client-a").getStatus());
+        assertEquals(429, processWithHeader(trusting, "client-a").getStatus());
+    }
+
+    @Test
+    void filter_ShouldGiveBackClientToken_WhenConcurrencyLimitRejects() throws Exception {
+        AdmissionProperties properties = new AdmissionProperties();
+        properties.setClientRate(1);
+        properties.setClientBurst(1);
+        properties.setInitialConcurrencyLimit(1);
+        properties.setMinConcurrencyLimit(1);
+        properties.setMaxConcurrencyLimit(1);
+        AdmissionControl admission = new AdmissionControl(properties, new SimpleMeterRegistry());
+        AdmissionFilter filter = newFilter(properties, admission);
+
+        assertTrue(admission.getConcurrencyLimit().tryAcquire());
+        MockHttpServletResponse overloaded = process(filter, "client-a");
+        assertEquals(429, overloaded.getStatus());
+        assertTrue(overloaded.getContentAsString().contains(AdmissionControl.OVERLOADED));
+        admission.release(MILLI, false);
+
+        // The rejected request did not use up the client's only token
+        assertEquals(200, process(filter, "client-a").getStatus());
+    }
+
+    private static void saturate(AdaptiveConcurrencyLimit limit, long latencyNanos, int samples) {
+        for (int i = 0; i < samples; i++) {
+            while (limit.tryAcquire()) {
+                // Fill up to the limit, then complete one request at a time
+            }
+            limit.release(latencyNanos, false);
+        }
+    }
+
+    private static AdmissionFilter newFilter(AdmissionProperties properties) {
+        return newFilter(properties, new AdmissionControl(properties, new SimpleMeterRegistry()));
+    }
+
+    private static AdmissionFilter newFilter(AdmissionProperties properties, AdmissionControl admission) {
+        return new AdmissionFilter(properties, admission,
+            new ErrorResponseCache(new ObjectMapper(), HttpStatus.TOO_MANY_REQUESTS));
+    }
+
+    private static MockHttpServletResponse process(AdmissionFilter filter, String principal) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/payments");
+        request.setUserPrincipal(() -> principal);
+        return process(filter, request);
+    }
+
+    private static MockHttpServletResponse processWithHeader(AdmissionFilter filter, String client) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/payments");
+        request.addHeader("X-Client-Id", client);
+        return process(filter, request);
+    }
+
+    private static MockHttpServletResponse process(AdmissionFilter filter, MockHttpServletRequest request)
+            throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, new MockFilterChain());
+        return response;
+    }
+}
+
+// 14. Priority Lane Tests
+// LaneIsolationTest.java
+package com.ecommerce.payment.lane;
+
+import com.ecommerce.payment.exception.LaneSaturatedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class LaneIsolationTest {
+
+    private LaneProperties properties;
+    private LaneExecutors lanes;
+
+    @BeforeEach
+    void setUp() {
+        // Weights 5/3/2 of 10: refunds get 2 threads and 2 connections
+        properties = new LaneProperties();
+        properties.setThreads(10);
+        properties.setConnections(10);
+        properties.setQueueCapacity(2);
+        properties.setConnectionTimeout(Duration.ofMillis(50));
+        lanes = new LaneExecutors(properties, new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        lanes.close();
+    }
+
+    @Test
+    void checkout_ShouldProceed_WhileRefundLaneIsSaturated() throws Exception {
+        CountDownLatch refundsBlocked = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            lanes.submit(Lane.REFUND, () -> await(refundsBlocked));
+        }
+
+        try {
+            assertThrows(LaneSaturatedException.class, () -> lanes.submit(Lane.REFUND, () -> true));
+            assertEquals(Lane.CHECKOUT, lanes.submit(Lane.CHECKOUT, Lane::current).get(1, TimeUnit.SECONDS));
+            assertNull(Lane.current());
+        } finally {
+            refundsBlocked.countDown();
+        }
+    }
+
+    @Test
+    void partitionedDataSource_ShouldCapConnectionsPerLane() throws Exception {
+        DataSource target = mock(DataSource.class);
+        when(target.getConnection()).thenAnswer(invocation -> mock(Connection.class));
+        LanePartitionedDataSource dataSource = new LanePartitionedDataSource(target, properties);
+
+        lanes.submit(Lane.REFUND, () -> {
+            try {
+                Connection first = dataSource.getConnection();
+                Connection second = dataSource.getConnection();
+                assertEquals(2, dataSource.inUse(Lane.REFUND));
+                assertThrows(SQLTransientConnectionException.class, dataSource::getConnection);
+
+                // Closing twice gives the permit back once
+                first.close();
+                first.close();
+                assertEquals(1, dataSource.inUse(Lane.REFUND));
+                dataSource.getConnection().close();
+                second.close();
+                return null;
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }).get(1, TimeUnit.SECONDS);
+
+        assertEquals(0, dataSource.inUse(Lane.REFUND));
+        // Threads outside the lanes are not partitioned
+        for (int i = 0; i < 5; i++) {
+            dataSource.getConnection();
+        }
+        assertEquals(0, dataSource.inUse(Lane.CHECKOUT));
+        verify(target, times(8)).getConnection();
+    }
+
+    @Test
+    void partitionedDataSource_ShouldCapConnectionsOutsideLanes_WhenConfigured() throws Exception {
+        properties.setBackgroundConnections(2);
+        DataSource target = mock(DataSource.class);
+        when(target.getConnection()).thenAnswer(invocation -> mock(Connection.class));
+        LanePartitionedDataSource dataSource = new LanePartitionedDataSource(target, properties);
+
+        Connection first = dataSource.getConnection();
+        dataSource.getConnection();
+        assertEquals(2, dataSource.inUseOutsideLanes());
+        assertThrows(SQLTransientConnectionException.class, dataSource::getConnection);
+
+        // Background work at its cap leaves the lanes their share
+        lanes.submit(Lane.CHECKOUT, () -> {
+            try {
+                dataSource.getConnection().close();
+                return null;
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }).get(1, TimeUnit.SECONDS);
+
+        first.close();
+        assertEquals(1, dataSource.inUseOutsideLanes());
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
+
+// 15. Bulk Refund Job Tests
+// RefundJobExecutorTest.java
+package com.ecommerce.payment.refund;
+
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.RefundJobRequest;
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.model.RefundJob;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardRouter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class RefundJobExecutorTest {
+
+    private static final Instant NOW = Instant.parse("2024-05-01T12:00:00Z");
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private PaymentRepository paymentRepository;
+    private PaymentGatewayService gateway;
+    private ApplicationEventPublisher eventPublisher;
+    private RefundJobExecutor executor;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        jdbcTemplate = new JdbcTemplate(database);
+        jdbcTemplate.execute("CREATE TABLE payment (id BIGINT PRIMARY KEY, order_id BIGINT, amount DECIMAL(38, 2), "
+            + "transaction_id VARCHAR(255), payment_method VARCHAR(32), status VARCHAR(32), "
+            + "created_at TIMESTAMP, updated_at TIMESTAMP, version BIGINT DEFAULT 0 NOT NULL)");
+        jdbcTemplate.execute("CREATE TABLE refund_job (id BIGINT AUTO_INCREMENT PRIMARY KEY, state VARCHAR(32), "
+            + "reason VARCHAR(255), total_items BIGINT NOT NULL, error VARCHAR(255), "
+            + "created_at TIMESTAMP, updated_at TIMESTAMP, owner VARCHAR(64), lease_expires_at TIMESTAMP)");
+        jdbcTemplate.execute("CREATE TABLE refund_job_item (job_id BIGINT NOT NULL, payment_id BIGINT NOT NULL, "
+            + "state VARCHAR(32), refund_transaction_id VARCHAR(255), error VARCHAR(255), updated_at TIMESTAMP, "
+            + "PRIMARY KEY (job_id, payment_id))");
+
+        // Reads the payments the executor loads from the same database
+        paymentRepository = mock(PaymentRepository.class);
+        when(paymentRepository.findAllById(anyIterable())).thenAnswer(invocation -> {
+            List<Payment> found = new ArrayList<>();
+            for (Long id : (Iterable<Long>) invocation.getArgument(0)) {
+                jdbcTemplate.query("SELECT order_id, amount, transaction_id, status FROM payment WHERE id = ?",
+                    rs -> {
+                        Payment payment = new Payment(rs.getLong(1),
+                            Money.of(rs.getBigDecimal(2), Money.DEFAULT_CURRENCY), PaymentMethod.CREDIT_CARD,
+                            Instant.EPOCH);
+                        payment.setId(id);
+                        payment.setTransactionId(rs.getString(3));
+                        payment.setStatus(PaymentStatus.valueOf(rs.getString(4)), Instant.EPOCH);
+                        found.add(payment);
+                    }, id);
+            }
+            return found;
+        });
+
+        gateway = mock(PaymentGatewayService.class);
+        when(gateway.processRefund(anyString())).thenAnswer(invocation -> {
+            String transactionId = invocation.getArgument(0);
+            return transactionId.equals("PG-3")
+                ? GatewayResult.declined(GatewayResult.REFUND_DECLINED)
+                : GatewayResult.approved("RF-" + transactionId);
+        });
+        eventPublisher = mock(ApplicationEventPublisher.class);
+
+        executor = newExecutor(Clock.fixed(NOW, ZoneOffset.UTC));
+
+        for (long id = 1; id <= 5; id++) {
+            insertPayment(id, "COMPLETED");
+        }
+        insertPayment(6, "FAILED");
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.close();
+        database.shutdown();
+    }
+
+    @Test
+    void run_ShouldRefundCompletedPayments_AndRecordEveryOutcome() {
+        long jobId = executor.create(request(1, 2, 3, 4, 5, 6, 99));
+
+        assertTrue(executor.run(jobId));
+
+        assertEquals("COMPLETED", jobState(jobId));
+        assertEquals("REFUNDED", itemState(jobId, 1));
+        assertEquals("RF-PG-1", jdbcTemplate.queryForObject(
+            "SELECT refund_transaction_id FROM refund_job_item WHERE job_id = ? AND payment_id = 1", String.class, jobId));
+        assertEquals("DECLINED", itemState(jobId, 3));
+        assertEquals("SKIPPED", itemState(jobId, 6));
+        assertEquals("SKIPPED", itemState(jobId, 99));
+        assertEquals(4, jdbcTemplate.queryForObject(
+            "SELECT COUNT(*) FROM payment WHERE status = 'REFUNDED'", Integer.class));
+        assertEquals("COMPLETED", paymentStatus(3));
+
+        verify(gateway, times(5)).processRefund(anyString());
+        verify(eventPublisher, times(4)).publishEvent(any(PaymentStatusChangedEvent.class));
+    }
+
+    @Test
+    void recover_ShouldNeverSendInFlightPaymentsToTheGatewayAgain() {
+        long jobId = executor.create(request(1, 2, 4, 5));
+        // A crash after claiming 1 and 2: payment 1 was refunded and written, payment 2 is unknown
+        jdbcTemplate.update("UPDATE refund_job_item SET state = 'IN_FLIGHT' WHERE job_id = ? AND payment_id IN (1, 2)",
+            jobId);
+        jdbcTemplate.update("UPDATE payment SET status = 'REFUNDED' WHERE id = 1");
+
+        assertEquals(List.of(jobId), executor.findRunningJobs());
+        assertEquals(2, executor.recover(jobId));
+        assertTrue(executor.run(jobId));
+
+        assertEquals("REFUNDED", itemState(jobId, 1));
+        assertEquals("UNKNOWN", itemState(jobId, 2));
+        assertEquals("COMPLETED", paymentStatus(2));
+        assertEquals("REFUNDED", itemState(jobId, 4));
+        assertEquals("REFUNDED", itemState(jobId, 5));
+        verify(gateway, never()).processRefund("PG-1");
+        verify(gateway, never()).processRefund("PG-2");
+        verify(gateway, times(2)).processRefund(anyString());
+        assertTrue(executor.findRunningJobs().isEmpty());
+    }
+
+    @Test
+    void jobLeasedByAnotherInstance_ShouldNeitherBeRecoveredNorRun_UntilTheLeaseExpires() {
+        long jobId = executor.create(request(1, 2, 4));
+        jdbcTemplate.update("UPDATE refund_job_item SET state = 'IN_FLIGHT' WHERE job_id = ? AND payment_id = 1", jobId);
+        assertEquals(NOW.plus(Duration.ofMinutes(5)), jdbcTemplate.queryForObject(
+            "SELECT lease_expires_at FROM refund_job WHERE id = ?", Timestamp.class, jobId).toInstant());
+
+        MutableClock otherClock = new MutableClock(NOW);
+        RefundJobExecutor other = newExecutor(otherClock);
+        try {
+            assertTrue(other.findUnleasedJobs().isEmpty());
+            assertFalse(other.acquire(jobId));
+            assertFalse(other.restart(jobId));
+            assertThrows(IllegalStateException.class, () -> other.recover(jobId));
+            assertFalse(other.run(jobId));
+            assertEquals("IN_FLIGHT", itemState(jobId, 1));
+            assertEquals("PENDING", itemState(jobId, 2));
+
+            // The first instance died and its lease ran out
+            otherClock.advance(Duration.ofMinutes(5).plusMillis(1));
+            assertEquals(List.of(jobId), other.findUnleasedJobs());
+            assertTrue(other.acquire(jobId));
+            assertEquals(1, other.recover(jobId));
+            assertTrue(other.run(jobId));
+
+            // The first instance finds the job taken over and leaves it alone
+            assertFalse(executor.run(jobId));
+            executor.finish(jobId, RefundJob.State.FAILED, "stale");
+            assertEquals("COMPLETED", jobState(jobId));
+            assertEquals("UNKNOWN", itemState(jobId, 1));
+            verify(gateway, never()).processRefund("PG-1");
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void run_ShouldNotCallTheGateway_ForPaymentRefundedSinceTheBatchWasLoaded() {
+        long jobId = executor.create(request(1, 2));
+        doAnswer(invocation -> {
+            List<Payment> found = new ArrayList<>();
+            for (Long id : (Iterable<Long>) invocation.getArgument(0)) {
+                Payment payment = new Payment(id * 10, Money.of(new BigDecimal("20.00"), Money.DEFAULT_CURRENCY),
+                    PaymentMethod.CREDIT_CARD, Instant.EPOCH);
+                payment.setId(id);
+                payment.setTransactionId("PG-" + id);
+                payment.setStatus(PaymentStatus.COMPLETED, Instant.EPOCH);
+                found.add(payment);
+            }
+            // An interactive refund of payment 1 lands after the batch was read
+            jdbcTemplate.update("UPDATE payment SET status = 'REFUNDED' WHERE id = 1");
+            return found;
+        }).when(paymentRepository).findAllById(anyIterable());
+
+        assertTrue(executor.run(jobId));
+
+        assertEquals("SKIPPED", itemState(jobId, 1));
+        assertEquals("REFUNDED", itemState(jobId, 2));
+        verify(gateway, never()).processRefund("PG-1");
+    }
+
+    @Test
+    void create_ShouldRejectRequestsMatchingTooManyPayments() {
+        RefundJobProperties properties = new RefundJobProperties();
+        properties.setMaxPayments(3);
+        RefundJobExecutor limited = new RefundJobExecutor(database, new DataSourceTransactionManager(database),
+            mock(PaymentRepository.class), new ShardRouter(1), gateway, mock(PaymentNotificationService.class),
+            mock(OrderServiceClient.class), eventPublisher, properties, Clock.systemUTC());
+        try {
+            assertThrows(IllegalArgumentException.class, () -> limited.create(request(1, 2, 3, 4)));
+            assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM refund_job", Integer.class));
+        } finally {
+            limited.close();
+        }
+    }
+
+    private RefundJobExecutor newExecutor(Clock clock) {
+        RefundJobProperties properties = new RefundJobProperties();
+        properties.setBatchSize(2);
+        properties.setGatewayConcurrency(4);
+        return new RefundJobExecutor(database, new DataSourceTransactionManager(database), paymentRepository,
+            new ShardRouter(1), gateway, mock(PaymentNotificationService.class), mock(OrderServiceClient.class),
+            eventPublisher, properties, clock);
+    }
+
+    private static RefundJobRequest request(long... paymentIds) {
+        RefundJobRequest request = new RefundJobRequest();
+        request.setPaymentIds(Arrays.stream(paymentIds).boxed().toList());
+        request.setReason("Event cancelled");
+        return request;
+    }
+
+    private void insertPayment(long id, String status) {
+        jdbcTemplate.update("INSERT INTO payment (id, order_id, amount, transaction_id, status) VALUES (?, ?, ?, ?, ?)",
+            id, id * 10, new BigDecimal("20.00"), "PG-" + id, status);
+    }
+
+    private String jobState(long jobId) {
+        return jdbcTemplate.queryForObject("SELECT state FROM refund_job WHERE id = ?", String.class, jobId);
+    }
+
+    private String itemState(long jobId, long paymentId) {
+        return jdbcTemplate.queryForObject("SELECT state FROM refund_job_item WHERE job_id = ? AND payment_id = ?",
+            String.class, jobId, paymentId);
+    }
+
+    private String paymentStatus(long paymentId) {
+        return jdbcTemplate.queryForObject("SELECT status FROM payment WHERE id = ?", String.class, paymentId);
+    }
+
+    private static final class MutableClock extends Clock {
+
+        private volatile Instant now;
+
+        MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
+
+// 16. Retry Queue Tests
+// RetryQueueTest.java
+package com.ecommerce.payment.retry;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetryQueueTest {
+
+    @TempDir
+    Path directory;
+
+    private RetryProperties properties;
+    private final List<RetryQueue> queues = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        properties = new RetryProperties();
+        properties.setJournalDirectory(directory);
+        properties.setSegmentSize(DataSize.ofKilobytes(4));
+        properties.setTick(Duration.ofMillis(5));
+        properties.setWheelSize(256);
+        properties.setInitialBackoff(Duration.ofMillis(20));
+        properties.setMaxBackoff(Duration.ofMillis(80));
+        properties.setMaxAttempts(4);
+        properties.setWorkers(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        queues.forEach(RetryQueue::stop);
+    }
+
+    @Test
+    void timingWheel_ShouldExpireEntriesWithinOneTickOfDeadline() {
+        TimingWheel<long[]> wheel = new TimingWheel<>(10, 64, 0);
+        List<long[]> entries = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            // Deadlines span many rotations of the wheel
+            long[] entry = {(i * 7919L) % 20_000, -1};
+            entries.add(entry);
+            wheel.schedule(entry, entry[0]);
+        }
+
+        for (long now = 0; now <= 20_100; now += 7) {
+            long expiredAt = now;
+            wheel.advance(now, entry -> entry[1] = expiredAt);
+        }
+
+        assertEquals(0, wheel.size());
+        for (long[] entry : entries) {
+            assertTrue(entry[1] >= entry[0], "expired early");
+            assertTrue(entry[1] <= entry[0] + 17, "expired late");
+        }
+    }
+
+    @Test
+    void schedule_ShouldRetryUntilHandlerSucceeds() throws Exception {
+        RetryQueue queue = newQueue();
+        Map<Long, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        AtomicInteger succeeded = new AtomicInteger();
+        queue.registerHandler(RetryTask.Kind.ORDER_PAID, task -> {
+            if (attempts.computeIfAbsent(task.paymentId(), id -> new AtomicInteger()).incrementAndGet() < 3) {
+                throw new RetryableException("Order service unavailable", null);
+            }
+            succeeded.incrementAndGet();
+        });
+        queue.start();
+
+        for (long paymentId = 1; paymentId <= 50; paymentId++) {
+            assertNotNull(queue.schedule(RetryTask.Kind.ORDER_PAID, paymentId, paymentId));
+        }
+
+        await(() -> succeeded.get() == 50);
+        await(() -> queue.pendingCount() == 0);
+        attempts.values().forEach(count -> assertEquals(3, count.get()));
+    }
+
+    @Test
+    void schedule_ShouldGiveUpAfterMaxAttempts() throws Exception {
+        RetryQueue queue = newQueue();
+        AtomicInteger attempts = new AtomicInteger();
+        AtomicInteger exhausted = new AtomicInteger();
+        queue.registerHandler(RetryTask.Kind.PAYMENT, new RetryHandler() {
+            @Override
+            public void attempt(RetryTask task) {
+                attempts.incrementAndGet();
+                throw new RetryableException("Gateway unavailable", null);
+            }
+
+            @Override
+            public void exhausted(RetryTask task, Exception cause) {
+                exhausted.incrementAndGet();
+            }
+        });
+        queue.start();
+
+        queue.schedule(RetryTask.Kind.PAYMENT, 1L, 1L);
+
+        await(() -> exhausted.get() == 1);
+        assertEquals(properties.getMaxAttempts(), attempts.get());
+        assertEquals(0, queue.pendingCount());
+    }
+
+    @Test
+    void start_ShouldRecoverPendingTasksFromJournal() throws Exception {
+        properties.setInitialBackoff(Duration.ofMillis(300));
+        RetryQueue first = newQueue();
+        first.registerHandler(RetryTask.Kind.ORDER_REFUNDED, task -> fail("should not run before restart"));
+        first.start();
+        for (long paymentId = 1; paymentId <= 20; paymentId++) {
+            first.schedule(RetryTask.Kind.ORDER_REFUNDED, paymentId, paymentId);
+        }
+        first.stop();
+
+        RetryQueue second = newQueue();
+        AtomicInteger succeeded = new AtomicInteger();
+        second.registerHandler(RetryTask.Kind.ORDER_REFUNDED, task -> succeeded.incrementAndGet());
+        second.start();
+        assertEquals(20, second.pendingCount());
+
+        await(() -> succeeded.get() == 20);
+        await(() -> second.pendingCount() == 0);
+        second.stop();
+
+        // Completed tasks are not replayed again
+        RetryQueue third = newQueue();
+        third.start();
+        assertEquals(0, third.pendingCount());
+    }
+
+    @Test
+    void backoffMillis_ShouldStayWithinCap() {
+        RetryQueue queue = newQueue();
+        for (int attempt = 1; attempt <= 64; attempt++) {
+            long backoff = queue.backoffMillis(attempt);
+            assertTrue(backoff > 0);
+            assertTrue(backoff <= properties.getMaxBackoff().toMillis());
+        }
+    }
+
+    private RetryQueue newQueue() {
+        RetryQueue queue = new RetryQueue(properties, new SimpleMeterRegistry());
+        queues.add(queue);
+        return queue;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
+
+// PaymentRetryHandlerTest.java
+package com.ecommerce.payment.retry;
+
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.exception.GatewayUnavailableException;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class PaymentRetryHandlerTest {
+
+    private static final Instant NOW = Instant.parse("2024-05-01T12:30:15.123Z");
+    private static final long PAYMENT_ID = 42L;
+
+    private PaymentRepository paymentRepository;
+    private PaymentGatewayService gateway;
+    private PaymentNotificationService notificationService;
+    private SimpleMeterRegistry meterRegistry;
+    private PaymentRetryHandler handler;
+    private PaymentRequest request;
+    private RetryTask task;
+
+    @BeforeEach
+    void setUp() {
+        paymentRepository = mock(PaymentRepository.class);
+        gateway = mock(PaymentGatewayService.class);
+        notificationService = mock(PaymentNotificationService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        handler = newHandler();
+        when(paymentRepository.save(any(Payment.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        request = new PaymentRequest();
+        request.setOrderId(7L);
+        request.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
+        request.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        task = new RetryTask(1L, RetryTask.Kind.PAYMENT, PAYMENT_ID, 7L, 1);
+
+        handler.scheduleAfterCommit(payment(PaymentStatus.PENDING, null), request);
+    }
+
+    @Test
+    void attempt_ShouldSendPaymentIdAsIdempotencyKey() {
+        when(paymentRepository.findById(PAYMENT_ID)).thenReturn(Optional.of(payment(PaymentStatus.PENDING, null)));
+        when(gateway.processPayment(PAYMENT_ID, request))
+            .thenThrow(new GatewayUnavailableException("Payment gateway error: timeout"))
+            .thenReturn(GatewayResult.approved("PG-1"));
+
+        assertThrows(RetryableException.class, () -> handler.attempt(task));
+        handler.attempt(task.next());
+
+        // Both attempts carry the same key, so the gateway can answer the second with the first charge
+        verify(gateway, times(2)).processPayment(eq(PAYMENT_ID), eq(request));
+        verify(paymentRepository).save(argThat(saved ->
+            saved.getStatus() == PaymentStatus.COMPLETED && "PG-1".equals(saved.getTransactionId())));
+    }
+
+    @Test
+    void attempt_ShouldRefundCharge_WhenPaymentFailedMeanwhile() {
+        when(paymentRepository.findById(PAYMENT_ID))
+            .thenReturn(Optional.of(payment(PaymentStatus.PENDING, null)))
+            .thenReturn(Optional.of(payment(PaymentStatus.FAILED, null)));
+        when(gateway.processPayment(PAYMENT_ID, request)).thenReturn(GatewayResult.approved("PG-1"));
+        when(gateway.processRefund("PG-1")).thenReturn(GatewayResult.approved("RF-1"));
+
+        handler.attempt(task);
+
+        verify(gateway).processRefund("PG-1");
+        verify(paymentRepository, never()).save(any());
+        assertEquals(0, meterRegistry.counter("payment.retry.orphaned.charges").count());
+    }
+
+    @Test
+    void attempt_ShouldFlagCharge_WhenRefundOfResolvedPaymentFails() {
+        when(paymentRepository.findById(PAYMENT_ID))
+            .thenReturn(Optional.of(payment(PaymentStatus.PENDING, null)))
+            .thenReturn(Optional.empty());
+        when(gateway.processPayment(PAYMENT_ID, request)).thenReturn(GatewayResult.approved("PG-1"));
+        when(gateway.processRefund("PG-1")).thenReturn(GatewayResult.declined(GatewayResult.REFUND_DECLINED));
+
+        handler.attempt(task);
+
+        assertEquals(1, meterRegistry.counter("payment.retry.orphaned.charges").count());
+    }
+
+    @Test
+    void attempt_ShouldNotRefund_WhenSettledWithTheSameCharge() {
+        when(paymentRepository.findById(PAYMENT_ID))
+            .thenReturn(Optional.of(payment(PaymentStatus.PENDING, null)))
+            .thenReturn(Optional.of(payment(PaymentStatus.COMPLETED, "PG-1")));
+        when(gateway.processPayment(PAYMENT_ID, request)).thenReturn(GatewayResult.approved("PG-1"));
+
+        handler.attempt(task);
+
+        verify(gateway, never()).processRefund(any());
+    }
+
+    @Test
+    void exhausted_ShouldCompleteWithTheChargeOfATimedOutCall_AfterRestart() {
+        when(paymentRepository.findById(PAYMENT_ID)).thenReturn(Optional.of(payment(PaymentStatus.PENDING, null)));
+        // The first call charged the card but timed out, then the node restarted
+        when(gateway.processPayment(PAYMENT_ID, request))
+            .thenThrow(new GatewayUnavailableException("Payment gateway error: timeout"));
+        assertThrows(RetryableException.class, () -> handler.attempt(task));
+        when(gateway.findPayment(PAYMENT_ID)).thenReturn(GatewayResult.approved("PG-1"));
+
+        PaymentRetryHandler restarted = newHandler();
+        IllegalStateException lost = assertThrows(IllegalStateException.class, () -> restarted.attempt(task.next()));
+        assertEquals(PaymentRetryHandler.LOST_ON_RESTART, lost.getMessage());
+        restarted.exhausted(task.next(), lost);
+
+        verify(paymentRepository).save(argThat(saved ->
+            saved.getStatus() == PaymentStatus.COMPLETED && "PG-1".equals(saved.getTransactionId())));
+        verify(notificationService).sendPaymentConfirmation(any());
+        verify(notificationService, never()).sendPaymentFailureNotification(any(), any());
+    }
+
+    @Test
+    void exhausted_ShouldMarkUnknown_WhenTheGatewayHasNoCharge() {
+        when(paymentRepository.findById(PAYMENT_ID)).thenReturn(Optional.of(payment(PaymentStatus.PENDING, null)));
+        when(gateway.findPayment(PAYMENT_ID)).thenReturn(GatewayResult.declined(GatewayResult.PAYMENT_NOT_FOUND));
+
+        handler.exhausted(task, new GatewayUnavailableException("Payment gateway error: timeout"));
+
+        verify(paymentRepository).save(argThat(saved -> saved.getStatus() == PaymentStatus.UNKNOWN));
+        verifyNoInteractions(notificationService);
+    }
+
+    @Test
+    void exhausted_ShouldFail_WhenTheGatewayDeclined() {
+        when(paymentRepository.findById(PAYMENT_ID)).thenReturn(Optional.of(payment(PaymentStatus.PENDING, null)));
+        when(gateway.findPayment(PAYMENT_ID)).thenReturn(GatewayResult.declined("Insufficient funds"));
+
+        handler.exhausted(task, new GatewayUnavailableException("Payment gateway error: timeout"));
+
+        verify(paymentRepository).save(argThat(saved -> saved.getStatus() == PaymentStatus.FAILED));
+        verify(notificationService).sendPaymentFailureNotification(7L, "Insufficient funds");
+    }
+
+    @Test
+    void exhausted_ShouldLeavePaymentPending_WhenTheLookupFails() {
+        when(paymentRepository.findById(PAYMENT_ID)).thenReturn(Optional.of(payment(PaymentStatus.PENDING, null)));
+        when(gateway.findPayment(PAYMENT_ID))
+            .thenThrow(new GatewayUnavailableException("Payment gateway error during lookup: timeout"));
+
+        handler.exhausted(task, new GatewayUnavailableException("Payment gateway error: timeout"));
+
+        verify(paymentRepository, never()).save(any());
+        verifyNoInteractions(notificationService);
+    }
+
+    private PaymentRetryHandler newHandler() {
+        return new PaymentRetryHandler(mock(RetryQueue.class), paymentRepository, gateway, notificationService,
+            mock(OrderServiceClient.class), mock(VelocityEngine.class), mock(TransactionIdIndex.class),
+            mock(ShardRouter.class), new NoOpTransactionManager(), Clock.fixed(NOW, ZoneOffset.UTC), meterRegistry);
+    }
+
+    private static Payment payment(PaymentStatus status, String transactionId) {
+        Payment payment = new Payment(7L, Money.parse("99.99", Money.DEFAULT_CURRENCY), PaymentMethod.CREDIT_CARD, NOW);
+        payment.setId(PAYMENT_ID);
+        payment.setVersion(0L);
+        payment.setStatus(status, NOW);
+        payment.setTransactionId(transactionId);
+        return payment;
+    }
+
+    // Runs transaction synchronization, which shard binding requires, without a database
+    private static class NoOpTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
+
+// PaymentGatewayServiceTest.java
+package com.ecommerce.payment.gateway;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PaymentGatewayServiceTest {
+
+    @Test
+    void charge_ShouldAnswerRepeatedKeyWithFirstOutcome() {
+        PaymentGatewayService gateway = new PaymentGatewayService();
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(7L);
+
+        GatewayResult first = gateway.charge(42L, request);
+        for (int i = 0; i < 20; i++) {
+            GatewayResult again = gateway.charge(42L, request);
+            assertEquals(first.isApproved(), again.isApproved());
+            assertEquals(first.getTransactionId(), again.getTransactionId());
+        }
+
+        GatewayResult found = gateway.findPayment(42L);
+        assertEquals(first.isApproved(), found.isApproved());
+        assertEquals(first.getTransactionId(), found.getTransactionId());
+        assertFalse(gateway.findPayment(43L).isApproved());
+    }
+
+    @Test
+    void refund_ShouldAnswerSecondRefundOfAChargeWithTheFirst() {
+        PaymentGatewayService gateway = new PaymentGatewayService();
+
+        GatewayResult first = gateway.refund("PG-1");
+        while (!first.isApproved()) {
+            // A declined refund may be tried again
+            first = gateway.refund("PG-1");
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(first.getTransactionId(), gateway.refund("PG-1").getTransactionId());
+        }
+    }
+}
+
+// 17. Stuck Payment Sweeper Tests
+// StuckPaymentSweeperTest.java
+package com.ecommerce.payment.sweeper;
+
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.exception.GatewayUnavailableException;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.PaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.service.PaymentNotificationService;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.UtcDateTime;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class StuckPaymentSweeperTest {
+
+    private static final Instant NOW = Instant.parse("2024-05-01T12:30:15.123Z");
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+    private PaymentRepository paymentRepository;
+    private PaymentGatewayService gateway;
+    private PaymentNotificationService notificationService;
+    private ApplicationEventPublisher eventPublisher;
+    private StuckPaymentSweeper sweeper;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        jdbcTemplate = new JdbcTemplate(database);
+        jdbcTemplate.execute("CREATE TABLE payment (id BIGINT PRIMARY KEY, order_id BIGINT, amount DECIMAL(38, 2), "
+            + "transaction_id VARCHAR(255), payment_method VARCHAR(32), status VARCHAR(32), "
+            + "created_at TIMESTAMP, updated_at TIMESTAMP, version BIGINT DEFAULT 0 NOT NULL)");
+        jdbcTemplate.execute("CREATE TABLE payment_sweep_lease (shard_id INT PRIMARY KEY, owner VARCHAR(64) NOT NULL, "
+            + "expires_at TIMESTAMP NOT NULL)");
+
+        // Pages through the same database as PaymentRepository#findStaleAfter
+        paymentRepository = mock(PaymentRepository.class);
+        when(paymentRepository.findStaleAfter(any(), any(), any(), anyLong(), any())).thenAnswer(invocation -> {
+            PaymentStatus status = invocation.getArgument(0);
+            LocalDateTime cutoff = UtcDateTime.of((Instant) invocation.getArgument(1));
+            LocalDateTime afterUpdatedAt = UtcDateTime.of((Instant) invocation.getArgument(2));
+            Long afterId = invocation.getArgument(3);
+            Pageable pageable = invocation.getArgument(4);
+            List<Payment> page = new ArrayList<>();
+            jdbcTemplate.query("SELECT id, order_id, amount, status, updated_at FROM payment "
+                    + "WHERE status = ? AND updated_at < ? AND (updated_at > ? OR (updated_at = ? AND id > ?)) "
+                    + "ORDER BY updated_at, id LIMIT ?",
+                rs -> {
+                    Payment payment = new Payment(rs.getLong(2),
+                        Money.of(rs.getBigDecimal(3), Money.DEFAULT_CURRENCY), PaymentMethod.CREDIT_CARD,
+                        Instant.EPOCH);
+                    payment.setId(rs.getLong(1));
+                    payment.setStatus(PaymentStatus.valueOf(rs.getString(4)),
+                        UtcDateTime.toInstant(rs.getObject(5, LocalDateTime.class)));
+                    page.add(payment);
+                }, status.name(), cutoff, afterUpdatedAt, afterUpdatedAt, afterId, pageable.getPageSize());
+            return page;
+        });
+
+        gateway = mock(PaymentGatewayService.class);
+        when(gateway.findPayment(anyLong())).thenAnswer(invocation -> {
+            long paymentId = invocation.getArgument(0);
+            if (paymentId == 6) {
+                throw new GatewayUnavailableException("Payment gateway error during lookup: timeout");
+            }
+            if (paymentId % 2 == 1) {
+                return GatewayResult.approved("PG-" + paymentId);
+            }
+            return paymentId == 8
+                ? GatewayResult.declined(GatewayResult.PAYMENT_DECLINED)
+                : GatewayResult.declined(GatewayResult.PAYMENT_NOT_FOUND);
+        });
+        notificationService = mock(PaymentNotificationService.class);
+        eventPublisher = mock(ApplicationEventPublisher.class);
+
+        sweeper = newSweeper();
+        sweeper.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        sweeper.stop();
+        database.shutdown();
+    }
+
+    @Test
+    void sweep_ShouldSettleOnlyPaymentsStuckLongerThanTheirTimeout() {
+        insertPayment(1, "PROCESSING", Duration.ofHours(2));
+        insertPayment(2, "PENDING", Duration.ofHours(2));
+        insertPayment(3, "PROCESSING", Duration.ofMinutes(1));
+        insertPayment(4, "PENDING", Duration.ofMinutes(15));
+        insertPayment(5, "COMPLETED", Duration.ofHours(2));
+        insertPayment(6, "PROCESSING", Duration.ofHours(2));
+        insertPayment(7, "PROCESSING", Duration.ofHours(3));
+        insertPayment(8, "PROCESSING", Duration.ofHours(1));
+        insertPayment(9, "PENDING", Duration.ofHours(1));
+
+        assertEquals(5, sweeper.sweep());
+
+        assertEquals("COMPLETED", paymentStatus(1));
+        assertEquals("PG-1", jdbcTemplate.queryForObject(
+            "SELECT transaction_id FROM payment WHERE id = 1", String.class));
+        // Stored as UTC, whatever the JVM's time zone
+        assertEquals(LocalDateTime.of(2024, 5, 1, 12, 30, 15, 123_000_000), jdbcTemplate.queryForObject(
+            "SELECT updated_at FROM payment WHERE id = 1", LocalDateTime.class));
+        // No charge at the gateway: the request may never have reached it, so nobody can say it failed
+        assertEquals("UNKNOWN", paymentStatus(2));
+        assertEquals("PROCESSING", paymentStatus(3));
+        assertEquals("PENDING", paymentStatus(4));
+        assertEquals("COMPLETED", paymentStatus(5));
+        // Unknown outcome: left for the next sweep
+        assertEquals("PROCESSING", paymentStatus(6));
+        assertEquals("COMPLETED", paymentStatus(7));
+        assertEquals("FAILED", paymentStatus(8));
+        assertEquals("COMPLETED", paymentStatus(9));
+
+        verify(gateway, never()).findPayment(3L);
+        verify(gateway, never()).findPayment(4L);
+        verify(gateway, never()).findPayment(5L);
+        verify(eventPublisher, times(5)).publishEvent(any(PaymentStatusChangedEvent.class));
+        verify(notificationService).sendPaymentFailureNotification(80L, GatewayResult.PAYMENT_DECLINED);
+        verify(notificationService, never()).sendPaymentFailureNotification(eq(20L), any());
+    }
+
+    @Test
+    void sweep_ShouldCompletePaymentTheGatewayCaptured() {
+        sweeper.stop();
+        gateway = new PaymentGatewayService();
+        sweeper = newSweeper();
+        sweeper.start();
+
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(10L);
+        // The node charged the card, then died before recording the outcome
+        GatewayResult charge = gateway.processPayment(1L, request);
+        insertPayment(1, "PROCESSING", Duration.ofHours(2));
+
+        assertEquals(1, sweeper.sweep());
+
+        if (charge.isApproved()) {
+            assertEquals("COMPLETED", paymentStatus(1));
+            assertEquals(charge.getTransactionId(), jdbcTemplate.queryForObject(
+                "SELECT transaction_id FROM payment WHERE id = 1", String.class));
+        } else {
+            assertEquals("FAILED", paymentStatus(1));
+        }
+    }
+
+    @Test
+    void sweep_ShouldSkipShardLeasedByAnotherNode_UntilTheLeaseExpires() {
+        insertPayment(1, "PROCESSING", Duration.ofHours(2));
+        jdbcTemplate.update("INSERT INTO payment_sweep_lease (shard_id, owner, expires_at) VALUES (0, 'other', ?)",
+            Timestamp.from(NOW.plusSeconds(60)));
+
+        assertEquals(0, sweeper.sweep());
+        verify(gateway, never()).findPayment(anyLong());
+
+        // A minute on, the other node has not renewed its lease
+        sweeper.stop();
+        Instant later = NOW.plusSeconds(61);
+        sweeper = newSweeper(Clock.fixed(later, ZoneOffset.UTC));
+        sweeper.start();
+
+        assertEquals(1, sweeper.sweep());
+        assertEquals("COMPLETED", paymentStatus(1));
+        assertNotEquals("other", jdbcTemplate.queryForObject(
+            "SELECT owner FROM payment_sweep_lease WHERE shard_id = 0", String.class));
+        assertEquals(later.plus(Duration.ofHours(2)), jdbcTemplate.queryForObject(
+            "SELECT expires_at FROM payment_sweep_lease WHERE shard_id = 0", Timestamp.class).toInstant());
+    }
+
+    @Test
+    void start_ShouldFail_WhenTheLeaseTableIsMissing() {
+        sweeper.stop();
+        jdbcTemplate.execute("DROP TABLE payment_sweep_lease");
+        StuckPaymentSweeper withoutLeases = newSweeper();
+
+        assertThrows(IllegalStateException.class, withoutLeases::start);
+        assertFalse(withoutLeases.isRunning());
+    }
+
+    @Test
+    void sweep_ShouldNotOverwritePaymentSettledDuringTheLookup() {
+        insertPayment(1, "PENDING", Duration.ofHours(2));
+        when(gateway.findPayment(1L)).thenAnswer(invocation -> {
+            // A late retry completes the payment while the sweeper waits for the gateway
+            jdbcTemplate.update("UPDATE payment SET status = 'COMPLETED', transaction_id = 'PG-retry', "
+                + "updated_at = ? WHERE id = 1", UtcDateTime.of(NOW));
+            return GatewayResult.approved("PG-1");
+        });
+
+        assertEquals(0, sweeper.sweep());
+
+        assertEquals("PG-retry", jdbcTemplate.queryForObject(
+            "SELECT transaction_id FROM payment WHERE id = 1", String.class));
+        verify(eventPublisher, never()).publishEvent(any(PaymentStatusChangedEvent.class));
+    }
+
+    private StuckPaymentSweeper newSweeper() {
+        return newSweeper(Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    private StuckPaymentSweeper newSweeper(Clock clock) {
+        SweeperProperties properties = new SweeperProperties();
+        properties.setInterval(Duration.ofHours(1));
+        properties.setLeaseDuration(Duration.ofHours(2));
+        properties.setProcessingTimeout(Duration.ofMinutes(10));
+        properties.setPendingTimeout(Duration.ofMinutes(30));
+        properties.setPageSize(2);
+        properties.setGatewayConcurrency(4);
+        return new StuckPaymentSweeper(database, new DataSourceTransactionManager(database), paymentRepository,
+            new ShardRouter(1), gateway, notificationService, mock(OrderServiceClient.class),
+            mock(TransactionIdIndex.class), eventPublisher, new SimpleMeterRegistry(), properties, clock);
+    }
+
+    private void insertPayment(long id, String status, Duration age) {
+        LocalDateTime updatedAt = UtcDateTime.of(NOW.minus(age));
+        jdbcTemplate.update("INSERT INTO payment (id, order_id, amount, status, created_at, updated_at) "
+            + "VALUES (?, ?, ?, ?, ?, ?)", id, id * 10, new BigDecimal("20.00"), status, updatedAt, updatedAt);
+    }
+
+    private String paymentStatus(long paymentId) {
+        return jdbcTemplate.queryForObject("SELECT status FROM payment WHERE id = ?", String.class, paymentId);
+    }
+}
+
+// 18. Payment Near-Cache Tests
+// PaymentCacheTest.java
+package com.ecommerce.payment.cache;
+
+import com.ecommerce.payment.dto.PaymentResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PaymentCacheTest {
+
+    private static final byte[] SECRET = "test-shared-secret-0123456789abc".getBytes(StandardCharsets.UTF_8);
+
+    private LoopbackInvalidationTransport transport;
+    private PaymentCache nodeA;
+    private PaymentCache nodeB;
+
+    @BeforeEach
+    void setUp() {
+        transport = new LoopbackInvalidationTransport();
+        nodeA = new PaymentCache(enabled(), transport, new SimpleMeterRegistry());
+        nodeB = new PaymentCache(enabled(), transport, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void get_ShouldMissWhenCacheIsDisabled() {
+        PaymentCache cache = new PaymentCache(new NearCacheProperties(), transport, new SimpleMeterRegistry());
+
+        cache.put(1L, 0, new PaymentResponse(), cache.startLoad());
+
+        assertNull(cache.get(1L));
+    }
+
+    @Test
+    void get_ShouldHitAfterPut() {
+        assertNull(nodeB.get(1L));
+
+        PaymentResponse response = new PaymentResponse();
+        nodeB.put(1L, 0, response, nodeB.startLoad());
+
+        assertSame(response, nodeB.get(1L));
+        assertEquals(0.5, nodeB.hitRatio());
+    }
+
+    @Test
+    void invalidate_ShouldEvictPaymentOnOtherNodes() {
+        nodeB.put(1L, 3, new PaymentResponse(), nodeB.startLoad());
+
+        nodeA.invalidate(1L, PaymentCache.UNKNOWN_VERSION);
+
+        assertNull(nodeB.get(1L));
+    }
+
+    @Test
+    void put_ShouldRejectVersionShownStaleByInvalidation() {
+        nodeB.put(1L, 3, new PaymentResponse(), nodeB.startLoad());
+        nodeA.invalidate(1L, PaymentCache.UNKNOWN_VERSION);
+
+        // A replica that has not caught up yet still returns version 3
+        nodeB.put(1L, 3, new PaymentResponse(), nodeB.startLoad());
+        assertNull(nodeB.get(1L));
+
+        PaymentResponse current = new PaymentResponse();
+        nodeB.put(1L, 4, current, nodeB.startLoad());
+        assertSame(current, nodeB.get(1L));
+    }
+
+    @Test
+    void put_ShouldRejectLoadStartedBeforeInvalidation() {
+        long loadToken = nodeB.startLoad();
+        nodeA.invalidate(1L, PaymentCache.UNKNOWN_VERSION);
+
+        nodeB.put(1L, 4, new PaymentResponse(), loadToken);
+
+        assertNull(nodeB.get(1L));
+    }
+
+    @Test
+    void put_ShouldNotCacheDeletedPayment() {
+        nodeA.invalidate(1L, PaymentCache.DELETED);
+
+        nodeB.put(1L, 9, new PaymentResponse(), nodeB.startLoad());
+
+        assertNull(nodeB.get(1L));
+    }
+
+    @Test
+    void put_ShouldKeepCacheWithinMaxEntries() {
+        NearCacheProperties properties = enabled();
+        properties.setMaxEntries(32);
+        PaymentCache cache = new PaymentCache(properties, transport, new SimpleMeterRegistry());
+
+        for (long id = 0; id < 1000; id++) {
+            cache.put(id, 0, new PaymentResponse(), cache.startLoad());
+        }
+
+        long cached = 0;
+        for (long id = 0; id < 1000; id++) {
+            if (cache.get(id) != null) {
+                cached++;
+            }
+        }
+        assertTrue(cached <= 32);
+    }
+
+    @Test
+    void udpTransport_ShouldDeliverInvalidationToPeers() throws Exception {
+        try (UdpInvalidationTransport receiver = new UdpInvalidationTransport(0, List.of(), SECRET);
+             UdpInvalidationTransport sender = new UdpInvalidationTransport(0,
+                 List.of(new InetSocketAddress("127.0.0.1", receiver.getLocalPort())), SECRET)) {
+            BlockingQueue<CacheInvalidation> received = new LinkedBlockingQueue<>();
+            receiver.subscribe(received::add);
+
+            CacheInvalidation invalidation = new CacheInvalidation(7L, 5L, 42L, System.currentTimeMillis());
+            sender.publish(invalidation);
+
+            assertEquals(invalidation, received.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void udpTransport_ShouldDropUnsignedAndWronglySignedDatagrams() throws Exception {
+        byte[] otherSecret = "another-shared-secret-0123456789".getBytes(StandardCharsets.UTF_8);
+        try (UdpInvalidationTransport receiver = new UdpInvalidationTransport(0, List.of(), SECRET);
+             UdpInvalidationTransport forger = new UdpInvalidationTransport(0,
+                 List.of(new InetSocketAddress("127.0.0.1", receiver.getLocalPort())), otherSecret);
+             UdpInvalidationTransport sender = new UdpInvalidationTransport(0,
+                 List.of(new InetSocketAddress("127.0.0.1", receiver.getLocalPort())), SECRET);
+             DatagramChannel raw = DatagramChannel.open()) {
+            BlockingQueue<CacheInvalidation> received = new LinkedBlockingQueue<>();
+            receiver.subscribe(received::add);
+
+            InetSocketAddress target = new InetSocketAddress("127.0.0.1", receiver.getLocalPort());
+            raw.send(new CacheInvalidation(1L, PaymentCache.DELETED, 42L, 0).encode(), target);
+            forger.publish(new CacheInvalidation(2L, PaymentCache.DELETED, 42L, 0));
+            // Sent last, so on loopback the invalid datagrams have been handled when it arrives
+            CacheInvalidation genuine = new CacheInvalidation(3L, 5L, 42L, System.currentTimeMillis());
+            sender.publish(genuine);
+
+            assertEquals(genuine, received.poll(5, TimeUnit.SECONDS));
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void udpTransport_ShouldRequireSecret() {
+        assertThrows(IllegalArgumentException.class, () -> new UdpInvalidationTransport(0, List.of(), new byte[4]));
+    }
+
+    @Test
+    void dnsPeerDiscovery_ShouldResolveEveryAddressOfName() {
+        try (DnsPeerDiscovery discovery = new DnsPeerDiscovery("localhost", 7947, Duration.ofMinutes(1))) {
+            assertFalse(discovery.get().isEmpty());
+            assertTrue(discovery.get().stream().allMatch(peer -> peer.getPort() == 7947));
+        }
+    }
+
+    private static NearCacheProperties enabled() {
+        NearCacheProperties properties = new NearCacheProperties();
+        properties.setEnabled(true);
+        return properties;
+    }
+}
+
+// 19. Money Tests
+// MoneyTest.java
+package com.ecommerce.payment.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MoneyTest {
+
+    private static final Currency USD = Currency.getInstance("USD");
+    private static final Currency JPY = Currency.getInstance("JPY");
+
+    @Test
+    void parse_ShouldReadDecimalsIntoMinorUnits() {
+        assertEquals(14999, Money.parse("149.99", USD).getMinorUnits());
+        assertEquals(1050, Money.parse("10.5", USD).getMinorUnits());
+        assertEquals(1000, Money.parse("10.000", USD).getMinorUnits());
+        assertEquals(-50, Money.parse("-0.5", USD).getMinorUnits());
+        assertEquals(15000, Money.parse("1.5E2", USD).getMinorUnits());
+        assertEquals(1500, Money.parse("1500", JPY).getMinorUnits());
+    }
+
+    @Test
+    void parse_ShouldRejectMoreDecimalsThanTheCurrency() {
+        assertThrows(ArithmeticException.class, () -> Money.parse("10.001", USD));
+        assertThrows(ArithmeticException.class, () -> Money.parse("1500.5", JPY));
+        assertThrows(ArithmeticException.class, () -> Money.parse("99999999999999999999", USD));
+    }
+
+    @Test
+    void parse_ShouldRejectMalformedText() {
+        assertThrows(NumberFormatException.class, () -> Money.parse("", USD));
+        assertThrows(NumberFormatException.class, () -> Money.parse(".", USD));
+        assertThrows(NumberFormatException.class, () -> Money.parse("1.2.3", USD));
+        assertThrows(NumberFormatException.class, () -> Money.parse("12abc", USD));
+        assertThrows(NumberFormatException.class, () -> Money.parse("1E", USD));
+    }
+
+    @Test
+    void of_ShouldRejectCurrenciesWithMoreThanTwoDecimals() {
+        assertThrows(IllegalArgumentException.class, () -> Money.of(1000, Currency.getInstance("KWD")));
+    }
+
+    @Test
+    void toPlainString_ShouldUseTheCurrencyDigits() {
+        assertEquals("149.99", Money.of(14999, USD).toPlainString());
+        assertEquals("0.05", Money.of(5, USD).toPlainString());
+        assertEquals("-0.05", Money.of(-5, USD).toPlainString());
+        assertEquals("-1.50", Money.of(-150, USD).toPlainString());
+        assertEquals("1500", Money.of(1500, JPY).toPlainString());
+    }
+
+    @Test
+    void unscaledValue_ShouldConvertToStorageScale() {
+        assertEquals(14999, Money.of(14999, USD).unscaledValue(Money.STORAGE_SCALE));
+        assertEquals(150000, Money.of(1500, JPY).unscaledValue(Money.STORAGE_SCALE));
+        assertEquals(new BigDecimal("1500"), Money.of(1500, JPY).toBigDecimal());
+        assertEquals(Money.of(1500, JPY), Money.of(new BigDecimal("1500.00"), JPY));
+    }
+
+    @Test
+    void compareTo_ShouldRefuseDifferentCurrencies() {
+        assertTrue(Money.of(100, USD).compareTo(Money.of(99, USD)) > 0);
+        assertNotEquals(Money.of(100, USD), Money.of(100, JPY));
+        assertThrows(IllegalArgumentException.class, () -> Money.of(100, USD).compareTo(Money.of(100, JPY)));
+    }
+}
+
+// PaymentRequestDeserializerTest.java
+package com.ecommerce.payment.json;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Currency;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PaymentRequestDeserializerTest {
+
+    private ObjectMapper objectMapper;
+
+    @BeforeEach
+    void setUp() {
+        SimpleModule module = new SimpleModule();
+        module.addDeserializer(PaymentRequest.class, new PaymentRequestDeserializer());
+        module.addSerializer(PaymentResponse.class, new PaymentResponseSerializer());
+        module.addSerializer(Money.class, new MoneySerializer());
+        // As configured in application.yml
+        objectMapper = new ObjectMapper().registerModule(module)
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    @Test
+    void deserialize_ShouldReadExistingRequestsAsUsd() throws Exception {
+        PaymentRequest request = objectMapper.readValue("{\"orderId\":1,\"amount\":99.99,"
+            + "\"paymentMethod\":\"CREDIT_CARD\",\"cardNumber\":\"4111111111111111\",\"unknown\":{\"a\":[1]}}",
+            PaymentRequest.class);
+
+        assertEquals(1L, request.getOrderId());
+        assertEquals(Money.of(9999, Money.DEFAULT_CURRENCY), request.getAmount());
+        assertEquals(PaymentMethod.CREDIT_CARD, request.getPaymentMethod());
+        assertEquals("4111111111111111", request.getCardNumber());
+    }
+
+    @Test
+    void deserialize_ShouldApplyCurrencyGivenAfterTheAmount() throws Exception {
+        PaymentRequest request = objectMapper.readValue(
+            "{\"orderId\":1,\"amount\":1500,\"currency\":\"JPY\"}", PaymentRequest.class);
+
+        assertEquals(Money.of(1500, Currency.getInstance("JPY")), request.getAmount());
+    }
+
+    @Test
+    void deserialize_ShouldRejectAmountsTheCurrencyCannotHold() {
+        assertThrows(InvalidFormatException.class, () -> objectMapper.readValue(
+            "{\"amount\":1500.5,\"currency\":\"JPY\"}", PaymentRequest.class));
+        assertThrows(InvalidFormatException.class, () -> objectMapper.readValue(
+            "{\"amount\":10.001}", PaymentRequest.class));
+        assertThrows(InvalidFormatException.class, () -> objectMapper.readValue(
+            "{\"amount\":10,\"currency\":\"XYZ\"}", PaymentRequest.class));
+        assertThrows(InvalidFormatException.class, () -> objectMapper.readValue(
+            "{\"amount\":10,\"currency\":\"KWD\"}", PaymentRequest.class));
+    }
+
+    @Test
+    void requestAndResponse_ShouldRoundTripAmountAsJsonNumber() throws Exception {
+        PaymentRequest request = new PaymentRequest();
+        request.setAmount(Money.of(14999, Money.DEFAULT_CURRENCY));
+        String json = objectMapper.writeValueAsString(request);
+        assertTrue(json.contains("\"amount\":149.99"), json);
+        assertEquals(request.getAmount(), objectMapper.readValue(json, PaymentRequest.class).getAmount());
+
+        PaymentResponse response = new PaymentResponse();
+        response.setAmount(Money.of(1500, Currency.getInstance("JPY")));
+        assertEquals("{\"amount\":1500,\"currency\":\"JPY\"}", objectMapper.writeValueAsString(response));
+    }
+}
+
+// HandWrittenSerializerCompatibilityTest.java
+package com.ecommerce.payment.json;
+
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.ErrorResponse;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.Currency;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HandWrittenSerializerCompatibilityTest {
+
+    // As configured in application.yml, with and without the hand-written serializers
+    private final ObjectMapper reflective = configure(new ObjectMapper());
+    private final ObjectMapper handWritten = configure(new ObjectMapper()).registerModule(new SimpleModule()
+        .addSerializer(PaymentResponse.class, new PaymentResponseSerializer())
+        .addSerializer(ErrorResponse.class, new ErrorResponseSerializer()));
+
+    @Test
+    void paymentResponse_ShouldMatchReflectiveJacksonByteForByte() throws Exception {
+        PaymentResponse full = new PaymentResponse();
+        full.setId(123456L);
+        full.setOrderId(987654L);
+        full.setAmount(Money.of(14999, Money.DEFAULT_CURRENCY));
+        full.setTransactionId("PG-3f2b8c1e-2d7a-4c5e-9b1f-0a6d4e8c7b21");
+        full.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        full.setStatus(PaymentStatus.COMPLETED);
+        full.setCreatedAt(Instant.parse("2024-05-01T12:30:15.123Z"));
+        full.setUpdatedAt(Instant.parse("2024-05-01T12:30:16.000456Z"));
+        assertSameBytes(full);
+
+        PaymentResponse yen = new PaymentResponse();
+        yen.setId(1L);
+        yen.setAmount(Money.of(1500, Currency.getInstance("JPY")));
+        yen.setStatus(PaymentStatus.PENDING);
+        yen.setCreatedAt(Instant.parse("1969-12-31T23:59:59.5Z"));
+        assertSameBytes(yen);
+
+        assertSameBytes(new PaymentResponse());
+    }
+
+    @Test
+    void errorResponse_ShouldMatchReflectiveJacksonByteForByte() throws Exception {
+        assertSameBytes(new ErrorResponse(400, "Payment declined: \"caf\u00e9\" \n",
+            LocalDateTime.parse("2024-05-01T12:30:15.123456")));
+        assertSameBytes(new ErrorResponse(500, null, LocalDateTime.parse("2024-05-01T12:30:00")));
+        assertSameBytes(new ErrorResponse(404, "Not found", null));
+    }
+
+    private void assertSameBytes(Object value) throws Exception {
+        byte[] expected = reflective.writeValueAsBytes(value);
+        byte[] actual = handWritten.writeValueAsBytes(value);
+        assertArrayEquals(expected, actual, () -> new String(expected, StandardCharsets.UTF_8)
+            + " vs " + new String(actual, StandardCharsets.UTF_8));
+    }
+
+    private static ObjectMapper configure(ObjectMapper mapper) {
+        return mapper.registerModule(new JavaTimeModule())
+            .registerModule(new SimpleModule().addSerializer(Money.class, new MoneySerializer()))
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    }
+}
+
+// 20. Clock and UTC Timestamp Tests
+// CachedClockTest.java
+package com.ecommerce.payment.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachedClockTest {
+
+    @Test
+    void instant_ShouldReturnTheLastReadingTruncatedToMillis() {
+        SettableClock source = new SettableClock(Instant.parse("2024-05-01T12:30:15.123456789Z"));
+        try (CachedClock clock = new CachedClock(source, Duration.ofHours(1))) {
+            assertEquals(Instant.parse("2024-05-01T12:30:15.123Z"), clock.instant());
+            assertEquals(ZoneOffset.UTC, clock.getZone());
+
+            source.now = Instant.parse("2024-05-01T12:30:16Z");
+            // Not read again before the next tick
+            assertEquals(Instant.parse("2024-05-01T12:30:15.123Z"), clock.instant());
+            clock.refresh();
+            assertEquals(Instant.parse("2024-05-01T12:30:16Z"), clock.instant());
+            assertEquals(clock.instant().toEpochMilli(), clock.millis());
+        }
+    }
+
+    @Test
+    void instant_ShouldNotGoBackwards_WhenTheSourceClockDoes() {
+        SettableClock source = new SettableClock(Instant.parse("2024-05-01T12:30:15Z"));
+        try (CachedClock clock = new CachedClock(source, Duration.ofHours(1))) {
+            source.now = Instant.parse("2024-05-01T12:29:00Z");
+            clock.refresh();
+            assertEquals(Instant.parse("2024-05-01T12:30:15Z"), clock.instant());
+        }
+    }
+
+    @Test
+    void instant_ShouldAdvanceOnEveryTick() throws InterruptedException {
+        try (CachedClock clock = new CachedClock(Clock.systemUTC(), Duration.ofMillis(1))) {
+            Instant first = clock.instant();
+            long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+            while (!clock.instant().isAfter(first) && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(clock.instant().isAfter(first));
+        }
+    }
+
+    @Test
+    void constructor_ShouldRejectResolutionBelowOneMillisecond() {
+        assertThrows(IllegalArgumentException.class, () -> new CachedClock(Clock.systemUTC(), Duration.ofNanos(1000)));
+    }
+
+    @Test
+    void utcDateTime_ShouldIgnoreTheJvmTimeZone() {
+        Instant instant = Instant.parse("2024-05-01T12:30:15.123Z");
+        assertEquals("2024-05-01T12:30:15.123", UtcDateTime.of(instant).toString());
+        assertEquals(instant, UtcDateTime.toInstant(UtcDateTime.of(instant)));
+    }
+
+    private static final class SettableClock extends Clock {
+
+        volatile Instant now;
+
+        SettableClock(Instant now) {
+            this.now = now;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
+
+// JsonFieldsTest.java
+package com.ecommerce.payment.json;
+
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonFieldsTest {
+
+    @Test
+    void formatInstant_ShouldMatchIsoInstant() {
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < 100_000; i++) {
+            long epochSecond = random.nextLong(253_402_300_800L);
+            int nanos = switch (i % 4) {
+                case 0 -> 0;
+                case 1 -> random.nextInt(1000) * 1_000_000;
+                case 2 -> random.nextInt(1_000_000) * 1_000;
+                default -> random.nextInt(1_000_000_000);
+            };
+            assertFormatted(Instant.ofEpochSecond(epochSecond, nanos));
+        }
+        assertFormatted(Instant.EPOCH);
+        assertFormatted(Instant.parse("2000-02-29T23:59:59.999Z"));
+        assertFormatted(Instant.parse("2100-03-01T00:00:00.000001Z"));
+        assertFormatted(Instant.parse("9999-12-31T23:59:59.999999999Z"));
+    }
+
+    @Test
+    void paymentResponseSerializer_ShouldWriteTimestampsAsUtcIsoInstants() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper()
+            .registerModule(new SimpleModule().addSerializer(new PaymentResponseSerializer()));
+        PaymentResponse response = new PaymentResponse();
+        response.setId(1L);
+        response.setCreatedAt(Instant.parse("2024-05-01T12:30:15Z"));
+        response.setUpdatedAt(Instant.parse("1969-12-31T23:59:59.5Z"));
+
+        assertEquals("{\"id\":1,\"createdAt\":\"2024-05-01T12:30:15Z\",\"updatedAt\":\"1969-12-31T23:59:59.500Z\"}",
+            objectMapper.writeValueAsString(response));
+    }
+
+    private static void assertFormatted(Instant instant) {
+        char[] buffer = new char[JsonFields.MAX_INSTANT_LENGTH];
+        int length = JsonFields.formatInstant(instant.getEpochSecond(), instant.getNano(), buffer);
+        assertEquals(DateTimeFormatter.ISO_INSTANT.format(instant), new String(buffer, 0, length));
+    }
+}
+
+// V9PaymentTimestampsUtcTest.java
+package db.migration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class V9PaymentTimestampsUtcTest {
+
+    private EmbeddedDatabase database;
+    private JdbcTemplate jdbcTemplate;
+
+    @BeforeEach
+    void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        jdbcTemplate = new JdbcTemplate(database);
+        jdbcTemplate.execute("CREATE TABLE payment (id BIGINT PRIMARY KEY, created_at TIMESTAMP, updated_at TIMESTAMP)");
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    void convert_ShouldRewriteLocalTimesAsUtc_AcrossBatches() throws Exception {
+        // Summer and winter time in Berlin
+        jdbcTemplate.update("INSERT INTO payment VALUES (1, ?, ?)",
+            LocalDateTime.of(2024, 7, 1, 14, 0), LocalDateTime.of(2024, 7, 1, 14, 5));
+        jdbcTemplate.update("INSERT INTO payment VALUES (2, ?, NULL)", LocalDateTime.of(2024, 1, 15, 9, 30));
+        for (long id = 3; id <= 2500; id++) {
+            jdbcTemplate.update("INSERT INTO payment VALUES (?, ?, ?)", id,
+                LocalDateTime.of(2024, 1, 1, 1, 0), LocalDateTime.of(2024, 1, 1, 1, 0));
+        }
+
+        try (Connection connection = database.getConnection()) {
+            V9__payment_timestamps_utc.convert(connection, ZoneId.of("Europe/Berlin"));
+        }
+
+        assertEquals(LocalDateTime.of(2024, 7, 1, 12, 0), createdAt(1));
+        assertEquals(LocalDateTime.of(2024, 7, 1, 12, 5),
+            jdbcTemplate.queryForObject("SELECT updated_at FROM payment WHERE id = 1", LocalDateTime.class));
+        assertEquals(LocalDateTime.of(2024, 1, 15, 8, 30), createdAt(2));
+        assertNull(jdbcTemplate.queryForObject("SELECT updated_at FROM payment WHERE id = 2", LocalDateTime.class));
+        assertEquals(LocalDateTime.of(2024, 1, 1, 0, 0), createdAt(2500));
+    }
+
+    @Test
+    void legacyZone_ShouldDefaultToTheJvmTimeZone() {
+        assertEquals(ZoneId.systemDefault(), V9__payment_timestamps_utc.legacyZone(null));
+        assertEquals(ZoneId.systemDefault(), V9__payment_timestamps_utc.legacyZone(""));
+        assertEquals(ZoneId.of("America/New_York"), V9__payment_timestamps_utc.legacyZone("America/New_York"));
+    }
+
+    private LocalDateTime createdAt(long id) {
+        return jdbcTemplate.queryForObject("SELECT created_at FROM payment WHERE id = ?", LocalDateTime.class, id);
+    }
+}
+
+// 21. Reactive Payment Tests
+// ReactivePaymentServiceTest.java
+package com.ecommerce.payment.service;
+
+import com.ecommerce.payment.cache.PaymentCache;
+import com.ecommerce.payment.client.OrderServiceClient;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.GatewayUnavailableException;
+import com.ecommerce.payment.exception.PaymentDeclinedException;
+import com.ecommerce.payment.exception.PaymentProcessingException;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.gateway.ReactivePaymentGatewayService;
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.repository.R2dbcPaymentStore;
+import com.ecommerce.payment.retry.PaymentRetryHandler;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.PaymentDataMasker;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import com.ecommerce.payment.velocity.VelocityVerdict;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+public class ReactivePaymentServiceTest {
+
+    private static final Instant NOW = Instant.parse("2024-05-01T12:30:15.123Z");
+
+    private R2dbcPaymentStore paymentStore;
+    private ReactivePaymentGatewayService gateway;
+    private PaymentNotificationService notificationService;
+    private OrderServiceClient orderServiceClient;
+    private VelocityEngine velocityEngine;
+    private PaymentRetryHandler paymentRetryHandler;
+    private ReactivePaymentService paymentService;
+    private PaymentRequest paymentRequest;
+
+    @BeforeEach
+    void setUp() {
+        paymentStore = mock(R2dbcPaymentStore.class);
+        gateway = mock(ReactivePaymentGatewayService.class);
+        notificationService = mock(PaymentNotificationService.class);
+        orderServiceClient = mock(OrderServiceClient.class);
+        velocityEngine = mock(VelocityEngine.class);
+        paymentRetryHandler = mock(PaymentRetryHandler.class);
+        PaymentCache paymentCache = mock(PaymentCache.class);
+        when(velocityEngine.evaluate(any())).thenReturn(VelocityVerdict.ALLOW);
+
+        // The store applies status changes in place, like R2dbcPaymentStore
+        when(paymentStore.create(any(), any(), any(), any(), any())).thenAnswer(invocation -> {
+            Payment payment = new Payment(invocation.getArgument(0), invocation.getArgument(1),
+                invocation.getArgument(2), invocation.getArgument(4));
+            payment.setId(100L);
+            payment.setVersion(0L);
+            payment.setStatus(invocation.getArgument(3), invocation.getArgument(4));
+            return Mono.just(payment);
+        });
+        when(paymentStore.transition(any(), any(), any(), any())).thenAnswer(invocation -> {
+            Payment payment = invocation.getArgument(0);
+            String transactionId = invocation.getArgument(2);
+            if (transactionId != null) {
+                payment.setTransactionId(transactionId);
+            }
+            payment.setStatus(invocation.getArgument(1), invocation.getArgument(3));
+            payment.setVersion(payment.getVersion() + 1);
+            return Mono.just(payment);
+        });
+
+        paymentService = new ReactivePaymentService(paymentStore, gateway, notificationService, orderServiceClient,
+            new PaymentDataMasker(), velocityEngine, new ShardRouter(1), mock(TransactionIdIndex.class),
+            paymentRetryHandler, paymentCache, Clock.fixed(NOW, ZoneOffset.UTC));
+
+        paymentRequest = new PaymentRequest();
+        paymentRequest.setOrderId(1L);
+        paymentRequest.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
+        paymentRequest.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        paymentRequest.setCardNumber("4111111111111111");
+        paymentRequest.setCardHolderName("John Doe");
+        paymentRequest.setExpiryDate("12/25");
+        paymentRequest.setCvv("123");
+    }
+
+    @Test
+    void processPayment_ShouldCompleteApprovedPayment() {
+        when(gateway.processPayment(eq(100L), eq(paymentRequest)))
+            .thenReturn(Mono.just(GatewayResult.approved("PG-1")));
+
+        PaymentResponse response = paymentService.processPayment(paymentRequest).block();
+
+        assertNotNull(response);
+        assertEquals(PaymentStatus.COMPLETED, response.getStatus());
+        assertEquals("PG-1", response.getTransactionId());
+        assertEquals(NOW, response.getUpdatedAt());
+        verify(paymentStore).create(eq(1L), any(), eq(PaymentMethod.CREDIT_CARD), eq(PaymentStatus.PROCESSING),
+            eq(NOW));
+        verify(notificationService).sendPaymentConfirmation(response);
+        verify(orderServiceClient).updateOrderAfterPayment(1L, 100L);
+    }
+
+    @Test
+    void processPayment_ShouldFailDeclinedPayment() {
+        when(gateway.processPayment(eq(100L), eq(paymentRequest)))
+            .thenReturn(Mono.just(GatewayResult.declined(GatewayResult.PAYMENT_DECLINED)));
+
+        PaymentDeclinedException declined = assertThrows(PaymentDeclinedException.class,
+            () -> paymentService.processPayment(paymentRequest).block());
+
+        assertEquals(GatewayResult.PAYMENT_DECLINED, declined.getMessage());
+        verify(paymentStore).transition(any(), eq(PaymentStatus.FAILED), isNull(), eq(NOW));
+        verify(velocityEngine).recordDecline(paymentRequest);
+        verify(notificationService).sendPaymentFailureNotification(1L, GatewayResult.PAYMENT_DECLINED);
+    }
+
+    @Test
+    void processPayment_ShouldLeavePaymentPendingForRetry_WhenGatewayUnavailable() {
+        when(gateway.processPayment(eq(100L), eq(paymentRequest)))
+            .thenReturn(Mono.error(new GatewayUnavailableException("Payment gateway error: timeout")));
+
+        PaymentResponse response = paymentService.processPayment(paymentRequest).block();
+
+        assertNotNull(response);
+        assertEquals(PaymentStatus.PENDING, response.getStatus());
+        verify(paymentRetryHandler).scheduleAfterCommit(any(Payment.class), eq(paymentRequest));
+        verify(notificationService, never()).sendPaymentFailureNotification(anyLong(), any());
+    }
+
+    @Test
+    void processPayment_ShouldNotReachStore_WhenRejectedByVelocityChecks() {
+        when(velocityEngine.evaluate(paymentRequest)).thenReturn(VelocityVerdict.REJECT_CARD_VELOCITY);
+
+        assertThrows(PaymentDeclinedException.class, () -> paymentService.processPayment(paymentRequest).block());
+
+        verifyNoInteractions(paymentStore, gateway);
+    }
+
+    @Test
+    void refundPayment_ShouldRejectPaymentThatIsNotCompleted() {
+        Payment pending = new Payment(1L, Money.parse("99.99", Money.DEFAULT_CURRENCY), PaymentMethod.CREDIT_CARD, NOW);
+        pending.setId(100L);
+        pending.setVersion(0L);
+        when(paymentStore.findById(100L)).thenReturn(Mono.just(pending));
+
+        PaymentProcessingException rejected = assertThrows(PaymentProcessingException.class,
+            () -> paymentService.refundPayment(100L).block());
+
+        assertEquals("Only completed payments can be refunded. Current status: PENDING", rejected.getMessage());
+        verifyNoInteractions(gateway);
+    }
+}
+
+// R2dbcPaymentStoreTest.java
+package com.ecommerce.payment.repository;
+
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.shard.PaymentIdAllocator;
+import com.ecommerce.payment.shard.ShardRouter;
+import io.r2dbc.spi.ConnectionFactories;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class R2dbcPaymentStoreTest {
+
+    private static final Instant NOW = Instant.parse("2024-05-01T12:30:15.123Z");
+
+    private DatabaseClient databaseClient;
+    private List<PaymentStatusChangedEvent> events;
+    private R2dbcPaymentStore store;
+
+    @BeforeEach
+    void setUp() {
+        databaseClient = DatabaseClient.create(ConnectionFactories.get(
+            "r2dbc:h2:mem:///payment_store_" + UUID.randomUUID() + "?options=DB_CLOSE_DELAY=-1;MODE=MySQL"));
+        databaseClient.sql("CREATE TABLE payment (id BIGINT PRIMARY KEY, order_id BIGINT, amount DECIMAL(38, 2), "
+                + "currency CHAR(3) DEFAULT 'USD' NOT NULL, transaction_id VARCHAR(255), payment_method VARCHAR(32), "
+                + "status VARCHAR(32), created_at TIMESTAMP, updated_at TIMESTAMP, version BIGINT DEFAULT 0 NOT NULL)")
+            .then()
+            .block();
+
+        events = new CopyOnWriteArrayList<>();
+        store = new R2dbcPaymentStore(databaseClient, new PaymentIdAllocator(0, Clock.fixed(NOW, ZoneOffset.UTC)),
+            new ShardRouter(1), event -> events.add((PaymentStatusChangedEvent) event));
+    }
+
+    @Test
+    void create_ShouldStorePaymentAndPublishItsTransitions() {
+        Payment created = store.create(7L, Money.parse("25.50", Money.DEFAULT_CURRENCY), PaymentMethod.PAYPAL,
+            PaymentStatus.PROCESSING, NOW).block();
+
+        Payment stored = store.findById(created.getId()).block();
+        assertNotNull(stored);
+        assertEquals(7L, stored.getOrderId());
+        assertEquals(Money.parse("25.50", Money.DEFAULT_CURRENCY), stored.getAmount());
+        assertEquals(PaymentMethod.PAYPAL, stored.getPaymentMethod());
+        assertEquals(PaymentStatus.PROCESSING, stored.getStatus());
+        assertEquals(NOW, stored.getCreatedAt());
+        assertEquals(0L, stored.getVersion());
+
+        assertEquals(2, events.size());
+        assertNull(events.get(0).getPreviousStatus());
+        assertEquals(PaymentStatus.PENDING, events.get(0).getStatus());
+        assertEquals(PaymentStatus.PENDING, events.get(1).getPreviousStatus());
+        assertEquals(PaymentStatus.PROCESSING, events.get(1).getStatus());
+        assertEquals(2550, events.get(1).getAmountMinor());
+    }
+
+    @Test
+    void transition_ShouldRejectPaymentChangedSinceItWasRead() {
+        long paymentId = store.create(7L, Money.parse("25.50", Money.DEFAULT_CURRENCY), PaymentMethod.PAYPAL,
+            PaymentStatus.PROCESSING, NOW).block().getId();
+        Payment first = store.findById(paymentId).block();
+        Payment second = store.findById(paymentId).block();
+
+        store.transition(first, PaymentStatus.COMPLETED, "PG-1", NOW.plusSeconds(1)).block();
+
+        assertThrows(OptimisticLockingFailureException.class,
+            () -> store.transition(second, PaymentStatus.FAILED, null, NOW.plusSeconds(2)).block());
+        Payment stored = store.findById(paymentId).block();
+        assertEquals(PaymentStatus.COMPLETED, stored.getStatus());
+        assertEquals("PG-1", stored.getTransactionId());
+        assertEquals(NOW.plusSeconds(1), stored.getUpdatedAt());
+        assertEquals(1L, stored.getVersion());
+        assertEquals(3, events.size());
+    }
+
+    @Test
+    void transition_ShouldKeepTransactionId_WhenNoneGiven() {
+        long paymentId = store.create(7L, Money.parse("25.50", Money.DEFAULT_CURRENCY), PaymentMethod.PAYPAL,
+            PaymentStatus.PROCESSING, NOW).block().getId();
+        Payment payment = store.findById(paymentId).block();
+        store.transition(payment, PaymentStatus.COMPLETED, "PG-1", NOW).block();
+
+        store.transition(payment, PaymentStatus.REFUNDED, null, NOW.plusSeconds(60)).block();
+
+        Payment stored = store.findById(paymentId).block();
+        assertEquals(PaymentStatus.REFUNDED, stored.getStatus());
+        assertEquals("PG-1", stored.getTransactionId());
+        assertEquals(2L, stored.getVersion());
+        assertEquals(List.of(7L), store.findByOrderId(7L).map(Payment::getOrderId).collectList().block());
+    }
+}
+
+// ReactivePaymentControllerTest.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.PaymentDeclinedException;
+import com.ecommerce.payment.exception.PaymentNotFoundException;
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.readmodel.OrderPaymentSummaryService;
+import com.ecommerce.payment.service.ReactivePaymentService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@WebFluxTest(ReactivePaymentController.class)
+@ActiveProfiles("reactive")
+public class ReactivePaymentControllerTest {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @MockBean
+    private ReactivePaymentService paymentService;
+
+    @MockBean
+    private OrderPaymentSummaryService summaryService;
+
+    private PaymentRequest paymentRequest;
+    private PaymentResponse paymentResponse;
+
+    @TestConfiguration
+    static class ValidationConfig {
+
+        // Before the 12/25 expiry of the test card
+        @Bean
+        PaymentRequestValidator paymentRequestValidator() {
+            return new PaymentRequestValidator(Clock.fixed(Instant.parse("2024-05-01T00:00:00Z"), ZoneOffset.UTC));
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        paymentRequest = new PaymentRequest();
+        paymentRequest.setOrderId(1L);
+        paymentRequest.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
+        paymentRequest.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        paymentRequest.setCardNumber("4111111111111111");
+        paymentRequest.setCardHolderName("John Doe");
+        paymentRequest.setExpiryDate("12/25");
+        paymentRequest.setCvv("123");
+
+        paymentResponse = new PaymentResponse();
+        paymentResponse.setId(1L);
+        paymentResponse.setOrderId(1L);
+        paymentResponse.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
+        paymentResponse.setTransactionId("tx-123456789");
+        paymentResponse.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        paymentResponse.setStatus(PaymentStatus.COMPLETED);
+        paymentResponse.setCreatedAt(Instant.parse("2024-05-01T12:30:15.123Z"));
+        paymentResponse.setUpdatedAt(Instant.parse("2024-05-01T12:30:16.456Z"));
+    }
+
+    @Test
+    void processPayment_ShouldReturnCreatedStatus() {
+        when(paymentService.processPayment(any(PaymentRequest.class))).thenReturn(Mono.just(paymentResponse));
+
+        webTestClient.post().uri("/api/payments")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(paymentRequest)
+            .exchange()
+            .expectStatus().isCreated()
+            .expectBody()
+            .jsonPath("$.id").isEqualTo(1)
+            .jsonPath("$.amount").isEqualTo(99.99)
+            .jsonPath("$.status").isEqualTo("COMPLETED");
+    }
+
+    @Test
+    void processPayment_ShouldReturnAccepted_WhenPaymentIsPendingForRetry() {
+        paymentResponse.setStatus(PaymentStatus.PENDING);
+        when(paymentService.processPayment(any(PaymentRequest.class))).thenReturn(Mono.just(paymentResponse));
+
+        webTestClient.post().uri("/api/payments")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(paymentRequest)
+            .exchange()
+            .expectStatus().isAccepted()
+            .expectBody()
+            .jsonPath("$.status").isEqualTo("PENDING");
+    }
+
+    @Test
+    void processPayment_ShouldReturnFieldErrors_WhenCardFieldsAreInvalid() {
+        paymentRequest.setCardNumber("4111111111111112");
+        paymentRequest.setCvv("12");
+
+        webTestClient.post().uri("/api/payments")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue(paymentRequest)
+            .exchange()
+            .expectStatus().isBadRequest()
+            .expectBody()
+            .jsonPath("$.cardNumber").isEqualTo("Card number is invalid")
+            .jsonPath("$.cvv").isEqualTo("CVV must be 3 or 4 digits")
+            .jsonPath("$.expiryDate").doesNotExist();
+
+        verifyNoInteractions(paymentService);
+    }
+
+    @Test
+    void processPayment_ShouldReturnBadRequest_WhenBodyIsMalformed() {
+        webTestClient.post().uri("/api/payments")
+            .contentType(MediaType.APPLICATION_JSON)
+            .bodyValue("{\"orderId\": 1, \"amount\": ")
+            .exchange()
+            .expectStatus().isBadRequest()
+            .expectBody()
+            .jsonPath("$.status").isEqualTo(400)
+            .jsonPath("$.message").exists();
+
+        verifyNoInteractions(paymentService);
+    }
+
+    @Test
+    void processPayment_ShouldServeDeclineAsErrorResponse() {
+        when(paymentService.processPayment(any(PaymentRequest.class)))
+            .thenReturn(Mono.error(new PaymentDeclinedException(GatewayResult.PAYMENT_DECLINED)));
+
+        webTestClient.post().uri("/api/payments")
+            .contentType(MediaType.APPLICATION_JSON)
+            .accept(MediaType.APPLICATION_JSON)
+            .bodyValue(paymentRequest)
+            .exchange()
+            .expectStatus().isBadRequest()
+            .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_JSON)
+            .expectBody()
+            .jsonPath("$.status").isEqualTo(400)
+            .jsonPath("$.message").isEqualTo(GatewayResult.PAYMENT_DECLINED)
+            .jsonPath("$.timestamp").exists();
+    }
+
+    @Test
+    void getPaymentById_ShouldReturnNotFound_WhenPaymentDoesNotExist() {
+        when(paymentService.getPaymentById(9L))
+            .thenReturn(Mono.error(new PaymentNotFoundException("Payment not found with ID: 9")));
+
+        webTestClient.get().uri("/api/payments/9")
+            .exchange()
+            .expectStatus().isNotFound()
+            .expectBody()
+            .jsonPath("$.status").isEqualTo(404)
+            .jsonPath("$.message").isEqualTo("Payment not found with ID: 9");
+    }
+
+    @Test
+    void getPaymentsByOrderId_ShouldReturnPaymentsList() {
+        when(paymentService.getPaymentsByOrderId(1L)).thenReturn(Flux.just(paymentResponse));
+
+        webTestClient.get().uri("/api/payments/order/1")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody()
+            .jsonPath("$.length()").isEqualTo(1)
+            .jsonPath("$[0].transactionId").isEqualTo("tx-123456789");
+    }
+
+    @Test
+    void refundPayment_ShouldReturnConflict_WhenPaymentChangedConcurrently() {
+        when(paymentService.refundPayment(1L))
+            .thenReturn(Mono.error(new OptimisticLockingFailureException("version changed")));
+
+        webTestClient.post().uri("/api/payments/1/refund")
+            .exchange()
+            .expectStatus().isEqualTo(409)
+            .expectBody()
+            .jsonPath("$.message").isEqualTo("Payment was modified concurrently, please retry");
+    }
+
+    @Test
+    void deletePayment_ShouldReturnNoContent() {
+        when(paymentService.deletePayment(1L)).thenReturn(Mono.empty());
+
+        webTestClient.delete().uri("/api/payments/1")
+            .exchange()
+            .expectStatus().isNoContent();
+
+        verify(paymentService).deletePayment(1L);
+    }
+}
+
+// 22. gRPC Endpoint Tests
+// PaymentGrpcServiceTest.java
+package com.ecommerce.payment.grpc;
+
+import com.ecommerce.payment.admission.AdmissionControl;
+import com.ecommerce.payment.admission.AdmissionProperties;
+import com.ecommerce.payment.datasource.ReadYourWritesContext;
+import com.ecommerce.payment.dto.PaymentLookupRequest;
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
+import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.exception.PaymentDeclinedException;
+import com.ecommerce.payment.exception.PaymentNotFoundException;
+import com.ecommerce.payment.grpc.v1.PaymentProtos;
+import com.ecommerce.payment.grpc.v1.PaymentServiceGrpc;
+import com.ecommerce.payment.lane.LaneExecutors;
+import com.ecommerce.payment.lane.LaneProperties;
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.service.PaymentLookupService;
+import com.ecommerce.payment.service.PaymentService;
+import io.grpc.Grpc;
+import io.grpc.InsecureChannelCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.MetadataUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class PaymentGrpcServiceTest {
+
+    private static final Instant NOW = Instant.parse("2024-05-01T12:30:15.123Z");
+
+    private PaymentService paymentService;
+    private PaymentLookupService lookupService;
+    private LaneExecutors lanes;
+    private GrpcServer server;
+    private ManagedChannel channel;
+    private PaymentServiceGrpc.PaymentServiceBlockingStub stub;
+
+    @BeforeEach
+    void setUp() {
+        paymentService = mock(PaymentService.class);
+        lookupService = mock(PaymentLookupService.class);
+        lanes = new LaneExecutors(new LaneProperties(), new SimpleMeterRegistry());
+        start(Duration.ofSeconds(30), List.of());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        stop();
+        lanes.close();
+    }
+
+    private void start(Duration streamStallTimeout, List<ServerInterceptor> interceptors) {
+        PaymentGrpcService service = new PaymentGrpcService(paymentService, lookupService, lanes,
+            new PaymentRequestValidator(Clock.fixed(NOW, ZoneOffset.UTC)),
+            Validation.buildDefaultValidatorFactory().getValidator(), streamStallTimeout);
+
+        GrpcProperties properties = new GrpcProperties();
+        properties.setPort(0);
+        properties.setPlaintext(true);
+        server = new GrpcServer(properties, List.of(service), interceptors);
+        server.start();
+        channel = Grpc.newChannelBuilderForAddress("localhost", server.getPort(), InsecureChannelCredentials.create())
+            .build();
+        stub = PaymentServiceGrpc.newBlockingStub(channel).withDeadlineAfter(5, TimeUnit.SECONDS);
+    }
+
+    private void stop() throws InterruptedException {
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        server.stop();
+    }
+
+    @Test
+    void server_ShouldRequireTls_UnlessPlaintextIsAskedFor() {
+        GrpcProperties properties = new GrpcProperties();
+        properties.setPort(0);
+        GrpcServer tlsServer = new GrpcServer(properties, List.of());
+
+        assertThrows(IllegalStateException.class, tlsServer::start);
+        assertFalse(tlsServer.isRunning());
+    }
+
+    @Test
+    void processPayment_ShouldMapRequestAndResponse() {
+        when(paymentService.processPayment(any())).thenReturn(response(100L, PaymentStatus.COMPLETED));
+
+        PaymentProtos.PaymentResponse response = stub.processPayment(PaymentProtos.PaymentRequest.newBuilder()
+            .setOrderId(1L)
+            .setAmount(PaymentProtos.Money.newBuilder().setMinorUnits(14999).setCurrency("EUR"))
+            .setPaymentMethod(PaymentProtos.PaymentMethod.PAYMENT_METHOD_CREDIT_CARD)
+            .setCardNumber("4111111111111111")
+            .setCardHolderName("John Doe")
+            .setExpiryDate("12/25")
+            .setCvv("123")
+            .build());
+
+        ArgumentCaptor<PaymentRequest> request = ArgumentCaptor.forClass(PaymentRequest.class);
+        verify(paymentService).processPayment(request.capture());
+        assertEquals(1L, request.getValue().getOrderId());
+        assertEquals(Money.of(14999, Currency.getInstance("EUR")), request.getValue().getAmount());
+        assertEquals(PaymentMethod.CREDIT_CARD, request.getValue().getPaymentMethod());
+        assertEquals("12/25", request.getValue().getExpiryDate());
+        assertNull(request.getValue().getPaypalEmail());
+
+        assertEquals(100L, response.getId());
+        assertEquals(14999, response.getAmount().getMinorUnits());
+        assertEquals("USD", response.getAmount().getCurrency());
+        assertEquals("TXN-100", response.getTransactionId());
+        assertEquals(PaymentProtos.PaymentMethod.PAYMENT_METHOD_CREDIT_CARD, response.getPaymentMethod());
+        assertEquals(PaymentProtos.PaymentStatus.PAYMENT_STATUS_COMPLETED, response.getStatus());
+        assertEquals(NOW.getEpochSecond(), response.getCreatedAt().getSeconds());
+        assertEquals(NOW.getNano(), response.getCreatedAt().getNanos());
+    }
+
+    @Test
+    void processPayment_ShouldReturnInvalidArgument_WithTheValidationMessages() {
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> stub.processPayment(
+            PaymentProtos.PaymentRequest.newBuilder()
+                .setPaymentMethod(PaymentProtos.PaymentMethod.PAYMENT_METHOD_PAYPAL)
+                .build()));
+
+        assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        assertEquals("amount: Amount cannot be null; orderId: Order ID cannot be null; "
+            + "paypalEmail: PayPal email is required for PayPal payments", e.getStatus().getDescription());
+        verifyNoInteractions(paymentService);
+    }
+
+    @Test
+    void processPayment_ShouldReturnFailedPrecondition_WhenDeclined() {
+        when(paymentService.processPayment(any())).thenThrow(new PaymentDeclinedException("Card declined"));
+
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> stub.processPayment(
+            PaymentProtos.PaymentRequest.newBuilder()
+                .setOrderId(1L)
+                .setAmount(PaymentProtos.Money.newBuilder().setMinorUnits(500))
+                .setPaymentMethod(PaymentProtos.PaymentMethod.PAYMENT_METHOD_PAYPAL)
+                .setPaypalEmail("buyer@example.com")
+                .build()));
+
+        assertEquals(Status.Code.FAILED_PRECONDITION, e.getStatus().getCode());
+        assertEquals("Card declined", e.getStatus().getDescription());
+    }
+
+    @Test
+    void processPayment_ShouldReturnResourceExhaustedWithRetryAfter_WhenClientExceedsRate() throws Exception {
+        AdmissionProperties admissionProperties = new AdmissionProperties();
+        admissionProperties.setClientRate(1);
+        admissionProperties.setClientBurst(1);
+        admissionProperties.setTrustClientIdHeader(true);
+        AdmissionControl admission = new AdmissionControl(admissionProperties, new SimpleMeterRegistry());
+        stop();
+        start(Duration.ofSeconds(30), List.of(new GrpcAdmissionInterceptor(admission, admissionProperties)));
+        when(paymentService.processPayment(any())).thenReturn(response(100L, PaymentStatus.COMPLETED));
+
+        Metadata headers = new Metadata();
+        headers.put(Metadata.Key.of("x-client-id", Metadata.ASCII_STRING_MARSHALLER), "client-a");
+        PaymentServiceGrpc.PaymentServiceBlockingStub client =
+            stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+
+        assertEquals(100L, client.processPayment(paypalRequest()).getId());
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+            () -> client.processPayment(paypalRequest()));
+
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, e.getStatus().getCode());
+        assertEquals(AdmissionControl.RATE_LIMITED, e.getStatus().getDescription());
+        assertEquals("1", e.getTrailers().get(GrpcAdmissionInterceptor.RETRY_AFTER));
+        verify(paymentService, times(1)).processPayment(any());
+
+        // Reads are not admission controlled
+        when(paymentService.getPaymentById(100L)).thenReturn(response(100L, PaymentStatus.COMPLETED));
+        assertEquals(100L, client.getPayment(PaymentProtos.GetPaymentRequest.newBuilder().setPaymentId(100L).build())
+            .getId());
+    }
+
+    @Test
+    void getPayment_ShouldReadFromPrimary_WithConsistencyTokenOfAWrite() throws Exception {
+        stop();
+        start(Duration.ofSeconds(30), List.of(new GrpcReadYourWritesInterceptor(Duration.ofSeconds(5))));
+        when(paymentService.processPayment(any())).thenReturn(response(100L, PaymentStatus.COMPLETED));
+        AtomicBoolean pinned = new AtomicBoolean();
+        when(paymentService.getPaymentById(100L)).thenAnswer(invocation -> {
+            pinned.set(ReadYourWritesContext.isPinnedToPrimary());
+            return response(100L, PaymentStatus.COMPLETED);
+        });
+
+        AtomicReference<Metadata> responseHeaders = new AtomicReference<>();
+        AtomicReference<Metadata> trailers = new AtomicReference<>();
+        stub.withInterceptors(MetadataUtils.newCaptureMetadataInterceptor(responseHeaders, trailers))
+            .processPayment(paypalRequest());
+        String token = responseHeaders.get().get(GrpcReadYourWritesInterceptor.CONSISTENCY_TOKEN);
+        assertNotNull(token);
+
+        PaymentProtos.GetPaymentRequest read = PaymentProtos.GetPaymentRequest.newBuilder().setPaymentId(100L).build();
+        stub.getPayment(read);
+        assertFalse(pinned.get());
+
+        Metadata headers = new Metadata();
+        headers.put(GrpcReadYourWritesInterceptor.CONSISTENCY_TOKEN, token);
+        stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers)).getPayment(read);
+        assertTrue(pinned.get());
+    }
+
+    @Test
+    void getPayment_ShouldReturnNotFound() {
+        when(paymentService.getPaymentById(42L)).thenThrow(new PaymentNotFoundException("Payment not found with ID: 42"));
+
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+            () -> stub.getPayment(PaymentProtos.GetPaymentRequest.newBuilder().setPaymentId(42L).build()));
+
+        assertEquals(Status.Code.NOT_FOUND, e.getStatus().getCode());
+    }
+
+    @Test
+    void refundPayment_ShouldReturnAborted_OnConcurrentModification() {
+        when(paymentService.refundPayment(7L)).thenThrow(new OptimisticLockingFailureException("version"));
+
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class,
+            () -> stub.refundPayment(PaymentProtos.RefundPaymentRequest.newBuilder().setPaymentId(7L).build()));
+
+        assertEquals(Status.Code.ABORTED, e.getStatus().getCode());
+    }
+
+    @Test
+    void getPaymentsByOrder_ShouldStreamEachPayment() {
+        when(paymentService.getPaymentsByOrderId(1L))
+            .thenReturn(List.of(response(1L, PaymentStatus.FAILED), response(2L, PaymentStatus.COMPLETED)));
+
+        List<Long> ids = new ArrayList<>();
+        stub.getPaymentsByOrder(PaymentProtos.GetPaymentsByOrderRequest.newBuilder().setOrderId(1L).build())
+            .forEachRemaining(payment -> ids.add(payment.getId()));
+
+        assertEquals(List.of(1L, 2L), ids);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void lookupPayments_ShouldStreamWhatTheLookupProduces() {
+        when(lookupService.lookup(any(), any())).thenAnswer(invocation -> {
+            Consumer<PaymentResponse> sink = invocation.getArgument(1);
+            for (long id = 1; id <= 1200; id++) {
+                sink.accept(response(id, PaymentStatus.COMPLETED));
+            }
+            return 1200;
+        });
+
+        List<Long> ids = new ArrayList<>();
+        stub.lookupPayments(PaymentProtos.LookupPaymentsRequest.newBuilder().addPaymentIds(1L).addOrderIds(9L).build())
+            .forEachRemaining(payment -> ids.add(payment.getId()));
+
+        assertEquals(1200, ids.size());
+        assertEquals(1200L, ids.get(ids.size() - 1));
+        ArgumentCaptor<PaymentLookupRequest> request = ArgumentCaptor.forClass(PaymentLookupRequest.class);
+        verify(lookupService).lookup(request.capture(), any(Consumer.class));
+        assertEquals(List.of(1L), request.getValue().getPaymentIds());
+        assertEquals(List.of(9L), request.getValue().getOrderIds());
+    }
+
+    @Test
+    void lookupPayments_ShouldStopProducing_WhenClientStopsReading() throws Exception {
+        stop();
+        start(Duration.ofMillis(200), List.of());
+        CompletableFuture<Status.Code> producerStopped = new CompletableFuture<>();
+        when(lookupService.lookup(any(), any())).thenAnswer(invocation -> {
+            Consumer<PaymentResponse> sink = invocation.getArgument(1);
+            try {
+                // Far more than the flow control windows hold
+                for (long id = 1; id <= 1_000_000; id++) {
+                    sink.accept(response(id, PaymentStatus.COMPLETED));
+                }
+                producerStopped.complete(Status.Code.OK);
+            } catch (StatusRuntimeException e) {
+                producerStopped.complete(e.getStatus().getCode());
+                throw e;
+            }
+            return 1_000_000;
+        });
+
+        // No deadline: only the stall timeout frees the query lane
+        Iterator<PaymentProtos.PaymentResponse> payments = PaymentServiceGrpc.newBlockingStub(channel)
+            .lookupPayments(PaymentProtos.LookupPaymentsRequest.newBuilder().addOrderIds(9L).build());
+        assertEquals(1L, payments.next().getId());
+
+        assertEquals(Status.Code.DEADLINE_EXCEEDED, producerStopped.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void lookupPayments_ShouldRequireIds() {
+        StatusRuntimeException e = assertThrows(StatusRuntimeException.class, () -> stub.lookupPayments(
+            PaymentProtos.LookupPaymentsRequest.getDefaultInstance()).hasNext());
+
+        assertEquals(Status.Code.INVALID_ARGUMENT, e.getStatus().getCode());
+        verifyNoInteractions(lookupService);
+    }
+
+    private static PaymentProtos.PaymentRequest paypalRequest() {
+        return PaymentProtos.PaymentRequest.newBuilder()
+            .setOrderId(1L)
+            .setAmount(PaymentProtos.Money.newBuilder().setMinorUnits(500))
+            .setPaymentMethod(PaymentProtos.PaymentMethod.PAYMENT_METHOD_PAYPAL)
+            .setPaypalEmail("buyer@example.com")
+            .build();
+    }
+
+    private static PaymentResponse response(Long id, PaymentStatus status) {
+        PaymentResponse response = new PaymentResponse();
+        response.setId(id);
+        response.setOrderId(1L);
+        response.setAmount(Money.of(14999, Money.DEFAULT_CURRENCY));
+        response.setTransactionId("TXN-" + id);
+        response.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        response.setStatus(status);
+        response.setCreatedAt(NOW);
+        response.setUpdatedAt(NOW);
+        return response;
+    }
+}
+
+// 23. Payment Request Validation Tests
+// PaymentRequestValidatorTest.java
+package com.ecommerce.payment.dto;
+
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.validation.BeanPropertyBindingResult;
+import org.springframework.validation.Errors;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PaymentRequestValidatorTest {
+
+    private static final Instant NOW = Instant.parse("2025-12-31T23:59:59Z");
+
+    private PaymentRequestValidator validator;
+
+    @BeforeEach
+    void setUp() {
+        validator = new PaymentRequestValidator(Clock.fixed(NOW, ZoneOffset.UTC));
+    }
+
+    @Test
+    void validCardPayment_ShouldHaveNoErrors() {
+        assertTrue(validator.validate(cardRequest()).isEmpty());
+    }
+
+    @Test
+    void missingFields_ShouldKeepTheBeanValidationMessages() {
+        PaymentRequest request = new PaymentRequest();
+        request.setAmount(Money.of(0, Money.DEFAULT_CURRENCY));
+
+        // As the @NotNull/@PositiveAmount annotations PaymentRequest used to carry wrote them
+        assertEquals(Map.of(
+            "orderId", "Order ID cannot be null",
+            "amount", "Amount must be positive",
+            "paymentMethod", "Payment method cannot be null"), validator.validate(request));
+
+        request.setAmount(null);
+        assertEquals("Amount cannot be null", validator.validate(request).get("amount"));
+    }
+
+    @Test
+    void cardPayment_ShouldRequireCardFields() {
+        PaymentRequest request = cardRequest();
+        request.setCardNumber(null);
+        request.setCardHolderName("  ");
+        request.setExpiryDate(null);
+        request.setCvv(null);
+
+        assertEquals(Map.of(
+            "cardNumber", PaymentRequestValidator.CARD_NUMBER_REQUIRED,
+            "cardHolderName", PaymentRequestValidator.CARD_HOLDER_REQUIRED,
+            "expiryDate", PaymentRequestValidator.EXPIRY_REQUIRED,
+            "cvv", PaymentRequestValidator.CVV_INVALID), validator.validate(request));
+    }
+
+    @Test
+    void cardNumber_ShouldPassLuhnCheck() {
+        assertTrue(PaymentRequestValidator.isValidCardNumber("4111111111111111"));
+        assertTrue(PaymentRequestValidator.isValidCardNumber("5555555555554444"));
+        assertTrue(PaymentRequestValidator.isValidCardNumber("378282246310005"));
+        assertFalse(PaymentRequestValidator.isValidCardNumber("4111111111111112"));
+        assertFalse(PaymentRequestValidator.isValidCardNumber("4111 1111 1111 1111"));
+        assertFalse(PaymentRequestValidator.isValidCardNumber("42"));
+    }
+
+    @Test
+    void expiryDate_ShouldBeValidThroughTheEndOfItsMonth_InEveryTimeZone() {
+        PaymentRequest request = cardRequest();
+        request.setExpiryDate("12/25");
+        assertTrue(validator.validate(request).isEmpty());
+
+        request.setExpiryDate("11/25");
+        assertEquals(Map.of("expiryDate", PaymentRequestValidator.CARD_EXPIRED), validator.validate(request));
+
+        // January in UTC, still December 31st in the Americas
+        PaymentRequestValidator newYearUtc =
+            new PaymentRequestValidator(Clock.fixed(NOW.plus(Duration.ofHours(10)), ZoneOffset.UTC));
+        request.setExpiryDate("12/25");
+        assertTrue(newYearUtc.validate(request).isEmpty());
+
+        // January everywhere
+        PaymentRequestValidator nextYear =
+            new PaymentRequestValidator(Clock.fixed(NOW.plus(Duration.ofDays(1)).plusSeconds(1), ZoneOffset.UTC));
+        assertEquals(Map.of("expiryDate", PaymentRequestValidator.CARD_EXPIRED), nextYear.validate(request));
+    }
+
+    @Test
+    void expiryDate_ShouldBeMonthSlashYear() {
+        PaymentRequest request = cardRequest();
+        for (String malformed : new String[] {"13/30", "00/30", "1/30", "12-30", "12/2030", "ab/cd"}) {
+            request.setExpiryDate(malformed);
+            assertEquals(Map.of("expiryDate", PaymentRequestValidator.EXPIRY_INVALID), validator.validate(request),
+                malformed);
+        }
+    }
+
+    @Test
+    void paypalPayment_ShouldRequireValidEmail() {
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(1L);
+        request.setAmount(Money.of(500, Money.DEFAULT_CURRENCY));
+        request.setPaymentMethod(PaymentMethod.PAYPAL);
+
+        assertEquals(Map.of("paypalEmail", PaymentRequestValidator.PAYPAL_EMAIL_REQUIRED), validator.validate(request));
+
+        for (String invalid : new String[] {"buyer", "@example.com", "buyer@example", "buyer@example.",
+                                            "buyer@@example.com", "buyer @example.com"}) {
+            request.setPaypalEmail(invalid);
+            assertEquals(Map.of("paypalEmail", PaymentRequestValidator.PAYPAL_EMAIL_INVALID),
+                validator.validate(request), invalid);
+        }
+
+        request.setPaypalEmail("buyer.name+shop@mail.example.com");
+        assertTrue(validator.validate(request).isEmpty());
+    }
+
+    @Test
+    void bankTransfer_ShouldNotRequireCardFields() {
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(1L);
+        request.setAmount(Money.of(500, Money.DEFAULT_CURRENCY));
+        request.setPaymentMethod(PaymentMethod.BANK_TRANSFER);
+
+        assertTrue(validator.validate(request).isEmpty());
+    }
+
+    @Test
+    void springValidation_ShouldRejectEachFieldOnce() {
+        PaymentRequest request = cardRequest();
+        request.setCardNumber("4111111111111112");
+        Errors errors = new BeanPropertyBindingResult(request, "paymentRequest");
+
+        validator.validate(request, errors);
+
+        assertEquals(1, errors.getFieldErrorCount());
+        assertEquals(PaymentRequestValidator.CARD_NUMBER_INVALID, errors.getFieldError("cardNumber").getDefaultMessage());
+    }
+
+    private static PaymentRequest cardRequest() {
+        PaymentRequest request = new PaymentRequest();
+        request.setOrderId(1L);
+        request.setAmount(Money.parse("99.99", Money.DEFAULT_CURRENCY));
+        request.setPaymentMethod(PaymentMethod.CREDIT_CARD);
+        request.setCardNumber("4111111111111111");
+        request.setCardHolderName("John Doe");
+        request.setExpiryDate("12/30");
+        request.setCvv("123");
+        return request;
+    }
+}
+
+// 24. Startup Profile Tests
+// ProductionProfileTest.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.controller.ReconciliationController;
+import com.ecommerce.payment.reconciliation.ReconciliationService;
+import io.swagger.v3.oas.models.OpenAPI;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.ConfigDataApplicationContextInitializer;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProductionProfileTest {
+
+    // application.yml and the profile's file, applied to the beans the profile switches
+    private final ApplicationContextRunner contextRunner = new ApplicationContextRunner()
+        .withInitializer(new ConfigDataApplicationContextInitializer())
+        .withUserConfiguration(OpenApiConfig.class, StartupTimelineReporter.class,
+            ReconciliationController.class, ReconciliationService.class);
+
+    @Test
+    void prodProfile_ShouldStartWithSchemaToolingAndDocsOff() {
+        contextRunner.withPropertyValues("spring.profiles.active=prod").run(context -> {
+            assertNull(context.getStartupFailure());
+            Environment environment = context.getEnvironment();
+            assertEquals("none", environment.getProperty("spring.jpa.hibernate.ddl-auto"));
+            assertEquals("true", environment.getProperty("spring.flyway.enabled"));
+            assertEquals("deferred", environment.getProperty("spring.data.jpa.repositories.bootstrap-mode"));
+
+            assertEquals(0, context.getBeanNamesForType(OpenApiConfig.class).length);
+            assertEquals(0, context.getBeanNamesForType(OpenAPI.class).length);
+            assertNotNull(context.getBean(StartupTimelineReporter.class));
+            assertAdminBeansNotCreated(context);
+        });
+    }
+
+    @Test
+    void defaultProfile_ShouldKeepDocsButStillDeferAdminBeans() {
+        contextRunner.run(context -> {
+            assertNull(context.getStartupFailure());
+            assertEquals("update", context.getEnvironment().getProperty("spring.jpa.hibernate.ddl-auto"));
+            assertEquals(1, context.getBeanNamesForType(OpenAPI.class, true, false).length);
+            assertEquals(0, context.getBeanNamesForType(StartupTimelineReporter.class).length);
+            assertAdminBeansNotCreated(context);
+        });
+    }
+
+    // Their dependencies are not in this context, so creating them would fail
+    private static void assertAdminBeansNotCreated(ConfigurableApplicationContext context) {
+        for (Class<?> type : new Class<?>[] {ReconciliationController.class, ReconciliationService.class}) {
+            String[] names = context.getBeanNamesForType(type, true, false);
+            assertEquals(1, names.length, type.getSimpleName());
+            assertFalse(context.getBeanFactory().containsSingleton(names[0]), type.getSimpleName());
+        }
+    }
+}
+
+// DefaultProfileStartupTest.java
+package com.ecommerce.payment;
+
+import com.ecommerce.payment.refund.RefundJobExecutor;
+import com.ecommerce.payment.refund.RefundJobRequest;
+import com.ecommerce.payment.shard.NodeIdLease;
+import com.ecommerce.payment.shard.PaymentIdAllocator;
+import com.ecommerce.payment.sweeper.StuckPaymentSweeper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The whole application on the default settings (ddl-auto, no Flyway), against the
+ * in-memory database of the CDS training profile, with the lifecycle beans started
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    properties = "payment.startup.exit-when-ready=false")
+@ActiveProfiles("cds-training")
+public class DefaultProfileStartupTest {
+
+    @TempDir
+    static Path directory;
+
+    @DynamicPropertySource
+    static void journalDirectories(DynamicPropertyRegistry registry) {
+        registry.add("payment.webhook.journal-directory", () -> directory.resolve("webhook-journal").toString());
+        registry.add("payment.retry.journal-directory", () -> directory.resolve("retry-journal").toString());
+    }
+
+    @Autowired
+    private NodeIdLease nodeIdLease;
+
+    @Autowired
+    private PaymentIdAllocator paymentIdAllocator;
+
+    @Autowired
+    private RefundJobExecutor refundJobExecutor;
+
+    @Autowired
+    private StuckPaymentSweeper stuckPaymentSweeper;
+
+    @Test
+    void nodeIdLease_ShouldStartOnTheGeneratedSchema() {
+        assertTrue(nodeIdLease.isRunning());
+        assertEquals(0, nodeIdLease.nodeId());
+        assertEquals(0, PaymentIdAllocator.shardOf(paymentIdAllocator.next(0)));
+    }
+
+    @Test
+    void refundJobExecutor_ShouldCreateJobsOnTheGeneratedSchema() {
+        RefundJobRequest request = new RefundJobRequest();
+        request.setPaymentIds(List.of(424242L));
+        request.setReason("Schema check");
+
+        assertTrue(refundJobExecutor.create(request) > 0);
+    }
+
+    @Test
+    void stuckPaymentSweeper_ShouldSweepOnTheGeneratedSchema() {
+        assertTrue(stuckPaymentSweeper.isRunning());
+        assertEquals(0, stuckPaymentSweeper.sweep());
+    }
+}
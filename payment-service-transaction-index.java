@@ -0,0 +1,434 @@
+// Off-Heap Transaction ID Index for Payment Service
+
+// 1. Off-Heap Hash Table
+// OffHeapTransactionIndex.java
+package com.ecommerce.payment.index;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-capacity open-addressing map from a 128-bit key (the UUID of a gateway
+ * transaction ID) to a payment ID, stored in direct memory.
+ *
+ * Each slot is 24 bytes: key high bits, key low bits, payment ID. The payment ID
+ * word doubles as the slot state: 0 empty, -1 being written, -2 removed, otherwise
+ * published. Writers claim a slot with a CAS on that word, write the key and publish
+ * the ID with release semantics, so lock-free readers never see a half-written key.
+ * Removed slots are skipped, not reused; the table is rebuilt on restart.
+ *
+ * The table does not grow: once the load factor reaches MAX_LOAD, puts are refused
+ * and callers fall back to the database. Direct memory counts against
+ * -XX:MaxDirectMemorySize (by default the maximum heap size).
+ */
+public class OffHeapTransactionIndex {
+
+    public static final int MAX_CAPACITY = 1 << 26;
+    static final double MAX_LOAD = 0.75;
+
+    private static final int SLOT_LONGS = 3;
+    private static final long EMPTY = 0L;
+    private static final long WRITING = -1L;
+    private static final long REMOVED = -2L;
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer memory;
+    private final int capacity;
+    private final int mask;
+    private final int maxEntries;
+    private final AtomicInteger used = new AtomicInteger();
+
+    /**
+     * @param minimumCapacity number of slots, rounded up to a power of two
+     */
+    public OffHeapTransactionIndex(int minimumCapacity) {
+        if (minimumCapacity < 1 || minimumCapacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + MAX_CAPACITY + ": " + minimumCapacity);
+        }
+        this.capacity = Math.max(16, Integer.highestOneBit(minimumCapacity - 1) << 1);
+        this.mask = capacity - 1;
+        this.maxEntries = (int) (capacity * MAX_LOAD);
+        this.memory = ByteBuffer.allocateDirect(capacity * SLOT_LONGS * Long.BYTES);
+    }
+
+    /**
+     * Map a key to a payment ID, replacing any existing mapping
+     *
+     * @return false if the table is full
+     */
+    public boolean put(long high, long low, long paymentId) {
+        if (paymentId <= 0) {
+            throw new IllegalArgumentException("Payment ID must be positive: " + paymentId);
+        }
+
+        int slot = slotFor(high, low);
+        int probes = 0;
+        while (probes < capacity) {
+            long state = awaitPublished(slot);
+            if (state == EMPTY) {
+                if (used.get() >= maxEntries) {
+                    return false;
+                }
+                if (LONGS.compareAndSet(memory, offset(slot, 2), EMPTY, WRITING)) {
+                    used.incrementAndGet();
+                    LONGS.set(memory, offset(slot, 0), high);
+                    LONGS.set(memory, offset(slot, 1), low);
+                    LONGS.setRelease(memory, offset(slot, 2), paymentId);
+                    return true;
+                }
+                // Lost the race for this slot: look at it again once the winner has published
+                continue;
+            }
+            if (state != REMOVED && keyAt(slot, high, low)) {
+                LONGS.setRelease(memory, offset(slot, 2), paymentId);
+                return true;
+            }
+            slot = (slot + 1) & mask;
+            probes++;
+        }
+        return false;
+    }
+
+    /**
+     * @return the payment ID mapped to the key, or 0 if absent
+     */
+    public long get(long high, long low) {
+        int slot = slotFor(high, low);
+        for (int probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+            long state = (long) LONGS.getAcquire(memory, offset(slot, 2));
+            if (state == EMPTY) {
+                return 0;
+            }
+            // Slots still being written are treated as not yet present
+            if (state > 0 && keyAt(slot, high, low)) {
+                return state;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Remove the mapping for a key, if present
+     */
+    public void remove(long high, long low) {
+        int slot = slotFor(high, low);
+        for (int probes = 0; probes < capacity; probes++, slot = (slot + 1) & mask) {
+            long state = awaitPublished(slot);
+            if (state == EMPTY) {
+                return;
+            }
+            if (state > 0 && keyAt(slot, high, low)) {
+                LONGS.compareAndSet(memory, offset(slot, 2), state, REMOVED);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return slots in use, including removed ones
+     */
+    public int usedSlots() {
+        return used.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long sizeInBytes() {
+        return memory.capacity();
+    }
+
+    private long awaitPublished(int slot) {
+        long state;
+        while ((state = (long) LONGS.getAcquire(memory, offset(slot, 2))) == WRITING) {
+            Thread.onSpinWait();
+        }
+        return state;
+    }
+
+    private boolean keyAt(int slot, long high, long low) {
+        return (long) LONGS.get(memory, offset(slot, 0)) == high && (long) LONGS.get(memory, offset(slot, 1)) == low;
+    }
+
+    private int slotFor(long high, long low) {
+        long hash = (high ^ (low * 0x9e3779b97f4a7c15L)) * 0xbf58476d1ce4e5b9L;
+        return (int) (hash ^ (hash >>> 31)) & mask;
+    }
+
+    private static int offset(int slot, int field) {
+        return (slot * SLOT_LONGS + field) * Long.BYTES;
+    }
+}
+
+// 2. Transaction ID Lookup Service
+// TransactionIdIndex.java
+package com.ecommerce.payment.index;
+
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import com.ecommerce.payment.util.TransactionIds;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves gateway transaction IDs to payment IDs from an OffHeapTransactionIndex,
+ * falling back to the database on a miss.
+ *
+ * The index is bulk-loaded from the payment table in the background once the
+ * application is ready, and kept current as payments are approved or deleted on this
+ * instance. Payments written by other instances are picked up by the fallback.
+ */
+@Component
+public class TransactionIdIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionIdIndex.class);
+
+    private final PaymentRepository paymentRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readTransaction;
+    private final ShardRouter shardRouter;
+    private final int minimumCapacity;
+
+    private volatile OffHeapTransactionIndex index;
+    // Transaction IDs removed while the bulk load runs, so the loader does not re-add them
+    private volatile Set<String> loadTombstones;
+    private volatile boolean fullWarningLogged;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter rejected;
+
+    public TransactionIdIndex(
+            PaymentRepository paymentRepository,
+            DataSource dataSource,
+            PlatformTransactionManager transactionManager,
+            ShardRouter shardRouter,
+            MeterRegistry meterRegistry,
+            @Value("${payment.transaction-index.minimum-capacity:1048576}") int minimumCapacity,
+            @Value("${payment.transaction-index.fetch-size:10000}") int fetchSize) {
+        this.paymentRepository = paymentRepository;
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(fetchSize);
+        this.readTransaction = new TransactionTemplate(transactionManager);
+        this.readTransaction.setReadOnly(true);
+        this.shardRouter = shardRouter;
+        this.minimumCapacity = minimumCapacity;
+
+        this.hits = Counter.builder("payment.transaction.index.lookups").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("payment.transaction.index.lookups").tag("result", "miss").register(meterRegistry);
+        this.rejected = Counter.builder("payment.transaction.index.rejected")
+            .description("Entries not indexed because the table was full")
+            .register(meterRegistry);
+        Gauge.builder("payment.transaction.index.entries", this, t -> t.index == null ? 0 : t.index.usedSlots())
+            .register(meterRegistry);
+        Gauge.builder("payment.transaction.index.capacity", this, t -> t.index == null ? 0 : t.index.capacity())
+            .register(meterRegistry);
+        Gauge.builder("payment.transaction.index.memory", this, t -> t.index == null ? 0 : t.index.sizeInBytes())
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Find the payment for a gateway transaction ID. A payment found in the database
+     * is added to the index; a miss is not remembered.
+     *
+     * @param transactionId the gateway transaction ID
+     * @return the payment ID, or empty if no payment has this transaction ID
+     */
+    public OptionalLong findPaymentId(String transactionId) {
+        if (!TransactionIds.isPaymentId(transactionId)) {
+            return OptionalLong.empty();
+        }
+
+        OffHeapTransactionIndex current = index;
+        if (current != null) {
+            long paymentId = current.get(TransactionIds.high(transactionId), TransactionIds.low(transactionId));
+            if (paymentId != 0) {
+                hits.increment();
+                return OptionalLong.of(paymentId);
+            }
+        }
+
+        misses.increment();
+        OptionalLong paymentId = findInDatabase(transactionId);
+        paymentId.ifPresent(id -> put(transactionId, id));
+        return paymentId;
+    }
+
+    /**
+     * Index a payment once the current transaction commits (immediately if there is none)
+     *
+     * @param transactionId the gateway transaction ID
+     * @param paymentId the payment ID
+     */
+    public void indexAfterCommit(String transactionId, long paymentId) {
+        afterCommit(() -> put(transactionId, paymentId));
+    }
+
+    /**
+     * Drop a payment from the index once the current transaction commits
+     *
+     * @param transactionId the gateway transaction ID, may be null
+     */
+    public void removeAfterCommit(String transactionId) {
+        if (TransactionIds.isPaymentId(transactionId)) {
+            afterCommit(() -> {
+                Set<String> tombstones = loadTombstones;
+                if (tombstones != null) {
+                    tombstones.add(transactionId);
+                }
+                OffHeapTransactionIndex current = index;
+                if (current != null) {
+                    current.remove(TransactionIds.high(transactionId), TransactionIds.low(transactionId));
+                }
+            });
+        }
+    }
+
+    /**
+     * Bulk-load the index in the background so startup is not delayed.
+     * The index is published before loading, so payments committed meanwhile are not lost;
+     * payments deleted meanwhile are remembered until the load ends, so a row the loader read
+     * before the delete is not indexed again.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadInBackground() {
+        Thread loader = new Thread(this::load, "transaction-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    void load() {
+        try {
+            long started = System.currentTimeMillis();
+            long rows = countTransactionIds();
+            int capacity = (int) Math.min(OffHeapTransactionIndex.MAX_CAPACITY,
+                Math.max(minimumCapacity, rows * 2));
+            OffHeapTransactionIndex loading = beginLoad(capacity);
+
+            for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+                int current = shard;
+                readTransaction.executeWithoutResult(status -> {
+                    ShardContext.bindToTransaction(current);
+                    jdbcTemplate.query("SELECT id, transaction_id FROM payment WHERE transaction_id LIKE 'PG-%'",
+                        rs -> {
+                            loadEntry(rs.getString(2), rs.getLong(1));
+                        });
+                });
+            }
+
+            logger.info("Transaction ID index loaded: {} entries, {} slots, {} MB off-heap in {} ms",
+                loading.usedSlots(), loading.capacity(), loading.sizeInBytes() >> 20,
+                System.currentTimeMillis() - started);
+        } catch (RuntimeException e) {
+            logger.error("Transaction ID index load failed; lookups will use the database", e);
+        } finally {
+            loadTombstones = null;
+        }
+    }
+
+    OffHeapTransactionIndex beginLoad(int capacity) {
+        OffHeapTransactionIndex loading = new OffHeapTransactionIndex(capacity);
+        loadTombstones = ConcurrentHashMap.newKeySet();
+        index = loading;
+        return loading;
+    }
+
+    void loadEntry(String transactionId, long paymentId) {
+        Set<String> tombstones = loadTombstones;
+        if (tombstones == null || tombstones.contains(transactionId)) {
+            return;
+        }
+        put(transactionId, paymentId);
+        // A delete between the check and the put found nothing to remove; undo the put here.
+        // The delete records its tombstone before removing, so one of the two always sees the other.
+        if (tombstones.contains(transactionId)) {
+            OffHeapTransactionIndex current = index;
+            if (current != null) {
+                current.remove(TransactionIds.high(transactionId), TransactionIds.low(transactionId));
+            }
+        }
+    }
+
+    private void put(String transactionId, long paymentId) {
+        OffHeapTransactionIndex current = index;
+        if (current == null || !TransactionIds.isPaymentId(transactionId)) {
+            return;
+        }
+        if (!current.put(TransactionIds.high(transactionId), TransactionIds.low(transactionId), paymentId)) {
+            rejected.increment();
+            if (!fullWarningLogged) {
+                fullWarningLogged = true;
+                logger.warn("Transaction ID index is full ({} slots); raise payment.transaction-index.minimum-capacity",
+                    current.capacity());
+            }
+        }
+    }
+
+    private OptionalLong findInDatabase(String transactionId) {
+        // The shard is not encoded in the transaction ID, so every shard is asked in turn
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            int current = shard;
+            Optional<Payment> payment = readTransaction.execute(status -> {
+                ShardContext.bindToTransaction(current);
+                return paymentRepository.findByTransactionId(transactionId);
+            });
+            if (payment != null && payment.isPresent()) {
+                return OptionalLong.of(payment.get().getId());
+            }
+        }
+        return OptionalLong.empty();
+    }
+
+    private long countTransactionIds() {
+        long total = 0;
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            int current = shard;
+            Long count = readTransaction.execute(status -> {
+                ShardContext.bindToTransaction(current);
+                return jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM payment WHERE transaction_id LIKE 'PG-%'", Long.class);
+            });
+            total += count != null ? count : 0;
+        }
+        return total;
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
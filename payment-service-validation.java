@@ -0,0 +1,274 @@
+// Payment Request Validation for Payment Service
+
+// 1. Payment Request Validator
+// PaymentRequestValidator.java
+package com.ecommerce.payment.dto;
+
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.PaymentMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.validation.Errors;
+import org.springframework.validation.Validator;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates a PaymentRequest in one pass over its fields, replacing Bean Validation at the
+ * payment endpoints. It is the only place PaymentRequest constraints are declared: order ID,
+ * amount (present and positive) and payment method, then the fields of the payment method:
+ * card number (Luhn), holder, expiry and CVV for card payments, the email address for PayPal.
+ * A valid request allocates nothing.
+ *
+ * Errors have the shape of GlobalExceptionHandler.handleValidationExceptions: one message
+ * per field, the first rule the field breaks.
+ */
+@Component
+public class PaymentRequestValidator implements Validator {
+
+    static final String ORDER_ID_REQUIRED = "Order ID cannot be null";
+    static final String AMOUNT_REQUIRED = "Amount cannot be null";
+    static final String AMOUNT_NOT_POSITIVE = "Amount must be positive";
+    static final String METHOD_REQUIRED = "Payment method cannot be null";
+    static final String CARD_NUMBER_REQUIRED = "Card number is required for card payments";
+    static final String CARD_NUMBER_INVALID = "Card number is invalid";
+    static final String CARD_HOLDER_REQUIRED = "Card holder name is required for card payments";
+    static final String EXPIRY_REQUIRED = "Expiry date is required for card payments";
+    static final String EXPIRY_INVALID = "Expiry date must be in MM/YY format";
+    static final String CARD_EXPIRED = "Card has expired";
+    static final String CVV_INVALID = "CVV must be 3 or 4 digits";
+    static final String PAYPAL_EMAIL_REQUIRED = "PayPal email is required for PayPal payments";
+    static final String PAYPAL_EMAIL_INVALID = "PayPal email is invalid";
+
+    // Cardholders up to a day behind UTC are still in the expiry month when UTC has left it
+    private static final long EXPIRY_GRACE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final Clock clock;
+
+    // The current month, replaced when the clock leaves it
+    private volatile MonthWindow month;
+
+    public PaymentRequestValidator(Clock clock) {
+        this.clock = clock;
+        this.month = MonthWindow.containing(clock.millis() - EXPIRY_GRACE_MILLIS);
+    }
+
+    @Override
+    public boolean supports(Class<?> clazz) {
+        return PaymentRequest.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public void validate(Object target, Errors errors) {
+        validate((PaymentRequest) target).forEach((field, message) -> errors.rejectValue(field, "Invalid", message));
+    }
+
+    /**
+     * @return field name to message, empty if the request is valid
+     */
+    public Map<String, String> validate(PaymentRequest request) {
+        Map<String, String> errors = null;
+
+        if (request.getOrderId() == null) {
+            errors = reject(errors, "orderId", ORDER_ID_REQUIRED);
+        }
+        Money amount = request.getAmount();
+        if (amount == null) {
+            errors = reject(errors, "amount", AMOUNT_REQUIRED);
+        } else if (!amount.isPositive()) {
+            errors = reject(errors, "amount", AMOUNT_NOT_POSITIVE);
+        }
+
+        PaymentMethod method = request.getPaymentMethod();
+        if (method == null) {
+            errors = reject(errors, "paymentMethod", METHOD_REQUIRED);
+        } else {
+            errors = switch (method) {
+                case CREDIT_CARD, DEBIT_CARD -> validateCard(request, errors);
+                case PAYPAL -> validatePaypal(request, errors);
+                case BANK_TRANSFER, CRYPTO -> errors;
+            };
+        }
+        return errors == null ? Map.of() : errors;
+    }
+
+    private Map<String, String> validateCard(PaymentRequest request, Map<String, String> errors) {
+        String cardNumber = request.getCardNumber();
+        if (cardNumber == null) {
+            errors = reject(errors, "cardNumber", CARD_NUMBER_REQUIRED);
+        } else if (!isValidCardNumber(cardNumber)) {
+            errors = reject(errors, "cardNumber", CARD_NUMBER_INVALID);
+        }
+
+        if (isBlank(request.getCardHolderName())) {
+            errors = reject(errors, "cardHolderName", CARD_HOLDER_REQUIRED);
+        }
+
+        String expiryDate = request.getExpiryDate();
+        if (expiryDate == null) {
+            errors = reject(errors, "expiryDate", EXPIRY_REQUIRED);
+        } else {
+            int expiryMonth = expiryMonth(expiryDate);
+            if (expiryMonth < 0) {
+                errors = reject(errors, "expiryDate", EXPIRY_INVALID);
+            } else if (expiryMonth < currentMonth()) {
+                errors = reject(errors, "expiryDate", CARD_EXPIRED);
+            }
+        }
+
+        String cvv = request.getCvv();
+        if (cvv == null || cvv.length() < 3 || cvv.length() > 4 || !isDigits(cvv)) {
+            errors = reject(errors, "cvv", CVV_INVALID);
+        }
+        return errors;
+    }
+
+    private Map<String, String> validatePaypal(PaymentRequest request, Map<String, String> errors) {
+        String email = request.getPaypalEmail();
+        if (email == null) {
+            errors = reject(errors, "paypalEmail", PAYPAL_EMAIL_REQUIRED);
+        } else if (!isValidEmail(email)) {
+            errors = reject(errors, "paypalEmail", PAYPAL_EMAIL_INVALID);
+        }
+        return errors;
+    }
+
+    private static Map<String, String> reject(Map<String, String> errors, String field, String message) {
+        if (errors == null) {
+            errors = new HashMap<>();
+        }
+        errors.putIfAbsent(field, message);
+        return errors;
+    }
+
+    /**
+     * 12 to 19 digits with a valid Luhn check digit
+     */
+    static boolean isValidCardNumber(String number) {
+        int length = number.length();
+        if (length < 12 || length > 19) {
+            return false;
+        }
+        int sum = 0;
+        boolean doubled = false;
+        for (int i = length - 1; i >= 0; i--) {
+            int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            if (doubled) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+            doubled = !doubled;
+        }
+        return sum % 10 == 0;
+    }
+
+    /**
+     * @return the MM/YY date as months since year 0, or -1 if malformed
+     */
+    static int expiryMonth(String expiryDate) {
+        if (expiryDate.length() != 5 || expiryDate.charAt(2) != '/') {
+            return -1;
+        }
+        int month = twoDigits(expiryDate, 0);
+        int year = twoDigits(expiryDate, 3);
+        if (month < 1 || month > 12 || year < 0) {
+            return -1;
+        }
+        return (2000 + year) * 12 + month - 1;
+    }
+
+    /**
+     * A deliberately loose check: one @ with something before it, and a dot inside the
+     * domain. PayPal confirms the address itself.
+     */
+    static boolean isValidEmail(String email) {
+        int length = email.length();
+        if (length > 254) {
+            return false;
+        }
+        int at = -1;
+        int lastDot = -1;
+        for (int i = 0; i < length; i++) {
+            char c = email.charAt(i);
+            if (c <= ' ' || c == 0x7f) {
+                return false;
+            }
+            if (c == '@') {
+                if (at >= 0) {
+                    return false;
+                }
+                at = i;
+            } else if (c == '.') {
+                lastDot = i;
+            }
+        }
+        return at > 0 && lastDot > at + 1 && lastDot < length - 1;
+    }
+
+    private static boolean isBlank(String value) {
+        if (value == null) {
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isWhitespace(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int twoDigits(String value, int from) {
+        int tens = value.charAt(from) - '0';
+        int ones = value.charAt(from + 1) - '0';
+        if (tens < 0 || tens > 9 || ones < 0 || ones > 9) {
+            return -1;
+        }
+        return tens * 10 + ones;
+    }
+
+    // A card is valid through the last day of its expiry month in any time zone, so the month
+    // changes a day after it does in UTC; the gateway rejects a card past its exact expiry
+    private int currentMonth() {
+        long now = clock.millis() - EXPIRY_GRACE_MILLIS;
+        MonthWindow current = month;
+        if (now < current.startMillis || now >= current.endMillis) {
+            current = MonthWindow.containing(now);
+            month = current;
+        }
+        return current.index;
+    }
+
+    private record MonthWindow(int index, long startMillis, long endMillis) {
+
+        static MonthWindow containing(long epochMillis) {
+            YearMonth month = YearMonth.from(Instant.ofEpochMilli(epochMillis).atOffset(ZoneOffset.UTC));
+            return new MonthWindow(month.getYear() * 12 + month.getMonthValue() - 1,
+                startOf(month), startOf(month.plusMonths(1)));
+        }
+
+        private static long startOf(YearMonth month) {
+            return month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+        }
+    }
+}
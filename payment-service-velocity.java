@@ -0,0 +1,617 @@
+// Velocity and Fraud Pre-Checks for Payment Service
+
+// 1. Windowed Count-Min Sketch
+// WindowedCountMinSketch.java
+package com.ecommerce.payment.velocity;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate per-key counters over a sliding time window with fixed memory.
+ *
+ * The window is split into a ring of time buckets, each holding a count-min sketch.
+ * Updates are lock-free atomic adds; the first writer to reach a stale bucket claims
+ * it with a CAS on its epoch and clears it. Increments racing with that clear can be
+ * lost, so counts may be slightly under-estimated at bucket boundaries; otherwise the
+ * usual count-min guarantee holds (never under-counts, over-counts by hash collisions).
+ */
+public class WindowedCountMinSketch {
+
+    private final int buckets;
+    private final int depth;
+    private final int width;
+    private final int mask;
+    private final long bucketMillis;
+    private final AtomicLongArray counters;
+    private final AtomicLongArray bucketEpochs;
+
+    /**
+     * @param window length of the sliding window
+     * @param buckets number of time buckets the window is split into
+     * @param depth number of hash rows per sketch
+     * @param width counters per row, must be a power of two
+     */
+    public WindowedCountMinSketch(Duration window, int buckets, int depth, int width) {
+        if (Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("Sketch width must be a power of two: " + width);
+        }
+        this.buckets = buckets;
+        this.depth = depth;
+        this.width = width;
+        this.mask = width - 1;
+        this.bucketMillis = Math.max(1, window.toMillis() / buckets);
+        this.counters = new AtomicLongArray(buckets * depth * width);
+        this.bucketEpochs = new AtomicLongArray(buckets);
+        for (int i = 0; i < buckets; i++) {
+            bucketEpochs.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Add to the count of a key
+     *
+     * @param keyHash 64-bit hash of the key
+     * @param delta amount to add
+     * @param nowMillis current time in epoch milliseconds
+     */
+    public void add(long keyHash, long delta, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        int bucket = (int) Math.floorMod(epoch, (long) buckets);
+        claimIfStale(bucket, epoch);
+
+        int base = bucket * depth * width;
+        int h1 = (int) keyHash;
+        int h2 = (int) (keyHash >>> 32) | 1;
+        for (int row = 0; row < depth; row++) {
+            counters.getAndAdd(base + row * width + ((h1 + row * h2) & mask), delta);
+        }
+    }
+
+    /**
+     * Estimate the count of a key over the window ending now
+     *
+     * @param keyHash 64-bit hash of the key
+     * @param nowMillis current time in epoch milliseconds
+     * @return estimated count, never lower than the true count except at bucket boundaries
+     */
+    public long estimate(long keyHash, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        long oldestEpoch = epoch - buckets + 1;
+        int h1 = (int) keyHash;
+        int h2 = (int) (keyHash >>> 32) | 1;
+
+        long total = 0;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            long bucketEpoch = bucketEpochs.get(bucket);
+            if (bucketEpoch < oldestEpoch || bucketEpoch > epoch) {
+                continue;
+            }
+
+            int base = bucket * depth * width;
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                min = Math.min(min, counters.get(base + row * width + ((h1 + row * h2) & mask)));
+            }
+            total += min;
+        }
+        return total;
+    }
+
+    /**
+     * @return memory held by the counters, in bytes
+     */
+    public long sizeInBytes() {
+        return (long) counters.length() * Long.BYTES;
+    }
+
+    private void claimIfStale(int bucket, long epoch) {
+        long current = bucketEpochs.get(bucket);
+        if (current < epoch && bucketEpochs.compareAndSet(bucket, current, epoch)) {
+            int base = bucket * depth * width;
+            for (int i = 0; i < depth * width; i++) {
+                counters.lazySet(base + i, 0);
+            }
+        }
+    }
+}
+
+// 2. Windowed HyperLogLog
+// WindowedHyperLogLog.java
+package com.ecommerce.payment.velocity;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate distinct count over a sliding time window (HyperLogLog per time bucket,
+ * merged on read). Standard error is about 1.04 / sqrt(2^precision).
+ */
+public class WindowedHyperLogLog {
+
+    private final int precision;
+    private final int registers;
+    private final int buckets;
+    private final long bucketMillis;
+    private final AtomicIntegerArray ranks;
+    private final AtomicLongArray bucketEpochs;
+    private final double alpha;
+
+    /**
+     * @param window length of the sliding window
+     * @param buckets number of time buckets the window is split into
+     * @param precision log2 of the register count (4 to 16)
+     */
+    public WindowedHyperLogLog(Duration window, int buckets, int precision) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("HyperLogLog precision must be between 4 and 16: " + precision);
+        }
+        this.precision = precision;
+        this.registers = 1 << precision;
+        this.buckets = buckets;
+        this.bucketMillis = Math.max(1, window.toMillis() / buckets);
+        this.ranks = new AtomicIntegerArray(buckets * registers);
+        this.bucketEpochs = new AtomicLongArray(buckets);
+        this.alpha = 0.7213 / (1 + 1.079 / registers);
+        for (int i = 0; i < buckets; i++) {
+            bucketEpochs.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Record an element
+     *
+     * @param hash well-mixed 64-bit hash of the element
+     * @param nowMillis current time in epoch milliseconds
+     */
+    public void add(long hash, long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        int bucket = (int) Math.floorMod(epoch, (long) buckets);
+        long current = bucketEpochs.get(bucket);
+        if (current < epoch && bucketEpochs.compareAndSet(bucket, current, epoch)) {
+            for (int i = 0; i < registers; i++) {
+                ranks.lazySet(bucket * registers + i, 0);
+            }
+        }
+
+        int index = bucket * registers + (int) (hash >>> (64 - precision));
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        int existing;
+        while ((existing = ranks.get(index)) < rank) {
+            if (ranks.compareAndSet(index, existing, rank)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Estimate distinct elements seen during the window ending now
+     *
+     * @param nowMillis current time in epoch milliseconds
+     * @return estimated distinct count
+     */
+    public long estimate(long nowMillis) {
+        long epoch = nowMillis / bucketMillis;
+        long oldestEpoch = epoch - buckets + 1;
+
+        double sum = 0;
+        int zeros = 0;
+        for (int register = 0; register < registers; register++) {
+            int rank = 0;
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                long bucketEpoch = bucketEpochs.get(bucket);
+                if (bucketEpoch >= oldestEpoch && bucketEpoch <= epoch) {
+                    rank = Math.max(rank, ranks.get(bucket * registers + register));
+                }
+            }
+            sum += 1.0 / (1L << rank);
+            if (rank == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = alpha * registers * registers / sum;
+        if (estimate <= 2.5 * registers && zeros > 0) {
+            // Small-range correction: linear counting
+            estimate = registers * Math.log((double) registers / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return memory held by the registers, in bytes
+     */
+    public long sizeInBytes() {
+        return (long) ranks.length() * Integer.BYTES;
+    }
+}
+
+// 3. Key Hashing
+// VelocityKeys.java
+package com.ecommerce.payment.velocity;
+
+/**
+ * Allocation-free 64-bit hashes of the velocity dimensions.
+ * Card numbers are hashed over their digits only, emails case-insensitively,
+ * so formatting differences do not split a key. Raw values are never stored.
+ */
+public final class VelocityKeys {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private VelocityKeys() {
+    }
+
+    public static long card(String cardNumber) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < cardNumber.length(); i++) {
+            char c = cardNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hash = (hash ^ c) * FNV_PRIME;
+            }
+        }
+        return mix(hash);
+    }
+
+    public static long email(String email) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < email.length(); i++) {
+            char c = email.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            }
+            hash = (hash ^ c) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    public static long order(long orderId) {
+        return mix(orderId ^ FNV_OFFSET);
+    }
+
+    // MurmurHash3 finalizer: spreads FNV output across all 64 bits
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
+
+// 4. Verdicts
+// VelocityVerdict.java
+package com.ecommerce.payment.velocity;
+
+public enum VelocityVerdict {
+    ALLOW,
+    REJECT_REPEATED_DECLINES,
+    REJECT_CARD_VELOCITY,
+    REJECT_EMAIL_VELOCITY,
+    REJECT_ORDER_VELOCITY,
+    REJECT_AMOUNT_SPIKE;
+
+    public boolean isAllowed() {
+        return this == ALLOW;
+    }
+}
+
+// 5. Velocity Rules Configuration
+// VelocityProperties.java
+package com.ecommerce.payment.velocity;
+
+import com.ecommerce.payment.model.Money;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+
+/**
+ * Velocity rule thresholds, bound from payment.velocity.*
+ * All limits apply per key over the sliding window.
+ */
+@ConfigurationProperties(prefix = "payment.velocity")
+public class VelocityProperties {
+
+    private boolean enabled = true;
+    private Duration window = Duration.ofMinutes(10);
+    private int buckets = 10;
+    private int sketchDepth = 4;
+    private int sketchWidth = 4096;
+    private int maxAttemptsPerCard = 10;
+    private int maxAttemptsPerEmail = 20;
+    private int maxAttemptsPerOrder = 5;
+    private int maxDeclinesPerCard = 3;
+    private Money maxAmountPerCard = Money.of(new BigDecimal("10000.00"), Money.DEFAULT_CURRENCY);
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Duration getWindow() {
+        return window;
+    }
+
+    public void setWindow(Duration window) {
+        this.window = window;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(int buckets) {
+        this.buckets = buckets;
+    }
+
+    public int getSketchDepth() {
+        return sketchDepth;
+    }
+
+    public void setSketchDepth(int sketchDepth) {
+        this.sketchDepth = sketchDepth;
+    }
+
+    public int getSketchWidth() {
+        return sketchWidth;
+    }
+
+    public void setSketchWidth(int sketchWidth) {
+        this.sketchWidth = sketchWidth;
+    }
+
+    public int getMaxAttemptsPerCard() {
+        return maxAttemptsPerCard;
+    }
+
+    public void setMaxAttemptsPerCard(int maxAttemptsPerCard) {
+        this.maxAttemptsPerCard = maxAttemptsPerCard;
+    }
+
+    public int getMaxAttemptsPerEmail() {
+        return maxAttemptsPerEmail;
+    }
+
+    public void setMaxAttemptsPerEmail(int maxAttemptsPerEmail) {
+        this.maxAttemptsPerEmail = maxAttemptsPerEmail;
+    }
+
+    public int getMaxAttemptsPerOrder() {
+        return maxAttemptsPerOrder;
+    }
+
+    public void setMaxAttemptsPerOrder(int maxAttemptsPerOrder) {
+        this.maxAttemptsPerOrder = maxAttemptsPerOrder;
+    }
+
+    public int getMaxDeclinesPerCard() {
+        return maxDeclinesPerCard;
+    }
+
+    public void setMaxDeclinesPerCard(int maxDeclinesPerCard) {
+        this.maxDeclinesPerCard = maxDeclinesPerCard;
+    }
+
+    /**
+     * @return cap on the total a card pays in this amount's currency; payments in other
+     *         currencies are not added up, only counted by the attempt limits
+     */
+    public Money getMaxAmountPerCard() {
+        return maxAmountPerCard;
+    }
+
+    public void setMaxAmountPerCard(Money maxAmountPerCard) {
+        this.maxAmountPerCard = maxAmountPerCard;
+    }
+}
+
+// 6. Velocity Engine
+// VelocityEngine.java
+package com.ecommerce.payment.velocity;
+
+import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.model.Money;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Clock;
+import java.util.Currency;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * In-process velocity checks run before a payment reaches the gateway.
+ *
+ * Every attempt is counted per card, email and order in windowed count-min sketches,
+ * so memory is fixed regardless of how many distinct keys are seen. Declines and
+ * amounts are tracked per card, amounts only in the currency of the cap: without
+ * exchange rates, totals in different currencies cannot be compared with it. Verdicts
+ * are published as
+ * payment.velocity.verdicts{verdict=...}.
+ */
+public class VelocityEngine {
+
+    public static final String REJECTION_MESSAGE = "Payment rejected by risk checks";
+
+    private static final long NO_KEY = 0L;
+
+    private final VelocityProperties properties;
+    private final Clock clock;
+    private final Currency amountCurrency;
+    private final long maxAmountPerCardMinor;
+
+    private final WindowedCountMinSketch cardAttempts;
+    private final WindowedCountMinSketch emailAttempts;
+    private final WindowedCountMinSketch orderAttempts;
+    private final WindowedCountMinSketch cardDeclines;
+    private final WindowedCountMinSketch cardAmounts;
+    private final WindowedHyperLogLog distinctCards;
+
+    private final Map<VelocityVerdict, Counter> verdictCounters = new EnumMap<>(VelocityVerdict.class);
+
+    public VelocityEngine(VelocityProperties properties, MeterRegistry meterRegistry, Clock clock) {
+        this.properties = properties;
+        this.clock = clock;
+        this.amountCurrency = properties.getMaxAmountPerCard().getCurrency();
+        this.maxAmountPerCardMinor = properties.getMaxAmountPerCard().getMinorUnits();
+
+        this.cardAttempts = newSketch(properties);
+        this.emailAttempts = newSketch(properties);
+        this.orderAttempts = newSketch(properties);
+        this.cardDeclines = newSketch(properties);
+        this.cardAmounts = newSketch(properties);
+        this.distinctCards = new WindowedHyperLogLog(properties.getWindow(), properties.getBuckets(), 12);
+
+        for (VelocityVerdict verdict : VelocityVerdict.values()) {
+            verdictCounters.put(verdict, Counter.builder("payment.velocity.verdicts")
+                .tag("verdict", verdict.name())
+                .register(meterRegistry));
+        }
+        Gauge.builder("payment.velocity.distinct.cards", this, engine -> engine.distinctCards.estimate(engine.clock.millis()))
+            .description("Approximate distinct cards seen during the velocity window")
+            .register(meterRegistry);
+        Gauge.builder("payment.velocity.memory", this, VelocityEngine::sizeInBytes)
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Evaluate the velocity rules for a payment attempt and count the attempt
+     *
+     * @param paymentRequest the payment request
+     * @return ALLOW, or the first rule the attempt breaks
+     */
+    public VelocityVerdict evaluate(PaymentRequest paymentRequest) {
+        if (!properties.isEnabled()) {
+            return VelocityVerdict.ALLOW;
+        }
+
+        long now = clock.millis();
+        long card = paymentRequest.getCardNumber() != null ? VelocityKeys.card(paymentRequest.getCardNumber()) : NO_KEY;
+        long email = paymentRequest.getPaypalEmail() != null ? VelocityKeys.email(paymentRequest.getPaypalEmail()) : NO_KEY;
+        long order = paymentRequest.getOrderId() != null ? VelocityKeys.order(paymentRequest.getOrderId()) : NO_KEY;
+        long amount = amountInCapCurrency(paymentRequest.getAmount());
+
+        VelocityVerdict verdict = check(card, email, order, amount, now);
+
+        // Rejected attempts are counted too, so sustained abuse stays blocked
+        if (card != NO_KEY) {
+            cardAttempts.add(card, 1, now);
+            cardAmounts.add(card, amount, now);
+            distinctCards.add(card, now);
+        }
+        if (email != NO_KEY) {
+            emailAttempts.add(email, 1, now);
+        }
+        if (order != NO_KEY) {
+            orderAttempts.add(order, 1, now);
+        }
+
+        verdictCounters.get(verdict).increment();
+        return verdict;
+    }
+
+    /**
+     * Record a gateway decline against the card used
+     *
+     * @param paymentRequest the declined payment request
+     */
+    public void recordDecline(PaymentRequest paymentRequest) {
+        if (properties.isEnabled() && paymentRequest.getCardNumber() != null) {
+            cardDeclines.add(VelocityKeys.card(paymentRequest.getCardNumber()), 1, clock.millis());
+        }
+    }
+
+    /**
+     * @return memory held by all sketches, in bytes
+     */
+    public long sizeInBytes() {
+        return cardAttempts.sizeInBytes() + emailAttempts.sizeInBytes() + orderAttempts.sizeInBytes()
+            + cardDeclines.sizeInBytes() + cardAmounts.sizeInBytes() + distinctCards.sizeInBytes();
+    }
+
+    private VelocityVerdict check(long card, long email, long order, long amount, long now) {
+        if (card != NO_KEY) {
+            if (cardDeclines.estimate(card, now) >= properties.getMaxDeclinesPerCard()) {
+                return VelocityVerdict.REJECT_REPEATED_DECLINES;
+            }
+            if (cardAttempts.estimate(card, now) >= properties.getMaxAttemptsPerCard()) {
+                return VelocityVerdict.REJECT_CARD_VELOCITY;
+            }
+        }
+        if (email != NO_KEY && emailAttempts.estimate(email, now) >= properties.getMaxAttemptsPerEmail()) {
+            return VelocityVerdict.REJECT_EMAIL_VELOCITY;
+        }
+        if (order != NO_KEY && orderAttempts.estimate(order, now) >= properties.getMaxAttemptsPerOrder()) {
+            return VelocityVerdict.REJECT_ORDER_VELOCITY;
+        }
+        if (card != NO_KEY && amount > 0 && cardAmounts.estimate(card, now) + amount > maxAmountPerCardMinor) {
+            return VelocityVerdict.REJECT_AMOUNT_SPIKE;
+        }
+        return VelocityVerdict.ALLOW;
+    }
+
+    private static WindowedCountMinSketch newSketch(VelocityProperties properties) {
+        return new WindowedCountMinSketch(properties.getWindow(), properties.getBuckets(),
+            properties.getSketchDepth(), properties.getSketchWidth());
+    }
+
+    // Minor units of the amount if it is in the cap's currency, otherwise 0
+    private long amountInCapCurrency(Money amount) {
+        return amount != null && amount.getCurrency().equals(amountCurrency) ? amount.getMinorUnits() : 0;
+    }
+}
+
+// 7. Velocity Configuration
+// VelocityConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import com.ecommerce.payment.velocity.VelocityProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.context.properties.ConfigurationPropertiesBinding;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.convert.converter.Converter;
+
+import java.time.Clock;
+import java.util.Currency;
+
+@Configuration
+@EnableConfigurationProperties(VelocityProperties.class)
+public class VelocityConfig {
+
+    @Bean
+    public VelocityEngine velocityEngine(VelocityProperties properties, MeterRegistry meterRegistry) {
+        return new VelocityEngine(properties, meterRegistry, Clock.systemUTC());
+    }
+
+    /**
+     * Binds amounts such as max-amount-per-card written as "10000.00 USD", the form of
+     * Money.toString; without a currency code the amount is in Money.DEFAULT_CURRENCY
+     */
+    @Bean
+    @ConfigurationPropertiesBinding
+    public static Converter<String, Money> moneyPropertyConverter() {
+        return new Converter<String, Money>() {
+            @Override
+            public Money convert(String source) {
+                String text = source.trim();
+                int space = text.lastIndexOf(' ');
+                return space < 0
+                    ? Money.parse(text, Money.DEFAULT_CURRENCY)
+                    : Money.parse(text.substring(0, space).trim(), Currency.getInstance(text.substring(space + 1)));
+            }
+        };
+    }
+}
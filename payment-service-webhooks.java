@@ -0,0 +1,1134 @@
+// Webhook Ingestion for Payment Service
+
+// 1. Webhook Event
+// WebhookEvent.java
+package com.ecommerce.payment.webhook;
+
+import com.ecommerce.payment.model.PaymentStatus;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A gateway notification reduced to what is needed to update a payment.
+ * Encoded compactly for the partition journal.
+ */
+public class WebhookEvent {
+
+    private static final PaymentStatus[] STATUSES = PaymentStatus.values();
+
+    private final String eventId;
+    private final String transactionId;
+    private final PaymentStatus targetStatus;
+    private final long receivedAt;
+    private long journalPosition;
+
+    public WebhookEvent(String eventId, String transactionId, PaymentStatus targetStatus, long receivedAt) {
+        this.eventId = eventId;
+        this.transactionId = transactionId;
+        this.targetStatus = targetStatus;
+        this.receivedAt = receivedAt;
+    }
+
+    // Set on the status byte of records with two-byte ID lengths; older records use one byte
+    private static final int SHORT_LENGTHS = 0x80;
+    private static final int MAX_ENCODED_ID_BYTES = 0xffff;
+
+    /**
+     * Layout: [byte status | 0x80][long receivedAt][short length][eventId][short length][transactionId]
+     * Lengths are of the UTF-8 encoding, which for non-ASCII IDs exceeds the character count.
+     */
+    public ByteBuffer encode() {
+        byte[] event = eventId.getBytes(StandardCharsets.UTF_8);
+        byte[] transaction = transactionId.getBytes(StandardCharsets.UTF_8);
+        if (event.length > MAX_ENCODED_ID_BYTES || transaction.length > MAX_ENCODED_ID_BYTES) {
+            throw new IllegalArgumentException("Webhook IDs must encode to at most " + MAX_ENCODED_ID_BYTES + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(
+            1 + Long.BYTES + Short.BYTES + event.length + Short.BYTES + transaction.length);
+        buffer.put((byte) (targetStatus.ordinal() | SHORT_LENGTHS))
+            .putLong(receivedAt)
+            .putShort((short) event.length).put(event)
+            .putShort((short) transaction.length).put(transaction);
+        return buffer.flip();
+    }
+
+    public static WebhookEvent decode(ByteBuffer buffer) {
+        int statusByte = buffer.get() & 0xff;
+        boolean shortLengths = (statusByte & SHORT_LENGTHS) != 0;
+        PaymentStatus status = STATUSES[statusByte & ~SHORT_LENGTHS];
+        long receivedAt = buffer.getLong();
+        byte[] event = new byte[idLength(buffer, shortLengths)];
+        buffer.get(event);
+        byte[] transaction = new byte[idLength(buffer, shortLengths)];
+        buffer.get(transaction);
+        return new WebhookEvent(new String(event, StandardCharsets.UTF_8),
+            new String(transaction, StandardCharsets.UTF_8), status, receivedAt);
+    }
+
+    private static int idLength(ByteBuffer buffer, boolean shortLengths) {
+        return shortLengths ? buffer.getShort() & 0xffff : buffer.get() & 0xff;
+    }
+
+    public String getEventId() {
+        return eventId;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public PaymentStatus getTargetStatus() {
+        return targetStatus;
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * @return the journal position just after this event, used to checkpoint progress
+     */
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    void setJournalPosition(long journalPosition) {
+        this.journalPosition = journalPosition;
+    }
+}
+
+// 2. Ring Buffer
+// WebhookRingBuffer.java
+package com.ecommerce.payment.webhook;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer between request threads and one partition worker.
+ *
+ * Sequences are claimed in order by producers (serialized by the partition lock),
+ * but published independently, once each event is durable. The consumer takes
+ * published events in sequence order, so a slow fsync of one event delays the
+ * events claimed after it, never reorders them.
+ */
+class WebhookRingBuffer {
+
+    private final int mask;
+    private final WebhookEvent[] events;
+    private final AtomicLongArray published;
+    private final AtomicLong consumed = new AtomicLong();
+    private long claimed;
+
+    WebhookRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.events = new WebhookEvent[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Claim the next sequence; callers must serialize claims
+     *
+     * @return the sequence, or -1 if the ring is full
+     */
+    long tryClaim() {
+        if (claimed - consumed.get() >= events.length) {
+            return -1;
+        }
+        return claimed++;
+    }
+
+    void publish(long sequence, WebhookEvent event) {
+        int slot = (int) sequence & mask;
+        events[slot] = event;
+        published.set(slot, sequence);
+    }
+
+    /**
+     * Move published events, in sequence order, into a batch
+     *
+     * @return number of events taken
+     */
+    int drainTo(List<WebhookEvent> batch, int maxEvents) {
+        long next = consumed.get();
+        int taken = 0;
+        while (taken < maxEvents) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                break;
+            }
+            batch.add(events[slot]);
+            events[slot] = null;
+            next++;
+            taken++;
+        }
+        consumed.set(next);
+        return taken;
+    }
+
+    int size() {
+        // Approximate when read outside the partition lock
+        return (int) Math.max(0, claimed - consumed.get());
+    }
+}
+
+// 3. Webhook Partition
+// WebhookPartition.java
+package com.ecommerce.payment.webhook;
+
+import com.ecommerce.payment.journal.SegmentedLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One ordered lane of webhook processing: a journal, a ring buffer and a worker thread.
+ * All events of a transaction land in the same partition, so they are applied in arrival order.
+ *
+ * The worker checkpoints the journal position of the last applied batch. On restart it
+ * first re-applies journaled events after the checkpoint, then serves the ring. Applying
+ * an event twice is harmless: a payment already in the target status is left untouched.
+ *
+ * A batch that still fails after maxApplyAttempts is applied one event at a time; events
+ * that fail on their own are appended to the partition's dead-letter journal, so one bad
+ * event cannot stall the lane. Event IDs are remembered for deduplication only once applied.
+ */
+class WebhookPartition implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookPartition.class);
+
+    enum Admission {
+        ACCEPTED,
+        QUEUE_FULL
+    }
+
+    private final int id;
+    private final SegmentedLog journal;
+    private final SegmentedLog deadLetters;
+    private final Path checkpointFile;
+    private final WebhookRingBuffer ring;
+    private final WebhookEventApplier applier;
+    private final int batchSize;
+    private final int maxApplyAttempts;
+    private final Map<String, Boolean> recentEventIds;
+    private final WebhookMetrics metrics;
+    private final long recoveryEnd;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    WebhookPartition(int id, Path directory, WebhookProperties properties,
+                     WebhookEventApplier applier, WebhookMetrics metrics) throws IOException {
+        this.id = id;
+        this.journal = new SegmentedLog(directory, properties.getSegmentSize().toBytes(), "webhook-journal-" + id);
+        this.deadLetters = new SegmentedLog(directory.resolve("dead-letter"), properties.getSegmentSize().toBytes(),
+            "webhook-dead-letter-" + id);
+        this.checkpointFile = directory.resolve("checkpoint");
+        this.ring = new WebhookRingBuffer(properties.getQueueCapacity());
+        this.applier = applier;
+        this.batchSize = properties.getBatchSize();
+        this.maxApplyAttempts = properties.getMaxApplyAttempts();
+        this.metrics = metrics;
+        this.recoveryEnd = journal.endPosition();
+
+        int dedupCapacity = properties.getDedupCapacity();
+        this.recentEventIds = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > dedupCapacity;
+            }
+        };
+
+        this.worker = new Thread(this::run, "webhook-worker-" + id);
+        this.worker.setDaemon(true);
+    }
+
+    void start() {
+        worker.start();
+    }
+
+    /**
+     * Journal an event and hand it to the worker. Returns once the event is durable.
+     */
+    Admission offer(WebhookEvent event) throws IOException, InterruptedException {
+        long sequence;
+        long position;
+        ByteBuffer record = event.encode();
+        synchronized (this) {
+            sequence = ring.tryClaim();
+            if (sequence < 0) {
+                return Admission.QUEUE_FULL;
+            }
+            // Appended under the same lock as the claim, so ring order matches journal order
+            position = journal.append(record);
+        }
+
+        event.setJournalPosition(position);
+        try {
+            journal.awaitDurable(position);
+        } finally {
+            // Published even if the wait failed: the sequence must not block the ring.
+            // The event is in the page cache and is applied; only its durability is unknown.
+            ring.publish(sequence, event);
+            LockSupport.unpark(worker);
+        }
+        return Admission.ACCEPTED;
+    }
+
+    int queueDepth() {
+        return ring.size();
+    }
+
+    /**
+     * @return the dead-letter journal, for inspection and manual replay
+     */
+    SegmentedLog deadLetters() {
+        return deadLetters;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(worker);
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+        deadLetters.close();
+    }
+
+    private void run() {
+        try {
+            recover();
+        } catch (IOException e) {
+            logger.error("Webhook partition {} could not replay its journal; continuing with new events", id, e);
+        }
+
+        List<WebhookEvent> batch = new ArrayList<>(batchSize);
+        while (running || ring.size() > 0) {
+            if (ring.drainTo(batch, batchSize) == 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            applyWithRetry(batch);
+            batch.clear();
+        }
+    }
+
+    private void recover() throws IOException {
+        long checkpoint = readCheckpoint();
+        if (checkpoint >= recoveryEnd) {
+            return;
+        }
+
+        List<WebhookEvent> batch = new ArrayList<>(batchSize);
+        long[] recovered = {0};
+        journal.replay(checkpoint, (payload, nextPosition) -> {
+            if (nextPosition > recoveryEnd) {
+                return;
+            }
+            WebhookEvent event = WebhookEvent.decode(payload);
+            event.setJournalPosition(nextPosition);
+            batch.add(event);
+            recovered[0]++;
+            if (batch.size() == batchSize) {
+                applyWithRetry(batch);
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            applyWithRetry(batch);
+        }
+        logger.info("Webhook partition {} re-applied {} journaled events", id, recovered[0]);
+    }
+
+    private void applyWithRetry(List<WebhookEvent> batch) {
+        List<WebhookEvent> fresh = new ArrayList<>(batch.size());
+        Set<String> batchEventIds = new HashSet<>();
+        for (WebhookEvent event : batch) {
+            if (recentEventIds.containsKey(event.getEventId()) || !batchEventIds.add(event.getEventId())) {
+                metrics.duplicate();
+            } else {
+                fresh.add(event);
+            }
+        }
+
+        if (!apply(fresh)) {
+            if (!running) {
+                // Left in the journal; applied again after restart
+                return;
+            }
+            for (WebhookEvent event : fresh) {
+                if (!apply(List.of(event))) {
+                    if (!running || !deadLetter(event)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        long position = batch.get(batch.size() - 1).getJournalPosition();
+        try {
+            writeCheckpoint(position);
+            journal.deleteSegmentsBefore(position);
+        } catch (IOException e) {
+            logger.warn("Webhook partition {} could not checkpoint position {}", id, position, e);
+        }
+    }
+
+    /**
+     * @return true once the events are applied, false after maxApplyAttempts failures or on shutdown
+     */
+    private boolean apply(List<WebhookEvent> events) {
+        long backoffMillis = 100;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                applier.apply(events);
+                for (WebhookEvent event : events) {
+                    recentEventIds.put(event.getEventId(), Boolean.TRUE);
+                }
+                return true;
+            } catch (RuntimeException e) {
+                if (!running) {
+                    return false;
+                }
+                if (attempt >= maxApplyAttempts) {
+                    logger.error("Webhook partition {} failed to apply {} events after {} attempts",
+                        id, events.size(), attempt, e);
+                    return false;
+                }
+                logger.error("Webhook partition {} failed to apply {} events, retrying in {} ms",
+                    id, events.size(), backoffMillis, e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoffMillis));
+                backoffMillis = Math.min(backoffMillis * 2, 10_000);
+            }
+        }
+    }
+
+    /**
+     * @return true once the event is durable in the dead-letter journal
+     */
+    private boolean deadLetter(WebhookEvent event) {
+        try {
+            deadLetters.awaitDurable(deadLetters.append(event.encode()));
+        } catch (IOException e) {
+            // Not checkpointed past the event, so it is applied again after restart
+            logger.error("Webhook partition {} could not dead-letter event {}", id, event.getEventId(), e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        logger.error("Webhook partition {} moved event {} for transaction {} to its dead-letter journal",
+            id, event.getEventId(), event.getTransactionId());
+        metrics.deadLettered();
+        return true;
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+        return Long.parseLong(Files.readString(checkpointFile).trim());
+    }
+
+    private void writeCheckpoint(long position) throws IOException {
+        // Not fsynced: losing it only means re-applying some events after a crash
+        Path temporary = checkpointFile.resolveSibling("checkpoint.tmp");
+        Files.writeString(temporary, Long.toString(position));
+        Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+
+// 4. Event Applier
+// WebhookEventApplier.java
+package com.ecommerce.payment.webhook;
+
+import com.ecommerce.payment.index.TransactionIdIndex;
+import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.repository.PaymentRepository;
+import com.ecommerce.payment.shard.ShardContext;
+import com.ecommerce.payment.shard.ShardRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+
+/**
+ * Applies a batch of webhook events to payments: one transaction per shard,
+ * one multi-row load and one flush per transaction, events applied in arrival order.
+ */
+@Component
+public class WebhookEventApplier {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookEventApplier.class);
+
+    private final PaymentRepository paymentRepository;
+    private final TransactionIdIndex transactionIdIndex;
+    private final ShardRouter shardRouter;
+    private final TransactionTemplate transactionTemplate;
+    private final WebhookMetrics metrics;
+    private final Clock clock;
+
+    public WebhookEventApplier(PaymentRepository paymentRepository, TransactionIdIndex transactionIdIndex,
+                               ShardRouter shardRouter, PlatformTransactionManager transactionManager,
+                               WebhookMetrics metrics, Clock clock) {
+        this.paymentRepository = paymentRepository;
+        this.transactionIdIndex = transactionIdIndex;
+        this.shardRouter = shardRouter;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.metrics = metrics;
+        this.clock = clock;
+    }
+
+    /**
+     * Apply events in order; unknown transactions and invalid transitions are counted and skipped
+     */
+    public void apply(List<WebhookEvent> events) {
+        Map<Integer, List<WebhookEvent>> eventsByShard = new HashMap<>();
+        Map<WebhookEvent, Long> paymentIds = new HashMap<>();
+        for (WebhookEvent event : events) {
+            OptionalLong paymentId = transactionIdIndex.findPaymentId(event.getTransactionId());
+            if (paymentId.isEmpty()) {
+                logger.warn("Webhook {} refers to unknown transaction {}", event.getEventId(), event.getTransactionId());
+                metrics.unknownTransaction();
+                continue;
+            }
+            paymentIds.put(event, paymentId.getAsLong());
+            eventsByShard.computeIfAbsent(shardRouter.shardForPayment(paymentId.getAsLong()), shard -> new ArrayList<>())
+                .add(event);
+        }
+
+        for (Map.Entry<Integer, List<WebhookEvent>> shardEvents : eventsByShard.entrySet()) {
+            transactionTemplate.executeWithoutResult(status -> {
+                ShardContext.bindToTransaction(shardEvents.getKey());
+                applyOnShard(shardEvents.getValue(), paymentIds);
+            });
+        }
+    }
+
+    private void applyOnShard(List<WebhookEvent> events, Map<WebhookEvent, Long> paymentIds) {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (WebhookEvent event : events) {
+            ids.add(paymentIds.get(event));
+        }
+
+        Map<Long, Payment> payments = new HashMap<>();
+        for (Payment payment : paymentRepository.findAllById(ids)) {
+            payments.put(payment.getId(), payment);
+        }
+
+        // The batch is applied in one transaction, so its changes share one time
+        Instant appliedAt = clock.instant();
+        Set<Payment> changed = new LinkedHashSet<>();
+        for (WebhookEvent event : events) {
+            Payment payment = payments.get(paymentIds.get(event));
+            if (payment == null) {
+                metrics.unknownTransaction();
+            } else if (payment.getStatus() == event.getTargetStatus()) {
+                metrics.alreadyApplied();
+            } else if (!payment.getStatus().canTransitionTo(event.getTargetStatus())) {
+                logger.warn("Webhook {} ignored: payment {} cannot move from {} to {}",
+                    event.getEventId(), payment.getId(), payment.getStatus(), event.getTargetStatus());
+                metrics.rejectedTransition();
+            } else {
+                payment.setStatus(event.getTargetStatus(), appliedAt);
+                changed.add(payment);
+                metrics.applied();
+            }
+        }
+
+        paymentRepository.saveAll(changed);
+    }
+}
+
+// 5. Signature Verification
+// WebhookSignatureVerifier.java
+package com.ecommerce.payment.webhook;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Verifies "sha256=<hex>" HMAC-SHA256 signatures of webhook bodies, one secret per provider.
+ * Mac instances are not thread-safe, so each thread keeps its own per provider.
+ * Providers without a secret are treated as unknown.
+ */
+public class WebhookSignatureVerifier {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String PREFIX = "sha256=";
+
+    private final Map<String, ThreadLocal<Mac>> macs = new HashMap<>();
+
+    public WebhookSignatureVerifier(Map<String, String> secretsByProvider) {
+        secretsByProvider.forEach((provider, secret) -> {
+            if (secret == null || secret.isBlank()) {
+                return;
+            }
+            SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+            macs.put(provider, ThreadLocal.withInitial(() -> newMac(key)));
+        });
+    }
+
+    public boolean isKnownProvider(String provider) {
+        return macs.containsKey(provider);
+    }
+
+    /**
+     * @param provider the provider name from the URL
+     * @param body the raw request body
+     * @param signature the signature header, may be null
+     * @return true if the signature matches
+     */
+    public boolean verify(String provider, byte[] body, String signature) {
+        ThreadLocal<Mac> mac = macs.get(provider);
+        if (mac == null || signature == null || !signature.startsWith(PREFIX)) {
+            return false;
+        }
+
+        byte[] expected;
+        try {
+            expected = HexFormat.of().parseHex(signature, PREFIX.length(), signature.length());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        // Constant-time comparison
+        return MessageDigest.isEqual(expected, mac.get().doFinal(body));
+    }
+
+    /**
+     * @return the signature header value for a body, as a provider would send it
+     */
+    public String sign(String provider, byte[] body) {
+        return PREFIX + HexFormat.of().formatHex(macs.get(provider).get().doFinal(body));
+    }
+
+    private static Mac newMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 unavailable", e);
+        }
+    }
+}
+
+// 6. Event Parsing
+// WebhookEventParser.java
+package com.ecommerce.payment.webhook;
+
+import com.ecommerce.payment.model.PaymentStatus;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Streams the three fields needed from a webhook body without binding the whole document:
+ * {"id": "...", "type": "payment.succeeded", "data": {"transactionId": "PG-..."}, ...}
+ */
+public class WebhookEventParser {
+
+    private static final int MAX_ID_LENGTH = 128;
+
+    private final JsonFactory jsonFactory;
+
+    public WebhookEventParser(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * @return the event, or null if its type does not affect payments
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    public WebhookEvent parse(byte[] body, long receivedAt) {
+        String eventId = null;
+        String type = null;
+        String transactionId = null;
+
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Webhook body must be a JSON object");
+            }
+            int depth = 1;
+            JsonToken token;
+            while (depth > 0 && (token = parser.nextToken()) != null) {
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    depth++;
+                } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                } else if (token == JsonToken.VALUE_STRING) {
+                    String field = parser.currentName();
+                    if (depth == 1 && "id".equals(field)) {
+                        eventId = parser.getText();
+                    } else if (depth == 1 && "type".equals(field)) {
+                        type = parser.getText();
+                    } else if (depth == 2 && "transactionId".equals(field)) {
+                        transactionId = parser.getText();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed webhook body", e);
+        }
+
+        if (eventId == null || eventId.length() > MAX_ID_LENGTH || type == null
+                || transactionId == null || transactionId.length() > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("Webhook body lacks id, type or data.transactionId");
+        }
+
+        PaymentStatus target = targetStatus(type);
+        return target == null ? null : new WebhookEvent(eventId, transactionId, target, receivedAt);
+    }
+
+    private static PaymentStatus targetStatus(String type) {
+        return switch (type) {
+            case "payment.succeeded" -> PaymentStatus.COMPLETED;
+            case "payment.failed" -> PaymentStatus.FAILED;
+            case "refund.succeeded" -> PaymentStatus.REFUNDED;
+            default -> null;
+        };
+    }
+}
+
+// 7. Metrics
+// WebhookMetrics.java
+package com.ecommerce.payment.webhook;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+@Component
+public class WebhookMetrics {
+
+    private final Counter accepted;
+    private final Counter rejectedSignature;
+    private final Counter queueFull;
+    private final Counter ignoredType;
+    private final Counter duplicate;
+    private final Counter applied;
+    private final Counter alreadyApplied;
+    private final Counter rejectedTransition;
+    private final Counter unknownTransaction;
+    private final Counter deadLettered;
+
+    public WebhookMetrics(MeterRegistry meterRegistry) {
+        this.accepted = outcome(meterRegistry, "accepted");
+        this.rejectedSignature = outcome(meterRegistry, "invalid_signature");
+        this.queueFull = outcome(meterRegistry, "queue_full");
+        this.ignoredType = outcome(meterRegistry, "ignored_type");
+        this.duplicate = result(meterRegistry, "duplicate");
+        this.applied = result(meterRegistry, "applied");
+        this.alreadyApplied = result(meterRegistry, "already_applied");
+        this.rejectedTransition = result(meterRegistry, "rejected_transition");
+        this.unknownTransaction = result(meterRegistry, "unknown_transaction");
+        this.deadLettered = result(meterRegistry, "dead_lettered");
+    }
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    public void rejectedSignature() {
+        rejectedSignature.increment();
+    }
+
+    void queueFull() {
+        queueFull.increment();
+    }
+
+    void ignoredType() {
+        ignoredType.increment();
+    }
+
+    void duplicate() {
+        duplicate.increment();
+    }
+
+    void applied() {
+        applied.increment();
+    }
+
+    void alreadyApplied() {
+        alreadyApplied.increment();
+    }
+
+    void rejectedTransition() {
+        rejectedTransition.increment();
+    }
+
+    void unknownTransaction() {
+        unknownTransaction.increment();
+    }
+
+    void deadLettered() {
+        deadLettered.increment();
+    }
+
+    private static Counter outcome(MeterRegistry registry, String outcome) {
+        return Counter.builder("payment.webhooks.received").tag("outcome", outcome).register(registry);
+    }
+
+    private static Counter result(MeterRegistry registry, String result) {
+        return Counter.builder("payment.webhooks.processed").tag("result", result).register(registry);
+    }
+}
+
+// 8. Ingestion Service
+// WebhookIngestionService.java
+package com.ecommerce.payment.webhook;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Entry point for verified webhooks: routes each event to its partition by
+ * transaction ID and reports whether it was accepted.
+ */
+@Service
+public class WebhookIngestionService implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookIngestionService.class);
+
+    public enum Result {
+        ACCEPTED,
+        IGNORED,
+        QUEUE_FULL,
+        UNAVAILABLE
+    }
+
+    private final WebhookProperties properties;
+    private final WebhookEventApplier applier;
+    private final WebhookMetrics metrics;
+    private final MeterRegistry meterRegistry;
+    private volatile WebhookPartition[] partitions;
+
+    public WebhookIngestionService(WebhookProperties properties, WebhookEventApplier applier,
+                                   WebhookMetrics metrics, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.applier = applier;
+        this.metrics = metrics;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Queue an event; returns once it is journaled and fsynced
+     *
+     * @param event the parsed event, or null for event types that do not affect payments
+     */
+    public Result submit(WebhookEvent event) {
+        if (event == null) {
+            metrics.ignoredType();
+            return Result.IGNORED;
+        }
+
+        WebhookPartition[] current = partitions;
+        if (current == null) {
+            return Result.UNAVAILABLE;
+        }
+
+        WebhookPartition partition = current[Math.floorMod(event.getTransactionId().hashCode(), current.length)];
+        try {
+            if (partition.offer(event) == WebhookPartition.Admission.QUEUE_FULL) {
+                metrics.queueFull();
+                return Result.QUEUE_FULL;
+            }
+        } catch (IOException e) {
+            logger.error("Could not journal webhook {}", event.getEventId(), e);
+            return Result.UNAVAILABLE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.UNAVAILABLE;
+        }
+
+        metrics.accepted();
+        return Result.ACCEPTED;
+    }
+
+    @Override
+    public void start() {
+        WebhookPartition[] created = new WebhookPartition[properties.getPartitions()];
+        try {
+            for (int i = 0; i < created.length; i++) {
+                created[i] = new WebhookPartition(i, properties.getJournalDirectory().resolve("partition-" + i),
+                    properties, applier, metrics);
+                WebhookPartition partition = created[i];
+                Gauge.builder("payment.webhooks.queue.depth", partition, WebhookPartition::queueDepth)
+                    .tag("partition", Integer.toString(i))
+                    .register(meterRegistry);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open webhook journals in " + properties.getJournalDirectory(), e);
+        }
+
+        for (WebhookPartition partition : created) {
+            partition.start();
+        }
+        partitions = created;
+        logger.info("Webhook ingestion started with {} partitions", created.length);
+    }
+
+    @Override
+    public void stop() {
+        WebhookPartition[] current = partitions;
+        partitions = null;
+        if (current == null) {
+            return;
+        }
+        for (WebhookPartition partition : current) {
+            try {
+                partition.close();
+            } catch (IOException e) {
+                logger.warn("Could not close webhook journal", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return partitions != null;
+    }
+}
+
+// 9. Configuration Properties
+// WebhookProperties.java
+package com.ecommerce.payment.webhook;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Webhook ingestion settings, bound from payment.webhook.*
+ */
+@ConfigurationProperties(prefix = "payment.webhook")
+public class WebhookProperties {
+
+    private Map<String, String> secrets = new HashMap<>();
+    private Path journalDirectory = Paths.get("webhook-journal");
+    private int partitions = 4;
+    private int queueCapacity = 65536;
+    private int batchSize = 256;
+    private int dedupCapacity = 100_000;
+    private int maxApplyAttempts = 8;
+    private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+    public Map<String, String> getSecrets() {
+        return secrets;
+    }
+
+    public void setSecrets(Map<String, String> secrets) {
+        this.secrets = secrets;
+    }
+
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public void setJournalDirectory(Path journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getDedupCapacity() {
+        return dedupCapacity;
+    }
+
+    public void setDedupCapacity(int dedupCapacity) {
+        this.dedupCapacity = dedupCapacity;
+    }
+
+    public int getMaxApplyAttempts() {
+        return maxApplyAttempts;
+    }
+
+    public void setMaxApplyAttempts(int maxApplyAttempts) {
+        this.maxApplyAttempts = maxApplyAttempts;
+    }
+
+    public DataSize getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(DataSize segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+}
+
+// 10. Webhook Configuration
+// WebhookConfig.java
+package com.ecommerce.payment.config;
+
+import com.ecommerce.payment.webhook.WebhookEventParser;
+import com.ecommerce.payment.webhook.WebhookProperties;
+import com.ecommerce.payment.webhook.WebhookSignatureVerifier;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(WebhookProperties.class)
+public class WebhookConfig {
+
+    @Bean
+    public WebhookSignatureVerifier webhookSignatureVerifier(WebhookProperties properties) {
+        return new WebhookSignatureVerifier(properties.getSecrets());
+    }
+
+    @Bean
+    public WebhookEventParser webhookEventParser(ObjectMapper objectMapper) {
+        return new WebhookEventParser(objectMapper.getFactory());
+    }
+}
+
+// 11. Webhook Controller
+// WebhookController.java
+package com.ecommerce.payment.controller;
+
+import com.ecommerce.payment.webhook.WebhookEvent;
+import com.ecommerce.payment.webhook.WebhookEventParser;
+import com.ecommerce.payment.webhook.WebhookIngestionService;
+import com.ecommerce.payment.webhook.WebhookMetrics;
+import com.ecommerce.payment.webhook.WebhookSignatureVerifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * Receives gateway notifications. A 202 means the event is durably queued;
+ * gateways retry anything else.
+ */
+@RestController
+@RequestMapping("/api/payments/webhooks")
+public class WebhookController {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebhookController.class);
+
+    public static final String SIGNATURE_HEADER = "X-Webhook-Signature";
+
+    private final WebhookSignatureVerifier signatureVerifier;
+    private final WebhookEventParser eventParser;
+    private final WebhookIngestionService ingestionService;
+    private final WebhookMetrics metrics;
+
+    @Autowired
+    public WebhookController(WebhookSignatureVerifier signatureVerifier, WebhookEventParser eventParser,
+                             WebhookIngestionService ingestionService, WebhookMetrics metrics) {
+        this.signatureVerifier = signatureVerifier;
+        this.eventParser = eventParser;
+        this.ingestionService = ingestionService;
+        this.metrics = metrics;
+    }
+
+    @PostMapping("/{provider}")
+    public ResponseEntity<Void> receiveWebhook(
+            @PathVariable("provider") String provider,
+            @RequestHeader(value = SIGNATURE_HEADER, required = false) String signature,
+            @RequestBody byte[] body) {
+        if (!signatureVerifier.isKnownProvider(provider)) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!signatureVerifier.verify(provider, body, signature)) {
+            logger.warn("Rejected webhook from {} with invalid signature", provider);
+            metrics.rejectedSignature();
+            return new ResponseEntity<>(HttpStatus.UNAUTHORIZED);
+        }
+
+        WebhookEvent event;
+        try {
+            event = eventParser.parse(body, System.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Rejected malformed webhook from {}: {}", provider, e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+
+        return switch (ingestionService.submit(event)) {
+            case ACCEPTED, IGNORED -> new ResponseEntity<>(HttpStatus.ACCEPTED);
+            case QUEUE_FULL, UNAVAILABLE -> ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .build();
+        };
+    }
+}
@@ -4,24 +4,51 @@
 // Payment.java
 package com.ecommerce.payment.model;
 
+import com.ecommerce.payment.event.PaymentStatusChangedEvent;
+import com.ecommerce.payment.shard.ShardedPaymentId;
+import com.ecommerce.payment.util.UtcDateTimeConverter;
+import jakarta.persistence.AttributeOverride;
+import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
+import jakarta.persistence.Embedded;
 import jakarta.persistence.Entity;
-import jakarta.persistence.GeneratedValue;
-import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
 import jakarta.persistence.Enumerated;
 import jakarta.persistence.EnumType;
-import java.math.BigDecimal;
-import java.time.LocalDateTime;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+import jakarta.persistence.Transient;
+import jakarta.persistence.Version;
+import org.hibernate.annotations.CompositeType;
+import org.springframework.data.domain.AfterDomainEventPublication;
+import org.springframework.data.domain.DomainEvents;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
 
 @Entity
+@Table(indexes = {
+    @Index(name = "ux_payment_transaction_id", columnList = "transaction_id", unique = true),
+    @Index(name = "ix_payment_order_id", columnList = "order_id"),
+    @Index(name = "ix_payment_status_updated_at", columnList = "status, updated_at")
+})
 public class Payment {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @ShardedPaymentId
     private Long id;
     
+    @Column(name = "order_id")
     private Long orderId;
-    private BigDecimal amount;
+    
+    @Embedded
+    @AttributeOverride(name = "amount", column = @Column(name = "amount"))
+    @AttributeOverride(name = "currency", column = @Column(name = "currency", length = 3))
+    @CompositeType(MoneyType.class)
+    private Money amount;
+    
+    @Column(name = "transaction_id")
     private String transactionId;
     
     @Enumerated(EnumType.STRING)
@@ -30,22 +57,34 @@ public class Payment {
     @Enumerated(EnumType.STRING)
     private PaymentStatus status;
     
-    private LocalDateTime createdAt;
-    private LocalDateTime updatedAt;
+    // UTC, stored as DATETIME wall-clock time
+    @Convert(converter = UtcDateTimeConverter.class)
+    private Instant createdAt;
+    @Convert(converter = UtcDateTimeConverter.class)
+    private Instant updatedAt;
+    
+    // Incremented by every update, including batched SQL updates that bypass the entity
+    @Version
+    private Long version;
+    
+    // Status changes not yet published, see statusChangedEvents
+    @Transient
+    private final List<StatusTransition> statusTransitions = new ArrayList<>();
     
     // Default constructor
     public Payment() {
-        this.createdAt = LocalDateTime.now();
-        this.updatedAt = LocalDateTime.now();
         this.status = PaymentStatus.PENDING;
     }
     
     // Constructor with parameters
-    public Payment(Long orderId, BigDecimal amount, PaymentMethod paymentMethod) {
+    public Payment(Long orderId, Money amount, PaymentMethod paymentMethod, Instant createdAt) {
         this();
         this.orderId = orderId;
         this.amount = amount;
         this.paymentMethod = paymentMethod;
+        this.createdAt = createdAt;
+        this.updatedAt = createdAt;
+        statusTransitions.add(new StatusTransition(null, PaymentStatus.PENDING, createdAt.toEpochMilli()));
     }
     
     // Getters and Setters
@@ -65,11 +104,18 @@ public class Payment {
         this.orderId = orderId;
     }
 
-    public BigDecimal getAmount() {
+    public Money getAmount() {
         return amount;
     }
 
-    public void setAmount(BigDecimal amount) {
+    /**
+     * @return the currency of the amount, Money.DEFAULT_CURRENCY if there is no amount
+     */
+    public Currency getCurrency() {
+        return amount != null ? amount.getCurrency() : Money.DEFAULT_CURRENCY;
+    }
+
+    public void setAmount(Money amount) {
         this.amount = amount;
     }
 
@@ -93,26 +139,73 @@ public class Payment {
         return status;
     }
 
-    public void setStatus(PaymentStatus status) {
+    /**
+     * @param at time of the change, read once by the caller and used for updatedAt and the event
+     */
+    public void setStatus(PaymentStatus status, Instant at) {
+        if (status != this.status) {
+            statusTransitions.add(new StatusTransition(this.status, status, at.toEpochMilli()));
+        }
         this.status = status;
-        this.updatedAt = LocalDateTime.now();
+        this.updatedAt = at;
     }
 
-    public LocalDateTime getCreatedAt() {
+    public Instant getCreatedAt() {
         return createdAt;
     }
 
-    public void setCreatedAt(LocalDateTime createdAt) {
+    public void setCreatedAt(Instant createdAt) {
         this.createdAt = createdAt;
     }
 
-    public LocalDateTime getUpdatedAt() {
+    public Instant getUpdatedAt() {
         return updatedAt;
     }
 
-    public void setUpdatedAt(LocalDateTime updatedAt) {
+    public void setUpdatedAt(Instant updatedAt) {
         this.updatedAt = updatedAt;
     }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+    
+    /**
+     * Published by Spring Data when the payment is saved through the repository.
+     * Built at that point because a new payment has no ID before it is saved.
+     */
+    @DomainEvents
+    protected List<PaymentStatusChangedEvent> statusChangedEvents() {
+        long amountMinor = amount != null ? amount.unscaledValue(Money.STORAGE_SCALE) : 0;
+        List<PaymentStatusChangedEvent> events = new ArrayList<>(statusTransitions.size());
+        for (StatusTransition transition : statusTransitions) {
+            events.add(new PaymentStatusChangedEvent(id, orderId, transition.from(), transition.to(),
+                amountMinor, getCurrency(), transition.at()));
+        }
+        return events;
+    }
+
+    @AfterDomainEventPublication
+    protected void clearStatusTransitions() {
+        statusTransitions.clear();
+    }
+    
+    /**
+     * The event of this payment's deletion. Spring Data does not publish domain events
+     * on delete, so services that delete a payment publish it themselves.
+     */
+    public PaymentStatusChangedEvent removedEvent(Instant at) {
+        long amountMinor = amount != null ? amount.unscaledValue(Money.STORAGE_SCALE) : 0;
+        return PaymentStatusChangedEvent.removed(id, orderId, status, amountMinor, getCurrency(),
+            at.toEpochMilli());
+    }
+    
+    private record StatusTransition(PaymentStatus from, PaymentStatus to, long at) {
+    }
     
     @Override
     public String toString() {
@@ -149,28 +242,45 @@ public enum PaymentStatus {
     COMPLETED,
     FAILED,
     REFUNDED,
-    CANCELLED
+    CANCELLED,
+    // Outcome not known, e.g. a stuck payment the gateway has no charge for; needs manual review
+    UNKNOWN;
+
+    /**
+     * Whether a payment may move from this status to the target, e.g. when a
+     * gateway notification arrives out of band
+     */
+    public boolean canTransitionTo(PaymentStatus target) {
+        return switch (this) {
+            case PENDING -> target == PROCESSING || target == COMPLETED || target == FAILED || target == CANCELLED
+                || target == UNKNOWN;
+            case PROCESSING -> target == COMPLETED || target == FAILED || target == UNKNOWN;
+            case UNKNOWN -> target == COMPLETED || target == FAILED;
+            case FAILED -> target == COMPLETED;
+            case COMPLETED -> target == REFUNDED;
+            case REFUNDED, CANCELLED -> false;
+        };
+    }
 }
 
 // 2. DTO Classes
 // PaymentRequest.java
 package com.ecommerce.payment.dto;
 
+import com.ecommerce.payment.model.Money;
 import com.ecommerce.payment.model.PaymentMethod;
-import jakarta.validation.constraints.NotNull;
-import jakarta.validation.constraints.Positive;
-import java.math.BigDecimal;
 
+/**
+ * Read by PaymentRequestDeserializer. The optional "currency" (ISO 4217 code,
+ * USD when absent) is carried in the amount. The endpoints validate it with
+ * PaymentRequestValidator, which holds all of its constraints.
+ */
 public class PaymentRequest {
     
-    @NotNull(message = "Order ID cannot be null")
     private Long orderId;
     
-    @NotNull(message = "Amount cannot be null")
-    @Positive(message = "Amount must be positive")
-    private BigDecimal amount;
+    private Money amount;
     
-    @NotNull(message = "Payment method cannot be null")
     private PaymentMethod paymentMethod;
     
     // Credit card specific fields
@@ -194,14 +304,18 @@ public class PaymentRequest {
         this.orderId = orderId;
     }
 
-    public BigDecimal getAmount() {
+    public Money getAmount() {
         return amount;
     }
 
-    public void setAmount(BigDecimal amount) {
+    public void setAmount(Money amount) {
         this.amount = amount;
     }
 
+    public String getCurrency() {
+        return amount != null ? amount.getCurrency().getCurrencyCode() : null;
+    }
+
     public PaymentMethod getPaymentMethod() {
         return paymentMethod;
     }
@@ -254,25 +368,43 @@ public class PaymentRequest {
 // PaymentResponse.java
 package com.ecommerce.payment.dto;
 
+import com.ecommerce.payment.model.Money;
+import com.ecommerce.payment.model.Payment;
 import com.ecommerce.payment.model.PaymentMethod;
 import com.ecommerce.payment.model.PaymentStatus;
-import java.math.BigDecimal;
-import java.time.LocalDateTime;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import java.time.Instant;
 
+// The order PaymentResponseSerializer writes in, so reflective mappers produce the same bytes
+@JsonPropertyOrder({"id", "orderId", "amount", "currency", "transactionId", "paymentMethod", "status",
+    "createdAt", "updatedAt"})
 public class PaymentResponse {
     
     private Long id;
     private Long orderId;
-    private BigDecimal amount;
+    private Money amount;
     private String transactionId;
     private PaymentMethod paymentMethod;
     private PaymentStatus status;
-    private LocalDateTime createdAt;
-    private LocalDateTime updatedAt;
+    private Instant createdAt;
+    private Instant updatedAt;
     
     // Constructor, getters, and setters
     public PaymentResponse() {
     }
+    
+    public static PaymentResponse from(Payment payment) {
+        PaymentResponse response = new PaymentResponse();
+        response.setId(payment.getId());
+        response.setOrderId(payment.getOrderId());
+        response.setAmount(payment.getAmount());
+        response.setTransactionId(payment.getTransactionId());
+        response.setPaymentMethod(payment.getPaymentMethod());
+        response.setStatus(payment.getStatus());
+        response.setCreatedAt(payment.getCreatedAt());
+        response.setUpdatedAt(payment.getUpdatedAt());
+        return response;
+    }
 
     public Long getId() {
         return id;
@@ -290,14 +422,21 @@ public class PaymentResponse {
         this.orderId = orderId;
     }
 
-    public BigDecimal getAmount() {
+    public Money getAmount() {
         return amount;
     }
 
-    public void setAmount(BigDecimal amount) {
+    public void setAmount(Money amount) {
         this.amount = amount;
     }
 
+    /**
+     * @return the ISO 4217 code of the amount's currency, null if there is no amount
+     */
+    public String getCurrency() {
+        return amount != null ? amount.getCurrency().getCurrencyCode() : null;
+    }
+
     public String getTransactionId() {
         return transactionId;
     }
@@ -322,19 +461,19 @@ public class PaymentResponse {
         this.status = status;
     }
 
-    public LocalDateTime getCreatedAt() {
+    public Instant getCreatedAt() {
         return createdAt;
     }
 
-    public void setCreatedAt(LocalDateTime createdAt) {
+    public void setCreatedAt(Instant createdAt) {
         this.createdAt = createdAt;
     }
 
-    public LocalDateTime getUpdatedAt() {
+    public Instant getUpdatedAt() {
         return updatedAt;
     }
 
-    public void setUpdatedAt(LocalDateTime updatedAt) {
+    public void setUpdatedAt(Instant updatedAt) {
         this.updatedAt = updatedAt;
     }
 }
@@ -344,15 +483,81 @@ public class PaymentResponse {
 package com.ecommerce.payment.repository;
 
 import com.ecommerce.payment.model.Payment;
+import com.ecommerce.payment.model.PaymentStatus;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface PaymentRepository extends JpaRepository<Payment, Long> {
     
     List<Payment> findByOrderId(Long orderId);
     
+    List<Payment> findByOrderIdIn(Collection<Long> orderIds);
+    
+    Optional<Payment> findByTransactionId(String transactionId);
+    
+    /**
+     * Totals of all payments of an order per currency, by currency, aggregated in the database
+     * over ix_payment_order_id; empty for an order without payments
+     */
+    @Query(value = "SELECT t.currency, t.paymentCount, t.capturedAmount, t.refundedAmount, t.failedAmount, "
+            + "t.outstandingAmount, t.latestPaymentId, l.status AS latestStatus FROM ("
+            + "SELECT p.currency AS currency, COUNT(*) AS paymentCount, "
+            + "COALESCE(SUM(CASE WHEN p.status IN ('COMPLETED', 'REFUNDED') THEN p.amount END), 0) AS capturedAmount, "
+            + "COALESCE(SUM(CASE WHEN p.status = 'REFUNDED' THEN p.amount END), 0) AS refundedAmount, "
+            + "COALESCE(SUM(CASE WHEN p.status = 'FAILED' THEN p.amount END), 0) AS failedAmount, "
+            + "COALESCE(SUM(CASE WHEN p.status IN ('PENDING', 'PROCESSING', 'UNKNOWN') THEN p.amount END), 0) "
+            + "AS outstandingAmount, "
+            + "MAX(p.id) AS latestPaymentId FROM payment p WHERE p.order_id = :orderId GROUP BY p.currency) t "
+            + "JOIN payment l ON l.id = t.latestPaymentId ORDER BY t.currency", nativeQuery = true)
+    List<OrderPaymentTotals> aggregateByOrderId(@Param("orderId") Long orderId);
+    
+    /**
+     * Payments in a status not updated since the cutoff, oldest first, after a keyset cursor.
+     * Served in index order from ix_payment_status_updated_at, which ends in the primary key.
+     */
+    @Query("SELECT p FROM Payment p WHERE p.status = :status AND p.updatedAt < :cutoff "
+            + "AND (p.updatedAt > :afterUpdatedAt OR (p.updatedAt = :afterUpdatedAt AND p.id > :afterId)) "
+            + "ORDER BY p.updatedAt, p.id")
+    List<Payment> findStaleAfter(@Param("status") PaymentStatus status, @Param("cutoff") Instant cutoff,
+                                 @Param("afterUpdatedAt") Instant afterUpdatedAt,
+                                 @Param("afterId") Long afterId, Pageable pageable);
+    
+}
+
+// OrderPaymentTotals.java
+package com.ecommerce.payment.repository;
+
+import java.math.BigDecimal;
+
+/**
+ * Projection of PaymentRepository#aggregateByOrderId, the totals of one currency
+ */
+public interface OrderPaymentTotals {
+    
+    String getCurrency();
+    
+    long getPaymentCount();
+    
+    BigDecimal getCapturedAmount();
+    
+    BigDecimal getRefundedAmount();
+    
+    BigDecimal getFailedAmount();
+    
+    BigDecimal getOutstandingAmount();
+    
+    Long getLatestPaymentId();
+    
+    String getLatestStatus();
+    
 }
 
 // 4. Service Layer
@@ -390,10 +595,11 @@ import com.ecommerce.payment.service.PaymentService;
 import com.ecommerce.payment.exception.PaymentNotFoundException;
 import com.ecommerce.payment.exception.PaymentProcessingException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.time.LocalDateTime;
+import java.time.Clock;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -402,10 +608,15 @@ import java.util.stream.Collectors;
 public class PaymentServiceImpl implements PaymentService {
     
     private final PaymentRepository paymentRepository;
+    private final ApplicationEventPublisher eventPublisher;
+    private final Clock clock;
     
     @Autowired
-    public PaymentServiceImpl(PaymentRepository paymentRepository) {
+    public PaymentServiceImpl(PaymentRepository paymentRepository, ApplicationEventPublisher eventPublisher,
+                              Clock clock) {
         this.paymentRepository = paymentRepository;
+        this.eventPublisher = eventPublisher;
+        this.clock = clock;
     }
     
     @Override
@@ -415,7 +626,8 @@ public class PaymentServiceImpl implements PaymentService {
         Payment payment = new Payment(
             paymentRequest.getOrderId(),
             paymentRequest.getAmount(),
-            paymentRequest.getPaymentMethod()
+            paymentRequest.getPaymentMethod(),
+            clock.instant()
         );
         
         // Simulate payment processing with external payment gateway
@@ -428,9 +640,9 @@ public class PaymentServiceImpl implements PaymentService {
             // In a real implementation, payment could fail
             // For simulation we'll assume success 90% of the time
             if (Math.random() < 0.9) {
-                payment.setStatus(PaymentStatus.COMPLETED);
+                payment.setStatus(PaymentStatus.COMPLETED, clock.instant());
             } else {
-                payment.setStatus(PaymentStatus.FAILED);
+                payment.setStatus(PaymentStatus.FAILED, clock.instant());
                 throw new PaymentProcessingException("Payment processing failed");
             }
             
@@ -479,8 +691,7 @@ public class PaymentServiceImpl implements PaymentService {
         
         // Simulate refund process with payment gateway
         // In a real implementation, this would call the payment gateway API
-        payment.setStatus(PaymentStatus.REFUNDED);
-        payment.setUpdatedAt(LocalDateTime.now());
+        payment.setStatus(PaymentStatus.REFUNDED, clock.instant());
         
         payment = paymentRepository.save(payment);
         
@@ -490,11 +701,12 @@ public class PaymentServiceImpl implements PaymentService {
     @Override
     @Transactional
     public void deletePayment(Long paymentId) {
-        if (!paymentRepository.existsById(paymentId)) {
-            throw new PaymentNotFoundException("Payment not found with ID: " + paymentId);
-        }
+        Payment payment = paymentRepository.findById(paymentId)
+            .orElseThrow(() -> new PaymentNotFoundException("Payment not found with ID: " + paymentId));
         
-        paymentRepository.deleteById(paymentId);
+        paymentRepository.delete(payment);
+        // Read models subtract the payment from its order's totals
+        eventPublisher.publishEvent(payment.removedEvent(clock.instant()));
     }
     
     // Helper method to convert Payment entity to PaymentResponse DTO
@@ -534,25 +746,65 @@ public class PaymentProcessingException extends RuntimeException {
         super(message);
     }
     
+    protected PaymentProcessingException(String message, boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+    }
+    
+}
+
+// PaymentDeclinedException.java
+package com.ecommerce.payment.exception;
+
+/**
+ * A payment or refund declined by the gateway (or rejected before reaching it).
+ * Declines are an expected outcome, so no stack trace is captured.
+ */
+public class PaymentDeclinedException extends PaymentProcessingException {
+    
+    public PaymentDeclinedException(String message) {
+        super(message, false);
+    }
+    
 }
 
 // GlobalExceptionHandler.java
 package com.ecommerce.payment.exception;
 
+import com.ecommerce.payment.gateway.GatewayResult;
+import com.ecommerce.payment.velocity.VelocityEngine;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.validation.FieldError;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.context.request.WebRequest;
 
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
 
+// The reactive profile uses ReactiveExceptionHandler
 @ControllerAdvice
+@Profile("!reactive")
 public class GlobalExceptionHandler {
     
+    private final ErrorResponseCache declineResponses;
+    
+    public GlobalExceptionHandler(ObjectMapper objectMapper) {
+        this.declineResponses = new ErrorResponseCache(objectMapper, HttpStatus.BAD_REQUEST);
+        this.declineResponses.register(GatewayResult.PAYMENT_DECLINED);
+        this.declineResponses.register(GatewayResult.REFUND_DECLINED);
+        this.declineResponses.register(VelocityEngine.REJECTION_MESSAGE);
+    }
+    
     @ExceptionHandler(PaymentNotFoundException.class)
     public ResponseEntity<ErrorResponse> handlePaymentNotFoundException(PaymentNotFoundException ex) {
         ErrorResponse errorResponse = new ErrorResponse(
@@ -564,6 +816,19 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(errorResponse, HttpStatus.NOT_FOUND);
     }
     
+    @ExceptionHandler(PaymentDeclinedException.class)
+    public ResponseEntity<?> handlePaymentDeclinedException(PaymentDeclinedException ex, WebRequest request) {
+        // Declines are frequent: serve the pre-serialized body to JSON clients
+        byte[] body = acceptsJson(request) ? declineResponses.render(ex.getMessage(), LocalDateTime.now()) : null;
+        if (body != null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+        }
+        
+        return handlePaymentProcessingException(ex);
+    }
+    
     @ExceptionHandler(PaymentProcessingException.class)
     public ResponseEntity<ErrorResponse> handlePaymentProcessingException(PaymentProcessingException ex) {
         ErrorResponse errorResponse = new ErrorResponse(
@@ -575,6 +840,31 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(errorResponse, HttpStatus.BAD_REQUEST);
     }
     
+    @ExceptionHandler(LaneSaturatedException.class)
+    public ResponseEntity<ErrorResponse> handleLaneSaturatedException(LaneSaturatedException ex) {
+        ErrorResponse errorResponse = new ErrorResponse(
+            HttpStatus.SERVICE_UNAVAILABLE.value(),
+            ex.getMessage(),
+            LocalDateTime.now()
+        );
+        
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, "1")
+            .body(errorResponse);
+    }
+    
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    public ResponseEntity<ErrorResponse> handleOptimisticLockingFailure(OptimisticLockingFailureException ex) {
+        // Another request or node changed the payment first; a retry sees the new state
+        ErrorResponse errorResponse = new ErrorResponse(
+            HttpStatus.CONFLICT.value(),
+            "Payment was modified concurrently, please retry",
+            LocalDateTime.now()
+        );
+        
+        return new ResponseEntity<>(errorResponse, HttpStatus.CONFLICT);
+    }
+    
     @ExceptionHandler(MethodArgumentNotValidException.class)
     public ResponseEntity<Map<String, String>> handleValidationExceptions(MethodArgumentNotValidException ex) {
         Map<String, String> errors = new HashMap<>();
@@ -588,6 +878,20 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(errors, HttpStatus.BAD_REQUEST);
     }
     
+    @ExceptionHandler(HttpMessageNotReadableException.class)
+    public ResponseEntity<ErrorResponse> handleMessageNotReadable(HttpMessageNotReadableException ex) {
+        // e.g. an amount with more decimals than its currency, or an unknown currency
+        String message = ex.getMostSpecificCause() instanceof JsonProcessingException cause
+            ? cause.getOriginalMessage() : "Malformed request body";
+        ErrorResponse errorResponse = new ErrorResponse(
+            HttpStatus.BAD_REQUEST.value(),
+            message,
+            LocalDateTime.now()
+        );
+        
+        return new ResponseEntity<>(errorResponse, HttpStatus.BAD_REQUEST);
+    }
+    
     @ExceptionHandler(Exception.class)
     public ResponseEntity<ErrorResponse> handleGenericException(Exception ex) {
         ErrorResponse errorResponse = new ErrorResponse(
@@ -598,6 +902,123 @@ public class GlobalExceptionHandler {
         
         return new ResponseEntity<>(errorResponse, HttpStatus.INTERNAL_SERVER_ERROR);
     }
+    
+    private boolean acceptsJson(WebRequest request) {
+        String[] accept = request.getHeaderValues(HttpHeaders.ACCEPT);
+        return ErrorResponseCache.acceptsJson(accept == null ? null : String.join(",", accept));
+    }
+}
+
+// ErrorResponseCache.java
+package com.ecommerce.payment.exception;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-serialized JSON bodies for frequent error responses with a fixed message.
+ * Everything except the timestamp is encoded once at registration, using the
+ * application ObjectMapper so the bytes match the regular ErrorResponse output.
+ */
+public class ErrorResponseCache {
+    
+    private static final byte[] TIMESTAMP_FIELD = ",\"timestamp\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = "\"}".getBytes(StandardCharsets.US_ASCII);
+    
+    private final ObjectMapper objectMapper;
+    private final HttpStatus status;
+    private final Map<String, byte[]> prefixes = new ConcurrentHashMap<>();
+    
+    public ErrorResponseCache(ObjectMapper objectMapper, HttpStatus status) {
+        this.objectMapper = objectMapper;
+        this.status = status;
+    }
+    
+    /**
+     * Pre-serialize the body for a message
+     *
+     * @param message the error message
+     */
+    public void register(String message) {
+        try {
+            // Serialized without timestamp: {"status":400,"message":"..."}
+            byte[] json = objectMapper.writeValueAsBytes(new ErrorResponse(status.value(), message, null));
+            byte[] prefix = new byte[json.length - 1];
+            System.arraycopy(json, 0, prefix, 0, prefix.length);
+            prefixes.put(message, prefix);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot pre-serialize error response: " + message, e);
+        }
+    }
+    
+    /**
+     * Whether a cached JSON body may answer a request with this Accept header: true when
+     * every media type of the highest quality the client gave is compatible with JSON.
+     * Otherwise, e.g. for "application/cbor, *&#47;*", the regular message converters
+     * should negotiate the body.
+     *
+     * @param accept the Accept header, or null if absent
+     */
+    public static boolean acceptsJson(String accept) {
+        if (accept == null || accept.isBlank()) {
+            return true;
+        }
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+        double best = 0;
+        for (MediaType mediaType : mediaTypes) {
+            best = Math.max(best, mediaType.getQualityValue());
+        }
+        if (best == 0) {
+            return false;
+        }
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.getQualityValue() == best && !mediaType.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Render the cached body for a message
+     *
+     * @param message the error message
+     * @param timestamp the error timestamp
+     * @return the JSON body, or null if the message was never registered
+     */
+    public byte[] render(String message, LocalDateTime timestamp) {
+        byte[] prefix = prefixes.get(message);
+        if (prefix == null) {
+            return null;
+        }
+        
+        byte[] time = DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(timestamp).getBytes(StandardCharsets.US_ASCII);
+        byte[] body = new byte[prefix.length + TIMESTAMP_FIELD.length + time.length + END.length];
+        int position = 0;
+        System.arraycopy(prefix, 0, body, position, prefix.length);
+        position += prefix.length;
+        System.arraycopy(TIMESTAMP_FIELD, 0, body, position, TIMESTAMP_FIELD.length);
+        position += TIMESTAMP_FIELD.length;
+        System.arraycopy(time, 0, body, position, time.length);
+        position += time.length;
+        System.arraycopy(END, 0, body, position, END.length);
+        return body;
+    }
 }
 
 // ErrorResponse.java
@@ -650,50 +1071,87 @@ public class ErrorResponse {
 // PaymentController.java
 package com.ecommerce.payment.controller;
 
+import com.ecommerce.payment.dto.OrderPaymentSummaryResponse;
 import com.ecommerce.payment.dto.PaymentRequest;
+import com.ecommerce.payment.dto.PaymentRequestValidator;
 import com.ecommerce.payment.dto.PaymentResponse;
+import com.ecommerce.payment.lane.Lane;
+import com.ecommerce.payment.lane.LaneExecutors;
+import com.ecommerce.payment.model.PaymentStatus;
+import com.ecommerce.payment.readmodel.OrderPaymentSummaryService;
 import com.ecommerce.payment.service.PaymentService;
 import jakarta.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.WebDataBinder;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Payment endpoints. Checkout, refunds and reads each run on their own lane,
+ * so a surge of one kind of request does not delay the others.
+ * The reactive profile serves them from ReactivePaymentController instead.
+ */
 @RestController
 @RequestMapping("/api/payments")
+@Profile("!reactive")
 public class PaymentController {
     
     private final PaymentService paymentService;
+    private final OrderPaymentSummaryService summaryService;
+    private final LaneExecutors lanes;
+    private final PaymentRequestValidator requestValidator;
     
     @Autowired
-    public PaymentController(PaymentService paymentService) {
+    public PaymentController(PaymentService paymentService, OrderPaymentSummaryService summaryService,
+                             LaneExecutors lanes, PaymentRequestValidator requestValidator) {
         this.paymentService = paymentService;
+        this.summaryService = summaryService;
+        this.lanes = lanes;
+        this.requestValidator = requestValidator;
+    }
+    
+    // @Valid on a PaymentRequest runs PaymentRequestValidator instead of Bean Validation
+    @InitBinder("paymentRequest")
+    public void initPaymentRequestBinder(WebDataBinder binder) {
+        binder.setValidator(requestValidator);
     }
     
     @PostMapping
-    public ResponseEntity<PaymentResponse> processPayment(@Valid @RequestBody PaymentRequest paymentRequest) {
-        PaymentResponse paymentResponse = paymentService.processPayment(paymentRequest);
-        return new ResponseEntity<>(paymentResponse, HttpStatus.CREATED);
+    public CompletableFuture<ResponseEntity<PaymentResponse>> processPayment(
+            @Valid @RequestBody PaymentRequest paymentRequest) {
+        return lanes.submit(Lane.CHECKOUT, () -> {
+            PaymentResponse response = paymentService.processPayment(paymentRequest);
+            // PENDING: the gateway was unavailable and the charge is being retried
+            HttpStatus status = response.getStatus() == PaymentStatus.PENDING ? HttpStatus.ACCEPTED : HttpStatus.CREATED;
+            return new ResponseEntity<>(response, status);
+        });
     }
     
     @GetMapping("/{id}")
-    public ResponseEntity<PaymentResponse> getPaymentById(@PathVariable("id") Long paymentId) {
-        PaymentResponse paymentResponse = paymentService.getPaymentById(paymentId);
-        return ResponseEntity.ok(paymentResponse);
+    public CompletableFuture<ResponseEntity<PaymentResponse>> getPaymentById(@PathVariable("id") Long paymentId) {
+        return lanes.submit(Lane.QUERY, () -> ResponseEntity.ok(paymentService.getPaymentById(paymentId)));
     }
     
     @GetMapping("/order/{orderId}")
-    public ResponseEntity<List<PaymentResponse>> getPaymentsByOrderId(@PathVariable("orderId") Long orderId) {
-        List<PaymentResponse> payments = paymentService.getPaymentsByOrderId(orderId);
-        return ResponseEntity.ok(payments);
+    public CompletableFuture<ResponseEntity<List<PaymentResponse>>> getPaymentsByOrderId(
+            @PathVariable("orderId") Long orderId) {
+        return lanes.submit(Lane.QUERY, () -> ResponseEntity.ok(paymentService.getPaymentsByOrderId(orderId)));
+    }
+    
+    @GetMapping("/order/{orderId}/summary")
+    public CompletableFuture<ResponseEntity<List<OrderPaymentSummaryResponse>>> getOrderSummary(
+            @PathVariable("orderId") Long orderId) {
+        return lanes.submit(Lane.QUERY, () -> ResponseEntity.ok(summaryService.getOrderSummary(orderId)));
     }
     
     @PostMapping("/{id}/refund")
-    public ResponseEntity<PaymentResponse> refundPayment(@PathVariable("id") Long paymentId) {
-        PaymentResponse paymentResponse = paymentService.refundPayment(paymentId);
-        return ResponseEntity.ok(paymentResponse);
+    public CompletableFuture<ResponseEntity<PaymentResponse>> refundPayment(@PathVariable("id") Long paymentId) {
+        return lanes.submit(Lane.REFUND, () -> ResponseEntity.ok(paymentService.refundPayment(paymentId)));
     }
     
     @DeleteMapping("/{id}")
@@ -707,14 +1165,24 @@ public class PaymentController {
 // PaymentServiceApplication.java
 package com.ecommerce.payment;
 
+import com.ecommerce.payment.config.PaymentRuntimeHints;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.metrics.buffering.BufferingApplicationStartup;
+import org.springframework.context.annotation.ImportRuntimeHints;
 
 @SpringBootApplication
+@ImportRuntimeHints(PaymentRuntimeHints.class)
 public class PaymentServiceApplication {
     
+    // Enough for every startup step of this application; extra steps are dropped
+    private static final int STARTUP_TIMELINE_CAPACITY = 4096;
+    
     public static void main(String[] args) {
-        SpringApplication.run(PaymentServiceApplication.class, args);
+        SpringApplication application = new SpringApplication(PaymentServiceApplication.class);
+        // Records startup steps for StartupTimelineReporter and /actuator/startup
+        application.setApplicationStartup(new BufferingApplicationStartup(STARTUP_TIMELINE_CAPACITY));
+        application.run(args);
     }
 }
 